@@ -0,0 +1,135 @@
+package io.flic.flic2libandroid;
+
+class ChaskeyContext {
+    static final int DIR_FROM_BUTTON = 0;
+    static final int DIR_TO_BUTTON = 1;
+
+    private final int[] keys;
+    private final int txDir;
+    private final int rxDir;
+    long rxCounter;
+    long txCounter;
+
+    // Chaskey state of sign and verify. Separate from v, since a packet may be sent while a received one is half done.
+    private final int[] tagState = new int[4];
+
+    // Incremental Chaskey state
+    private final int[] v = new int[4];
+
+    private final byte[] block = new byte[16];
+    private int blockLen;
+    private boolean started;
+    private boolean hasData;
+    private int dir;
+
+    // The app side of a session, which sends to the button
+    ChaskeyContext(byte[] key) {
+        this(key, DIR_TO_BUTTON, DIR_FROM_BUTTON);
+    }
+
+    private ChaskeyContext(byte[] key, int txDir, int rxDir) {
+        keys = Flic2Crypto.chaskeyGenerateSubkeys(key);
+        this.txDir = txDir;
+        this.rxDir = rxDir;
+    }
+
+    // The button side of a session, as in Flic2ButtonEmulator
+    static ChaskeyContext forButton(byte[] key) {
+        return new ChaskeyContext(key, DIR_FROM_BUTTON, DIR_TO_BUTTON);
+    }
+
+    void sign(byte[] buf, int off, int len, byte[] out, int outOff) {
+        Flic2Crypto.storeTag(Flic2Crypto.chaskeyTag(keys, tagState, txDir, txCounter++, buf, off, len), out, outOff);
+    }
+
+    boolean verify(byte[] buf, int off, int len, byte[] mac, int macOff) {
+        return Flic2Crypto.tagEquals(Flic2Crypto.chaskeyTag(keys, tagState, rxDir, rxCounter++, buf, off, len), mac, macOff);
+    }
+
+    // Starts an incremental MAC of the next received packet. The rx counter is consumed first in finishAndVerifyRx.
+    void startRx() {
+        start(rxDir, rxCounter);
+    }
+
+    boolean isStarted() {
+        return started;
+    }
+
+    void start(int dir, long counter) {
+        this.dir = dir;
+        Flic2Crypto.chaskeyStart(keys, v, dir, counter);
+        blockLen = 0;
+        hasData = false;
+        started = true;
+    }
+
+    void update(byte[] buf, int off, int len) {
+        if (!started) {
+            throw new IllegalStateException();
+        }
+        if (len > 0) {
+            hasData = true;
+        }
+        while (len > 0) {
+            if (blockLen == 16) {
+                // Only absorbed once we know it is not the last block
+                absorb(block, 0);
+                blockLen = 0;
+            }
+            if (blockLen == 0 && len > 16) {
+                absorb(buf, off);
+                off += 16;
+                len -= 16;
+                continue;
+            }
+            int n = Math.min(16 - blockLen, len);
+            System.arraycopy(buf, off, block, blockLen, n);
+            blockLen += n;
+            off += n;
+            len -= n;
+        }
+    }
+
+    // Returns the first 5 bytes of the tag as the low 40 bits
+    long finish() {
+        if (!started || !hasData) {
+            throw new IllegalStateException();
+        }
+        started = false;
+
+        int keysOffset;
+        if (blockLen == 16) {
+            keysOffset = 4;
+        } else {
+            block[blockLen] = 0x01;
+            for (int i = blockLen + 1; i < 16; i++) {
+                block[i] = 0;
+            }
+            keysOffset = 8;
+        }
+        return Flic2Crypto.chaskeyFinish(keys, v, keysOffset, Flic2Crypto.loadInt(block, 0), Flic2Crypto.loadInt(block, 4),
+                Flic2Crypto.loadInt(block, 8), Flic2Crypto.loadInt(block, 12));
+    }
+
+    void finish(byte[] out, int outOff) {
+        Flic2Crypto.storeTag(finish(), out, outOff);
+    }
+
+    // Finishes the MAC started with startRx and consumes the rx counter
+    boolean finishAndVerifyRx(byte[] mac, int macOff) {
+        if (dir != rxDir) {
+            throw new IllegalStateException();
+        }
+        long tag = finish();
+        rxCounter++;
+        return Flic2Crypto.tagEquals(tag, mac, macOff);
+    }
+
+    private void absorb(byte[] buf, int off) {
+        v[0] ^= Flic2Crypto.loadInt(buf, off);
+        v[1] ^= Flic2Crypto.loadInt(buf, off + 4);
+        v[2] ^= Flic2Crypto.loadInt(buf, off + 8);
+        v[3] ^= Flic2Crypto.loadInt(buf, off + 12);
+        Flic2Crypto.chaskeyPermute(v);
+    }
+}
@@ -0,0 +1,44 @@
+package io.flic.flic2libandroid;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+// Declarative packet layouts. For every packet class annotated with Tx or Rx, the processor in flic2lib-codegen
+// generates PacketCodecs.encode or PacketCodecs.decode, which read and write the annotated fields in declaration order
+// with all offsets resolved at compile time. Bit fields are packed LSB first, as in TxPacket.Writer and RxPacket.Reader.
+// Tx packets extend TxPacket.CodecTxPacket, whose writeTo dispatches to the generated encoder.
+class Codec {
+    // The opcode is written as the first byte
+    @Retention(RetentionPolicy.SOURCE)
+    @Target(ElementType.TYPE)
+    @interface Tx {
+        int value();
+    }
+
+    // The opcode is only documentation, since the decoder gets the packet without it
+    @Retention(RetentionPolicy.SOURCE)
+    @Target(ElementType.TYPE)
+    @interface Rx {
+        int value();
+    }
+
+    // An integer or boolean field of 1 to 64 bits, followed by pad zero bits
+    @Retention(RetentionPolicy.SOURCE)
+    @Target(ElementType.FIELD)
+    @interface Bits {
+        int value();
+        int pad() default 0;
+    }
+
+    // A byte[] field of a fixed number of bytes, or a byte[] or UTF-8 String field of REST, which takes the remainder
+    // of the packet and must be the last field. Must start on a byte boundary.
+    @Retention(RetentionPolicy.SOURCE)
+    @Target(ElementType.FIELD)
+    @interface Bytes {
+        int REST = -1;
+
+        int value();
+    }
+}
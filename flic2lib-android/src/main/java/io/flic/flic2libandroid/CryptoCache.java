@@ -0,0 +1,94 @@
+package io.flic.flic2libandroid;
+
+import java.security.InvalidKeyException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+// getInstance goes through all security providers, which is slow on Android. Each algorithm is therefore looked up
+// once, and later instances are cloned from that prototype. The prototypes are never updated, only cloned, so any
+// thread may call these methods; the returned instances are not shared and belong to the caller.
+// If a provider's implementation can't be cloned, getInstance is used every time instead.
+class CryptoCache {
+    private static class Sha256Holder {
+        static final MessageDigest prototype = digestPrototype("SHA-256");
+    }
+
+    private static class Sha512Holder {
+        static final MessageDigest prototype = digestPrototype("SHA-512");
+    }
+
+    private static class HmacSha256Holder {
+        static final Mac prototype = macPrototype("HmacSHA256");
+    }
+
+    static MessageDigest sha256() {
+        return newDigest(Sha256Holder.prototype, "SHA-256");
+    }
+
+    static MessageDigest sha512() {
+        return newDigest(Sha512Holder.prototype, "SHA-512");
+    }
+
+    static Mac hmacSha256(byte[] key) {
+        Mac mac = newMac(HmacSha256Holder.prototype, "HmacSHA256");
+        try {
+            mac.init(new SecretKeySpec(key, "HmacSHA256"));
+        } catch (InvalidKeyException e) {
+            throw new RuntimeException(e);
+        }
+        return mac;
+    }
+
+    private static MessageDigest digestPrototype(String algorithm) {
+        MessageDigest md = newDigest(null, algorithm);
+        try {
+            md.clone();
+            return md;
+        } catch (CloneNotSupportedException e) {
+            return null;
+        }
+    }
+
+    private static MessageDigest newDigest(MessageDigest prototype, String algorithm) {
+        if (prototype != null) {
+            try {
+                return (MessageDigest)prototype.clone();
+            } catch (CloneNotSupportedException e) {
+                // Checked when the prototype was created
+            }
+        }
+        try {
+            return MessageDigest.getInstance(algorithm);
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static Mac macPrototype(String algorithm) {
+        Mac mac = newMac(null, algorithm);
+        try {
+            mac.clone();
+            return mac;
+        } catch (CloneNotSupportedException e) {
+            return null;
+        }
+    }
+
+    private static Mac newMac(Mac prototype, String algorithm) {
+        if (prototype != null) {
+            try {
+                return (Mac)prototype.clone();
+            } catch (CloneNotSupportedException e) {
+                // Checked when the prototype was created
+            }
+        }
+        try {
+            return Mac.getInstance(algorithm);
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+    }
+}
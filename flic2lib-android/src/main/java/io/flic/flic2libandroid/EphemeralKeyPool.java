@@ -0,0 +1,83 @@
+package io.flic.flic2libandroid;
+
+import java.security.SecureRandom;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.Executor;
+
+// Curve25519 keypairs for the ECDH in the full verify, generated ahead of time on an executor so that only
+// the shared secret needs to be computed when the button's public key arrives. A keypair is handed out once by take
+// and the caller must wipe it as soon as the shared secret has been computed.
+class EphemeralKeyPool {
+    static class KeyPair {
+        final byte[] secretKey;
+        final byte[] publicKey;
+
+        private KeyPair(byte[] secretKey, byte[] publicKey) {
+            this.secretKey = secretKey;
+            this.publicKey = publicKey;
+        }
+
+        void wipe() {
+            Arrays.fill(secretKey, (byte)0);
+        }
+    }
+
+    private final int capacity;
+    private final SecureRandom random;
+    private final Executor executor;
+    private final ArrayDeque<KeyPair> pool = new ArrayDeque<>();
+    // True while a fill task is queued or running, so that at most one is in flight
+    private boolean filling;
+
+    EphemeralKeyPool(int capacity, SecureRandom random, Executor executor) {
+        this.capacity = capacity;
+        this.random = random;
+        this.executor = executor;
+    }
+
+    private KeyPair generate() {
+        byte[] secretKey = new byte[32];
+        random.nextBytes(secretKey);
+        return new KeyPair(secretKey, Flic2Crypto.curve25519Base(secretKey));
+    }
+
+    // Submits a task that tops up the pool, unless it is full or already being filled
+    synchronized void fillInBackground() {
+        if (filling || pool.size() >= capacity) {
+            return;
+        }
+        filling = true;
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                while (true) {
+                    KeyPair keyPair = generate();
+                    synchronized (EphemeralKeyPool.this) {
+                        if (pool.size() >= capacity) {
+                            keyPair.wipe();
+                            filling = false;
+                            return;
+                        }
+                        pool.add(keyPair);
+                        if (pool.size() == capacity) {
+                            filling = false;
+                            return;
+                        }
+                    }
+                }
+            }
+        });
+    }
+
+    // Returns a pregenerated keypair, or generates one on the calling thread if the pool is empty
+    KeyPair take() {
+        synchronized (this) {
+            KeyPair keyPair = pool.poll();
+            if (keyPair != null) {
+                return keyPair;
+            }
+        }
+        return generate();
+    }
+}
@@ -0,0 +1,333 @@
+package io.flic.flic2libandroid;
+
+// Field elements as 5 limbs of 51 bits in a long[5]. Each 102-bit limb product is split into its low 51 bits and the
+// rest using Math.multiplyHigh, which is a single instruction on arm64 and x86-64, so a multiplication needs 25 of
+// these instead of the 100 32x32 products of the 10 limb representation.
+// Math.multiplyHigh exists from API level 31, see isSupported.
+@SuppressWarnings("NewApi")
+class Fe51Backend extends FieldBackend<long[]> {
+    static final Fe51Backend INSTANCE = new Fe51Backend();
+
+    private static final long MASK = 0x7ffffffffffffL;
+
+    static boolean isSupported() {
+        try {
+            return Math.multiplyHigh(1L << 62, 12) == 3;
+        } catch (LinkageError e) {
+            return false;
+        }
+    }
+
+    @Override
+    long[][] newElements(int n) {
+        return new long[n][5];
+    }
+
+    @Override
+    void copy(long[] out, long[] in) {
+        out[0] = in[0];
+        out[1] = in[1];
+        out[2] = in[2];
+        out[3] = in[3];
+        out[4] = in[4];
+    }
+
+    @Override
+    void setInt(long[] out, int v) {
+        out[0] = v;
+        out[1] = 0;
+        out[2] = 0;
+        out[3] = 0;
+        out[4] = 0;
+    }
+
+    @Override
+    void fromBytes(long[] out, byte[] in) {
+        long v0 = Flic2Crypto.loadLong(in, 0);
+        long v1 = Flic2Crypto.loadLong(in, 8);
+        long v2 = Flic2Crypto.loadLong(in, 16);
+        long v3 = Flic2Crypto.loadLong(in, 24);
+        out[0] = v0 & MASK;
+        out[1] = ((v0 >>> 51) | (v1 << 13)) & MASK;
+        out[2] = ((v1 >>> 38) | (v2 << 26)) & MASK;
+        out[3] = ((v2 >>> 25) | (v3 << 39)) & MASK;
+        out[4] = (v3 >>> 12) & MASK;
+    }
+
+    @Override
+    void toBytes(byte[] out, int offset, long[] in) {
+        long h0 = in[0], h1 = in[1], h2 = in[2], h3 = in[3], h4 = in[4];
+
+        // Two carry passes leave a value in [0, 2^255 - 1] with all limbs below 2^51
+        for (int i = 0; i < 2; i++) {
+            h1 += h0 >>> 51;
+            h0 &= MASK;
+            h2 += h1 >>> 51;
+            h1 &= MASK;
+            h3 += h2 >>> 51;
+            h2 &= MASK;
+            h4 += h3 >>> 51;
+            h3 &= MASK;
+            h0 += (h4 >>> 51) * 19;
+            h4 &= MASK;
+        }
+
+        // Adding 19 carries out of bit 255 exactly when the value is at least p, in which case 19 is wrapped back in
+        // and the result is value - p + 38. Otherwise adding 2^255 - 19 and dropping bit 255 undoes the first step.
+        h0 += 19;
+        h1 += h0 >>> 51;
+        h0 &= MASK;
+        h2 += h1 >>> 51;
+        h1 &= MASK;
+        h3 += h2 >>> 51;
+        h2 &= MASK;
+        h4 += h3 >>> 51;
+        h3 &= MASK;
+        h0 += (h4 >>> 51) * 19;
+        h4 &= MASK;
+
+        h0 += MASK + 1 - 19;
+        h1 += MASK;
+        h2 += MASK;
+        h3 += MASK;
+        h4 += MASK;
+        h1 += h0 >>> 51;
+        h0 &= MASK;
+        h2 += h1 >>> 51;
+        h1 &= MASK;
+        h3 += h2 >>> 51;
+        h2 &= MASK;
+        h4 += h3 >>> 51;
+        h3 &= MASK;
+        h4 &= MASK;
+
+        Flic2Crypto.storeLong(out, offset, h0 | (h1 << 51));
+        Flic2Crypto.storeLong(out, offset + 8, (h1 >>> 13) | (h2 << 38));
+        Flic2Crypto.storeLong(out, offset + 16, (h2 >>> 26) | (h3 << 25));
+        Flic2Crypto.storeLong(out, offset + 24, (h3 >>> 39) | (h4 << 12));
+    }
+
+    @Override
+    void add(long[] out, long[] f, long[] g) {
+        out[0] = f[0] + g[0];
+        out[1] = f[1] + g[1];
+        out[2] = f[2] + g[2];
+        out[3] = f[3] + g[3];
+        out[4] = f[4] + g[4];
+    }
+
+    // Adds 2p so that the limbs stay positive
+    @Override
+    void sub(long[] out, long[] f, long[] g) {
+        out[0] = f[0] - g[0] + 0xfffffffffffdaL;
+        out[1] = f[1] - g[1] + 0xffffffffffffeL;
+        out[2] = f[2] - g[2] + 0xffffffffffffeL;
+        out[3] = f[3] - g[3] + 0xffffffffffffeL;
+        out[4] = f[4] - g[4] + 0xffffffffffffeL;
+    }
+
+    // Inputs may be sums or differences of two reduced elements, i.e. limbs below 2^53
+    @Override
+    void mul(long[] out, long[] f, long[] g) {
+        long f0 = f[0], f1 = f[1], f2 = f[2], f3 = f[3], f4 = f[4];
+        long g0 = g[0], g1 = g[1], g2 = g[2], g3 = g[3], g4 = g[4];
+        long g1_19 = g1 * 19, g2_19 = g2 * 19, g3_19 = g3 * 19, g4_19 = g4 * 19;
+        long p;
+
+        // lK is the low 51 bits of the products at position K, cK the rest, which has the weight of position K + 1
+        p = f0 * g0;
+        long l0 = p & MASK;
+        long c0 = (Math.multiplyHigh(f0, g0) << 13) | (p >>> 51);
+        p = f1 * g4_19;
+        l0 += p & MASK;
+        c0 += (Math.multiplyHigh(f1, g4_19) << 13) | (p >>> 51);
+        p = f2 * g3_19;
+        l0 += p & MASK;
+        c0 += (Math.multiplyHigh(f2, g3_19) << 13) | (p >>> 51);
+        p = f3 * g2_19;
+        l0 += p & MASK;
+        c0 += (Math.multiplyHigh(f3, g2_19) << 13) | (p >>> 51);
+        p = f4 * g1_19;
+        l0 += p & MASK;
+        c0 += (Math.multiplyHigh(f4, g1_19) << 13) | (p >>> 51);
+        p = f0 * g1;
+        long l1 = p & MASK;
+        long c1 = (Math.multiplyHigh(f0, g1) << 13) | (p >>> 51);
+        p = f1 * g0;
+        l1 += p & MASK;
+        c1 += (Math.multiplyHigh(f1, g0) << 13) | (p >>> 51);
+        p = f2 * g4_19;
+        l1 += p & MASK;
+        c1 += (Math.multiplyHigh(f2, g4_19) << 13) | (p >>> 51);
+        p = f3 * g3_19;
+        l1 += p & MASK;
+        c1 += (Math.multiplyHigh(f3, g3_19) << 13) | (p >>> 51);
+        p = f4 * g2_19;
+        l1 += p & MASK;
+        c1 += (Math.multiplyHigh(f4, g2_19) << 13) | (p >>> 51);
+        p = f0 * g2;
+        long l2 = p & MASK;
+        long c2 = (Math.multiplyHigh(f0, g2) << 13) | (p >>> 51);
+        p = f1 * g1;
+        l2 += p & MASK;
+        c2 += (Math.multiplyHigh(f1, g1) << 13) | (p >>> 51);
+        p = f2 * g0;
+        l2 += p & MASK;
+        c2 += (Math.multiplyHigh(f2, g0) << 13) | (p >>> 51);
+        p = f3 * g4_19;
+        l2 += p & MASK;
+        c2 += (Math.multiplyHigh(f3, g4_19) << 13) | (p >>> 51);
+        p = f4 * g3_19;
+        l2 += p & MASK;
+        c2 += (Math.multiplyHigh(f4, g3_19) << 13) | (p >>> 51);
+        p = f0 * g3;
+        long l3 = p & MASK;
+        long c3 = (Math.multiplyHigh(f0, g3) << 13) | (p >>> 51);
+        p = f1 * g2;
+        l3 += p & MASK;
+        c3 += (Math.multiplyHigh(f1, g2) << 13) | (p >>> 51);
+        p = f2 * g1;
+        l3 += p & MASK;
+        c3 += (Math.multiplyHigh(f2, g1) << 13) | (p >>> 51);
+        p = f3 * g0;
+        l3 += p & MASK;
+        c3 += (Math.multiplyHigh(f3, g0) << 13) | (p >>> 51);
+        p = f4 * g4_19;
+        l3 += p & MASK;
+        c3 += (Math.multiplyHigh(f4, g4_19) << 13) | (p >>> 51);
+        p = f0 * g4;
+        long l4 = p & MASK;
+        long c4 = (Math.multiplyHigh(f0, g4) << 13) | (p >>> 51);
+        p = f1 * g3;
+        l4 += p & MASK;
+        c4 += (Math.multiplyHigh(f1, g3) << 13) | (p >>> 51);
+        p = f2 * g2;
+        l4 += p & MASK;
+        c4 += (Math.multiplyHigh(f2, g2) << 13) | (p >>> 51);
+        p = f3 * g1;
+        l4 += p & MASK;
+        c4 += (Math.multiplyHigh(f3, g1) << 13) | (p >>> 51);
+        p = f4 * g0;
+        l4 += p & MASK;
+        c4 += (Math.multiplyHigh(f4, g0) << 13) | (p >>> 51);
+
+        reduce(out, l0, l1, l2, l3, l4, c0, c1, c2, c3, c4);
+    }
+
+    @Override
+    void sqr(long[] out, long[] f) {
+        long f0 = f[0], f1 = f[1], f2 = f[2], f3 = f[3], f4 = f[4];
+        long f0_2 = f0 * 2, f1_2 = f1 * 2, f2_2 = f2 * 2, f3_2 = f3 * 2;
+        long f3_19 = f3 * 19, f4_19 = f4 * 19;
+        long p;
+
+        p = f0 * f0;
+        long l0 = p & MASK;
+        long c0 = (Math.multiplyHigh(f0, f0) << 13) | (p >>> 51);
+        p = f1_2 * f4_19;
+        l0 += p & MASK;
+        c0 += (Math.multiplyHigh(f1_2, f4_19) << 13) | (p >>> 51);
+        p = f2_2 * f3_19;
+        l0 += p & MASK;
+        c0 += (Math.multiplyHigh(f2_2, f3_19) << 13) | (p >>> 51);
+        p = f0_2 * f1;
+        long l1 = p & MASK;
+        long c1 = (Math.multiplyHigh(f0_2, f1) << 13) | (p >>> 51);
+        p = f2_2 * f4_19;
+        l1 += p & MASK;
+        c1 += (Math.multiplyHigh(f2_2, f4_19) << 13) | (p >>> 51);
+        p = f3 * f3_19;
+        l1 += p & MASK;
+        c1 += (Math.multiplyHigh(f3, f3_19) << 13) | (p >>> 51);
+        p = f0_2 * f2;
+        long l2 = p & MASK;
+        long c2 = (Math.multiplyHigh(f0_2, f2) << 13) | (p >>> 51);
+        p = f1 * f1;
+        l2 += p & MASK;
+        c2 += (Math.multiplyHigh(f1, f1) << 13) | (p >>> 51);
+        p = f3_2 * f4_19;
+        l2 += p & MASK;
+        c2 += (Math.multiplyHigh(f3_2, f4_19) << 13) | (p >>> 51);
+        p = f0_2 * f3;
+        long l3 = p & MASK;
+        long c3 = (Math.multiplyHigh(f0_2, f3) << 13) | (p >>> 51);
+        p = f1_2 * f2;
+        l3 += p & MASK;
+        c3 += (Math.multiplyHigh(f1_2, f2) << 13) | (p >>> 51);
+        p = f4 * f4_19;
+        l3 += p & MASK;
+        c3 += (Math.multiplyHigh(f4, f4_19) << 13) | (p >>> 51);
+        p = f0_2 * f4;
+        long l4 = p & MASK;
+        long c4 = (Math.multiplyHigh(f0_2, f4) << 13) | (p >>> 51);
+        p = f1_2 * f3;
+        l4 += p & MASK;
+        c4 += (Math.multiplyHigh(f1_2, f3) << 13) | (p >>> 51);
+        p = f2 * f2;
+        l4 += p & MASK;
+        c4 += (Math.multiplyHigh(f2, f2) << 13) | (p >>> 51);
+
+        reduce(out, l0, l1, l2, l3, l4, c0, c1, c2, c3, c4);
+    }
+
+    @Override
+    void mul121666(long[] out, long[] f) {
+        long p;
+        p = f[0] * 121666;
+        long l0 = p & MASK;
+        long c0 = (Math.multiplyHigh(f[0], 121666) << 13) | (p >>> 51);
+        p = f[1] * 121666;
+        long l1 = p & MASK;
+        long c1 = (Math.multiplyHigh(f[1], 121666) << 13) | (p >>> 51);
+        p = f[2] * 121666;
+        long l2 = p & MASK;
+        long c2 = (Math.multiplyHigh(f[2], 121666) << 13) | (p >>> 51);
+        p = f[3] * 121666;
+        long l3 = p & MASK;
+        long c3 = (Math.multiplyHigh(f[3], 121666) << 13) | (p >>> 51);
+        p = f[4] * 121666;
+        long l4 = p & MASK;
+        long c4 = (Math.multiplyHigh(f[4], 121666) << 13) | (p >>> 51);
+
+        reduce(out, l0, l1, l2, l3, l4, c0, c1, c2, c3, c4);
+    }
+
+    // c4 has weight 2^255, which is 19 mod p
+    private static void reduce(long[] out, long l0, long l1, long l2, long l3, long l4, long c0, long c1, long c2, long c3, long c4) {
+        long h0 = l0 + (c4 & MASK) * 19;
+        long h1 = l1 + c0 + (c4 >>> 51) * 19;
+        long h2 = l2 + c1;
+        long h3 = l3 + c2;
+        long h4 = l4 + c3;
+
+        h1 += h0 >>> 51;
+        h0 &= MASK;
+        h2 += h1 >>> 51;
+        h1 &= MASK;
+        h3 += h2 >>> 51;
+        h2 &= MASK;
+        h4 += h3 >>> 51;
+        h3 &= MASK;
+        h0 += (h4 >>> 51) * 19;
+        h4 &= MASK;
+        h1 += h0 >>> 51;
+        h0 &= MASK;
+
+        out[0] = h0;
+        out[1] = h1;
+        out[2] = h2;
+        out[3] = h3;
+        out[4] = h4;
+    }
+
+    @Override
+    void csel(long[] out, long[] in1, long[] in2, int sel) {
+        long sel0 = sel - 1;
+        long sel1 = -sel;
+        out[0] = (in1[0] & sel0) | (in2[0] & sel1);
+        out[1] = (in1[1] & sel0) | (in2[1] & sel1);
+        out[2] = (in1[2] & sel0) | (in2[2] & sel1);
+        out[3] = (in1[3] & sel0) | (in2[3] & sel1);
+        out[4] = (in1[4] & sel0) | (in2[4] & sel1);
+    }
+}
@@ -0,0 +1,174 @@
+package io.flic.flic2libandroid;
+
+import java.util.Arrays;
+
+// Arithmetic modulo 2^255 - 19 on some limb representation E, used by the Montgomery ladder in Flic2Crypto.
+// The 10 limb representation in Flic2Crypto.Fe suits 32-bit cpus, Fe51Backend is faster on 64-bit ones.
+abstract class FieldBackend<E> {
+    abstract E[] newElements(int n);
+
+    abstract void copy(E out, E in);
+
+    abstract void setInt(E out, int v);
+
+    // Ignores the top bit
+    abstract void fromBytes(E out, byte[] in);
+
+    // Always outputs the fully reduced value
+    abstract void toBytes(byte[] out, int offset, E in);
+
+    abstract void add(E out, E f, E g);
+
+    // g must be the output of fromBytes, mul, sqr or mul121666
+    abstract void sub(E out, E f, E g);
+
+    abstract void mul(E out, E f, E g);
+
+    abstract void sqr(E out, E f);
+
+    abstract void mul121666(E out, E f);
+
+    // out = sel == 0 ? in1 : in2, in constant time
+    abstract void csel(E out, E in1, E in2, int sel);
+
+    void sqrMany(E out, E in, int times) {
+        sqr(out, in);
+        for (int i = 1; i < times; i++) {
+            sqr(out, out);
+        }
+    }
+
+    // The same addition chain as Flic2Crypto.pow
+    void pow(E out, E in, boolean doSqrt, E t0, E t1, E t2, E t3) {
+        sqr(t0, in);
+        sqr(t1, t0);
+        sqr(t1, t1);
+        mul(t1, t1, in);
+        mul(t0, t1, t0);
+        sqr(t2, t0);
+        mul(t1, t2, t1);
+        sqrMany(t2, t1, 5);
+        mul(t1, t2, t1);
+        sqrMany(t2, t1, 10);
+        mul(t2, t2, t1);
+        sqrMany(t3, t2, 20);
+        mul(t2, t3, t2);
+        sqrMany(t2, t2, 10);
+        mul(t1, t2, t1);
+        sqrMany(t2, t1, 50);
+        mul(t2, t2, t1);
+        sqrMany(t3, t2, 100);
+        mul(t2, t3, t2);
+        sqrMany(t2, t2, 50);
+        mul(t2, t2, t1);
+        if (!doSqrt) {
+            sqrMany(t2, t2, 5);
+            mul(out, t2, t0);
+        } else {
+            sqrMany(t2, t2, 2);
+            mul(out, t2, in);
+        }
+    }
+
+    // Follows Flic2Crypto.useSafegcdInversion. safegcd works on bytes, so the element is converted there and back.
+    void invert(E out, E in, E t0, E t1, E t2, E t3, Flic2Crypto.CurveScratch s) {
+        if (Flic2Crypto.useSafegcdInversion) {
+            toBytes(s.sgBytes, 0, in);
+            Flic2Crypto.invertSafegcd(s.sgBytes, s);
+            fromBytes(out, s.sgBytes);
+        } else {
+            pow(out, in, false, t0, t1, t2, t3);
+        }
+    }
+
+    // Picks the 64-bit backend on 64-bit cpus where it is supported and passes the test vectors, otherwise the 10 limb one
+    static FieldBackend<?> select() {
+        String arch = System.getProperty("os.arch", "");
+        if (arch.contains("64") && Fe51Backend.isSupported() && selfTest(Fe51Backend.INSTANCE)) {
+            return Fe51Backend.INSTANCE;
+        }
+        return Flic2Crypto.fe25Backend;
+    }
+
+    // Each row: a, b, a, b (reduced), a * b, a^2, a^-1, a^(2^252 - 3), a * 121666, little endian hex
+    private static final String[][] testVectors = {
+            {
+                    "6d25cf734c49a1dd273e4d8fab5f5bdb8d1099ec05e8fdc7c1d734777648ab73",
+                    "bde201825045e4da32da5e96796b9d3078e6452f2969cccdc2710c83869ecb79",
+                    "6d25cf734c49a1dd273e4d8fab5f5bdb8d1099ec05e8fdc7c1d734777648ab73",
+                    "bde201825045e4da32da5e96796b9d3078e6452f2969cccdc2710c83869ecb79",
+                    "7551f87dfa8c05fe3ef43cf9110a585f5700d47ff70c353ebbdc2d8c55fc5d0b",
+                    "1ce3341942de4a5c988c7f1f7ca8e49c0f7072cb4233bb51e77806f9219a8c4d",
+                    "4cfac8899afa00cea6b651153408fac77b5f4b9548a9a685d3a2f775d985a849",
+                    "e7783a0b71667559171770b963a9fc52d0d55d27f1a475dcb1fa4b24a3f57247",
+                    "15c5f83597c0956681fe3d441ffd1118957a2d0187cff8ac092ef4c7b97d9c21"
+            },
+            {
+                    "f0ffffffffffffffffffffffffffffffffffffffffffffffffffffffffffff7f",
+                    "ffffffffffffffffffffffffffffffffffffffffffffffffffffffffffffffff",
+                    "0300000000000000000000000000000000000000000000000000000000000000",
+                    "1200000000000000000000000000000000000000000000000000000000000000",
+                    "3600000000000000000000000000000000000000000000000000000000000000",
+                    "0900000000000000000000000000000000000000000000000000000000000000",
+                    "4955555555555555555555555555555555555555555555555555555555555555",
+                    "11d3fb91b0564ab2f9b0f1c0e08495a8d788ac7be0c8851a205ccc5b7b87130b",
+                    "c691050000000000000000000000000000000000000000000000000000000000"
+            },
+            {
+                    "79fe3fa1ed672c9d538800cb2514a92f93791818c6ed537281b4ab4d9caf4c24",
+                    "ecffffffffffffffffffffffffffffffffffffffffffffffffffffffffffff7f",
+                    "79fe3fa1ed672c9d538800cb2514a92f93791818c6ed537281b4ab4d9caf4c24",
+                    "ecffffffffffffffffffffffffffffffffffffffffffffffffffffffffffff7f",
+                    "7401c05e1298d362ac77ff34daeb56d06c86e7e73912ac8d7e4b54b26350b35b",
+                    "28ea5fcacb0579eb3c623dbf58d20de543d007550e8a1faba1a1d893ca176361",
+                    "4a1666a9c2bdc96aab8adec279595605945bed89f297c8b25ccc6c2158eb4921",
+                    "7ae9cc87c3086908716764c23124f35a67961a499e0a5f1f5c64a2c4ca7ba015",
+                    "f71eb44f75b548ea2f4a16536851f9016171e39fc7dbd13381b8309e694a9c25"
+            }
+    };
+
+    // Checks fromBytes, toBytes, mul, sqr, pow and mul121666 against testVectors
+    static <E> boolean selfTest(FieldBackend<E> backend) {
+        E[] t = backend.newElements(7);
+        byte[] out = new byte[32];
+        for (String[] v : testVectors) {
+            backend.fromBytes(t[0], hex(v[0]));
+            backend.fromBytes(t[1], hex(v[1]));
+            backend.toBytes(out, 0, t[0]);
+            boolean ok = matches(v[2], out);
+            backend.toBytes(out, 0, t[1]);
+            ok &= matches(v[3], out);
+            backend.mul(t[2], t[0], t[1]);
+            backend.toBytes(out, 0, t[2]);
+            ok &= matches(v[4], out);
+            backend.sqr(t[2], t[0]);
+            backend.toBytes(out, 0, t[2]);
+            ok &= matches(v[5], out);
+            backend.pow(t[2], t[0], false, t[3], t[4], t[5], t[6]);
+            backend.toBytes(out, 0, t[2]);
+            ok &= matches(v[6], out);
+            backend.pow(t[2], t[0], true, t[3], t[4], t[5], t[6]);
+            backend.toBytes(out, 0, t[2]);
+            ok &= matches(v[7], out);
+            backend.mul121666(t[2], t[0]);
+            backend.toBytes(out, 0, t[2]);
+            ok &= matches(v[8], out);
+            if (!ok) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static byte[] hex(String s) {
+        byte[] out = new byte[s.length() / 2];
+        for (int i = 0; i < out.length; i++) {
+            out[i] = (byte)Integer.parseInt(s.substring(2 * i, 2 * i + 2), 16);
+        }
+        return out;
+    }
+
+    private static boolean matches(String expected, byte[] actual) {
+        return Arrays.equals(hex(expected), actual);
+    }
+}
@@ -1,6 +1,7 @@
 package io.flic.flic2libandroid;
 
 import android.bluetooth.BluetoothDevice;
+import android.os.SystemClock;
 
 import java.nio.charset.StandardCharsets;
 import java.security.MessageDigest;
@@ -43,6 +44,9 @@ public class Flic2Button {
      */
     public static final int CONNECTION_STATE_CONNECTED_READY = 3;
 
+    // Upper bound for Flic2Manager.setMaxPendingRequests
+    static final int MAX_PENDING_REQUESTS_LIMIT = 8;
+
     private static void log(String s) {
         //Log.d("Flic2Button", s);
     }
@@ -73,6 +77,7 @@ public class Flic2Button {
     int bootId;
     int eventCount;
     long readyTimestamp;
+    volatile long lastSetupDurationMs;
     Float lastKnownBatteryVoltage;
     Long lastKnownBatteryTimestampUtcMs;
 
@@ -452,6 +457,33 @@ public class Flic2Button {
         return readyTimestamp;
     }
 
+    /**
+     * Gets how long the setup of the latest connection took.
+     *
+     * <p>This is the time from when the session was started on the connected link until the responses to all requests
+     * sent during setup, such as the button events initialization, name and battery level, had arrived.</p>
+     *
+     * @return the time in milliseconds, or 0 if no connection has completed the setup yet
+     * @see Flic2Manager#setMaxPendingRequests(int, int)
+     */
+    public long getLastSetupDurationMs() {
+        return lastSetupDurationMs;
+    }
+
+    /**
+     * Gets the number of frames waiting to be sent to the button.
+     *
+     * <p>This counts the frames in the send buffer of the current connection, including the ones being sent. A
+     * depth that keeps growing means that the connection cannot keep up with the packets sent to the button.</p>
+     *
+     * @return the number of frames, or 0 if not connected
+     */
+    public int getTxQueueDepth() {
+        Flic2Manager.FlicGattCallback cb = currentGattCb;
+        Session session = cb != null ? cb.getSession() : null;
+        return session != null ? session.getTxQueueDepth() : 0;
+    }
+
     /**
      * Gets press count.
      *
@@ -600,6 +632,67 @@ public class Flic2Button {
         return getBdAddr();
     }
 
+    private static class FullVerifyResult {
+        int variant;
+        byte[] publicKey;
+        byte[] clientRandomBytes;
+        byte[] sharedSecret;
+
+        // For pairing
+        byte[] verifier;
+        byte[] sessionKey;
+
+        // For testing if a paired button is really unpaired
+        int pairingId;
+        byte[] pairingToken;
+
+        // Set if runFullVerifyCrypto threw, e.g. on a missing algorithm or a malformed packet
+        RuntimeException error;
+    }
+
+    // The expensive part of handling FULL_VERIFY_RESPONSE_1: the certificate check, ECDH and key derivation.
+    // Doesn't touch the session so it can run on any thread. pairingData is null when pairing.
+    private static FullVerifyResult runFullVerifyCrypto(RxPacket.FullVerifyResponse1 p, PairingData pairingData, EphemeralKeyPool ephemeralKeys) {
+        FullVerifyResult result = new FullVerifyResult();
+
+        byte[] msg = new byte[39];
+        System.arraycopy(p.bdAddr, 0, msg, 0, 6);
+        msg[6] = (byte) (p.bdAddrType ? 1 : 0);
+        System.arraycopy(p.publicKey, 0, msg, 7, 32);
+        int i = Flic2Crypto.ed25519Verify(p.signature, msg);
+        result.variant = i;
+        if (i < 0) {
+            return result;
+        }
+        EphemeralKeyPool.KeyPair keyPair = ephemeralKeys.take();
+        result.publicKey = keyPair.publicKey;
+        byte[] sharedSecret = Flic2Crypto.curve25519(p.publicKey, keyPair.secretKey);
+        keyPair.wipe();
+        result.clientRandomBytes = new byte[8];
+        Utils.secureRandom.nextBytes(result.clientRandomBytes);
+        byte[] flags = new byte[1];
+        MessageDigest md = Utils.createSha256();
+        md.update(sharedSecret);
+        md.update((byte) i);
+        md.update(p.random);
+        md.update(result.clientRandomBytes);
+        md.update(flags);
+        result.sharedSecret = md.digest();
+
+        if (pairingData == null) {
+            result.verifier = Arrays.copyOf(Utils.createHmacSha256(result.sharedSecret).doFinal(new byte[]{'A', 'T'}), 16);
+            result.sessionKey = Arrays.copyOf(Utils.createHmacSha256(result.sharedSecret).doFinal(new byte[]{'S', 'K'}), 16);
+        } else {
+            Mac hmac = Utils.createHmacSha256(result.sharedSecret);
+            hmac.update(new byte[]{'P', 'T'});
+            hmac.update(Utils.intToBytes(pairingData.identifier));
+            hmac.update(pairingData.key);
+            result.pairingId = pairingData.identifier;
+            result.pairingToken = Arrays.copyOf(hmac.doFinal(), 16);
+        }
+        return result;
+    }
+
     class Session {
         private static final int STATE_WAIT_FULL_VERIFY1 = 0;
         private static final int STATE_BONDING = 1;
@@ -610,6 +703,7 @@ public class Flic2Button {
         private static final int STATE_WAIT_TEST_IF_REALLY_UNPAIRED_RESPONSE = 6;
         private static final int STATE_FAILED = 7;
         private static final int STATE_ENDED = 8;
+        private static final int STATE_FULL_VERIFY_CRYPTO = 9;
 
         private static final int FW_UPDATE_STATE_IDLE = 0;
         private static final int FW_UPDATE_STATE_GETTING_BUTTON_VERSION = 1;
@@ -620,14 +714,26 @@ public class Flic2Button {
 
         private static final int SIGNATURE_LENGTH = 5;
 
+        // States that accept packets before the button has assigned a logical connection id
+        private static final int RX_STATES_WITHOUT_CONN_ID = (1 << STATE_WAIT_FULL_VERIFY1) | (1 << STATE_WAIT_FULL_VERIFY1_TEST_UNPAIRED) | (1 << STATE_WAIT_QUICK_VERIFY);
+
+        private Flic2Transport transport;
         private boolean onL2CAP;
         private SessionCallback sessionCallback;
         private int mtu;
-        private boolean txInProgress;
-        private Queue<byte[]> txQueue = new LinkedList<>();
         private Queue<TxPacket> requestQueue = new LinkedList<>();
         private int numRequestsPending;
 
+        // Requests are answered in order, so the send times of the pending ones form a ring starting at requestSentHead
+        private int requestWindow;
+        private int maxRequestWindow;
+        private final long[] requestSentTimes = new long[MAX_PENDING_REQUESTS_LIMIT];
+        private int requestSentHead;
+        private long minRequestRtt = Long.MAX_VALUE;
+        private long smoothedRequestRtt = -1;
+        private long startTime;
+        private boolean setupComplete;
+
         private int state;
         private int tmpId = Utils.secureRandom.nextInt();
         private int connId;
@@ -636,11 +742,18 @@ public class Flic2Button {
         private byte[] myPublicKey;
         private byte[] clientRandomBytes;
         private byte[] fullVerifySharedSecret;
+        private FullVerifyResult fullVerifyResult;
         private boolean tmpBdAddressType;
-        private long rxCounter;
-        private long txCounter;
         private byte[] qvClientRandomBytes;
-        private int[] chaskeyKeys;
+        private ChaskeyContext chaskey;
+        private int rxMacLen;
+        private final byte[] txFrame = new byte[1 + TxPacket.MAX_LENGTH + SIGNATURE_LENGTH];
+        private final Queue<PendingTxPacket> txOverflow = new LinkedList<>();
+        private PendingTxPacket queuedAck;
+        private final RxPacket.ButtonEventNotificationDecoder buttonEvents = new RxPacket.ButtonEventNotificationDecoder();
+
+        // Indexed by state and then opcode. A missing handler means the packet is ignored in that state.
+        private final RxHandler[][] rxHandlers = new RxHandler[STATE_FULL_VERIFY_CRYPTO + 1][];
 
         private Runnable firmwareCheckTimerRunnable;
         private int firmwareUpdateState;
@@ -656,12 +769,32 @@ public class Flic2Button {
         private Runnable batteryCheckTimerRunnable;
 
         private SetHidMidiConfigCallback setHidMidiConfigCallback;
+        private byte[] setHidMidiData;
+        private int setHidMidiSentPos;
         private byte[] getHidMidiBuffer;
         private GetHidMidiConfigCallback getHidMidiConfigCallback;
 
-        Session(boolean onL2CAP, SessionCallback sessionCallback) {
-            this.onL2CAP = onL2CAP;
+        Session(Flic2Transport transport, SessionCallback sessionCallback) {
+            this.transport = transport;
+            this.onL2CAP = transport.isPacketOriented();
             this.sessionCallback = sessionCallback;
+            initRxHandlers();
+        }
+
+        private class PendingTxPacket {
+            TxPacket packet;
+            final boolean signed;
+
+            PendingTxPacket(TxPacket packet, boolean signed) {
+                this.packet = packet;
+                this.signed = signed;
+            }
+        }
+
+        // Handles a received packet with an opcode accepted in the current state. The packet after the opcode is
+        // pktWithOpcode[1 .. 1 + pktLen).
+        private abstract class RxHandler {
+            abstract void onPacket(byte[] pktWithOpcode, int pktLen, int packetConnId) throws RxPacket.UnexpectedEndOfPacketException;
         }
 
         public void end() {
@@ -684,59 +817,127 @@ public class Flic2Button {
             return state == STATE_BONDING;
         }
 
-        public void tx(byte[] data) {
-            if (!txInProgress) {
-                txInProgress = true;
-                sessionCallback.tx(data);
-            } else {
-                txQueue.add(data);
+        public int getTxQueueDepth() {
+            return transport.getTxRing().getDepth();
+        }
+
+        // Called when the transport has freed slots in the ring
+        public void onCreditsReturned() {
+            if (state == STATE_FAILED || state == STATE_ENDED) {
+                return;
+            }
+            drainTxOverflow();
+            if (state == STATE_SESSION_ESTABLISHED && firmwareUpdateState == FW_UPDATE_STATE_PERFORMING_UPDATE) {
+                firmwareUpdateContinue();
+            }
+            if (state == STATE_SESSION_ESTABLISHED && setHidMidiData != null) {
+                setHidMidiConfigContinue();
             }
         }
 
-        public void txDone() {
-            if (txQueue.isEmpty()) {
-                txInProgress = false;
-            } else {
-                sessionCallback.tx(txQueue.remove());
+        // The number of frames, and thereby credits, a packet of len bytes including signature needs
+        private int framesForPacket(int len) {
+            if (onL2CAP || mtu >= 3 + 1 + len) {
+                return 1;
             }
+            return (len + mtu - 5) / (mtu - 4);
         }
 
-        private void sendPacket(byte[] data) {
+        // The packet is serialized after the connId slot (GATT only), and the signature is appended in place.
+        // Every frame or fragment is then copied into a slot of the transport's ring. A packet is only signed once it
+        // fits, so that the packet counter follows the order in which packets reach the link.
+        private boolean writePacketToRing(TxPacket packet, boolean signed) {
+            int headerLen = onL2CAP ? 0 : 1;
+            int len = packet.writeTo(txFrame, headerLen);
+            Flic2FrameRing ring = transport.getTxRing();
+            if (ring.getCredits() < framesForPacket(signed ? len + SIGNATURE_LENGTH : len)) {
+                return false;
+            }
+            if (signed) {
+                chaskey.sign(txFrame, headerLen, len, txFrame, headerLen + len);
+                len += SIGNATURE_LENGTH;
+            }
             if (!onL2CAP) {
-                if (mtu >= 3 + 1 + data.length) {
-                    byte[] p = new byte[1 + data.length];
-                    p[0] = (byte) connId;
-                    System.arraycopy(data, 0, p, 1, data.length);
-                    tx(p);
+                if (mtu >= 3 + 1 + len) {
+                    txFrame[0] = (byte) connId;
+                    System.arraycopy(txFrame, 0, ring.claim(), 0, 1 + len);
+                    ring.commit(1 + len);
                 } else {
-                    for (int i = 0; i < data.length; i += mtu - 4) {
-                        byte[] p = new byte[1 + Math.min(mtu - 4, data.length - i)];
-                        p[0] = (byte) (connId | (i + mtu - 4 < data.length ? 128 : 0));
-                        System.arraycopy(data, i, p, 1, p.length - 1);
-                        tx(p);
+                    for (int i = 0; i < len; i += mtu - 4) {
+                        int fragmentLen = Math.min(mtu - 4, len - i);
+                        byte[] slot = ring.claim();
+                        slot[0] = (byte) (connId | (i + mtu - 4 < len ? 128 : 0));
+                        System.arraycopy(txFrame, 1 + i, slot, 1, fragmentLen);
+                        ring.commit(1 + fragmentLen);
                     }
                 }
             } else {
-                tx(data);
+                System.arraycopy(txFrame, 0, ring.claim(), 0, len);
+                ring.commit(len);
+            }
+            return true;
+        }
+
+        // Packets that do not fit in the ring wait in txOverflow, in order, until the transport returns credits
+        private void sendPacket(TxPacket packet, boolean signed) {
+            if (!txOverflow.isEmpty() || !writePacketToRing(packet, signed)) {
+                if (txOverflow.isEmpty()) {
+                    manager.log(bdAddr, "tx ring full", transport.getTxRing().getDepth());
+                }
+                PendingTxPacket pending = new PendingTxPacket(packet, signed);
+                if (packet instanceof TxPacket.AckButtonEvents) {
+                    // Acks are cumulative, so a newer one replaces one that has not been sent yet
+                    if (queuedAck != null) {
+                        queuedAck.packet = packet;
+                        return;
+                    }
+                    queuedAck = pending;
+                }
+                txOverflow.add(pending);
+                return;
+            }
+            transport.flush();
+        }
+
+        private void drainTxOverflow() {
+            boolean wrote = false;
+            while (!txOverflow.isEmpty()) {
+                PendingTxPacket pending = txOverflow.peek();
+                if (!writePacketToRing(pending.packet, pending.signed)) {
+                    break;
+                }
+                txOverflow.remove();
+                if (pending == queuedAck) {
+                    queuedAck = null;
+                }
+                wrote = true;
+            }
+            if (wrote) {
+                transport.flush();
             }
         }
 
         private void sendUnsignedPacket(TxPacket packet) {
-            sendPacket(packet.getBytes());
+            sendPacket(packet, false);
         }
 
-        private byte[] calcSignature(byte[] packet, boolean dirIsToButton) {
-            return Flic2Crypto.chaskeyWithDirAndPacketCounter(chaskeyKeys, dirIsToButton ? 1 : 0, dirIsToButton ? txCounter++ : rxCounter++, packet);
+        private boolean verifySignature(byte[] pktWithOpcode) {
+            int len = pktWithOpcode.length - SIGNATURE_LENGTH;
+            if (chaskey.isStarted() && rxMacLen == len) {
+                // Already MACed while the fragments arrived
+                return chaskey.finishAndVerifyRx(pktWithOpcode, len);
+            }
+            return chaskey.verify(pktWithOpcode, 0, len, pktWithOpcode, len);
         }
 
         private void sendSignedPacket(TxPacket packet) {
-            byte[] pkt = packet.getBytes();
-            sendPacket(Utils.concatArrays(pkt, calcSignature(pkt, true)));
+            sendPacket(packet, true);
         }
 
         private void tryDequeueRequestQueue() {
-            while (!requestQueue.isEmpty() && numRequestsPending < 2) {
+            while (!requestQueue.isEmpty() && numRequestsPending < requestWindow) {
                 sendSignedPacket(requestQueue.remove());
+                requestSentTimes[(requestSentHead + numRequestsPending) % requestSentTimes.length] = SystemClock.uptimeMillis();
                 ++numRequestsPending;
             }
         }
@@ -747,8 +948,34 @@ public class Flic2Button {
         }
 
         private void responseReceived() {
-            --numRequestsPending;
+            if (numRequestsPending > 0) {
+                long now = SystemClock.uptimeMillis();
+                onRequestRtt(now - requestSentTimes[requestSentHead]);
+                requestSentHead = (requestSentHead + 1) % requestSentTimes.length;
+                --numRequestsPending;
+            }
             tryDequeueRequestQueue();
+            if (!setupComplete && gotInitialButtonEvents && numRequestsPending == 0 && requestQueue.isEmpty()) {
+                setupComplete = true;
+                Flic2Button.this.lastSetupDurationMs = SystemClock.uptimeMillis() - startTime;
+                manager.log(bdAddr, "setup", Flic2Button.this.lastSetupDurationMs + " ms, window " + requestWindow + ", rtt " + smoothedRequestRtt + " ms");
+            }
+        }
+
+        // Widens the window while the response times stay close to the lowest seen, which means that requests are
+        // not queuing up in the button, and narrows it again when they do
+        private void onRequestRtt(long rtt) {
+            minRequestRtt = Math.min(minRequestRtt, rtt);
+            smoothedRequestRtt = smoothedRequestRtt < 0 ? rtt : (smoothedRequestRtt * 7 + rtt) / 8;
+            if (smoothedRequestRtt <= minRequestRtt * 3 / 2 + 1) {
+                if (requestWindow < maxRequestWindow) {
+                    ++requestWindow;
+                }
+            } else if (smoothedRequestRtt > minRequestRtt * 2 + 1) {
+                if (requestWindow > Math.min(2, maxRequestWindow)) {
+                    --requestWindow;
+                }
+            }
         }
 
         private void sendFullVerify() {
@@ -769,8 +996,11 @@ public class Flic2Button {
             state = STATE_WAIT_QUICK_VERIFY;
         }
 
-        public void start(int mtu) {
-            this.mtu = mtu;
+        public void start() {
+            mtu = transport.getMtu();
+            startTime = SystemClock.uptimeMillis();
+            maxRequestWindow = onL2CAP ? manager.maxPendingRequestsL2cap : manager.maxPendingRequestsGatt;
+            requestWindow = Math.min(2, maxRequestWindow);
             if (pairingData == null) {
                 sendFullVerify();
             } else {
@@ -842,10 +1072,27 @@ public class Flic2Button {
                 return;
             }
             setHidMidiConfigCallback = callback;
-            for (int i = 0; i < data.length; i += 120) {
-                sendSignedPacket(new TxPacket.SetHidMidiConfigDataInd(Arrays.copyOfRange(data, i, Math.min(i + 120, data.length))));
+            setHidMidiData = data;
+            setHidMidiSentPos = 0;
+            setHidMidiConfigContinue();
+        }
+
+        // Paced like the firmware update data, and the apply request follows the last chunk
+        private void setHidMidiConfigContinue() {
+            Flic2FrameRing ring = transport.getTxRing();
+            int reservedCredits = framesForPacket(TxPacket.MAX_LENGTH + SIGNATURE_LENGTH);
+            while (txOverflow.isEmpty() && setHidMidiSentPos < setHidMidiData.length) {
+                int len = Math.min(setHidMidiData.length - setHidMidiSentPos, 120);
+                if (ring.getCredits() - framesForPacket(1 + len + SIGNATURE_LENGTH) < reservedCredits) {
+                    return;
+                }
+                sendSignedPacket(new TxPacket.SetHidMidiConfigDataInd(Arrays.copyOfRange(setHidMidiData, setHidMidiSentPos, setHidMidiSentPos + len)));
+                setHidMidiSentPos += len;
+            }
+            if (setHidMidiSentPos == setHidMidiData.length) {
+                setHidMidiData = null;
+                sendSignedRequest(new TxPacket.SetHidMidiConfigApplyRequest());
             }
-            sendSignedRequest(new TxPacket.SetHidMidiConfigApplyRequest());
         }
 
         private void getHidMidiConfig(GetHidMidiConfigCallback callback) {
@@ -976,10 +1223,17 @@ public class Flic2Button {
             }, 3 * 60 * 60 * 1000);
         }
 
+        // Besides the window of the button, the data is paced by the credits of the ring, leaving room for one
+        // packet of any size so that other packets can still be sent
         private void firmwareUpdateContinue() {
-            while (firmwareUpdateSentPos < firmwareUpdateData.length / 4 && firmwareUpdateSentPos - firmwareUpdateAckPos < 512) {
+            Flic2FrameRing ring = transport.getTxRing();
+            int reservedCredits = framesForPacket(TxPacket.MAX_LENGTH + SIGNATURE_LENGTH);
+            while (txOverflow.isEmpty() && firmwareUpdateSentPos < firmwareUpdateData.length / 4 && firmwareUpdateSentPos - firmwareUpdateAckPos < 512) {
                 int len = Math.min(firmwareUpdateData.length / 4 - firmwareUpdateSentPos, 30);
                 len = Math.min(len, 512 - (firmwareUpdateSentPos - firmwareUpdateAckPos));
+                if (ring.getCredits() - framesForPacket(1 + len * 4 + SIGNATURE_LENGTH) < reservedCredits) {
+                    break;
+                }
                 sendSignedPacket(new TxPacket.FirmwareUpdateDataInd(Arrays.copyOfRange(firmwareUpdateData, firmwareUpdateSentPos * 4, (firmwareUpdateSentPos + len) * 4)));
                 firmwareUpdateSentPos += len;
             }
@@ -997,7 +1251,7 @@ public class Flic2Button {
 
         public void onBondComplete() {
             if (state == STATE_BONDING) {
-                byte[] verifier = Arrays.copyOf(Utils.createHmacSha256(fullVerifySharedSecret).doFinal(new byte[]{'A', 'T'}), 16);
+                byte[] verifier = fullVerifyResult.verifier;
 
                 TxPacket.FullVerifyRequest2WithoutAppToken req = new TxPacket.FullVerifyRequest2WithoutAppToken();
                 req.ecdhPublicKey = myPublicKey;
@@ -1005,54 +1259,63 @@ public class Flic2Button {
                 req.verifier = verifier;
                 sendUnsignedPacket(req);
 
-                chaskeyKeys = Flic2Crypto.chaskeyGenerateSubkeys(Arrays.copyOf(Utils.createHmacSha256(fullVerifySharedSecret).doFinal(new byte[]{'S', 'K'}), 16));
+                chaskey = new ChaskeyContext(fullVerifyResult.sessionKey);
                 state = STATE_WAIT_FULL_VERIFY2;
             }
         }
 
-        public void onData(byte[] value) {
-            try {
-                int packetConnId;
-                if (!onL2CAP) {
-                    if (value.length < 2) {
-                        return;
-                    }
-                    packetConnId = value[0] & 0x1f;
-                    boolean newlyAssigned = (value[0] & (1 << 5)) != 0;
-                    boolean lastFragment = (value[0] & (1 << 7)) == 0;
-                    if ((packetConnId != 0 && packetConnId != connId && !newlyAssigned) || (newlyAssigned && connId != 0)) {
-                        // To another app
-                        return;
-                    }
-
-                    if (pendingRxPacket != null) {
-                        if (pendingRxPacket.length + (value.length - 1) > 128) {
-                            // Invalid packet, drop
-                            pendingRxPacket = null;
-                            return;
-                        }
-                        pendingRxPacket = Utils.concatArrays(pendingRxPacket, value, 1);
-                    } else {
-                        pendingRxPacket = Arrays.copyOfRange(value, 1, value.length);
-                    }
+        private void onFullVerifyCryptoDone(int waitState, RxPacket.FullVerifyResponse1 p, FullVerifyResult result) {
+            if (state != STATE_FULL_VERIFY_CRYPTO) {
+                // Disconnected or ended while the crypto was running
+                return;
+            }
+            if (result.error != null) {
+                manager.log(bdAddr, "full verify crypto failed", result.error.toString());
+                state = STATE_FAILED;
+                listener.onFailure(Flic2Button.this, Flic2ButtonListener.FAILURE_GENUINE_CHECK_FAILED, Flic2ButtonListener.FAILURE_GENUINE_CHECK_FAILED_SUBCODE_INVALID_CERTIFICATE);
+                sessionCallback.restart(5000);
+                return;
+            }
+            if (result.variant < 0) {
+                // Report failure, invalid signature
+                state = STATE_FAILED;
+                listener.onFailure(Flic2Button.this, Flic2ButtonListener.FAILURE_GENUINE_CHECK_FAILED, Flic2ButtonListener.FAILURE_GENUINE_CHECK_FAILED_SUBCODE_INVALID_CERTIFICATE);
+                return;
+            }
+            myPublicKey = result.publicKey;
+            clientRandomBytes = result.clientRandomBytes;
+            fullVerifySharedSecret = result.sharedSecret;
+            fullVerifyResult = result;
 
-                    if (!lastFragment) {
-                        return;
-                    }
+            if (waitState == STATE_WAIT_FULL_VERIFY1) {
+                if (!p.isInPublicMode) {
+                    state = STATE_FAILED;
+                    listener.onFailure(Flic2Button.this, Flic2ButtonListener.FAILURE_BUTTON_NOT_IN_PAIRABLE_MODE, 0);
+                    return;
+                }
+                state = STATE_BONDING;
+                if (manager.adapter.getRemoteDevice(bdAddr).getBondState() != BluetoothDevice.BOND_BONDED) {
+                    sessionCallback.bond();
                 } else {
-                    packetConnId = -1;
-                    pendingRxPacket = value;
+                    onBondComplete();
                 }
+            } else {
+                TxPacket.TestIfReallyUnpairedRequest req = new TxPacket.TestIfReallyUnpairedRequest();
+                req.ecdhPublicKey = myPublicKey;
+                req.randomBytes = clientRandomBytes;
+                req.pairingId = result.pairingId;
+                req.pairingToken = result.pairingToken;
+                sendUnsignedPacket(req);
 
-                byte[] pktWithOpcode = pendingRxPacket;
-                pendingRxPacket = null;
-
-                int opcode = pktWithOpcode[0] & 0xff;
-                byte[] pkt = Arrays.copyOfRange(pktWithOpcode, 1, pktWithOpcode.length);
-                log("Opcode " + opcode);
+                state = STATE_WAIT_TEST_IF_REALLY_UNPAIRED_RESPONSE;
+            }
+        }
 
-                if (opcode == RxPacket.NO_LOGICAL_CONNECTION_SLOTS && (state == STATE_WAIT_FULL_VERIFY1 || state == STATE_WAIT_FULL_VERIFY1_TEST_UNPAIRED || state == STATE_WAIT_QUICK_VERIFY)) {
-                    RxPacket.NoLogicalConnectionSlots p = new RxPacket.NoLogicalConnectionSlots(pkt);
+        private void initRxHandlers() {
+            final RxHandler noLogicalConnectionSlots = new RxHandler() {
+                @Override
+                void onPacket(byte[] pktWithOpcode, int pktLen, int packetConnId) throws RxPacket.UnexpectedEndOfPacketException {
+                    RxPacket.NoLogicalConnectionSlots p = new RxPacket.NoLogicalConnectionSlots(pktWithOpcode, 1, pktLen);
                     for (int i = 0; i < p.tmpIds.length; i++) {
                         if (p.tmpIds[i] == tmpId) {
                             state = STATE_FAILED;
@@ -1061,11 +1324,13 @@ public class Flic2Button {
                             return;
                         }
                     }
-                    return;
                 }
+            };
 
-                if (opcode == RxPacket.FULL_VERIFY_RESPONSE_1 && (state == STATE_WAIT_FULL_VERIFY1 || state == STATE_WAIT_FULL_VERIFY1_TEST_UNPAIRED)) {
-                    RxPacket.FullVerifyResponse1 p = new RxPacket.FullVerifyResponse1(pkt);
+            final RxHandler fullVerifyResponse1 = new RxHandler() {
+                @Override
+                void onPacket(byte[] pktWithOpcode, int pktLen, int packetConnId) throws RxPacket.UnexpectedEndOfPacketException {
+                    RxPacket.FullVerifyResponse1 p = new RxPacket.FullVerifyResponse1(pktWithOpcode, 1, pktLen);
 
                     if (tmpId != p.tmpId) {
                         return;
@@ -1080,114 +1345,101 @@ public class Flic2Button {
                     }
                     tmpBdAddressType = p.bdAddrType;
 
-                    byte[] msg = new byte[39];
-                    System.arraycopy(p.bdAddr, 0, msg, 0, 6);
-                    msg[6] = (byte) (p.bdAddrType ? 1 : 0);
-                    System.arraycopy(p.publicKey, 0, msg, 7, 32);
-                    int i = Flic2Crypto.ed25519Verify(p.signature, msg);
-                    if (i < 0) {
-                        // Report failure, invalid signature
-                        state = STATE_FAILED;
-                        listener.onFailure(Flic2Button.this, Flic2ButtonListener.FAILURE_GENUINE_CHECK_FAILED, Flic2ButtonListener.FAILURE_GENUINE_CHECK_FAILED_SUBCODE_INVALID_CERTIFICATE);
-                        return;
-                    }
-                    byte[] fullVerifySecretKey = new byte[32];
-                    Utils.secureRandom.nextBytes(fullVerifySecretKey);
-                    myPublicKey = Flic2Crypto.curve25519Base(fullVerifySecretKey);
-                    byte[] sharedSecret = Flic2Crypto.curve25519(p.publicKey, fullVerifySecretKey);
-                    clientRandomBytes = new byte[8];
-                    Utils.secureRandom.nextBytes(clientRandomBytes);
-                    byte[] flags = new byte[1];
-                    MessageDigest md = Utils.createSha256();
-                    md.update(sharedSecret);
-                    md.update((byte) i);
-                    md.update(p.random);
-                    md.update(clientRandomBytes);
-                    md.update(flags);
-                    fullVerifySharedSecret = md.digest();
-
-                    if (state == STATE_WAIT_FULL_VERIFY1) {
-                        if (!p.isInPublicMode) {
-                            state = STATE_FAILED;
-                            listener.onFailure(Flic2Button.this, Flic2ButtonListener.FAILURE_BUTTON_NOT_IN_PAIRABLE_MODE, 0);
-                            return;
-                        }
-                        state = STATE_BONDING;
-                        if (manager.adapter.getRemoteDevice(bdAddr).getBondState() != BluetoothDevice.BOND_BONDED) {
-                            sessionCallback.bond();
-                        } else {
-                            onBondComplete();
+                    // The rest continues in onFullVerifyCryptoDone, once the crypto has run on the crypto executor
+                    final RxPacket.FullVerifyResponse1 response = p;
+                    final PairingData pairingData = state == STATE_WAIT_FULL_VERIFY1_TEST_UNPAIRED ? Flic2Button.this.pairingData : null;
+                    final int waitState = state;
+                    state = STATE_FULL_VERIFY_CRYPTO;
+                    manager.cryptoExecutor.execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            FullVerifyResult r;
+                            try {
+                                r = runFullVerifyCrypto(response, pairingData, manager.ephemeralKeys);
+                            } catch (RuntimeException e) {
+                                // Still posted, since the session waits in STATE_FULL_VERIFY_CRYPTO for a result
+                                r = new FullVerifyResult();
+                                r.variant = -1;
+                                r.error = e;
+                            }
+                            final FullVerifyResult result = r;
+                            manager.handler.post(new Runnable() {
+                                @Override
+                                public void run() {
+                                    onFullVerifyCryptoDone(waitState, response, result);
+                                }
+                            });
                         }
-                    } else {
-                        Mac hmac = Utils.createHmacSha256(fullVerifySharedSecret);
-                        hmac.update(new byte[]{'P', 'T'});
-                        hmac.update(Utils.intToBytes(Flic2Button.this.pairingData.identifier));
-                        hmac.update(Flic2Button.this.pairingData.key);
-                        byte[] pairingToken = Arrays.copyOf(hmac.doFinal(), 16);
-
-                        TxPacket.TestIfReallyUnpairedRequest req = new TxPacket.TestIfReallyUnpairedRequest();
-                        req.ecdhPublicKey = myPublicKey;
-                        req.randomBytes = clientRandomBytes;
-                        req.pairingId = Flic2Button.this.pairingData.identifier;
-                        req.pairingToken = pairingToken;
-                        sendUnsignedPacket(req);
-
-                        state = STATE_WAIT_TEST_IF_REALLY_UNPAIRED_RESPONSE;
-                    }
-                    return;
+                    });
                 }
+            };
 
-                if (state == STATE_WAIT_QUICK_VERIFY) {
-                    if (opcode == RxPacket.QUICK_VERIFY_RESPONSE && pkt.length >= 12 + SIGNATURE_LENGTH) {
-                        RxPacket.QuickVerifyResponse rsp = new RxPacket.QuickVerifyResponse(pkt);
-                        if (rsp.tmpId != tmpId) {
-                            // To another app
-                            return;
-                        }
+            RxHandler[] handlers = new RxHandler[RxPacket.OPCODE_COUNT];
+            handlers[RxPacket.NO_LOGICAL_CONNECTION_SLOTS] = noLogicalConnectionSlots;
+            handlers[RxPacket.FULL_VERIFY_RESPONSE_1] = fullVerifyResponse1;
+            rxHandlers[STATE_WAIT_FULL_VERIFY1] = handlers;
+            rxHandlers[STATE_WAIT_FULL_VERIFY1_TEST_UNPAIRED] = handlers;
 
-                        connId = packetConnId;
+            handlers = new RxHandler[RxPacket.OPCODE_COUNT];
+            handlers[RxPacket.NO_LOGICAL_CONNECTION_SLOTS] = noLogicalConnectionSlots;
+            handlers[RxPacket.QUICK_VERIFY_RESPONSE] = new RxHandler() {
+                @Override
+                void onPacket(byte[] pktWithOpcode, int pktLen, int packetConnId) throws RxPacket.UnexpectedEndOfPacketException {
+                    if (pktLen < 12 + SIGNATURE_LENGTH) {
+                        return;
+                    }
+                    RxPacket.QuickVerifyResponse rsp = new RxPacket.QuickVerifyResponse(pktWithOpcode, 1, pktLen);
+                    if (rsp.tmpId != tmpId) {
+                        // To another app
+                        return;
+                    }
 
-                        byte[] data = new byte[16];
-                        System.arraycopy(qvClientRandomBytes, 0, data, 0, 7);
-                        data[7] = 0; // encryption and signature variant
-                        System.arraycopy(rsp.random, 0, data, 8, 8);
-                        chaskeyKeys = Flic2Crypto.chaskeyGenerateSubkeys(Flic2Crypto.chaskey16Bytes(Flic2Crypto.chaskeyGenerateSubkeys(Flic2Button.this.pairingData.key), data));
+                    connId = packetConnId;
 
-                        if (!Arrays.equals(calcSignature(Arrays.copyOf(pktWithOpcode, pktWithOpcode.length - SIGNATURE_LENGTH), false), Arrays.copyOfRange(pkt, pkt.length - SIGNATURE_LENGTH, pkt.length))) {
-                            state = STATE_FAILED;
-                            listener.onFailure(Flic2Button.this, Flic2ButtonListener.FAILURE_QUICK_VERIFY_SIGNATURE_MISMATCH, 0);
-                            return;
-                        }
+                    byte[] data = new byte[16];
+                    System.arraycopy(qvClientRandomBytes, 0, data, 0, 7);
+                    data[7] = 0; // encryption and signature variant
+                    System.arraycopy(rsp.random, 0, data, 8, 8);
+                    chaskey = new ChaskeyContext(Flic2Crypto.chaskey16Bytes(Flic2Crypto.chaskeyGenerateSubkeys(Flic2Button.this.pairingData.key), data));
 
-                        state = STATE_SESSION_ESTABLISHED;
-                        sendInit();
+                    if (!verifySignature(pktWithOpcode)) {
+                        state = STATE_FAILED;
+                        listener.onFailure(Flic2Button.this, Flic2ButtonListener.FAILURE_QUICK_VERIFY_SIGNATURE_MISMATCH, 0);
                         return;
                     }
 
-                    if (opcode == RxPacket.QUICK_VERIFY_NEGATIVE_RESPONSE) {
-                        RxPacket.QuickVerifyNegativeResponse rsp = new RxPacket.QuickVerifyNegativeResponse(pkt);
-                        if (rsp.tmpId != tmpId) {
-                            // To another app
-                            return;
-                        }
-
-                        sendFullVerify();
-                        state = STATE_WAIT_FULL_VERIFY1_TEST_UNPAIRED;
+                    state = STATE_SESSION_ESTABLISHED;
+                    sendInit();
+                }
+            };
+            handlers[RxPacket.QUICK_VERIFY_NEGATIVE_RESPONSE] = new RxHandler() {
+                @Override
+                void onPacket(byte[] pktWithOpcode, int pktLen, int packetConnId) throws RxPacket.UnexpectedEndOfPacketException {
+                    RxPacket.QuickVerifyNegativeResponse rsp = new RxPacket.QuickVerifyNegativeResponse(pktWithOpcode, 1, pktLen);
+                    if (rsp.tmpId != tmpId) {
+                        // To another app
                         return;
                     }
-                }
 
-                if (packetConnId == 0) {
-                    return;
+                    sendFullVerify();
+                    state = STATE_WAIT_FULL_VERIFY1_TEST_UNPAIRED;
                 }
+            };
+            rxHandlers[STATE_WAIT_QUICK_VERIFY] = handlers;
 
-                if (opcode == RxPacket.FULL_VERIFY_RESPONSE_2 && state == STATE_WAIT_FULL_VERIFY2 && pkt.length >= 17 + SIGNATURE_LENGTH) {
-                    if (!Arrays.equals(calcSignature(Arrays.copyOf(pktWithOpcode, pktWithOpcode.length - SIGNATURE_LENGTH), false), Arrays.copyOfRange(pkt, pkt.length - SIGNATURE_LENGTH, pkt.length))) {
+            handlers = new RxHandler[RxPacket.OPCODE_COUNT];
+            handlers[RxPacket.FULL_VERIFY_RESPONSE_2] = new RxHandler() {
+                @Override
+                void onPacket(byte[] pktWithOpcode, int pktLen, int packetConnId) throws RxPacket.UnexpectedEndOfPacketException {
+                    if (pktLen < 17 + SIGNATURE_LENGTH) {
+                        return;
+                    }
+                    if (!verifySignature(pktWithOpcode)) {
                         state = STATE_FAILED;
                         listener.onFailure(Flic2Button.this, Flic2ButtonListener.FAILURE_GENUINE_CHECK_FAILED, Flic2ButtonListener.FAILURE_GENUINE_CHECK_FAILED_SUBCODE_INVALID_CALCULATED_SIGNATURE);
                         return;
                     }
-                    RxPacket.FullVerifyResponse2 rsp = new RxPacket.FullVerifyResponse2(pkt);
+                    RxPacket.FullVerifyResponse2 rsp = new RxPacket.FullVerifyResponse2(pktWithOpcode, 1, pktLen);
                     if (!rsp.appCredentialsMatch) {
                         if (rsp.caresAboutAppCredentials) {
                             state = STATE_FAILED;
@@ -1220,12 +1472,15 @@ public class Flic2Button {
                     sendInit();
 
                     sessionCallback.pairingComplete();
-
-                    return;
                 }
-
-                if (opcode == RxPacket.FULL_VERIFY_FAIL_RESPONSE && state == STATE_WAIT_FULL_VERIFY2 && pkt.length >= 1) {
-                    RxPacket.FullVerifyFailResponse rsp = new RxPacket.FullVerifyFailResponse(pkt);
+            };
+            handlers[RxPacket.FULL_VERIFY_FAIL_RESPONSE] = new RxHandler() {
+                @Override
+                void onPacket(byte[] pktWithOpcode, int pktLen, int packetConnId) throws RxPacket.UnexpectedEndOfPacketException {
+                    if (pktLen < 1) {
+                        return;
+                    }
+                    RxPacket.FullVerifyFailResponse rsp = new RxPacket.FullVerifyFailResponse(pktWithOpcode, 1, pktLen);
                     state = STATE_FAILED;
                     if (rsp.reason == RxPacket.FullVerifyFailResponse.NOT_IN_PUBLIC_MODE) {
                         listener.onFailure(Flic2Button.this, Flic2ButtonListener.FAILURE_BUTTON_NOT_IN_PAIRABLE_MODE, 0);
@@ -1234,11 +1489,15 @@ public class Flic2Button {
                     } else {
                         listener.onFailure(Flic2Button.this, Flic2ButtonListener.FAILURE_FULL_VERIFY_FAILED_WITH_UNKNOWN_RESULT_CODE, rsp.reason);
                     }
-                    return;
                 }
+            };
+            rxHandlers[STATE_WAIT_FULL_VERIFY2] = handlers;
 
-                if (opcode == RxPacket.TEST_IF_REALLY_UNPAIRED_RESPONSE && state == STATE_WAIT_TEST_IF_REALLY_UNPAIRED_RESPONSE) {
-                    RxPacket.TestIfReallyUnpairedResponse rsp = new RxPacket.TestIfReallyUnpairedResponse(pkt);
+            handlers = new RxHandler[RxPacket.OPCODE_COUNT];
+            handlers[RxPacket.TEST_IF_REALLY_UNPAIRED_RESPONSE] = new RxHandler() {
+                @Override
+                void onPacket(byte[] pktWithOpcode, int pktLen, int packetConnId) throws RxPacket.UnexpectedEndOfPacketException {
+                    RxPacket.TestIfReallyUnpairedResponse rsp = new RxPacket.TestIfReallyUnpairedResponse(pktWithOpcode, 1, pktLen);
 
                     state = STATE_FAILED;
 
@@ -1253,7 +1512,7 @@ public class Flic2Button {
                     hmac.update(pairingToken);
                     byte[] ne = Arrays.copyOf(hmac.doFinal(), 16);
 
-                    if (Arrays.equals(ne, rsp.result)) {
+                    if (rsp.resultEquals(ne)) {
                         log("Pairing was not found in button, removing button...");
                         Flic2Button.this.pairingData = null;
                         Flic2Button.this.unpaired = true;
@@ -1265,7 +1524,7 @@ public class Flic2Button {
                         hmac.update(new byte[]{'E', 'X'});
                         hmac.update(pairingToken);
                         byte[] ex = Arrays.copyOf(hmac.doFinal(), 16);
-                        boolean exMatch = Arrays.equals(ex, rsp.result);
+                        boolean exMatch = rsp.resultEquals(ex);
                         log("Unexpected negative response: ex = " + exMatch);
                         if (!exMatch) {
                             listener.onFailure(Flic2Button.this, Flic2ButtonListener.FAILURE_GENUINE_CHECK_FAILED, Flic2ButtonListener.FAILURE_GENUINE_CHECK_FAILED_SUBCODE_INVALID_CALCULATED_SIGNATURE);
@@ -1273,34 +1532,21 @@ public class Flic2Button {
                             // Strange, shouldn't happen
                         }
                     }
-                    return;
                 }
+            };
+            rxHandlers[STATE_WAIT_TEST_IF_REALLY_UNPAIRED_RESPONSE] = handlers;
 
-                if (state != STATE_SESSION_ESTABLISHED) {
-                    // Unknown opcode for this state
-                    return;
-                }
-
-                if (pkt.length < SIGNATURE_LENGTH) {
-                    // Invalid packet
-                    return;
-                }
-
-                if (!Arrays.equals(calcSignature(Arrays.copyOf(pktWithOpcode, pktWithOpcode.length - SIGNATURE_LENGTH), false), Arrays.copyOfRange(pkt, pkt.length - SIGNATURE_LENGTH, pkt.length))) {
-                    sendSignedPacket(new TxPacket.DisconnectVerifiedLinkInd());
-                    state = STATE_FAILED;
-                    listener.onFailure(Flic2Button.this, Flic2ButtonListener.FAILURE_PACKET_SIGNATURE_MISMATCH, 0);
-                    sessionCallback.restart(5000);
-                    return;
-                }
-                pkt = Arrays.copyOf(pkt, pkt.length - SIGNATURE_LENGTH);
-
-                if (opcode == RxPacket.INIT_BUTTON_EVENTS_RESPONSE_WITH_BOOT_ID || opcode == RxPacket.INIT_BUTTON_EVENTS_RESPONSE_WITHOUT_BOOT_ID) {
+            // Packets in an established session have their signature verified and stripped before they get here
+            handlers = new RxHandler[RxPacket.OPCODE_COUNT];
+            handlers[RxPacket.INIT_BUTTON_EVENTS_RESPONSE_WITH_BOOT_ID] = new RxHandler() {
+                @Override
+                void onPacket(byte[] pktWithOpcode, int pktLen, int packetConnId) throws RxPacket.UnexpectedEndOfPacketException {
                     responseReceived();
-                    if (opcode == RxPacket.INIT_BUTTON_EVENTS_RESPONSE_WITHOUT_BOOT_ID) {
-                        pkt = Utils.concatArrays(pkt, Utils.intToBytes(Flic2Button.this.bootId));
+                    boolean withBootId = pktWithOpcode[0] == RxPacket.INIT_BUTTON_EVENTS_RESPONSE_WITH_BOOT_ID;
+                    RxPacket.InitButtonEventsResponse rsp = new RxPacket.InitButtonEventsResponse(pktWithOpcode, 1, pktLen, withBootId);
+                    if (!withBootId) {
+                        rsp.bootId = Flic2Button.this.bootId;
                     }
-                    RxPacket.InitButtonEventsResponse rsp = new RxPacket.InitButtonEventsResponse(pkt);
                     boolean bootIdChanged = Flic2Button.this.bootId != rsp.bootId;
                     boolean eventCountChanged = Flic2Button.this.eventCount != rsp.eventCount;
                     Flic2Button.this.bootId = rsp.bootId;
@@ -1329,24 +1575,26 @@ public class Flic2Button {
                     if (!rsp.hasQueuedEvents) {
                         listener.onAllQueuedButtonEventsProcessed(Flic2Button.this);
                     }
-                    return;
                 }
-
-                if (opcode == RxPacket.BUTTON_NOTIFICATION) {
-                    RxPacket.ButtonEventNotification p = new RxPacket.ButtonEventNotification(pkt);
+            };
+            handlers[RxPacket.INIT_BUTTON_EVENTS_RESPONSE_WITHOUT_BOOT_ID] = handlers[RxPacket.INIT_BUTTON_EVENTS_RESPONSE_WITH_BOOT_ID];
+            handlers[RxPacket.BUTTON_NOTIFICATION] = new RxHandler() {
+                @Override
+                void onPacket(byte[] pktWithOpcode, int pktLen, int packetConnId) throws RxPacket.UnexpectedEndOfPacketException {
+                    RxPacket.ButtonEventNotificationDecoder p = buttonEvents;
+                    p.decode(pktWithOpcode, 1, pktLen);
                     boolean sendAck = false;
                     boolean anyWasLastQueued = false;
                     int ec = p.eventCounter;
-                    p.items[p.items.length - 1].eventCount = ec;
-                    for (int i = p.items.length - 2; i >= 0; i--) {
+                    p.eventCount[p.count - 1] = ec;
+                    for (int i = p.count - 2; i >= 0; i--) {
                         // counter mod 4 should be 1: down, 2: hold, 3: up, 0: single click timeout
-                        RxPacket.ButtonEventNotificationItem item = p.items[i];
                         int m4 = ec % 4;
                         if (m4 == 0 || m4 == 2) {
                             --ec;
                         } else {
-                            int type = item.eventEncoded & 3;
-                            if ((item.eventEncoded >> 3) != 0) {
+                            int type = p.encoded[i] & 3;
+                            if ((p.encoded[i] >> 3) != 0) {
                                 type = 0;
                             }
                             if (m4 == 1) { // down
@@ -1367,62 +1615,66 @@ public class Flic2Button {
                                 }
                             }
                         }
-                        item.eventCount = ec;
+                        p.eventCount[i] = ec;
                     }
-                    for (RxPacket.ButtonEventNotificationItem item : p.items) {
-                        Flic2Button.this.eventCount = item.eventCount;
-                        int type = item.eventEncoded & 3;
+                    for (int i = 0; i < p.count; i++) {
+                        int eventEncoded = p.encoded[i];
+                        long timestamp = p.timestamps[i];
+                        boolean wasQueued = p.wasQueued(i);
+                        boolean wasQueuedLast = p.wasQueuedLast(i);
+                        Flic2Button.this.eventCount = p.eventCount[i];
+                        int type = eventEncoded & 3;
                         boolean wasHold = false;
                         boolean singleClick = false;
                         boolean doubleClick = false;
                         boolean nextUpWillBeDoubleClick = false;
-                        if ((item.eventEncoded >> 3) != 0) {
+                        if ((eventEncoded >> 3) != 0) {
                             // Button up
                             type = 0;
-                            wasHold = (item.eventEncoded & 4) != 0;
-                            singleClick = (item.eventEncoded & 2) != 0 && (item.eventEncoded & 1) == 0;
-                            doubleClick = (item.eventEncoded & 2) != 0 && (item.eventEncoded & 1) != 0;
-                        } else if (item.eventEncoded == 7) {
+                            wasHold = (eventEncoded & 4) != 0;
+                            singleClick = (eventEncoded & 2) != 0 && (eventEncoded & 1) == 0;
+                            doubleClick = (eventEncoded & 2) != 0 && (eventEncoded & 1) != 0;
+                        } else if (eventEncoded == 7) {
                             nextUpWillBeDoubleClick = true;
                         }
 
                         if (type == 0) {
                             // up
-                            listener.onButtonUpOrDown(Flic2Button.this, item.wasQueued, item.wasQueuedLast && wasHold && !singleClick && !doubleClick, item.timestamp, true, false);
+                            listener.onButtonUpOrDown(Flic2Button.this, wasQueued, wasQueuedLast && wasHold && !singleClick && !doubleClick, timestamp, true, false);
                             if (!wasHold) {
-                                listener.onButtonClickOrHold(Flic2Button.this, item.wasQueued, item.wasQueuedLast && !singleClick && !doubleClick, item.timestamp, true, false);
+                                listener.onButtonClickOrHold(Flic2Button.this, wasQueued, wasQueuedLast && !singleClick && !doubleClick, timestamp, true, false);
                                 if (singleClick) {
-                                    listener.onButtonSingleOrDoubleClickOrHold(Flic2Button.this, item.wasQueued, false, item.timestamp, true, false, false);
+                                    listener.onButtonSingleOrDoubleClickOrHold(Flic2Button.this, wasQueued, false, timestamp, true, false, false);
                                 }
                             }
                             if (singleClick) {
-                                listener.onButtonSingleOrDoubleClick(Flic2Button.this, item.wasQueued, item.wasQueuedLast, item.timestamp, true, false);
+                                listener.onButtonSingleOrDoubleClick(Flic2Button.this, wasQueued, wasQueuedLast, timestamp, true, false);
                             }
                             if (doubleClick) {
-                                listener.onButtonSingleOrDoubleClick(Flic2Button.this, item.wasQueued, false, item.timestamp, false, true);
-                                listener.onButtonSingleOrDoubleClickOrHold(Flic2Button.this, item.wasQueued, item.wasQueuedLast, item.timestamp, false, true, false);
+                                listener.onButtonSingleOrDoubleClick(Flic2Button.this, wasQueued, false, timestamp, false, true);
+                                listener.onButtonSingleOrDoubleClickOrHold(Flic2Button.this, wasQueued, wasQueuedLast, timestamp, false, true, false);
                             }
                         } else if (type == 1) {
                             // down
-                            listener.onButtonUpOrDown(Flic2Button.this, item.wasQueued, item.wasQueuedLast, item.timestamp, false, true);
+                            listener.onButtonUpOrDown(Flic2Button.this, wasQueued, wasQueuedLast, timestamp, false, true);
                         } else if (type == 2) {
                             // single click timeout
-                            listener.onButtonSingleOrDoubleClick(Flic2Button.this, item.wasQueued, false, item.timestamp, true, false);
-                            listener.onButtonSingleOrDoubleClickOrHold(Flic2Button.this, item.wasQueued, item.wasQueuedLast, item.timestamp, true, false, false);
+                            listener.onButtonSingleOrDoubleClick(Flic2Button.this, wasQueued, false, timestamp, true, false);
+                            listener.onButtonSingleOrDoubleClickOrHold(Flic2Button.this, wasQueued, wasQueuedLast, timestamp, true, false, false);
                         } else if (type == 3) {
                             // hold
-                            listener.onButtonClickOrHold(Flic2Button.this, item.wasQueued, item.wasQueuedLast && nextUpWillBeDoubleClick, item.timestamp, false, true);
+                            listener.onButtonClickOrHold(Flic2Button.this, wasQueued, wasQueuedLast && nextUpWillBeDoubleClick, timestamp, false, true);
                             if (!nextUpWillBeDoubleClick) {
-                                listener.onButtonSingleOrDoubleClickOrHold(Flic2Button.this, item.wasQueued, item.wasQueuedLast, item.timestamp, false, false, true);
+                                listener.onButtonSingleOrDoubleClickOrHold(Flic2Button.this, wasQueued, wasQueuedLast, timestamp, false, false, true);
                             }
                         }
                         if ((type == 0 && (singleClick || doubleClick)) || type == 2) {
                             sendAck = true;
                         }
-                        if (item.wasQueuedLast) {
+                        if (wasQueuedLast) {
                             listener.onAllQueuedButtonEventsProcessed(Flic2Button.this);
                         }
-                        anyWasLastQueued |= item.wasQueuedLast;
+                        anyWasLastQueued |= wasQueuedLast;
                     }
                     manager.database.updateEventCounter(Flic2Button.this);
                     if (sendAck) {
@@ -1431,17 +1683,22 @@ public class Flic2Button {
                     if (anyWasLastQueued) {
                         afterInitialButtonEventsReceived();
                     }
-                    return;
                 }
-
-                if (opcode == RxPacket.PING_REQUEST) {
+            };
+            handlers[RxPacket.PING_REQUEST] = new RxHandler() {
+                @Override
+                void onPacket(byte[] pktWithOpcode, int pktLen, int packetConnId) throws RxPacket.UnexpectedEndOfPacketException {
                     sendSignedPacket(new TxPacket.PingResponse());
-                    return;
                 }
-
-                if (opcode == RxPacket.GET_FIRMWARE_VERSION_RESPONSE && pkt.length >= 4 && firmwareUpdateState == FW_UPDATE_STATE_GETTING_BUTTON_VERSION) {
+            };
+            handlers[RxPacket.GET_FIRMWARE_VERSION_RESPONSE] = new RxHandler() {
+                @Override
+                void onPacket(byte[] pktWithOpcode, int pktLen, int packetConnId) throws RxPacket.UnexpectedEndOfPacketException {
+                    if (pktLen < 4 || firmwareUpdateState != FW_UPDATE_STATE_GETTING_BUTTON_VERSION) {
+                        return;
+                    }
                     responseReceived();
-                    RxPacket.GetFirmwareVersionResponse rsp = new RxPacket.GetFirmwareVersionResponse(pkt);
+                    RxPacket.GetFirmwareVersionResponse rsp = new RxPacket.GetFirmwareVersionResponse(pktWithOpcode, 1, pktLen);
                     int oldVersion = Flic2Button.this.firmwareVersion;
                     int newVersion = rsp.version;
                     if (oldVersion != newVersion) {
@@ -1450,12 +1707,16 @@ public class Flic2Button {
                     }
                     log("Firmware version: " + newVersion);
                     onGotFirmwareVersion(oldVersion, newVersion);
-                    return;
                 }
-
-                if (opcode == RxPacket.START_FIRMWARE_UPDATE_RESPONSE && pkt.length >= 4 && firmwareUpdateState == FW_UPDATE_STATE_STARTING_UPDATE) {
+            };
+            handlers[RxPacket.START_FIRMWARE_UPDATE_RESPONSE] = new RxHandler() {
+                @Override
+                void onPacket(byte[] pktWithOpcode, int pktLen, int packetConnId) throws RxPacket.UnexpectedEndOfPacketException {
+                    if (pktLen < 4 || firmwareUpdateState != FW_UPDATE_STATE_STARTING_UPDATE) {
+                        return;
+                    }
                     responseReceived();
-                    RxPacket.StartFirmwareUpdateResponse rsp = new RxPacket.StartFirmwareUpdateResponse(pkt);
+                    RxPacket.StartFirmwareUpdateResponse rsp = new RxPacket.StartFirmwareUpdateResponse(pktWithOpcode, 1, pktLen);
                     int startPos = rsp.startPos;
                     if (startPos < 0) {
                         // -1: invalid parameters
@@ -1470,11 +1731,15 @@ public class Flic2Button {
                         firmwareUpdateState = FW_UPDATE_STATE_PERFORMING_UPDATE;
                         firmwareUpdateContinue();
                     }
-                    return;
                 }
-
-                if (opcode == RxPacket.FIRMWARE_UPDATE_NOTIFICATION && pkt.length >= 4 && firmwareUpdateState == FW_UPDATE_STATE_PERFORMING_UPDATE) {
-                    RxPacket.FirmwareUpdateNotification notification = new RxPacket.FirmwareUpdateNotification(pkt);
+            };
+            handlers[RxPacket.FIRMWARE_UPDATE_NOTIFICATION] = new RxHandler() {
+                @Override
+                void onPacket(byte[] pktWithOpcode, int pktLen, int packetConnId) throws RxPacket.UnexpectedEndOfPacketException {
+                    if (pktLen < 4 || firmwareUpdateState != FW_UPDATE_STATE_PERFORMING_UPDATE) {
+                        return;
+                    }
+                    RxPacket.FirmwareUpdateNotification notification = new RxPacket.FirmwareUpdateNotification(pktWithOpcode, 1, pktLen);
                     firmwareUpdateAckPos = notification.pos;
                     if (firmwareUpdateAckPos == firmwareUpdateData.length / 4) {
                         // Done
@@ -1494,67 +1759,86 @@ public class Flic2Button {
                     } else {
                         firmwareUpdateContinue();
                     }
-                    return;
                 }
-
-                if (opcode == RxPacket.GET_BATTERY_LEVEL_RESPONSE && pkt.length >= 2) {
+            };
+            handlers[RxPacket.GET_BATTERY_LEVEL_RESPONSE] = new RxHandler() {
+                @Override
+                void onPacket(byte[] pktWithOpcode, int pktLen, int packetConnId) throws RxPacket.UnexpectedEndOfPacketException {
+                    if (pktLen < 2) {
+                        return;
+                    }
                     responseReceived();
-                    RxPacket.GetBatteryLevelResponse rsp = new RxPacket.GetBatteryLevelResponse(pkt);
+                    RxPacket.GetBatteryLevelResponse rsp = new RxPacket.GetBatteryLevelResponse(pktWithOpcode, 1, pktLen);
                     Flic2Button.this.lastKnownBatteryVoltage = rsp.level * 3.6f / 1024.0f;
                     Flic2Button.this.lastKnownBatteryTimestampUtcMs = System.currentTimeMillis();
                     manager.database.updateBatteryLevel(Flic2Button.this);
                     log("Battery level: " + rsp.level);
                     listener.onBatteryLevelUpdated(Flic2Button.this, new BatteryLevel(Flic2Button.this.lastKnownBatteryVoltage, Flic2Button.this.lastKnownBatteryTimestampUtcMs));
                     sendBatteryLevelRequestDelayed();
-                    return;
                 }
-
-                if (opcode == RxPacket.SET_NAME_RESPONSE && pkt.length >= 6) {
+            };
+            handlers[RxPacket.SET_NAME_RESPONSE] = new RxHandler() {
+                @Override
+                void onPacket(byte[] pktWithOpcode, int pktLen, int packetConnId) throws RxPacket.UnexpectedEndOfPacketException {
+                    if (pktLen < 6) {
+                        return;
+                    }
                     responseReceived();
-                    RxPacket.GetSetNameResponse rsp = new RxPacket.GetSetNameResponse(pkt);
+                    RxPacket.GetSetNameResponse rsp = new RxPacket.GetSetNameResponse(pktWithOpcode, 1, pktLen);
                     log("Name: " + rsp.name);
                     onGotName(rsp.name);
-                    return;
                 }
-
-                if (opcode == RxPacket.GET_NAME_RESPONSE && pkt.length >= 6) {
+            };
+            handlers[RxPacket.GET_NAME_RESPONSE] = new RxHandler() {
+                @Override
+                void onPacket(byte[] pktWithOpcode, int pktLen, int packetConnId) throws RxPacket.UnexpectedEndOfPacketException {
+                    if (pktLen < 6) {
+                        return;
+                    }
                     responseReceived();
-                    RxPacket.GetSetNameResponse rsp = new RxPacket.GetSetNameResponse(pkt);
+                    RxPacket.GetSetNameResponse rsp = new RxPacket.GetSetNameResponse(pktWithOpcode, 1, pktLen);
                     log("Got name: " + rsp.name);
                     onGotName(rsp.name);
-                    return;
                 }
-
-                if (opcode == RxPacket.NAME_UPDATED_NOTIFICATION) {
+            };
+            handlers[RxPacket.NAME_UPDATED_NOTIFICATION] = new RxHandler() {
+                @Override
+                void onPacket(byte[] pktWithOpcode, int pktLen, int packetConnId) throws RxPacket.UnexpectedEndOfPacketException {
                     if (Flic2Button.this.nameTimestampUtcMs == 0) {
-                        RxPacket.NameUpdatedNotification notification = new RxPacket.NameUpdatedNotification(pkt);
+                        RxPacket.NameUpdatedNotification notification = new RxPacket.NameUpdatedNotification(pktWithOpcode, 1, pktLen);
                         if (!notification.name.equals(Flic2Button.this.name)) {
                             onNameUpdated(notification.name);
                         }
                     }
-                    return;
                 }
-
-                if (opcode == RxPacket.SET_ADV_PARAMETERS_RESPONSE) {
+            };
+            handlers[RxPacket.SET_ADV_PARAMETERS_RESPONSE] = new RxHandler() {
+                @Override
+                void onPacket(byte[] pktWithOpcode, int pktLen, int packetConnId) throws RxPacket.UnexpectedEndOfPacketException {
                     responseReceived();
                     advSettingsConfigured = true;
                     manager.database.updateAdvSettingsConfigured(Flic2Button.this);
-                    return;
                 }
-
-                if (opcode == RxPacket.SET_HID_MIDI_CONFIG_APPLY_RESPONSE && pkt.length >= 1) {
+            };
+            handlers[RxPacket.SET_HID_MIDI_CONFIG_APPLY_RESPONSE] = new RxHandler() {
+                @Override
+                void onPacket(byte[] pktWithOpcode, int pktLen, int packetConnId) throws RxPacket.UnexpectedEndOfPacketException {
+                    if (pktLen < 1) {
+                        return;
+                    }
                     responseReceived();
-                    RxPacket.SetHidMidiConfigApplyResponse rsp = new RxPacket.SetHidMidiConfigApplyResponse(pkt);
+                    RxPacket.SetHidMidiConfigApplyResponse rsp = new RxPacket.SetHidMidiConfigApplyResponse(pktWithOpcode, 1, pktLen);
                     if (setHidMidiConfigCallback != null) {
                         SetHidMidiConfigCallback callback = setHidMidiConfigCallback;
                         setHidMidiConfigCallback = null;
                         callback.onResult(rsp.result);
                     }
-                    return;
                 }
-
-                if (opcode == RxPacket.GET_HID_MIDI_CONFIG_DATA_IND) {
-                    RxPacket.GetHidMidiConfigDataInd data = new RxPacket.GetHidMidiConfigDataInd(pkt);
+            };
+            handlers[RxPacket.GET_HID_MIDI_CONFIG_DATA_IND] = new RxHandler() {
+                @Override
+                void onPacket(byte[] pktWithOpcode, int pktLen, int packetConnId) throws RxPacket.UnexpectedEndOfPacketException {
+                    RxPacket.GetHidMidiConfigDataInd data = new RxPacket.GetHidMidiConfigDataInd(pktWithOpcode, 1, pktLen);
                     if (getHidMidiConfigCallback != null) {
                         if (getHidMidiBuffer == null) {
                             getHidMidiBuffer = data.data;
@@ -1562,12 +1846,16 @@ public class Flic2Button {
                             getHidMidiBuffer = Utils.concatArrays(getHidMidiBuffer, data.data);
                         }
                     }
-                    return;
                 }
-
-                if (opcode == RxPacket.GET_HID_MIDI_CONFIG_RESPONSE && pkt.length >= 1) {
+            };
+            handlers[RxPacket.GET_HID_MIDI_CONFIG_RESPONSE] = new RxHandler() {
+                @Override
+                void onPacket(byte[] pktWithOpcode, int pktLen, int packetConnId) throws RxPacket.UnexpectedEndOfPacketException {
+                    if (pktLen < 1) {
+                        return;
+                    }
                     responseReceived();
-                    RxPacket.GetHidMidiConfigDataResponse rsp = new RxPacket.GetHidMidiConfigDataResponse(pkt);
+                    RxPacket.GetHidMidiConfigDataResponse rsp = new RxPacket.GetHidMidiConfigDataResponse(pktWithOpcode, 1, pktLen);
                     if (getHidMidiConfigCallback != null) {
                         GetHidMidiConfigCallback callback = getHidMidiConfigCallback;
                         byte[] data = getHidMidiBuffer;
@@ -1575,8 +1863,96 @@ public class Flic2Button {
                         getHidMidiBuffer = null;
                         callback.onResult(rsp.result, rsp.result == 0 ? data : null);
                     }
+                }
+            };
+            rxHandlers[STATE_SESSION_ESTABLISHED] = handlers;
+        }
+
+        public void onData(byte[] value) {
+            try {
+                int packetConnId;
+                if (!onL2CAP) {
+                    if (value.length < 2) {
+                        return;
+                    }
+                    packetConnId = value[0] & 0x1f;
+                    boolean newlyAssigned = (value[0] & (1 << 5)) != 0;
+                    boolean lastFragment = (value[0] & (1 << 7)) == 0;
+                    if ((packetConnId != 0 && packetConnId != connId && !newlyAssigned) || (newlyAssigned && connId != 0)) {
+                        // To another app
+                        return;
+                    }
+
+                    if (pendingRxPacket != null) {
+                        if (pendingRxPacket.length + (value.length - 1) > 128) {
+                            // Invalid packet, drop
+                            pendingRxPacket = null;
+                            return;
+                        }
+                        pendingRxPacket = Utils.concatArrays(pendingRxPacket, value, 1);
+                    } else {
+                        pendingRxPacket = Arrays.copyOfRange(value, 1, value.length);
+                        if (chaskey != null) {
+                            chaskey.startRx();
+                            rxMacLen = 0;
+                        }
+                    }
+
+                    if (chaskey != null && chaskey.isStarted()) {
+                        // Everything except the trailing signature is covered by the MAC, in case the packet turns out to be signed
+                        int macLen = pendingRxPacket.length - SIGNATURE_LENGTH;
+                        if (macLen > rxMacLen) {
+                            chaskey.update(pendingRxPacket, rxMacLen, macLen - rxMacLen);
+                            rxMacLen = macLen;
+                        }
+                    }
+
+                    if (!lastFragment) {
+                        return;
+                    }
+                } else {
+                    packetConnId = -1;
+                    pendingRxPacket = value;
+                }
+
+                byte[] pktWithOpcode = pendingRxPacket;
+                pendingRxPacket = null;
+
+                // The packet after the opcode is pktWithOpcode[1 .. 1 + pktLen), without the signature once it is verified
+                int opcode = pktWithOpcode[0] & 0xff;
+                int pktLen = pktWithOpcode.length - 1;
+                log("Opcode " + opcode);
+
+                RxHandler[] handlers = rxHandlers[state];
+                if (handlers == null) {
+                    // No packets expected in this state
                     return;
                 }
+
+                if (packetConnId == 0 && (RX_STATES_WITHOUT_CONN_ID & (1 << state)) == 0) {
+                    return;
+                }
+
+                if (state == STATE_SESSION_ESTABLISHED) {
+                    if (pktLen < SIGNATURE_LENGTH) {
+                        // Invalid packet
+                        return;
+                    }
+
+                    if (!verifySignature(pktWithOpcode)) {
+                        sendSignedPacket(new TxPacket.DisconnectVerifiedLinkInd());
+                        state = STATE_FAILED;
+                        listener.onFailure(Flic2Button.this, Flic2ButtonListener.FAILURE_PACKET_SIGNATURE_MISMATCH, 0);
+                        sessionCallback.restart(5000);
+                        return;
+                    }
+                    pktLen -= SIGNATURE_LENGTH;
+                }
+
+                RxHandler handler = opcode < handlers.length ? handlers[opcode] : null;
+                if (handler != null) {
+                    handler.onPacket(pktWithOpcode, pktLen, packetConnId);
+                }
             } catch (RxPacket.UnexpectedEndOfPacketException ex) {
                 log("Unexpected end of packet");
             }
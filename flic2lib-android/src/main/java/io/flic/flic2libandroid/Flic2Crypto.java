@@ -1,8 +1,7 @@
 package io.flic.flic2libandroid;
 
-import java.math.BigInteger;
+import java.security.DigestException;
 import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
 import java.util.Arrays;
 
 class Flic2Crypto {
@@ -27,6 +26,109 @@ class Flic2Crypto {
         }
     }
 
+    // Temporaries for curve25519 and ed25519VerifyHram, so that these don't allocate. Must not be shared between threads.
+    static class CurveScratch {
+        // pow / inversion
+        final Fe powT0 = new Fe(), powT1 = new Fe(), powT2 = new Fe(), powT3 = new Fe();
+        final Fe invAb = new Fe(), invCd = new Fe(), invZ = new Fe();
+
+        // safegcd inversion
+        final int[] sgF = new int[9], sgG = new int[9], sgD = new int[9], sgE = new int[9];
+        final int[] sgTrans = new int[4];
+        final Fe sgIn = new Fe();
+        final byte[] sgBytes = new byte[32];
+
+        // Montgomery ladder, in the representation of fieldTempsBackend
+        FieldBackend<?> fieldTempsBackend;
+        Object[] fieldTemps;
+
+        // curve25519Base and verification
+        final Fe x2 = new Fe(), z2 = new Fe(), x3 = new Fe(), z3 = new Fe(), t1 = new Fe(), t2 = new Fe();
+
+        // Edwards points for verification
+        final Fe tX = new Fe(), tY = new Fe(), tZ = new Fe(), tT1 = new Fe(), tT2 = new Fe();
+        final Fe x1 = new Fe(), y1 = new Fe(), z1 = new Fe(), y2 = new Fe(), y3 = new Fe();
+        final Fe selYpX = new Fe(), selYmX = new Fe(), selT2d = new Fe();
+        final byte[] aScalar = new byte[33];
+        final byte[] digits = new byte[64];
+        final byte[] bScalar = new byte[33];
+        final byte[] hram = new byte[64];
+        final byte[] xBytes = new byte[32];
+        final byte[] yBytes = new byte[32];
+
+        // Batch verification, grown to the largest batch so far
+        final Fe batchY = new Fe(), batchT = new Fe(), batchAcc = new Fe();
+        final Fe[][] batchCandidates = {{tX, tY, tZ}, {x1, y1, z1}, {x2, y2, z2}, {x3, y3, z3}};
+        final byte[] batchYR = new byte[32];
+        Fe[] batchXs = new Fe[0], batchZs = new Fe[0], batchPrefix = new Fe[0];
+        boolean[] batchMatched = new boolean[0];
+        byte[][] batchHrams = new byte[0][];
+
+        void ensureBatchCapacity(int n) {
+            if (batchHrams.length >= n) {
+                return;
+            }
+            batchXs = newFes(4 * n);
+            batchZs = newFes(4 * n);
+            batchPrefix = newFes(4 * n);
+            batchMatched = new boolean[4 * n];
+            batchHrams = new byte[n][64];
+        }
+
+        private static Fe[] newFes(int n) {
+            Fe[] fes = new Fe[n];
+            for (int i = 0; i < n; i++) {
+                fes[i] = new Fe();
+            }
+            return fes;
+        }
+    }
+
+    private static final ThreadLocal<CurveScratch> threadScratch = new ThreadLocal<CurveScratch>() {
+        @Override
+        protected CurveScratch initialValue() {
+            return new CurveScratch();
+        }
+    };
+
+    static CurveScratch getThreadScratch() {
+        return threadScratch.get();
+    }
+
+    // The Chaskey state of the static MAC functions, so that these don't allocate. ChaskeyContext has its own.
+    private static final ThreadLocal<int[]> chaskeyState = new ThreadLocal<int[]>() {
+        @Override
+        protected int[] initialValue() {
+            return new int[4];
+        }
+    };
+
+    public static void copy(Fe out, Fe in) {
+        out.a = in.a;
+        out.b = in.b;
+        out.c = in.c;
+        out.d = in.d;
+        out.e = in.e;
+        out.f = in.f;
+        out.g = in.g;
+        out.h = in.h;
+        out.i = in.i;
+        out.j = in.j;
+    }
+
+    public static void setInt(Fe out, int v) {
+        out.a = v;
+        out.b = 0;
+        out.c = 0;
+        out.d = 0;
+        out.e = 0;
+        out.f = 0;
+        out.g = 0;
+        out.h = 0;
+        out.i = 0;
+        out.j = 0;
+    }
+
     /*public static void mul2(Fe out, Fe f, Fe g) {
         int f0 = (int) f.a, f1 = (int) f.b, f2 = (int) f.c, f3 = (int) f.d, f4 = (int) f.e, f5 = (int) f.f, f6 = (int) f.g, f7 = (int) f.h, f8 = (int) f.i, f9 = (int) f.j;
         int g0 = (int) g.a, g1 = (int) g.b, g2 = (int) g.c, g3 = (int) g.d, g4 = (int) g.e, g5 = (int) g.f, g6 = (int) g.g, g7 = (int) g.h, g8 = (int) g.i, g9 = (int) g.j;
@@ -657,7 +759,11 @@ class Flic2Crypto {
     }
 
     public static void pow(Fe out, Fe in, boolean doSqrt) {
-        Fe t0 = new Fe(), t1 = new Fe(), t2 = new Fe(), t3 = new Fe();
+        pow(out, in, doSqrt, threadScratch.get());
+    }
+
+    public static void pow(Fe out, Fe in, boolean doSqrt, CurveScratch s) {
+        Fe t0 = s.powT0, t1 = s.powT1, t2 = s.powT2, t3 = s.powT3;
 
         sqr(t0, in);                // 2^1
 
@@ -691,6 +797,184 @@ class Flic2Crypto {
         }
     }
 
+    // Selects the inversion used by curve25519, curve25519Base and ed25519VerifyHram, with either field backend:
+    // false for the addition chain in pow, true for invertSafegcd. Volatile since it is read on the crypto threads.
+    static volatile boolean useSafegcdInversion = false;
+
+    public static void invert(Fe out, Fe in, CurveScratch s) {
+        if (useSafegcdInversion) {
+            invertSafegcd(out, in, s);
+        } else {
+            pow(out, in, false, s);
+        }
+    }
+
+    // p = 2^255 - 19 in signed 30-bit limbs, and p^-1 mod 2^30
+    private static final int[] modulus30 = {0x3fffffed, 0x3fffffff, 0x3fffffff, 0x3fffffff, 0x3fffffff, 0x3fffffff, 0x3fffffff, 0x3fffffff, 0x7fff};
+    private static final int modulusInv30 = 0x179435e5;
+    private static final int M30 = 0x3fffffff;
+
+    // Constant time inversion using the Bernstein-Yang divsteps algorithm, ported from modinv32 in libsecp256k1.
+    // 20 rounds of 30 divsteps each are more than the 590 needed for a 255-bit modulus. Inverting 0 gives 0.
+    public static void invertSafegcd(Fe out, Fe in, CurveScratch s) {
+        // The limbs may be too large for toBytes, e.g. after sub
+        copy(s.sgIn, in);
+        reduceOnce(s.sgIn);
+        toBytes(s.sgBytes, 0, s.sgIn);
+        invertSafegcd(s.sgBytes, s);
+        fromBytes(out, s.sgBytes);
+    }
+
+    // Replaces the fully reduced little endian value in bytes with its inverse, for any limb representation
+    static void invertSafegcd(byte[] bytes, CurveScratch s) {
+        int[] f = s.sgF, g = s.sgG, d = s.sgD, e = s.sgE, t = s.sgTrans;
+        long v0 = loadLong(bytes, 0), v1 = loadLong(bytes, 8), v2 = loadLong(bytes, 16), v3 = loadLong(bytes, 24);
+        g[0] = (int)v0 & M30;
+        g[1] = (int)(v0 >>> 30) & M30;
+        g[2] = (int)((v0 >>> 60) | (v1 << 4)) & M30;
+        g[3] = (int)(v1 >>> 26) & M30;
+        g[4] = (int)((v1 >>> 56) | (v2 << 8)) & M30;
+        g[5] = (int)(v2 >>> 22) & M30;
+        g[6] = (int)((v2 >>> 52) | (v3 << 12)) & M30;
+        g[7] = (int)(v3 >>> 18) & M30;
+        g[8] = (int)(v3 >>> 48);
+
+        for (int i = 0; i < 9; i++) {
+            f[i] = modulus30[i];
+            d[i] = 0;
+            e[i] = 0;
+        }
+        e[0] = 1;
+
+        int zeta = -1;
+        for (int i = 0; i < 20; i++) {
+            zeta = divsteps30(zeta, f[0], g[0], t);
+            updateDe30(d, e, t);
+            updateFg30(f, g, t);
+        }
+
+        // f is now +-1, so d is +-1/in
+        normalize30(d, f[8]);
+
+        v0 = (d[0] & 0xffffffffL) | ((long)d[1] << 30) | ((long)d[2] << 60);
+        v1 = (d[2] >>> 4) | ((long)d[3] << 26) | ((long)d[4] << 56);
+        v2 = (d[4] >>> 8) | ((long)d[5] << 22) | ((long)d[6] << 52);
+        v3 = (d[6] >>> 12) | ((long)d[7] << 18) | ((long)d[8] << 48);
+        storeLong(bytes, 0, v0);
+        storeLong(bytes, 8, v1);
+        storeLong(bytes, 16, v2);
+        storeLong(bytes, 24, v3);
+    }
+
+    // Performs 30 divsteps on the low bits of f and g, stores the transition matrix u, v, q, r in t and returns the new zeta
+    private static int divsteps30(int zeta, int f0, int g0, int[] t) {
+        int u = 1, v = 0, q = 0, r = 1;
+        int f = f0, g = g0;
+        for (int i = 0; i < 30; i++) {
+            int c1 = zeta >> 31;
+            int c2 = -(g & 1);
+            int x = (f ^ c1) - c1;
+            int y = (u ^ c1) - c1;
+            int z = (v ^ c1) - c1;
+            g += x & c2;
+            q += y & c2;
+            r += z & c2;
+            c1 &= c2;
+            zeta = (zeta ^ c1) - 1;
+            f += g & c1;
+            u += q & c1;
+            v += r & c1;
+            g >>>= 1;
+            u <<= 1;
+            v <<= 1;
+        }
+        t[0] = u;
+        t[1] = v;
+        t[2] = q;
+        t[3] = r;
+        return zeta;
+    }
+
+    // [d, e] = t * [d, e] / 2^30 mod p
+    private static void updateDe30(int[] d, int[] e, int[] t) {
+        int u = t[0], v = t[1], q = t[2], r = t[3];
+        int sd = d[8] >> 31;
+        int se = e[8] >> 31;
+        int md = (u & sd) + (v & se);
+        int me = (q & sd) + (r & se);
+        int di = d[0];
+        int ei = e[0];
+        long cd = (long)u * di + (long)v * ei;
+        long ce = (long)q * di + (long)r * ei;
+        md -= (modulusInv30 * (int)cd + md) & M30;
+        me -= (modulusInv30 * (int)ce + me) & M30;
+        cd += (long)modulus30[0] * md;
+        ce += (long)modulus30[0] * me;
+        cd >>= 30;
+        ce >>= 30;
+        for (int i = 1; i < 9; i++) {
+            di = d[i];
+            ei = e[i];
+            cd += (long)u * di + (long)v * ei;
+            ce += (long)q * di + (long)r * ei;
+            cd += (long)modulus30[i] * md;
+            ce += (long)modulus30[i] * me;
+            d[i - 1] = (int)cd & M30;
+            cd >>= 30;
+            e[i - 1] = (int)ce & M30;
+            ce >>= 30;
+        }
+        d[8] = (int)cd;
+        e[8] = (int)ce;
+    }
+
+    // [f, g] = t * [f, g] / 2^30
+    private static void updateFg30(int[] f, int[] g, int[] t) {
+        int u = t[0], v = t[1], q = t[2], r = t[3];
+        int fi = f[0];
+        int gi = g[0];
+        long cf = (long)u * fi + (long)v * gi;
+        long cg = (long)q * fi + (long)r * gi;
+        cf >>= 30;
+        cg >>= 30;
+        for (int i = 1; i < 9; i++) {
+            fi = f[i];
+            gi = g[i];
+            cf += (long)u * fi + (long)v * gi;
+            cg += (long)q * fi + (long)r * gi;
+            f[i - 1] = (int)cf & M30;
+            cf >>= 30;
+            g[i - 1] = (int)cg & M30;
+            cg >>= 30;
+        }
+        f[8] = (int)cf;
+        g[8] = (int)cg;
+    }
+
+    // Brings r from (-2p, p) to [0, p), negating it first if sign is negative
+    private static void normalize30(int[] r, int sign) {
+        int condAdd = r[8] >> 31;
+        for (int i = 0; i < 9; i++) {
+            r[i] += modulus30[i] & condAdd;
+        }
+        int condNegate = sign >> 31;
+        for (int i = 0; i < 9; i++) {
+            r[i] = (r[i] ^ condNegate) - condNegate;
+        }
+        for (int i = 0; i < 8; i++) {
+            r[i + 1] += r[i] >> 30;
+            r[i] &= M30;
+        }
+        condAdd = r[8] >> 31;
+        for (int i = 0; i < 9; i++) {
+            r[i] += modulus30[i] & condAdd;
+        }
+        for (int i = 0; i < 8; i++) {
+            r[i + 1] += r[i] >> 30;
+            r[i] &= M30;
+        }
+    }
+
     public static void csel(Fe out, Fe in1, Fe in2, int sel) {
         int sel0 = sel - 1;
         int sel1 = -sel;
@@ -707,14 +991,242 @@ class Flic2Crypto {
     }
 
     public static byte[] curve25519(byte[] point, byte[] scalar) {
-        Fe x = new Fe();
-        fromBytes(x, point);
-        Fe x2 = new Fe(), z2 = new Fe(), x3 = new Fe(x), z3 = new Fe();
-        Fe b = new Fe(), d = new Fe(), a = new Fe(), c = new Fe(), aa = new Fe(), bb = new Fe(), e = new Fe();
-        Fe f = new Fe(), g = new Fe(), da = new Fe(), cb = new Fe(), t1 = new Fe(), t2 = new Fe();
+        byte[] out = new byte[32];
+        curve25519(out, 0, point, scalar, threadScratch.get());
+        return out;
+    }
 
-        x2.a = 1;
-        z3.a = 1;
+    public static void curve25519(byte[] out, int outOffset, byte[] point, byte[] scalar, CurveScratch s) {
+        ladder(FieldBackendHolder.backend, out, outOffset, point, scalar, s);
+    }
+
+    public static byte[] curve25519Base(byte[] scalar) {
+        byte[] out = new byte[32];
+        curve25519Base(out, 0, scalar, threadScratch.get());
+        return out;
+    }
+
+    // Same result as the ladder with u = 9, but computed as k * B on the Edwards curve using a table of multiples of B
+    // (as ge_scalarmult_base in ref10). Constant time: table lookups scan all entries and negation is done with csel.
+    public static void curve25519Base(byte[] out, int outOffset, byte[] scalar, CurveScratch s) {
+        scalar[31] = (byte)((scalar[31] & 0x7f) | 0x40);
+        scalar[0] &= 0xf8;
+
+        // Signed radix 16 digits, each in [-8, 8]
+        byte[] e = s.digits;
+        for (int i = 0; i < 32; i++) {
+            e[2 * i] = (byte)(scalar[i] & 15);
+            e[2 * i + 1] = (byte)((scalar[i] >> 4) & 15);
+        }
+        int carry = 0;
+        for (int i = 0; i < 63; i++) {
+            e[i] += carry;
+            carry = (e[i] + 8) >> 4;
+            e[i] -= carry << 4;
+        }
+        e[63] += carry;
+
+        Precomp[][] table = BaseTableHolder.table;
+        Fe tX = s.tX, tY = s.tY, tZ = s.tZ, tT1 = s.tT1, tT2 = s.tT2;
+        setInt(tX, 0);
+        setInt(tY, 1);
+        setInt(tZ, 1);
+        setInt(tT2, 0);
+
+        for (int i = 1; i < 64; i += 2) {
+            baseTableAdd(table[i / 2], e[i], s);
+        }
+        edwardsDbl(tT1, tX, tY, tZ, tX, tY, tZ, tT2);
+        edwardsP1P1ToP2(tX, tY, tZ, tT1, tX, tY, tZ);
+        edwardsDbl(tT1, tX, tY, tZ, tX, tY, tZ, tT2);
+        edwardsP1P1ToP2(tX, tY, tZ, tT1, tX, tY, tZ);
+        edwardsDbl(tT1, tX, tY, tZ, tX, tY, tZ, tT2);
+        edwardsP1P1ToP2(tX, tY, tZ, tT1, tX, tY, tZ);
+        edwardsDbl(tT1, tX, tY, tZ, tX, tY, tZ, tT2);
+        edwardsP1P1ToP3(tX, tY, tZ, tT2, tT1, tX, tY, tZ);
+        for (int i = 0; i < 64; i += 2) {
+            baseTableAdd(table[i / 2], e[i], s);
+        }
+
+        // u = (1 + y) / (1 - y)
+        add(s.x2, tZ, tY);
+        sub(s.z2, tZ, tY);
+        invert(s.z2, s.z2, s);
+        mul(s.x2, s.x2, s.z2);
+        toBytes(out, outOffset, s.x2);
+    }
+
+    // Adds digit * (multiple in the table row) to the point in s.tX, s.tY, s.tZ, s.tT2
+    private static void baseTableAdd(Precomp[] row, int digit, CurveScratch s) {
+        int negative = (digit >> 31) & 1;
+        int abs = digit - ((-negative & digit) << 1);
+
+        setInt(s.selYpX, 1);
+        setInt(s.selYmX, 1);
+        setInt(s.selT2d, 0);
+        for (int j = 0; j < 8; j++) {
+            int eq = ((abs ^ (j + 1)) - 1) >>> 31;
+            Precomp q = row[j];
+            csel(s.selYpX, s.selYpX, q.YpX, eq);
+            csel(s.selYmX, s.selYmX, q.YmX, eq);
+            csel(s.selT2d, s.selT2d, q.T2d, eq);
+        }
+
+        edwardsAddSubCt(s.tT1, s.tX, s.tY, s.tZ, s.tX, s.tY, s.tZ, s.tT2, negative, s.selYpX, s.selYmX, s.selT2d, s.t1, s.t2);
+        edwardsP1P1ToP3(s.tX, s.tY, s.tZ, s.tT2, s.tT1, s.tX, s.tY, s.tZ);
+    }
+
+    // table[i][j] = (j + 1) * 256^i * B, about 50 kB, generated on first use
+    private static class BaseTableHolder {
+        static final Precomp[][] table = generate(getComb(4).tableB[8]);
+
+        private static Precomp[][] generate(Precomp base) {
+            Fe tX = new Fe(), tY = new Fe(), tZ = new Fe(), tT1 = new Fe(), tT2 = new Fe();
+            tY.a = 1;
+            tZ.a = 1;
+
+            Fe[][] rowBases = new Fe[32][];
+            edwardsAddSub(tT1, tX, tY, tZ, tX, tY, tZ, tT2, false, base.YpX, base.YmX, base.T2d);
+            edwardsP1P1ToP2(tX, tY, tZ, tT1, tX, tY, tZ);
+            for (int i = 0; i < 32; i++) {
+                if (i > 0) {
+                    for (int k = 0; k < 8; k++) {
+                        edwardsDbl(tT1, tX, tY, tZ, tX, tY, tZ, tT2);
+                        edwardsP1P1ToP2(tX, tY, tZ, tT1, tX, tY, tZ);
+                    }
+                }
+                rowBases[i] = new Fe[] {new Fe(tX), new Fe(tY), new Fe(tZ)};
+            }
+            Precomp[] q = Comb.batchToPrecomp(rowBases);
+
+            Fe[][] points = new Fe[32 * 8][];
+            for (int i = 0; i < 32; i++) {
+                tX = new Fe();
+                tY = new Fe();
+                tZ = new Fe();
+                tT2 = new Fe();
+                tY.a = 1;
+                tZ.a = 1;
+                for (int j = 0; j < 8; j++) {
+                    if (j > 0) {
+                        tX = new Fe(tX);
+                        tY = new Fe(tY);
+                        tZ = new Fe(tZ);
+                        tT2 = new Fe(tT2);
+                    }
+                    edwardsAddSub(tT1, tX, tY, tZ, tX, tY, tZ, tT2, false, q[i].YpX, q[i].YmX, q[i].T2d);
+                    edwardsP1P1ToP3(tX, tY, tZ, tT2, tT1, tX, tY, tZ);
+                    points[i * 8 + j] = new Fe[] {tX, tY, tZ};
+                }
+            }
+            Precomp[] all = Comb.batchToPrecomp(points);
+
+            Precomp[][] table = new Precomp[32][];
+            for (int i = 0; i < 32; i++) {
+                table[i] = Arrays.copyOfRange(all, i * 8, i * 8 + 8);
+            }
+            return table;
+        }
+    }
+
+    // The field arithmetic used by curve25519. FieldBackend.select runs the self test of the backend, so it is only done
+    // when the ladder is first used and not when Flic2Crypto is loaded for a quick verify. Volatile since benchmarks
+    // replace it.
+    private static class FieldBackendHolder {
+        static volatile FieldBackend<?> backend = FieldBackend.select();
+    }
+
+    static FieldBackend<?> getFieldBackend() {
+        return FieldBackendHolder.backend;
+    }
+
+    static void setFieldBackend(FieldBackend<?> backend) {
+        FieldBackendHolder.backend = backend;
+    }
+
+    static final FieldBackend<Fe> fe25Backend = new FieldBackend<Fe>() {
+        @Override
+        Fe[] newElements(int n) {
+            Fe[] elements = new Fe[n];
+            for (int i = 0; i < n; i++) {
+                elements[i] = new Fe();
+            }
+            return elements;
+        }
+
+        @Override
+        void copy(Fe out, Fe in) {
+            Flic2Crypto.copy(out, in);
+        }
+
+        @Override
+        void setInt(Fe out, int v) {
+            Flic2Crypto.setInt(out, v);
+        }
+
+        @Override
+        void fromBytes(Fe out, byte[] in) {
+            Flic2Crypto.fromBytes(out, in);
+        }
+
+        @Override
+        void toBytes(byte[] out, int offset, Fe in) {
+            Flic2Crypto.toBytes(out, offset, in);
+        }
+
+        @Override
+        void add(Fe out, Fe f, Fe g) {
+            Flic2Crypto.add(out, f, g);
+        }
+
+        @Override
+        void sub(Fe out, Fe f, Fe g) {
+            Flic2Crypto.sub(out, f, g);
+        }
+
+        @Override
+        void mul(Fe out, Fe f, Fe g) {
+            Flic2Crypto.mul(out, f, g);
+        }
+
+        @Override
+        void sqr(Fe out, Fe f) {
+            Flic2Crypto.sqr(out, f);
+        }
+
+        @Override
+        void mul121666(Fe out, Fe f) {
+            Flic2Crypto.mul121666(out, f);
+        }
+
+        @Override
+        void csel(Fe out, Fe in1, Fe in2, int sel) {
+            Flic2Crypto.csel(out, in1, in2, sel);
+        }
+
+        @Override
+        void invert(Fe out, Fe in, Fe t0, Fe t1, Fe t2, Fe t3, CurveScratch s) {
+            Flic2Crypto.invert(out, in, s);
+        }
+    };
+
+    // Multiplies point with scalar (which is clamped in place)
+    @SuppressWarnings("unchecked")
+    static <E> void ladder(FieldBackend<E> fb, byte[] out, int outOffset, byte[] point, byte[] scalar, CurveScratch s) {
+        if (s.fieldTempsBackend != fb) {
+            s.fieldTemps = fb.newElements(22);
+            s.fieldTempsBackend = fb;
+        }
+        E[] t = (E[])s.fieldTemps;
+        E x = t[0], x2 = t[1], z2 = t[2], x3 = t[3], z3 = t[4];
+        E b = t[5], d = t[6], a = t[7], c = t[8], aa = t[9], bb = t[10], e = t[11];
+        E f = t[12], g = t[13], da = t[14], cb = t[15], t1 = t[16], t2 = t[17];
+
+        fb.fromBytes(x, point);
+        fb.setInt(x2, 1);
+        fb.setInt(z2, 0);
+        fb.copy(x3, x);
+        fb.setInt(z3, 1);
 
         scalar[31] = (byte)((scalar[31] & 0x7f) | 0x40);
         scalar[0] &= 0xf8;
@@ -724,36 +1236,30 @@ class Flic2Crypto {
             int bit = (scalar[i >>> 3] >>> (i & 7)) & 1;
             int val = bit ^ last;
             last = bit;
-            sub(b, x2, z2);
-            sub(d, x3, z3);
-            add(a, x2, z2);
-            add(c, x3, z3);
-            csel(f, a, c, val);
-            csel(g, b, d, val);
-            sqr(aa, f);
-            sqr(bb, g);
-            sub(e, aa, bb);
-            mul121666(z2, e);
-            add(z2, bb, z2);
-            mul(z2, z2, e);
-            mul(da, d, a);
-            mul(cb, c, b);
-            add(t1, da, cb);
-            sub(t2, da, cb);
-            sqr(x3, t1);
-            sqr(t2, t2);
-            mul(x2, aa, bb);
-            mul(z3, x, t2);
-        }
-        pow(z2, z2, false);
-        mul(x2, x2, z2);
-        return toBytes(x2);
-    }
-
-    public static byte[] curve25519Base(byte[] scalar) {
-        byte[] bp = new byte[32];
-        bp[0] = 9;
-        return curve25519(bp, scalar);
+            fb.sub(b, x2, z2);
+            fb.sub(d, x3, z3);
+            fb.add(a, x2, z2);
+            fb.add(c, x3, z3);
+            fb.csel(f, a, c, val);
+            fb.csel(g, b, d, val);
+            fb.sqr(aa, f);
+            fb.sqr(bb, g);
+            fb.sub(e, aa, bb);
+            fb.mul121666(z2, e);
+            fb.add(z2, bb, z2);
+            fb.mul(z2, z2, e);
+            fb.mul(da, d, a);
+            fb.mul(cb, c, b);
+            fb.add(t1, da, cb);
+            fb.sub(t2, da, cb);
+            fb.sqr(x3, t1);
+            fb.sqr(t2, t2);
+            fb.mul(x2, aa, bb);
+            fb.mul(z3, x, t2);
+        }
+        fb.invert(z2, z2, t[18], t[19], t[20], t[21], s);
+        fb.mul(x2, x2, z2);
+        fb.toBytes(out, outOffset, x2);
     }
 
     public static void edwardsDbl(Fe outT, Fe outX, Fe outY, Fe outZ, Fe inX, Fe inY, Fe inZ, Fe tmp) {
@@ -791,6 +1297,25 @@ class Flic2Crypto {
         }
     }
 
+    // Same as edwardsAddSub, but constant time in sub (0 or 1)
+    public static void edwardsAddSubCt(Fe outT, Fe outX, Fe outY, Fe outZ, Fe inX, Fe inY, Fe inZ, Fe inT, int sub, Fe qYpX, Fe qYmX, Fe qT2d, Fe tmp1, Fe tmp2) {
+        csel(tmp1, qYpX, qYmX, sub);
+        csel(tmp2, qYmX, qYpX, sub);
+        add(outT, inY, inX);
+        sub(outY, inY, inX);
+        mul(outT, outT, tmp1);
+        mul(outY, outY, tmp2);
+        sub(outX, outT, outY);
+        add(outY, outT, outY);
+        mul(inT, qT2d, inT);
+        add(outZ, inZ, inZ);
+        add(tmp1, outZ, inT);
+        sub(tmp2, outZ, inT);
+        reduceOnce(tmp2);
+        csel(outT, tmp2, tmp1, sub);
+        csel(outZ, tmp1, tmp2, sub);
+    }
+
     public static void edwardsP1P1ToP3(Fe outX, Fe outY, Fe outZ, Fe outT, Fe inT, Fe inX, Fe inY, Fe inZ) {
         mul(outT, inY, inX);
         mul(outX, inX, inT);
@@ -804,12 +1329,12 @@ class Flic2Crypto {
         mul(outZ, inZ, inT);
     }
 
-    private static long loadLong(byte[] in, int offset) {
+    static long loadLong(byte[] in, int offset) {
         return (in[offset] & 0xff) | ((in[offset + 1] & 0xff) << 8) | ((in[offset + 2] & 0xff) << 16) | ((long)(in[offset + 3] & 0xff) << 24) |
                 ((long)(in[offset + 4] & 0xff) << 32) | ((long)(in[offset + 5] & 0xff) << 40) | ((long)(in[offset + 6] & 0xff) << 48) | ((long)(in[offset + 7] & 0xff) << 56);
     }
 
-    private static void storeLong(byte[] out, int offset, long v) {
+    static void storeLong(byte[] out, int offset, long v) {
         out[offset] = (byte)v;
         out[offset + 1] = (byte)(v >> 8);
         out[offset + 2] = (byte)(v >> 16);
@@ -842,14 +1367,42 @@ class Flic2Crypto {
     }
 
     public static byte[] toBytes(Fe in) {
-        //reduceOnce(in);
-        // We take care of when in.g and in.j have 26 bits
+        byte[] out = new byte[32];
+        toBytes(out, 0, in);
+        return out;
+    }
 
-        long v0 = in.a | ((long)in.b << 26) | ((long)in.c << 51);
-        long v1 = (in.c >> 13) | ((long)in.d << 13) | ((long)in.e << 38);
-        long v2 = in.f + ((long)in.g << 25);
-        long v2_2 = ((long)in.h << 51);
-        long v3 = (in.h >> 13) | ((long)in.i << 12) | ((long)in.j << 38);
+    public static void toBytes(byte[] out, int offset, Fe in) {
+        // Same as reduceOnce but without modifying in. Outputs of mul and sqr can otherwise have a value just above
+        // 2^256, which the code below does not handle.
+        int a = in.a, b = in.b, c = in.c, d = in.d, e = in.e, f = in.f, g = in.g, h = in.h, i = in.i, j = in.j;
+        a += (j >> 25) * 19;
+        j &= 0x1ffffff;
+        b += a >> 26;
+        a &= 0x3ffffff;
+        c += b >> 25;
+        b &= 0x1ffffff;
+        d += c >> 26;
+        c &= 0x3ffffff;
+        e += d >> 25;
+        d &= 0x1ffffff;
+        f += e >> 26;
+        e &= 0x3ffffff;
+        g += f >> 25;
+        f &= 0x1ffffff;
+        h += g >> 26;
+        g &= 0x3ffffff;
+        i += h >> 25;
+        h &= 0x1ffffff;
+        j += i >> 26;
+        i &= 0x3ffffff;
+
+        // We take care of when g and j have 26 bits
+        long v0 = a | ((long)b << 26) | ((long)c << 51);
+        long v1 = (c >> 13) | ((long)d << 13) | ((long)e << 38);
+        long v2 = f + ((long)g << 25);
+        long v2_2 = ((long)h << 51);
+        long v3 = (h >> 13) | ((long)i << 12) | ((long)j << 38);
 
         int v3Extra = addOverflows(v2, v2_2);
         v2 += v2_2;
@@ -872,12 +1425,10 @@ class Flic2Crypto {
         v2 += carry;
         v3 = (v3 + carry2) & 0x7fffffffffffffffL;
 
-        byte[] out = new byte[32];
-        storeLong(out, 0, v0);
-        storeLong(out, 8, v1);
-        storeLong(out, 16, v2);
-        storeLong(out, 24, v3);
-        return out;
+        storeLong(out, offset, v0);
+        storeLong(out, offset + 8, v1);
+        storeLong(out, offset + 16, v2);
+        storeLong(out, offset + 24, v3);
     }
 
     /*private static byte[] slide(byte[] in) {
@@ -924,18 +1475,18 @@ class Flic2Crypto {
         return out;
     }*/
 
-    private static void inv4(Fe a, Fe b, Fe c, Fe d) {
-        Fe ab = new Fe(), cd = new Fe(), z = new Fe();
+    private static void inv4(Fe a, Fe b, Fe c, Fe d, CurveScratch s) {
+        Fe ab = s.invAb, cd = s.invCd, z = s.invZ;
         mul(ab, a, b);
         mul(cd, c, d);
         mul(z, ab, cd);
-        pow(z, z, false);
+        invert(z, z, s);
         mul(ab, ab, z);
         mul(cd, cd, z);
-        z = new Fe(a);
+        copy(z, a);
         mul(a, cd, b);
         mul(b, cd, z);
-        z = new Fe(c);
+        copy(z, c);
         mul(c, ab, d);
         mul(d, ab, z);
     }
@@ -943,103 +1494,648 @@ class Flic2Crypto {
     public static class Precomp {
         public Fe YpX, YmX, T2d;
 
-        private static int decodeBase64Char(char c) {
-            if (c >= 'A' && c <= 'Z') {
-                return c - 'A';
+        public static Precomp[] fromLimbs(int[] limbs) {
+            Precomp[] res = new Precomp[limbs.length / 30];
+            for (int i = 0; i < res.length; i++) {
+                Precomp p = new Precomp();
+                p.YpX = feFromLimbs(limbs, i * 30);
+                p.YmX = feFromLimbs(limbs, i * 30 + 10);
+                p.T2d = feFromLimbs(limbs, i * 30 + 20);
+                res[i] = p;
             }
-            if (c >= 'a' && c <= 'z') {
-                return c - 'a' + 26;
+            return res;
+        }
+
+        private static Fe feFromLimbs(int[] limbs, int offset) {
+            Fe f = new Fe();
+            f.a = limbs[offset];
+            f.b = limbs[offset + 1];
+            f.c = limbs[offset + 2];
+            f.d = limbs[offset + 3];
+            f.e = limbs[offset + 4];
+            f.f = limbs[offset + 5];
+            f.g = limbs[offset + 6];
+            f.h = limbs[offset + 7];
+            f.i = limbs[offset + 8];
+            f.j = limbs[offset + 9];
+            return f;
+        }
+    }
+
+    // Signed comb tables used by ed25519VerifyHram.
+    // The scalar bits 1 to 256 are split into "teeth" groups spaced 256 / teeth bits apart, so a verification needs
+    // 256 / teeth doublings and twice as many additions. Entry j < 2^(teeth - 1) of the table for a point P is
+    // P * (2^(spacing * (teeth - 1)) + sum over t < teeth - 1 of (bit t of j set ? 1 : -1) * 2^(spacing * t)),
+    // and the last entry is P itself.
+    static class Comb {
+        final int teeth;
+        final int spacing;
+        final Precomp[] tableA;
+        final Precomp[] tableB;
+
+        // 2*d, where d is the Edwards curve constant
+        private static final Fe d2 = new Fe();
+        static {
+            fromBytes(d2, new byte[] {0x59, (byte)0xf1, (byte)0xb2, 0x26, (byte)0x94, (byte)0x9b, (byte)0xd6, (byte)0xeb, 0x56, (byte)0xb1, (byte)0x83, (byte)0x82, (byte)0x9a, 0x14, (byte)0xe0, 0x00,
+                    0x30, (byte)0xd1, (byte)0xf3, (byte)0xee, (byte)0xf2, (byte)0x80, (byte)0x8e, 0x19, (byte)0xe7, (byte)0xfc, (byte)0xdf, 0x56, (byte)0xdc, (byte)0xd9, 0x06, 0x24});
+        }
+
+        Comb(int teeth, Precomp[] tableA, Precomp[] tableB) {
+            this.teeth = teeth;
+            this.spacing = 256 / teeth;
+            this.tableA = tableA;
+            this.tableB = tableB;
+        }
+
+        int bits(byte[] scalar, int i) {
+            int iMod8 = i & 7;
+            int ret = 0;
+            for (int t = 0; t < teeth; t++) {
+                ret |= ((scalar[(i + t * spacing) >> 3] >> iMod8) & 1) << t;
             }
-            if (c >= '0' && c <= '9') {
-                return c - '0' + 52;
+            return ret;
+        }
+
+        static Comb generate(int teeth, Comb from) {
+            return new Comb(teeth, generateTable(teeth, from.tableA[from.tableA.length - 1]), generateTable(teeth, from.tableB[from.tableB.length - 1]));
+        }
+
+        static Precomp[] generateTable(int teeth, Precomp base) {
+            int spacing = 256 / teeth;
+            int n = 1 << (teeth - 1);
+            Fe tX = new Fe(), tY = new Fe(), tZ = new Fe(), tT1 = new Fe(), tT2 = new Fe();
+            tY.a = 1;
+            tZ.a = 1;
+
+            // base * 2^(spacing * t) for t < teeth, followed by base * 2^(spacing * t + 1) for t < teeth - 1
+            Fe[][] multiples = new Fe[2 * teeth - 1][];
+            edwardsAddSub(tT1, tX, tY, tZ, tX, tY, tZ, tT2, false, base.YpX, base.YmX, base.T2d);
+            edwardsP1P1ToP2(tX, tY, tZ, tT1, tX, tY, tZ);
+            for (int k = 0; k <= spacing * (teeth - 1); k++) {
+                if (k % spacing == 0) {
+                    multiples[k / spacing] = new Fe[] {new Fe(tX), new Fe(tY), new Fe(tZ)};
+                } else if (k % spacing == 1) {
+                    multiples[teeth + k / spacing] = new Fe[] {new Fe(tX), new Fe(tY), new Fe(tZ)};
+                }
+                if (k < spacing * (teeth - 1)) {
+                    edwardsDbl(tT1, tX, tY, tZ, tX, tY, tZ, tT2);
+                    edwardsP1P1ToP2(tX, tY, tZ, tT1, tX, tY, tZ);
+                }
             }
-            return c == '+' ? 62 : 63;
-        }
-        private static byte[] base64Decode(String str) {
-            byte[] ret = new byte[864];
-            int outpos = 0;
-            for (int i = 0; i < 1152; i += 4) {
-                int v = decodeBase64Char(str.charAt(i + 3)) | (decodeBase64Char(str.charAt(i + 2)) << 6) | (decodeBase64Char(str.charAt(i + 1)) << 12) | (decodeBase64Char(str.charAt(i)) << 18);
-                ret[outpos++] = (byte)(v >> 16);
-                ret[outpos++] = (byte)(v >> 8);
-                ret[outpos++] = (byte)v;
+            Precomp[] m = batchToPrecomp(multiples);
+
+            Fe[][] entries = new Fe[n][];
+            tX = new Fe();
+            tY = new Fe();
+            tZ = new Fe();
+            tT2 = new Fe();
+            tY.a = 1;
+            tZ.a = 1;
+            for (int t = teeth - 1; t >= 0; t--) {
+                Precomp q = m[t];
+                edwardsAddSub(tT1, tX, tY, tZ, tX, tY, tZ, tT2, t != teeth - 1, q.YpX, q.YmX, q.T2d);
+                edwardsP1P1ToP3(tX, tY, tZ, tT2, tT1, tX, tY, tZ);
             }
-            return ret;
+            entries[0] = new Fe[] {tX, tY, tZ, tT2};
+            for (int j = 1; j < n; j++) {
+                int t = 31 - Integer.numberOfLeadingZeros(j);
+                Fe[] prev = entries[j ^ (1 << t)];
+                Precomp q = m[teeth + t];
+                tX = new Fe(prev[0]);
+                tY = new Fe(prev[1]);
+                tZ = new Fe(prev[2]);
+                tT2 = new Fe(prev[3]);
+                edwardsAddSub(tT1, tX, tY, tZ, tX, tY, tZ, tT2, false, q.YpX, q.YmX, q.T2d);
+                edwardsP1P1ToP3(tX, tY, tZ, tT2, tT1, tX, tY, tZ);
+                entries[j] = new Fe[] {tX, tY, tZ, tT2};
+            }
+
+            Precomp[] table = Arrays.copyOf(batchToPrecomp(entries), n + 1);
+            table[n] = base;
+            return table;
         }
 
-        public static Precomp[] fromString(String str) {
-            Precomp[] res = new Precomp[9];
-            byte[] arr = base64Decode(str);
-            for (int i = 0; i < 9; i++) {
+        // Converts projective points {X, Y, Z, ...} to precomputed form using a single inversion
+        static Precomp[] batchToPrecomp(Fe[][] points) {
+            int n = points.length;
+            Fe[] zProducts = new Fe[n];
+            zProducts[0] = new Fe(points[0][2]);
+            for (int i = 1; i < n; i++) {
+                zProducts[i] = new Fe();
+                mul(zProducts[i], zProducts[i - 1], points[i][2]);
+            }
+            Fe inv = new Fe(), zInv = new Fe(), x = new Fe(), y = new Fe();
+            pow(inv, zProducts[n - 1], false);
+
+            Precomp[] res = new Precomp[n];
+            for (int i = n - 1; i >= 0; i--) {
+                if (i > 0) {
+                    mul(zInv, inv, zProducts[i - 1]);
+                    mul(inv, inv, points[i][2]);
+                } else {
+                    zInv = inv;
+                }
+                mul(x, points[i][0], zInv);
+                mul(y, points[i][1], zInv);
+
                 Precomp p = new Precomp();
                 p.YpX = new Fe();
                 p.YmX = new Fe();
                 p.T2d = new Fe();
-                fromBytes(p.YpX, Arrays.copyOfRange(arr, i * 96, i * 96 + 32));
-                fromBytes(p.YmX, Arrays.copyOfRange(arr, i * 96 + 32, i * 96 + 64));
-                fromBytes(p.T2d, Arrays.copyOfRange(arr, i * 96 + 64, i * 96 + 96));
+                add(p.YpX, y, x);
+                sub(p.YmX, y, x);
+                mul(p.T2d, x, y);
+                mul(p.T2d, p.T2d, d2);
+                canonicalize(p.YpX);
+                canonicalize(p.YmX);
+                canonicalize(p.T2d);
                 res[i] = p;
             }
             return res;
         }
+
+        private static void canonicalize(Fe f) {
+            reduceOnce(f);
+            fromBytes(f, toBytes(f));
+        }
+    }
+
+    // Only needed when pairing, so not loaded until first used.
+    // Per entry YpX, YmX and T2d as Fe limbs; A is the public key in pubkeyBytes and B the base point.
+    private static class Comb4Holder {
+        private static final int[] limbsA = {
+                0x3a4b7f4, 0x05dae24, 0x1c6caa2, 0x1b93456, 0x2d97447, 0x020a9d2, 0x3659776, 0x0ba0b38, 0x1eeb722, 0x17a26e7,
+                0x0d5cbbd, 0x134edee, 0x3e56030, 0x04f0d2f, 0x3008fd6, 0x0b02c07, 0x185315d, 0x0e83262, 0x2a55e6c, 0x15ed322,
+                0x08a5b7d, 0x1f1e244, 0x1ec3509, 0x1630a5b, 0x1e346c9, 0x000fc4d, 0x2e07a4f, 0x18fd434, 0x31da98c, 0x17cd4f9,
+                0x1c8d4a1, 0x1002eee, 0x00148d5, 0x1fa202a, 0x2973c32, 0x199f760, 0x23415d7, 0x1d0dd97, 0x1b6760c, 0x0a8a916,
+                0x3884f40, 0x0abe42e, 0x23dff36, 0x0ee1dec, 0x272ee60, 0x08f20fe, 0x1c3278e, 0x1bb6e9f, 0x1d70a76, 0x1cae74e,
+                0x0858259, 0x1058af8, 0x37fc169, 0x0a9e726, 0x2e4beda, 0x04248ab, 0x2c9f7bf, 0x0c7bd57, 0x00a49ca, 0x12e8788,
+                0x306c3a9, 0x0107f87, 0x25e3211, 0x02d8ce1, 0x0c0a3e1, 0x0a52131, 0x26ff12e, 0x05051c7, 0x0f30e38, 0x0f8de29,
+                0x01354c0, 0x120fafa, 0x3a29777, 0x06ec2c9, 0x0db2af9, 0x1952a57, 0x2d16433, 0x0b1ae8f, 0x031c42e, 0x182b3b4,
+                0x1051059, 0x1787083, 0x0995057, 0x1356a86, 0x03ee4fd, 0x0dbe479, 0x0fd22f2, 0x19175f7, 0x0a1be1f, 0x0c8d716,
+                0x0309299, 0x1c2a331, 0x106dd70, 0x00f1dd3, 0x3da8924, 0x0447316, 0x293f6c8, 0x1536309, 0x0426a9a, 0x01fac2e,
+                0x146a0f3, 0x04bcc2c, 0x181dcd9, 0x1c60fb8, 0x2acfc6d, 0x0ddc5b1, 0x39ded86, 0x0b2c8c1, 0x3eebfcd, 0x015e6ee,
+                0x29ec3f8, 0x1f8cb81, 0x2375a3f, 0x0fc9fde, 0x22ef98b, 0x1b96364, 0x0ccf0c2, 0x0fd762f, 0x2627ed3, 0x074a97d,
+                0x02de91e, 0x081ea1f, 0x2f32fe3, 0x0fb4f2f, 0x2228a57, 0x0589182, 0x1d865c1, 0x0f9933d, 0x1976e8c, 0x10acefa,
+                0x03de27c, 0x147ec66, 0x39e0654, 0x1a9d726, 0x36780b7, 0x062a22f, 0x20cdc8d, 0x025db29, 0x233ad89, 0x0868744,
+                0x22fc598, 0x02fac50, 0x11f98a7, 0x104493e, 0x3913fe3, 0x050b255, 0x21581b5, 0x11269c9, 0x21867b8, 0x1c9fd74,
+                0x1133a62, 0x1d97895, 0x32bf292, 0x1eeab9d, 0x1bcf64a, 0x041aabb, 0x16e8dd3, 0x1603835, 0x00510a3, 0x15d116e,
+                0x153dcfc, 0x098c61a, 0x1c0bc2d, 0x14f4615, 0x05f3e32, 0x189f19a, 0x06dd490, 0x11a7976, 0x0677729, 0x04541e5,
+                0x30801cf, 0x069c9c5, 0x022c22c, 0x0d32c92, 0x3db31bd, 0x0a73a3f, 0x2d27e6d, 0x121524d, 0x3c97cb9, 0x0a782b5,
+                0x008b4a2, 0x1998f08, 0x3a9db9a, 0x1276ddc, 0x0f6d9c1, 0x190f2d1, 0x1ce7ffe, 0x198289e, 0x0283048, 0x13690cf,
+                0x1b8d242, 0x13980fe, 0x094df84, 0x1674fb5, 0x27df6fc, 0x034420b, 0x2ae70e5, 0x068f40d, 0x1f16cec, 0x0cd505b,
+                0x0a9b2fe, 0x1050840, 0x3255e0a, 0x03d79ba, 0x0622cce, 0x0cf8b45, 0x064d2e8, 0x1889c18, 0x062eda4, 0x01c4121,
+                0x006421a, 0x02cfd4d, 0x0912dee, 0x16e3ad0, 0x3ac824b, 0x037389e, 0x3fe5512, 0x1227e0d, 0x35e1013, 0x0df8666,
+                0x116de95, 0x0717b62, 0x3602477, 0x1d808da, 0x11832d7, 0x0816ae7, 0x21ea44a, 0x084f501, 0x1a7a7bd, 0x0b829cd,
+                0x0e50830, 0x09df515, 0x386d3fa, 0x1ea8c72, 0x3a52eee, 0x134b131, 0x138d774, 0x0c0cac2, 0x1d3d116, 0x1b7a936,
+                0x3c4549d, 0x1c42c09, 0x0532759, 0x08f4698, 0x097e644, 0x19d9866, 0x2ea59a8, 0x1231d81, 0x3461d8e, 0x1fcd585,
+                0x0842af6, 0x1e64296, 0x2f85f92, 0x0a4c659, 0x177eb2c, 0x1b2594a, 0x07de79e, 0x01ef2b6, 0x325d7b0, 0x119afff,
+                0x0d086a6, 0x1d25fcf, 0x0e2f6c0, 0x1c1eb7f, 0x36cea89, 0x075722b, 0x13bee25, 0x0f2658f, 0x1eff6a2, 0x0e520c2
+        };
+        private static final int[] limbsB = {
+                0x073383e, 0x028b209, 0x10a8976, 0x0e69cd2, 0x22e4f64, 0x0458b51, 0x1e17755, 0x104ec90, 0x0648086, 0x12f3a51,
+                0x388d0ad, 0x0aa04f6, 0x1b83c7c, 0x1eadd8a, 0x1bd02c4, 0x11e2bd2, 0x0aa12aa, 0x12db8ce, 0x2ec4643, 0x10016de,
+                0x3ec791c, 0x0386096, 0x2c4b990, 0x0857b6b, 0x382d2a7, 0x1bb2e98, 0x29abe97, 0x07b4c29, 0x3663a64, 0x071deed,
+                0x23e68e7, 0x0ad566b, 0x197a2da, 0x19ac23d, 0x1bf1589, 0x0290875, 0x08faa4b, 0x14cd731, 0x0f6ff38, 0x10ea3f7,
+                0x17134b0, 0x1b49d67, 0x141bd3b, 0x09aa3d8, 0x39ef2d6, 0x07344fb, 0x232f801, 0x014ebd7, 0x0f89bc8, 0x1993cd6,
+                0x315ebb4, 0x10e5919, 0x07e27ba, 0x189df25, 0x045364b, 0x1d4c159, 0x1c5b3ab, 0x190bc28, 0x1c7cef6, 0x146d5f2,
+                0x0044781, 0x10f816b, 0x0ca5322, 0x1363394, 0x15603f6, 0x015bcd2, 0x2426c86, 0x0cae7de, 0x1e48ce2, 0x0767670,
+                0x20dd5c9, 0x0c6d956, 0x17a63e6, 0x10e4c31, 0x02d517d, 0x1737833, 0x3c4d98a, 0x08b8732, 0x107743d, 0x04d41ce,
+                0x1ad1eab, 0x0218bfd, 0x22f427c, 0x1cc838e, 0x3fbe98e, 0x1828ceb, 0x3b349f9, 0x0ab5b06, 0x314a5d0, 0x0295b9e,
+                0x15f8c9c, 0x1f39a89, 0x11dd5b9, 0x00e4a24, 0x22f61dd, 0x0445bfd, 0x14a6a02, 0x0914127, 0x33fce91, 0x1ec9447,
+                0x3235b3e, 0x091bdef, 0x3b96248, 0x0a0f6c3, 0x3a1f9b9, 0x1385592, 0x1761a60, 0x1e26f0a, 0x0865425, 0x1f0616a,
+                0x2d9afef, 0x1e063a7, 0x38332e9, 0x00b5833, 0x00ccce4, 0x165f0a5, 0x24d6ed0, 0x0f6a88f, 0x2014185, 0x1659012,
+                0x0bf0c8d, 0x046c7f6, 0x1d93ef1, 0x05cf85d, 0x2cd489e, 0x0cde233, 0x30b9cd6, 0x10b8104, 0x14f2d9c, 0x1b9a21d,
+                0x0944a2d, 0x0e3e461, 0x200904c, 0x16cbc11, 0x18552ba, 0x1c0acee, 0x1a4ef97, 0x1380f14, 0x2447e05, 0x046ab76,
+                0x254cfb9, 0x0ccf67c, 0x07b546c, 0x0a06f7e, 0x2fbe0f1, 0x16fcaa2, 0x37c61fa, 0x1b771d2, 0x234b77a, 0x10b32c8,
+                0x3fdd933, 0x0bf5a1d, 0x3c8599a, 0x1f21bac, 0x209ddbb, 0x097c374, 0x27a4ff2, 0x1835bd8, 0x1748248, 0x17911a5,
+                0x39a71ab, 0x020310b, 0x0c74c7f, 0x1848810, 0x1142e46, 0x0291bd1, 0x0be416a, 0x16dc8dd, 0x33f8a8f, 0x10f4bfa,
+                0x3091ffe, 0x1459d25, 0x0e10517, 0x084ea5d, 0x1c0a657, 0x100ed94, 0x3e98d2f, 0x0579f66, 0x2f9f141, 0x0553bef,
+                0x16053a2, 0x0cbb205, 0x22520af, 0x13797ec, 0x036b2d0, 0x110ddd5, 0x2c6905e, 0x065dc61, 0x1d079bb, 0x09ede5a,
+                0x31a119d, 0x19d2c09, 0x3e8410f, 0x1385870, 0x19f0380, 0x12b648f, 0x241ce86, 0x1517ddb, 0x16fb9c8, 0x1ab9a82,
+                0x08d8281, 0x10f96a4, 0x19a34e4, 0x0d47a8c, 0x1cb8633, 0x18ddcac, 0x1f41d8f, 0x1679e5c, 0x3abd8f7, 0x1c344f6,
+                0x3fbb842, 0x1bad9d1, 0x351626f, 0x1ab0408, 0x1e77d71, 0x1f8c89a, 0x1d3b7b8, 0x1f84b45, 0x163bc8f, 0x02654a9,
+                0x07ef83c, 0x032d2f7, 0x044d455, 0x1d2fc9e, 0x25ad71b, 0x064e3a5, 0x1f58d83, 0x1e5fa9d, 0x1ce5c6c, 0x1026d2b,
+                0x34350c4, 0x14f6e60, 0x0b6889a, 0x02d2fa8, 0x224a64c, 0x149ff2f, 0x17d512c, 0x1ac9f64, 0x2704657, 0x1a6e5a2,
+                0x18c3b85, 0x124f1bd, 0x1c325f7, 0x037dc60, 0x33e4cb7, 0x03d42c2, 0x1a44c32, 0x14ca4e1, 0x3a33d4b, 0x01f3e74,
+                0x340913e, 0x00e4175, 0x3d673a2, 0x02e8a05, 0x3f4e67c, 0x08f8a09, 0x0c21a34, 0x04cf4b8, 0x1298f81, 0x113f4be,
+                0x37aaa68, 0x0448161, 0x093d579, 0x11e6556, 0x09b67a0, 0x143598c, 0x1bee5ee, 0x0b50b43, 0x289f0c6, 0x1bc45ed
+        };
+
+        static final Comb comb = new Comb(4, Precomp.fromLimbs(limbsA), Precomp.fromLimbs(limbsB));
+    }
+
+    // About 50 kB, so only generated if used
+    private static class Comb8Holder {
+        static final Comb comb = Comb.generate(8, Comb4Holder.comb);
+    }
+
+    // Number of teeth used by ed25519VerifyHram, 4 or 8. 8 teeth halve the number of point operations. Volatile since it
+    // is read on the crypto threads.
+    static volatile int ed25519CombTeeth = 8;
+
+    static Comb getComb(int teeth) {
+        switch (teeth) {
+            case 4:
+                return Comb4Holder.comb;
+            case 8:
+                return Comb8Holder.comb;
+            default:
+                throw new IllegalArgumentException("Unsupported number of comb teeth: " + teeth);
+        }
+    }
+
+    private static long load3(byte[] in, int offset) {
+        return (in[offset] & 0xff) | ((in[offset + 1] & 0xff) << 8) | ((in[offset + 2] & 0xff) << 16);
+    }
+
+    private static long load4(byte[] in, int offset) {
+        return loadInt(in, offset) & 0xffffffffL;
+    }
+
+    // Reduces the 64 byte little endian value in modulo the group order l = 2^252 + 27742317777372353535851937790883648493
+    // and writes the 32 byte result to out. Constant time, uses 21-bit limbs (same as sc_reduce in ref10).
+    public static void scReduce(byte[] out, byte[] in) {
+        long s0 = 0x1fffff & load3(in, 0);
+        long s1 = 0x1fffff & (load4(in, 2) >> 5);
+        long s2 = 0x1fffff & (load3(in, 5) >> 2);
+        long s3 = 0x1fffff & (load4(in, 7) >> 7);
+        long s4 = 0x1fffff & (load4(in, 10) >> 4);
+        long s5 = 0x1fffff & (load3(in, 13) >> 1);
+        long s6 = 0x1fffff & (load4(in, 15) >> 6);
+        long s7 = 0x1fffff & (load3(in, 18) >> 3);
+        long s8 = 0x1fffff & load3(in, 21);
+        long s9 = 0x1fffff & (load4(in, 23) >> 5);
+        long s10 = 0x1fffff & (load3(in, 26) >> 2);
+        long s11 = 0x1fffff & (load4(in, 28) >> 7);
+        long s12 = 0x1fffff & (load4(in, 31) >> 4);
+        long s13 = 0x1fffff & (load3(in, 34) >> 1);
+        long s14 = 0x1fffff & (load4(in, 36) >> 6);
+        long s15 = 0x1fffff & (load3(in, 39) >> 3);
+        long s16 = 0x1fffff & load3(in, 42);
+        long s17 = 0x1fffff & (load4(in, 44) >> 5);
+        long s18 = 0x1fffff & (load3(in, 47) >> 2);
+        long s19 = 0x1fffff & (load4(in, 49) >> 7);
+        long s20 = 0x1fffff & (load4(in, 52) >> 4);
+        long s21 = 0x1fffff & (load3(in, 55) >> 1);
+        long s22 = 0x1fffff & (load4(in, 57) >> 6);
+        long s23 = (load4(in, 60) >> 3);
+
+        long carry;
+
+        s11 += s23 * 666643;
+        s12 += s23 * 470296;
+        s13 += s23 * 654183;
+        s14 -= s23 * 997805;
+        s15 += s23 * 136657;
+        s16 -= s23 * 683901;
+        s10 += s22 * 666643;
+        s11 += s22 * 470296;
+        s12 += s22 * 654183;
+        s13 -= s22 * 997805;
+        s14 += s22 * 136657;
+        s15 -= s22 * 683901;
+        s9 += s21 * 666643;
+        s10 += s21 * 470296;
+        s11 += s21 * 654183;
+        s12 -= s21 * 997805;
+        s13 += s21 * 136657;
+        s14 -= s21 * 683901;
+        s8 += s20 * 666643;
+        s9 += s20 * 470296;
+        s10 += s20 * 654183;
+        s11 -= s20 * 997805;
+        s12 += s20 * 136657;
+        s13 -= s20 * 683901;
+        s7 += s19 * 666643;
+        s8 += s19 * 470296;
+        s9 += s19 * 654183;
+        s10 -= s19 * 997805;
+        s11 += s19 * 136657;
+        s12 -= s19 * 683901;
+        s6 += s18 * 666643;
+        s7 += s18 * 470296;
+        s8 += s18 * 654183;
+        s9 -= s18 * 997805;
+        s10 += s18 * 136657;
+        s11 -= s18 * 683901;
+
+        carry = (s6 + (1 << 20)) >> 21;
+        s7 += carry;
+        s6 -= carry << 21;
+        carry = (s8 + (1 << 20)) >> 21;
+        s9 += carry;
+        s8 -= carry << 21;
+        carry = (s10 + (1 << 20)) >> 21;
+        s11 += carry;
+        s10 -= carry << 21;
+        carry = (s12 + (1 << 20)) >> 21;
+        s13 += carry;
+        s12 -= carry << 21;
+        carry = (s14 + (1 << 20)) >> 21;
+        s15 += carry;
+        s14 -= carry << 21;
+        carry = (s16 + (1 << 20)) >> 21;
+        s17 += carry;
+        s16 -= carry << 21;
+        carry = (s7 + (1 << 20)) >> 21;
+        s8 += carry;
+        s7 -= carry << 21;
+        carry = (s9 + (1 << 20)) >> 21;
+        s10 += carry;
+        s9 -= carry << 21;
+        carry = (s11 + (1 << 20)) >> 21;
+        s12 += carry;
+        s11 -= carry << 21;
+        carry = (s13 + (1 << 20)) >> 21;
+        s14 += carry;
+        s13 -= carry << 21;
+        carry = (s15 + (1 << 20)) >> 21;
+        s16 += carry;
+        s15 -= carry << 21;
+
+        s5 += s17 * 666643;
+        s6 += s17 * 470296;
+        s7 += s17 * 654183;
+        s8 -= s17 * 997805;
+        s9 += s17 * 136657;
+        s10 -= s17 * 683901;
+        s4 += s16 * 666643;
+        s5 += s16 * 470296;
+        s6 += s16 * 654183;
+        s7 -= s16 * 997805;
+        s8 += s16 * 136657;
+        s9 -= s16 * 683901;
+        s3 += s15 * 666643;
+        s4 += s15 * 470296;
+        s5 += s15 * 654183;
+        s6 -= s15 * 997805;
+        s7 += s15 * 136657;
+        s8 -= s15 * 683901;
+        s2 += s14 * 666643;
+        s3 += s14 * 470296;
+        s4 += s14 * 654183;
+        s5 -= s14 * 997805;
+        s6 += s14 * 136657;
+        s7 -= s14 * 683901;
+        s1 += s13 * 666643;
+        s2 += s13 * 470296;
+        s3 += s13 * 654183;
+        s4 -= s13 * 997805;
+        s5 += s13 * 136657;
+        s6 -= s13 * 683901;
+        s0 += s12 * 666643;
+        s1 += s12 * 470296;
+        s2 += s12 * 654183;
+        s3 -= s12 * 997805;
+        s4 += s12 * 136657;
+        s5 -= s12 * 683901;
+        s12 = 0;
+
+        carry = (s0 + (1 << 20)) >> 21;
+        s1 += carry;
+        s0 -= carry << 21;
+        carry = (s2 + (1 << 20)) >> 21;
+        s3 += carry;
+        s2 -= carry << 21;
+        carry = (s4 + (1 << 20)) >> 21;
+        s5 += carry;
+        s4 -= carry << 21;
+        carry = (s6 + (1 << 20)) >> 21;
+        s7 += carry;
+        s6 -= carry << 21;
+        carry = (s8 + (1 << 20)) >> 21;
+        s9 += carry;
+        s8 -= carry << 21;
+        carry = (s10 + (1 << 20)) >> 21;
+        s11 += carry;
+        s10 -= carry << 21;
+        carry = (s1 + (1 << 20)) >> 21;
+        s2 += carry;
+        s1 -= carry << 21;
+        carry = (s3 + (1 << 20)) >> 21;
+        s4 += carry;
+        s3 -= carry << 21;
+        carry = (s5 + (1 << 20)) >> 21;
+        s6 += carry;
+        s5 -= carry << 21;
+        carry = (s7 + (1 << 20)) >> 21;
+        s8 += carry;
+        s7 -= carry << 21;
+        carry = (s9 + (1 << 20)) >> 21;
+        s10 += carry;
+        s9 -= carry << 21;
+        carry = (s11 + (1 << 20)) >> 21;
+        s12 += carry;
+        s11 -= carry << 21;
+
+        s0 += s12 * 666643;
+        s1 += s12 * 470296;
+        s2 += s12 * 654183;
+        s3 -= s12 * 997805;
+        s4 += s12 * 136657;
+        s5 -= s12 * 683901;
+        s12 = 0;
+
+        carry = s0 >> 21;
+        s1 += carry;
+        s0 -= carry << 21;
+        carry = s1 >> 21;
+        s2 += carry;
+        s1 -= carry << 21;
+        carry = s2 >> 21;
+        s3 += carry;
+        s2 -= carry << 21;
+        carry = s3 >> 21;
+        s4 += carry;
+        s3 -= carry << 21;
+        carry = s4 >> 21;
+        s5 += carry;
+        s4 -= carry << 21;
+        carry = s5 >> 21;
+        s6 += carry;
+        s5 -= carry << 21;
+        carry = s6 >> 21;
+        s7 += carry;
+        s6 -= carry << 21;
+        carry = s7 >> 21;
+        s8 += carry;
+        s7 -= carry << 21;
+        carry = s8 >> 21;
+        s9 += carry;
+        s8 -= carry << 21;
+        carry = s9 >> 21;
+        s10 += carry;
+        s9 -= carry << 21;
+        carry = s10 >> 21;
+        s11 += carry;
+        s10 -= carry << 21;
+        carry = s11 >> 21;
+        s12 += carry;
+        s11 -= carry << 21;
+
+        s0 += s12 * 666643;
+        s1 += s12 * 470296;
+        s2 += s12 * 654183;
+        s3 -= s12 * 997805;
+        s4 += s12 * 136657;
+        s5 -= s12 * 683901;
+
+        carry = s0 >> 21;
+        s1 += carry;
+        s0 -= carry << 21;
+        carry = s1 >> 21;
+        s2 += carry;
+        s1 -= carry << 21;
+        carry = s2 >> 21;
+        s3 += carry;
+        s2 -= carry << 21;
+        carry = s3 >> 21;
+        s4 += carry;
+        s3 -= carry << 21;
+        carry = s4 >> 21;
+        s5 += carry;
+        s4 -= carry << 21;
+        carry = s5 >> 21;
+        s6 += carry;
+        s5 -= carry << 21;
+        carry = s6 >> 21;
+        s7 += carry;
+        s6 -= carry << 21;
+        carry = s7 >> 21;
+        s8 += carry;
+        s7 -= carry << 21;
+        carry = s8 >> 21;
+        s9 += carry;
+        s8 -= carry << 21;
+        carry = s9 >> 21;
+        s10 += carry;
+        s9 -= carry << 21;
+        carry = s10 >> 21;
+        s11 += carry;
+        s10 -= carry << 21;
+
+        out[0] = (byte)(s0);
+        out[1] = (byte)(s0 >> 8);
+        out[2] = (byte)((s0 >> 16) | (s1 << 5));
+        out[3] = (byte)(s1 >> 3);
+        out[4] = (byte)(s1 >> 11);
+        out[5] = (byte)((s1 >> 19) | (s2 << 2));
+        out[6] = (byte)(s2 >> 6);
+        out[7] = (byte)((s2 >> 14) | (s3 << 7));
+        out[8] = (byte)(s3 >> 1);
+        out[9] = (byte)(s3 >> 9);
+        out[10] = (byte)((s3 >> 17) | (s4 << 4));
+        out[11] = (byte)(s4 >> 4);
+        out[12] = (byte)(s4 >> 12);
+        out[13] = (byte)((s4 >> 20) | (s5 << 1));
+        out[14] = (byte)(s5 >> 7);
+        out[15] = (byte)((s5 >> 15) | (s6 << 6));
+        out[16] = (byte)(s6 >> 2);
+        out[17] = (byte)(s6 >> 10);
+        out[18] = (byte)((s6 >> 18) | (s7 << 3));
+        out[19] = (byte)(s7 >> 5);
+        out[20] = (byte)(s7 >> 13);
+        out[21] = (byte)(s8);
+        out[22] = (byte)(s8 >> 8);
+        out[23] = (byte)((s8 >> 16) | (s9 << 5));
+        out[24] = (byte)(s9 >> 3);
+        out[25] = (byte)(s9 >> 11);
+        out[26] = (byte)((s9 >> 19) | (s10 << 2));
+        out[27] = (byte)(s10 >> 6);
+        out[28] = (byte)((s10 >> 14) | (s11 << 7));
+        out[29] = (byte)(s11 >> 1);
+        out[30] = (byte)(s11 >> 9);
+        out[31] = (byte)(s11 >> 17);
     }
 
-    private static final Precomp[] precompA = Precomp.fromString("9Lekk7h2EVU2zoom9xFdttKpIOwuy8ZZ0CVy6965iV69y9W4t9OEASv/peGJ9SPAByywumIKE5NBx+ZVqsi0V31bihCJx0+oYW9LYWyy0XhN/ACe9MCloX7MmNpxPjVfodTIubsArEYKQAVEvwzPpWD3ma8raLzshs5gZ5tFKipAT4i7kK+y+e+RvcMdmLuc/iCPHE+G+3TbbadwndO5clmCheArFkwL/tvkPJW2L7mrSEJ+75O96j2mnKQA4qFLqcMGH/5BiJDxMpyxRfgoMDEhpVzi3zyOgoLjME+KNz7AVBPo64O8uxQ9WdhNvso2VyqVZ8iifXSN5UIcA+2sYFkQBQ3C4b2CysRQrWY/uQ955NvkRfq5r4v84RuKxTUymZIwxIwKh+s2aLrjAUmi9hZzRJDtJ00Ym6qpJoQL6wfzoEaxMC/J5g4M98F4Gz+rscXdDNs7D0aW1fzrvrt5BfjDngYu4//RutH7k99ivotkY7mF4Zl5ses37SdmXyodHuktfKgHGn+Z9+Vp35WiiIKRWILLsOuZzMfodpm+s0J84j2YsR+lMvDc5Dr1LeDZL6JiGrkZTNkukdg6I9GhIZjFL0KxvjjF/MgnieD4T+RVslBqAytMTpOIe4YhXX9yYjoTVeJll5RfuXPVvZI9b7uqQaYb3arBATsKUYBbRFf83FNpGGNq4QWuwuipjM8XmvGJIanbsMvTmHJ3RnlQEc8BCBcnp2ERFkGSZVpvzPY/Oqfa/KRtkgqZy5d8reAporQIIDxm1txOnbvtZHC2PdHykP3/nPNEwYwEg8IzpE1C0rj5A+Yk/Kak9uksv32fC0I0yuFcbaBHw84W3xZUM/6yqQAhFFTwKlk3r4czixhFi8/QpcnA4ERM2i5GSBAHGkIGNPWzcG+JBFrH7ZIg6544NySq/G/wEzkB4bWZ4TeV3haJ7cW5IwFbGwH7tQxG52qBlEg9DKgn1Ht6WnMKLjAI5VTUd9KfNlyOUb27S+kxsTTprnESVgZmET2dTeptnVTEJ7AQzzqZAtPoEZH5JWaYnVGz1A3sGOnYYXRhNX/2KoRYCpmX/MI3y5gUy/pdSlmyPc/7sJX3AHtd8v9rRqaG0Dx/SQe2F+dvPXiiOtsrcnVK3Hd6LJMnav+eMEg5");
-    private static final Precomp[] precompB = Precomp.fromString("PjhzJMiisEtUSJrTHNmTi1GLRaruwoNkJ2gISEaUzkut0IjbE6ji48FNsVs9sUBv0iseVSVUccZtOWTErrcFQBx57FuC4YDMJXZtr9CptOCYLrsvfTVNYdpDpmN2u3cc52g+rlm10ha9rEdYc2LFb3UIKZZUH4m5Zorzb8/9qEOwNHGdddLe6Q0Ke1STtbzn+0RzAvBlvF6ngLyJjzVPZrTrFWdkOdQ98aPkO/GSTRFZwdRXZ4tD4YVs73ycfLVRgUcErAU+FJlShnLGpv2AVdK8FQzZhPQ+VybOSB6cnR3J1Q1aZRszH9MrhslhX1QLM3hzFbOJlzlc1EN3kHNQE6serfUvhuATetFxkLlj+v7rjILzk2Y32FoFXUqx51YKnIxfJWrOz63uiETJQXfYi/1bRATUlDoJihTp/PMRJXs+WyO/90ZCEst92B5Ubn7oklU4wTTsUngTX0JliFoYfO+v2Z6OgU+XGXwGawE5MwOl8GWh3Zp8RLVXGBSgBGRZjQy/2B8biffJrgufiydSszPizaw5FyYIXMjZ8lSHaG4tSpSEkY9jggQwgpetrlRh7qzAL99Jo3jAWeBHpN2qEbnPVPLZM2Oj2sPvDVQ8+L6iym/1w/iWjrutd0sjssxCM9n9d2j90sxCnnVD/m53gnTDl+Sf9MTeGowkSFdpRF6rcZovxID4YzoGApGwkQtF0Rsp1IJ86UZu+6j4s/7SQ/4fCZd0Fr0oCKdLndCVKXCU7QBfGtM3+7wSFJ/v+04VolNgFcguewUpkf3yJrSsDdXdEL0gjQ3jLrObB52WtyedERonsHR+CEIfDgsn4MBnj2QrDZ2D3O6Lipz7lqDmaoGCjZBaPiSn0YxRj9qM4XKs3I0fO+jj8jx7j726PdFwQrj7R2frfhOLGoFgdVzfeZrI+HFvpytawv/IO1YqlQk8+H7cS8uooibCk1/6xrWWpeNkBhvr69Qvz8bl3EqbQMRQQ4O5PdVEtAX1pQWTKYkv/0lZovoi+2R9ZQSnaLlphTuM9caTvC8ZDoz7xi2Tz8JCPWSYSAsnZbrUMzqdzwc+kUDXBTkQnbO+QNEFnzn9CYqPaDSEwaVnEviYki/9RGiqeocFEsmrnsSqzCPo2SaMWUPdy30bWqhlDJ9oexFv");
-    private static BigInteger order = new BigInteger("1000000000000000000000000000000014def9dea2f79cd65812631a5cf5d3ed", 16);
     public static int ed25519VerifyHram(byte[] signature, byte[] hram) {
-        if ((signature[63] & 0xe0) != 0) {
+        return ed25519VerifyHram(signature, hram, getComb(ed25519CombTeeth), threadScratch.get());
+    }
+
+    static int ed25519VerifyHram(byte[] signature, byte[] hram, Comb comb) {
+        return ed25519VerifyHram(signature, hram, comb, threadScratch.get());
+    }
+
+    static int ed25519VerifyHram(byte[] signature, byte[] hram, Comb comb, CurveScratch s) {
+        if (!ed25519Candidates(signature, hram, comb, s)) {
             return -1;
         }
-        byte[] hramBigEndian = new byte[64];
-        for (int i = 0; i < 64; i++) {
-            hramBigEndian[i] = hram[63 - i];
+        Fe tX = s.tX, tY = s.tY, tZ = s.tZ;
+        Fe x1 = s.x1, y1 = s.y1, z1 = s.z1;
+        Fe x2 = s.x2, y2 = s.y2, z2 = s.z2;
+        Fe x3 = s.x3, y3 = s.y3, z3 = s.z3;
+        inv4(tZ, z1, z2, z3, s);
+        if (encodes(tX, tY, tZ, signature, s)) {
+            return 0;
         }
-        byte[] reducedHramBigEndian = new BigInteger(1, hramBigEndian).mod(order).toByteArray();
-        byte[] reducedHram = new byte[33];
-        for (int i = 0; i < 32; i++) {
-            if (i < reducedHramBigEndian.length) {
-                reducedHram[i] = reducedHramBigEndian[reducedHramBigEndian.length - 1 - i];
-            }
+        if (encodes(x1, y1, z1, signature, s)) {
+            return 1;
+        }
+        if (encodes(x2, y2, z2, signature, s)) {
+            return 2;
+        }
+        if (encodes(x3, y3, z3, signature, s)) {
+            return 3;
+        }
+        return -1;
+        /*if ((bScalar[0] & 1) == 0) {
+            Precomp qB = precompB[8];
+            edwardsP1P1ToP3(tX, tY, tZ, tT2, tT1, tX, tY, tZ);
+            edwardsAddSub(tT1, tX, tY, tZ, tX, tY, tZ, tT2, true, qB.YpX, qB.YmX, qB.T2d);
         }
-        byte[] aScalar = reducedHram;
-        byte[] bScalar = new byte[33];
+        edwardsP1P1ToP2(tX, tY, tZ, tT1, tX, tY, tZ);
+        pow(tZ, tZ, false);
+        mul(tX, tX, tZ);
+        mul(tY, tY, tZ);
+        byte[] yBytes = toBytes(tY);
+        byte[] xBytes = toBytes(tX);
+        yBytes[31] |= xBytes[0] << 7;
+        return Arrays.equals(yBytes, Arrays.copyOfRange(signature, 0, 32));*/
+    }
+
+    // Computes the 4 possible R points of the signature in projective coordinates. Point i is ((S & ~3) + i) * B - h * A,
+    // stored in (s.tX, s.tY, s.tZ), (s.x1, s.y1, s.z1), (s.x2, s.y2, s.z2) and (s.x3, s.y3, s.z3).
+    private static boolean ed25519Candidates(byte[] signature, byte[] hram, Comb comb, CurveScratch s) {
+        if ((signature[63] & 0xe0) != 0) {
+            return false;
+        }
+        byte[] aScalar = s.aScalar;
+        scReduce(aScalar, hram);
+        byte[] bScalar = s.bScalar;
         for (int i = 0; i < 32; i++) {
             bScalar[i] = signature[32 + i];
         }
 
-        Fe tX = new Fe(), tY = new Fe(), tZ = new Fe(), tT1 = new Fe(), tT2 = new Fe();
-        tY.a = 1;
-        tZ.a = 1;
+        Fe tX = s.tX, tY = s.tY, tZ = s.tZ, tT1 = s.tT1, tT2 = s.tT2;
+        setInt(tX, 0);
+        setInt(tY, 1);
+        setInt(tZ, 1);
 
         aScalar[32] = 1;
         bScalar[32] = 1;
         bScalar[0] |= 3;
 
-        for (int i = 64; i > 0; i--) {
+        int topTooth = 1 << (comb.teeth - 1);
+        for (int i = comb.spacing; i > 0; i--) {
             edwardsDbl(tT1, tX, tY, tZ, tX, tY, tZ, tT2);
 
-            int iMod8 = i & 7;
-            int a = ((aScalar[i >> 3] >> iMod8) & 1) |
-                    (((aScalar[(i + 64) >> 3] >> iMod8) & 1) << 1) |
-                    (((aScalar[(i + 128) >> 3] >> iMod8) & 1) << 2);
-            int negateA = 1 - ((aScalar[(i + 192) >> 3] >> iMod8) & 1);
+            int a = comb.bits(aScalar, i);
+            int negateA = 1 - (a >> (comb.teeth - 1));
             if (negateA != 0) {
-                a = ~a & 7;
+                a = ~a;
             }
-            Precomp qA = precompA[a];
+            Precomp qA = comb.tableA[a & (topTooth - 1)];
 
             edwardsP1P1ToP3(tX, tY, tZ, tT2, tT1, tX, tY, tZ);
             edwardsAddSub(tT1, tX, tY, tZ, tX, tY, tZ, tT2, negateA == 0, qA.YpX, qA.YmX, qA.T2d);
 
-            int b = ((bScalar[i >> 3] >> iMod8) & 1) |
-                    (((bScalar[(i + 64) >> 3] >> iMod8) & 1) << 1) |
-                    (((bScalar[(i + 128) >> 3] >> iMod8) & 1) << 2);
-            int negateB = 1 - ((bScalar[(i + 192) >> 3] >> iMod8) & 1);
+            int b = comb.bits(bScalar, i);
+            int negateB = 1 - (b >> (comb.teeth - 1));
             if (negateB != 0) {
-                b = ~b & 7;
+                b = ~b;
             }
-            Precomp qB = precompB[b];
+            Precomp qB = comb.tableB[b & (topTooth - 1)];
             edwardsP1P1ToP3(tX, tY, tZ, tT2, tT1, tX, tY, tZ);
             edwardsAddSub(tT1, tX, tY, tZ, tX, tY, tZ, tT2, negateB != 0, qB.YpX, qB.YmX, qB.T2d);
 
@@ -1049,63 +2145,170 @@ class Flic2Crypto {
         }
 
         if ((aScalar[0] & 1) == 0) {
-            Precomp qA = precompA[8];
+            Precomp qA = comb.tableA[topTooth];
             edwardsP1P1ToP3(tX, tY, tZ, tT2, tT1, tX, tY, tZ);
             edwardsAddSub(tT1, tX, tY, tZ, tX, tY, tZ, tT2, false, qA.YpX, qA.YmX, qA.T2d);
         }
 
-        Precomp qB = precompB[8];
+        Precomp qB = comb.tableB[topTooth];
         edwardsP1P1ToP3(tX, tY, tZ, tT2, tT1, tX, tY, tZ);
-        Fe x3 = new Fe(tX), y3 = new Fe(tY), z3 = new Fe(tZ);
+        Fe x3 = s.x3, y3 = s.y3, z3 = s.z3;
+        copy(x3, tX);
+        copy(y3, tY);
+        copy(z3, tZ);
         edwardsAddSub(tT1, tX, tY, tZ, tX, tY, tZ, tT2, true, qB.YpX, qB.YmX, qB.T2d);
         edwardsP1P1ToP3(tX, tY, tZ, tT2, tT1, tX, tY, tZ);
-        Fe x2 = new Fe(tX), y2 = new Fe(tY), z2 = new Fe(tZ);
+        Fe x2 = s.x2, y2 = s.y2, z2 = s.z2;
+        copy(x2, tX);
+        copy(y2, tY);
+        copy(z2, tZ);
         edwardsAddSub(tT1, tX, tY, tZ, tX, tY, tZ, tT2, true, qB.YpX, qB.YmX, qB.T2d);
         edwardsP1P1ToP3(tX, tY, tZ, tT2, tT1, tX, tY, tZ);
-        Fe x1 = new Fe(tX), y1 = new Fe(tY), z1 = new Fe(tZ);
+        Fe x1 = s.x1, y1 = s.y1, z1 = s.z1;
+        copy(x1, tX);
+        copy(y1, tY);
+        copy(z1, tZ);
         edwardsAddSub(tT1, tX, tY, tZ, tX, tY, tZ, tT2, true, qB.YpX, qB.YmX, qB.T2d);
         edwardsP1P1ToP3(tX, tY, tZ, tT2, tT1, tX, tY, tZ);
-        inv4(tZ, z1, z2, z3);
-        Fe[][] p = new Fe[][] {{tX, tY, tZ}, {x1, y1, z1}, {x2, y2, z2}, {x3, y3, z3}};
-        for (int i = 0; i < 4; i++) {
-            mul(p[i][0], p[i][0], p[i][2]);
-            mul(p[i][1], p[i][1], p[i][2]);
-            byte[] yBytes = toBytes(p[i][1]);
-            byte[] xBytes = toBytes(p[i][0]);
-            yBytes[31] |= xBytes[0] << 7;
-            if (Arrays.equals(yBytes, Arrays.copyOfRange(signature, 0, 32))) {
-                return i;
+        return true;
+    }
+
+    // Whether the point (x, y) with inverted z coordinate zInv encodes to the first 32 bytes of signature
+    private static boolean encodes(Fe x, Fe y, Fe zInv, byte[] signature, CurveScratch s) {
+        mul(x, x, zInv);
+        mul(y, y, zInv);
+        byte[] yBytes = s.yBytes;
+        byte[] xBytes = s.xBytes;
+        toBytes(yBytes, 0, y);
+        toBytes(xBytes, 0, x);
+        yBytes[31] |= xBytes[0] << 7;
+        for (int i = 0; i < 32; i++) {
+            if (yBytes[i] != signature[i]) {
+                return false;
             }
         }
-        return -1;
-        /*if ((bScalar[0] & 1) == 0) {
-            Precomp qB = precompB[8];
-            edwardsP1P1ToP3(tX, tY, tZ, tT2, tT1, tX, tY, tZ);
-            edwardsAddSub(tT1, tX, tY, tZ, tX, tY, tZ, tT2, true, qB.YpX, qB.YmX, qB.T2d);
-        }
-        edwardsP1P1ToP2(tX, tY, tZ, tT1, tX, tY, tZ);
-        pow(tZ, tZ, false);
-        mul(tX, tX, tZ);
-        mul(tY, tY, tZ);
-        byte[] yBytes = toBytes(tY);
-        byte[] xBytes = toBytes(tX);
-        yBytes[31] |= xBytes[0] << 7;
-        return Arrays.equals(yBytes, Arrays.copyOfRange(signature, 0, 32));*/
+        return true;
     }
 
     private static byte[] pubkeyBytes = new byte[] {(byte)211, 63, 36, 64, (byte)221, 84, (byte)179, 27, 46, 29, (byte)207, 64, 19, 46, (byte)250, 65, (byte)216, (byte)248, (byte)167, 71, 65, 104, (byte)223, 64, 8, (byte)245, (byte)169, 95, (byte)179, (byte)176, (byte)208, 34};
     public static int ed25519Verify(byte[] signature, byte[] message) {
-        byte[] hram;
+        CurveScratch s = threadScratch.get();
+        ed25519Hram(s.hram, signature, message);
+        return ed25519VerifyHram(signature, s.hram, getComb(ed25519CombTeeth), s);
+    }
+
+    private static void ed25519Hram(byte[] out, byte[] signature, byte[] message) {
         try {
-            MessageDigest md = MessageDigest.getInstance("SHA-512");
+            MessageDigest md = CryptoCache.sha512();
             md.update(signature, 0, 32);
             md.update(pubkeyBytes);
             md.update(message);
-            hram = md.digest();
-        } catch (NoSuchAlgorithmException e) {
+            md.digest(out, 0, 64);
+        } catch (DigestException e) {
             throw new RuntimeException(e);
         }
-        return ed25519VerifyHram(signature, hram);
+    }
+
+    // Verifies many signatures at once, e.g. when pairing a lot of buttons in a row. results[k] is set to what
+    // ed25519Verify(signatures[k], messages[k]) returns. Returns true if all signatures were valid.
+    public static boolean ed25519VerifyBatch(byte[][] signatures, byte[][] messages, int[] results) {
+        CurveScratch s = threadScratch.get();
+        s.ensureBatchCapacity(signatures.length);
+        byte[][] hrams = s.batchHrams;
+        for (int k = 0; k < signatures.length; k++) {
+            ed25519Hram(hrams[k], signatures[k], messages[k]);
+        }
+        return ed25519VerifyHramBatch(signatures, hrams, results);
+    }
+
+    // Each signature still needs its own comb walk, since the 2 bits returned for each signature can only be found by
+    // trying the 4 candidate points. What is shared is the inversion: the candidates' y coordinates are compared
+    // projectively and only the z coordinates of the matching ones are inverted, all using a single inversion. The comb
+    // walks dominate, so this is only about 1.2 times as fast as verifying the signatures one by one, not the cost of
+    // a few single verifies. hrams may be longer than signatures.
+    static boolean ed25519VerifyHramBatch(byte[][] signatures, byte[][] hrams, int[] results) {
+        int n = signatures.length;
+        CurveScratch s = threadScratch.get();
+        s.ensureBatchCapacity(n);
+        Comb comb = getComb(ed25519CombTeeth);
+        Fe[][] candidates = s.batchCandidates;
+        byte[] yR = s.batchYR;
+        Fe y = s.batchY, t = s.batchT;
+
+        // x and z of the candidates with the right y, index 4 * k + i for candidate i of signature k
+        Fe[] xs = s.batchXs;
+        Fe[] zs = s.batchZs;
+        boolean[] matched = s.batchMatched;
+        Arrays.fill(matched, 0, 4 * n, false);
+        int numMatches = 0;
+        for (int k = 0; k < n; k++) {
+            results[k] = -1;
+            byte[] signature = signatures[k];
+            if (!ed25519Candidates(signature, hrams[k], comb, s)) {
+                continue;
+            }
+
+            // A y coordinate that is not reduced can't match the encoding of any point
+            System.arraycopy(signature, 0, yR, 0, 32);
+            yR[31] &= 0x7f;
+            fromBytes(y, yR);
+            toBytes(s.yBytes, 0, y);
+            if (!Arrays.equals(s.yBytes, yR)) {
+                continue;
+            }
+
+            for (int i = 0; i < 4; i++) {
+                Fe[] c = candidates[i];
+                mul(t, y, c[2]);
+                toBytes(s.xBytes, 0, t);
+                toBytes(s.yBytes, 0, c[1]);
+                if (Arrays.equals(s.xBytes, s.yBytes)) {
+                    copy(xs[4 * k + i], c[0]);
+                    copy(zs[4 * k + i], c[2]);
+                    matched[4 * k + i] = true;
+                    numMatches++;
+                }
+            }
+        }
+
+        if (numMatches != 0) {
+            // Montgomery's trick: invert the product of all z and get each inverse from the prefix products
+            Fe[] prefix = s.batchPrefix;
+            Fe acc = s.batchAcc;
+            setInt(acc, 1);
+            for (int j = 0; j < 4 * n; j++) {
+                if (matched[j]) {
+                    copy(prefix[j], acc);
+                    mul(acc, acc, zs[j]);
+                }
+            }
+            invert(acc, acc, s);
+            for (int j = 4 * n - 1; j >= 0; j--) {
+                if (matched[j]) {
+                    mul(t, acc, prefix[j]);
+                    mul(acc, acc, zs[j]);
+                    copy(zs[j], t);
+                }
+            }
+        }
+
+        boolean allValid = true;
+        for (int k = 0; k < n; k++) {
+            for (int i = 0; i < 4 && results[k] < 0; i++) {
+                if (matched[4 * k + i]) {
+                    Fe x = xs[4 * k + i];
+                    mul(x, x, zs[4 * k + i]);
+                    toBytes(s.xBytes, 0, x);
+                    if ((s.xBytes[0] & 1) == ((signatures[k][31] >> 7) & 1)) {
+                        results[k] = i;
+                    }
+                }
+            }
+            if (results[k] < 0) {
+                allValid = false;
+            }
+        }
+        return allValid;
     }
 
     public static int loadInt(byte[] in, int offset) {
@@ -1148,88 +2351,23 @@ class Flic2Crypto {
         return ret;
     }
 
-    public static byte[] chaskeyWithDirAndPacketCounter(int[] keys, int dir, long counter, byte[] data) {
-        if (data.length == 0) {
-            throw new IllegalArgumentException();
+    private static int loadIntPadded(byte[] in, int offset, int avail) {
+        if (avail >= 4) {
+            return loadInt(in, offset);
         }
-
-        int v0, v1, v2, v3;
-        v0 = keys[0] ^ (int)counter;
-        v1 = keys[1] ^ (int)(counter >> 32);
-        v2 = keys[2] ^ dir;
-        v3 = keys[3];
-
-        int offset = 0;
-        int len = data.length;
-        boolean first = true;
-        for (;;) {
-            int keysOffset = 0;
-            if (!first) {
-                if (len >= 16) {
-                    v0 ^= loadInt(data, offset);
-                    v1 ^= loadInt(data, offset + 4);
-                    v2 ^= loadInt(data, offset + 8);
-                    v3 ^= loadInt(data, offset + 12);
-                    offset += 16;
-                    len -= 16;
-                    if (len == 0) {
-                        keysOffset = 4;
-                    }
-                } else {
-                    byte[] tmp = new byte[16];
-                    System.arraycopy(data, offset, tmp, 0, len);
-                    tmp[len] = 0x01;
-                    v0 ^= loadInt(tmp, 0);
-                    v1 ^= loadInt(tmp, 4);
-                    v2 ^= loadInt(tmp, 8);
-                    v3 ^= loadInt(tmp, 12);
-                    keysOffset = 8;
-                }
-
-                if (keysOffset != 0) {
-                    v0 ^= keys[keysOffset];
-                    v1 ^= keys[keysOffset + 1];
-                    v2 ^= keys[keysOffset + 2];
-                    v3 ^= keys[keysOffset + 3];
-                }
-            } else {
-                first = false;
-            }
-
-            v2 = (v2 >>> 16) | (v2 << 16);
-            for (int i = 0; i < 16; i++) {
-                v0 = v0 + v1;
-                v1 = v0 ^ ((v1 >>> 27) | (v1 << 5));
-                v2 = v3 + ((v2 >>> 16) | (v2 << 16));
-                v3 = v2 ^ ((v3 >>> 24) | (v3 << 8));
-                v2 = v2 + v1;
-                v0 = v3 + ((v0 >>> 16) | (v0 << 16));
-                v1 = v2 ^ ((v1 >>> 25) | (v1 << 7));
-                v3 = v0 ^ ((v3 >>> 19) | (v3 << 13));
-            }
-            v2 = (v2 >>> 16) | (v2 << 16);
-
-            if (keysOffset != 0) {
-                v0 ^= keys[keysOffset];
-                v1 ^= keys[keysOffset + 1];
-                byte[] ret = new byte[5];
-                ret[0] = (byte)v0;
-                ret[1] = (byte)(v0 >> 8);
-                ret[2] = (byte)(v0 >> 16);
-                ret[3] = (byte)(v0 >> 24);
-                ret[4] = (byte)v1;
-                return ret;
-            }
+        if (avail < 0) {
+            return 0;
         }
+        int v = 1 << (avail * 8);
+        for (int i = 0; i < avail; i++) {
+            v |= (in[offset + i] & 0xff) << (i * 8);
+        }
+        return v;
     }
 
-    public static byte[] chaskey16Bytes(int[] keys, byte[] data) {
-        int v0, v1, v2, v3;
-        v0 = keys[0] ^ keys[4] ^ loadInt(data, 0);
-        v1 = keys[1] ^ keys[5] ^ loadInt(data, 4);
-        v2 = keys[2] ^ keys[6] ^ loadInt(data, 8);
-        v3 = keys[3] ^ keys[7] ^ loadInt(data, 12);
-
+    // The Chaskey permutation of 16 rounds on the state in v[0..3]
+    static void chaskeyPermute(int[] v) {
+        int v0 = v[0], v1 = v[1], v2 = v[2], v3 = v[3];
         v2 = (v2 >>> 16) | (v2 << 16);
         for (int i = 0; i < 16; i++) {
             v0 = v0 + v1;
@@ -1242,15 +2380,101 @@ class Flic2Crypto {
             v3 = v0 ^ ((v3 >>> 19) | (v3 << 13));
         }
         v2 = (v2 >>> 16) | (v2 << 16);
+        v[0] = v0;
+        v[1] = v1;
+        v[2] = v2;
+        v[3] = v3;
+    }
 
-        v0 ^= keys[4];
-        v1 ^= keys[5];
-        v2 ^= keys[6];
-        v3 ^= keys[7];
+    // Starts a tag with the packet counter and direction as the first block, permuted with the key
+    static void chaskeyStart(int[] keys, int[] v, int dir, long counter) {
+        v[0] = keys[0] ^ (int)counter;
+        v[1] = keys[1] ^ (int)(counter >> 32);
+        v[2] = keys[2] ^ dir;
+        v[3] = keys[3];
+        chaskeyPermute(v);
+    }
+
+    // Absorbs the last block, which must be padded already, and returns the first 5 bytes of the tag as the low 40 bits.
+    // keysOffset is 4 for a full last block and 8 for a padded one.
+    static long chaskeyFinish(int[] keys, int[] v, int keysOffset, int b0, int b1, int b2, int b3) {
+        v[0] ^= b0 ^ keys[keysOffset];
+        v[1] ^= b1 ^ keys[keysOffset + 1];
+        v[2] ^= b2 ^ keys[keysOffset + 2];
+        v[3] ^= b3 ^ keys[keysOffset + 3];
+        chaskeyPermute(v);
+        return ((v[0] ^ keys[keysOffset]) & 0xffffffffL) | ((long)((v[1] ^ keys[keysOffset + 1]) & 0xff) << 32);
+    }
 
+    // Returns the first 5 bytes of the tag as the low 40 bits. v is the state, which is overwritten.
+    static long chaskeyTag(int[] keys, int[] v, int dir, long counter, byte[] data, int offset, int len) {
+        if (len <= 0) {
+            throw new IllegalArgumentException();
+        }
+
+        chaskeyStart(keys, v, dir, counter);
+        while (len > 16) {
+            v[0] ^= loadInt(data, offset);
+            v[1] ^= loadInt(data, offset + 4);
+            v[2] ^= loadInt(data, offset + 8);
+            v[3] ^= loadInt(data, offset + 12);
+            chaskeyPermute(v);
+            offset += 16;
+            len -= 16;
+        }
+        if (len == 16) {
+            return chaskeyFinish(keys, v, 4, loadInt(data, offset), loadInt(data, offset + 4), loadInt(data, offset + 8), loadInt(data, offset + 12));
+        }
+        return chaskeyFinish(keys, v, 8, loadIntPadded(data, offset, len), loadIntPadded(data, offset + 4, len - 4),
+                loadIntPadded(data, offset + 8, len - 8), loadIntPadded(data, offset + 12, len - 12));
+    }
+
+    static void storeTag(long tag, byte[] out, int outOff) {
+        out[outOff] = (byte)tag;
+        out[outOff + 1] = (byte)(tag >> 8);
+        out[outOff + 2] = (byte)(tag >> 16);
+        out[outOff + 3] = (byte)(tag >> 24);
+        out[outOff + 4] = (byte)(tag >> 32);
+    }
+
+    // Constant time comparison of the tag against the 5 bytes at mac[macOff]
+    static boolean tagEquals(long tag, byte[] mac, int macOff) {
+        int diff = 0;
+        for (int i = 0; i < 5; i++) {
+            diff |= (mac[macOff + i] ^ (int)(tag >> (i * 8))) & 0xff;
+        }
+        return diff == 0;
+    }
+
+    public static byte[] chaskeyWithDirAndPacketCounter(int[] keys, int dir, long counter, byte[] data) {
+        byte[] ret = new byte[5];
+        chaskeyWithDirAndPacketCounter(keys, dir, counter, data, 0, data.length, ret, 0);
+        return ret;
+    }
+
+    public static void chaskeyWithDirAndPacketCounter(int[] keys, int dir, long counter, byte[] buf, int off, int len, byte[] out, int outOff) {
+        storeTag(chaskeyTag(keys, chaskeyState.get(), dir, counter, buf, off, len), out, outOff);
+    }
+
+    public static boolean chaskeyVerifyWithDirAndPacketCounter(int[] keys, int dir, long counter, byte[] buf, int off, int len, byte[] mac, int macOff) {
+        return tagEquals(chaskeyTag(keys, chaskeyState.get(), dir, counter, buf, off, len), mac, macOff);
+    }
+
+    public static byte[] chaskey16Bytes(int[] keys, byte[] data) {
         byte[] res = new byte[16];
-        storeLong(res, 0, (v0 & 0xffffffffL) | ((long)v1 << 32));
-        storeLong(res, 8, (v2 & 0xffffffffL) | ((long)v3 << 32));
+        chaskey16Bytes(keys, data, res, 0);
         return res;
     }
+
+    public static void chaskey16Bytes(int[] keys, byte[] data, byte[] out, int outOff) {
+        int[] v = chaskeyState.get();
+        v[0] = keys[0] ^ keys[4] ^ loadInt(data, 0);
+        v[1] = keys[1] ^ keys[5] ^ loadInt(data, 4);
+        v[2] = keys[2] ^ keys[6] ^ loadInt(data, 8);
+        v[3] = keys[3] ^ keys[7] ^ loadInt(data, 12);
+        chaskeyPermute(v);
+
+        storeLong(out, outOff, ((v[0] ^ keys[4]) & 0xffffffffL) | ((long)(v[1] ^ keys[5]) << 32));
+        storeLong(out, outOff + 8, ((v[2] ^ keys[6]) & 0xffffffffL) | ((long)(v[3] ^ keys[7]) << 32));
+    }
 }
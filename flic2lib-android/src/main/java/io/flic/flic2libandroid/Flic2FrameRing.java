@@ -0,0 +1,148 @@
+package io.flic.flic2libandroid;
+
+/**
+ * A bounded ring of frame slots that carries outgoing frames from a session to its {@link Flic2Transport}. Normally
+ * not used.
+ *
+ * <p>The session is the producer. The number of free slots is its credit: it writes a frame into the slot returned by
+ * {@link #claim()}, publishes it with {@link #commit(int)} and then calls {@link Flic2Transport#flush()}. The
+ * transport is the consumer. It sends the oldest frame, from {@link #peek()} and {@link #peekLength()}, and calls
+ * {@link #release()} when the frame has been sent. This returns the slot as a credit. Slots are allocated once, so no
+ * objects are created per frame.</p>
+ *
+ * <p>The methods are thread safe, so the consumer may run on its own thread. A slot is not reused before it has been
+ * released, so the consumer can read a peeked slot without holding any lock.</p>
+ */
+public final class Flic2FrameRing {
+    // Outgoing data that can be buffered per connection, independent of the MTU
+    private static final int BUFFER_BYTES = 8192;
+    private static final int MIN_SLOTS = 32;
+
+    private final byte[][] slots;
+    private final int[] lengths;
+    private final int slotSize;
+    private int head;
+    private int depth;
+    private int maxDepth;
+
+    /**
+     * Creates a ring.
+     *
+     * @param slotCount the number of slots, which is the total number of credits
+     * @param slotSize the maximum frame length
+     */
+    public Flic2FrameRing(int slotCount, int slotSize) {
+        this.slots = new byte[slotCount][slotSize];
+        this.lengths = new int[slotCount];
+        this.slotSize = slotSize;
+    }
+
+    // Sized for the longest frame a transport accepts, see Flic2Transport.getMtu
+    static Flic2FrameRing forMtu(boolean packetOriented, int mtu) {
+        int slotSize = packetOriented ? mtu : mtu - 3;
+        return new Flic2FrameRing(Math.max(MIN_SLOTS, BUFFER_BYTES / slotSize), slotSize);
+    }
+
+    /**
+     * Returns the maximum frame length.
+     *
+     * @return the slot size in bytes
+     */
+    public int getSlotSize() {
+        return slotSize;
+    }
+
+    /**
+     * Returns the number of free slots.
+     *
+     * @return the number of credits
+     */
+    public synchronized int getCredits() {
+        return slots.length - depth;
+    }
+
+    /**
+     * Returns the slot to write the next frame into. The frame is not visible to the transport until it is committed.
+     *
+     * @return the slot, of {@link #getSlotSize()} bytes
+     * @throws IllegalStateException if there are no credits
+     */
+    public synchronized byte[] claim() {
+        if (depth == slots.length) {
+            throw new IllegalStateException("No credits");
+        }
+        return slots[(head + depth) % slots.length];
+    }
+
+    /**
+     * Publishes the frame written into the slot returned by {@link #claim()}.
+     *
+     * @param length the frame length
+     */
+    public synchronized void commit(int length) {
+        if (depth == slots.length) {
+            throw new IllegalStateException("No credits");
+        }
+        if (length > slotSize) {
+            throw new IllegalArgumentException("Frame of " + length + " bytes does not fit in a slot of " + slotSize);
+        }
+        lengths[(head + depth) % slots.length] = length;
+        ++depth;
+        maxDepth = Math.max(maxDepth, depth);
+    }
+
+    /**
+     * Returns the oldest frame that has not been released.
+     *
+     * @return the slot holding the frame, or null if the ring is empty
+     */
+    public synchronized byte[] peek() {
+        return depth == 0 ? null : slots[head];
+    }
+
+    /**
+     * Returns the length of the frame returned by {@link #peek()}.
+     *
+     * @return the frame length
+     */
+    public synchronized int peekLength() {
+        return lengths[head];
+    }
+
+    /**
+     * Releases the oldest frame after it has been sent, which returns its slot as a credit.
+     */
+    public synchronized void release() {
+        if (depth == 0) {
+            throw new IllegalStateException("Empty");
+        }
+        head = (head + 1) % slots.length;
+        --depth;
+    }
+
+    /**
+     * Drops all frames.
+     */
+    public synchronized void clear() {
+        head = 0;
+        depth = 0;
+    }
+
+    /**
+     * Returns the number of committed frames that have not been released yet.
+     *
+     * @return the queue depth
+     */
+    public synchronized int getDepth() {
+        return depth;
+    }
+
+    /**
+     * Returns the highest queue depth seen.
+     *
+     * @return the queue depth
+     */
+    public synchronized int getMaxDepth() {
+        return maxDepth;
+    }
+}
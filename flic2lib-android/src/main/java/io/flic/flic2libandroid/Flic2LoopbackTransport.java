@@ -0,0 +1,167 @@
+package io.flic.flic2libandroid;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * An in-memory transport for running sessions without Bluetooth, for example in tests.
+ *
+ * <p>Transports are created in connected pairs with {@link #createPair(HandlerInterface, HandlerInterface, boolean, int)}.
+ * A frame sent on one end is delivered to the other end after the configured latency, unless it is dropped. Each end
+ * is used on, and calls its listener on, the thread of its own handler.</p>
+ */
+public class Flic2LoopbackTransport implements Flic2Transport {
+    private final HandlerInterface handler;
+    private final boolean packetOriented;
+    private final int mtu;
+    private final Flic2FrameRing txRing;
+    private Flic2LoopbackTransport peer;
+
+    // Settings and counters are accessed from the test thread as well as the handler threads. The peer reads closed
+    // and listener on its own handler thread, and close may be called from any thread.
+    private volatile long latencyMs;
+    private volatile double lossRate;
+    private volatile Random random = new Random();
+
+    private volatile Listener listener;
+    private volatile boolean closed;
+    private final AtomicLong sentFrames = new AtomicLong();
+    private final AtomicLong droppedFrames = new AtomicLong();
+
+    private Flic2LoopbackTransport(HandlerInterface handler, boolean packetOriented, int mtu) {
+        this.handler = handler;
+        this.packetOriented = packetOriented;
+        this.mtu = mtu;
+        this.txRing = Flic2FrameRing.forMtu(packetOriented, mtu);
+    }
+
+    /**
+     * Creates two connected transports.
+     *
+     * @param handlerA the handler of the first transport
+     * @param handlerB the handler of the second transport
+     * @param packetOriented true for L2CAP style framing, false for GATT style framing
+     * @param mtu the MTU, see {@link Flic2Transport#getMtu()}
+     * @return the two transports
+     */
+    public static Flic2LoopbackTransport[] createPair(HandlerInterface handlerA, HandlerInterface handlerB, boolean packetOriented, int mtu) {
+        Flic2LoopbackTransport a = new Flic2LoopbackTransport(handlerA, packetOriented, mtu);
+        Flic2LoopbackTransport b = new Flic2LoopbackTransport(handlerB, packetOriented, mtu);
+        a.peer = b;
+        b.peer = a;
+        return new Flic2LoopbackTransport[]{a, b};
+    }
+
+    /**
+     * Sets the delay from when a frame is sent on this end until it is received on the other end.
+     *
+     * @param latencyMs the delay in milliseconds
+     */
+    public void setLatency(long latencyMs) {
+        this.latencyMs = latencyMs;
+    }
+
+    /**
+     * Sets the probability that a frame sent on this end is dropped. It is still reported as sent.
+     *
+     * @param lossRate the probability, from 0 to 1
+     * @param random the random generator that decides which frames are dropped, to make runs reproducible
+     */
+    public void setLossRate(double lossRate, Random random) {
+        // The random generator is set first, so that a frame that sees the new loss rate also uses the new generator
+        this.random = random;
+        this.lossRate = lossRate;
+    }
+
+    /**
+     * Returns the number of frames sent on this end, including dropped frames.
+     *
+     * @return the number of frames
+     */
+    public long getSentFrames() {
+        return sentFrames.get();
+    }
+
+    /**
+     * Returns the number of frames sent on this end that were dropped.
+     *
+     * @return the number of frames
+     */
+    public long getDroppedFrames() {
+        return droppedFrames.get();
+    }
+
+    @Override
+    public boolean isPacketOriented() {
+        return packetOriented;
+    }
+
+    @Override
+    public int getMtu() {
+        return mtu;
+    }
+
+    @Override
+    public void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    @Override
+    public Flic2FrameRing getTxRing() {
+        return txRing;
+    }
+
+    // Frames are copied out of the ring right away, since they may be delivered later
+    @Override
+    public void flush() {
+        if (closed || txRing.getDepth() == 0) {
+            return;
+        }
+        while (txRing.getDepth() != 0) {
+            send(Arrays.copyOf(txRing.peek(), txRing.peekLength()));
+            txRing.release();
+        }
+        final Listener sender = listener;
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (!closed && sender != null) {
+                    sender.onCreditsReturned();
+                }
+            }
+        });
+    }
+
+    private void send(final byte[] frame) {
+        sentFrames.incrementAndGet();
+        double lossRate = this.lossRate;
+        if (lossRate > 0 && random.nextDouble() < lossRate) {
+            droppedFrames.incrementAndGet();
+            return;
+        }
+        final Flic2LoopbackTransport receiver = peer;
+        Runnable deliver = new Runnable() {
+            @Override
+            public void run() {
+                Listener receiverListener = receiver.listener;
+                if (!receiver.closed && receiverListener != null) {
+                    receiverListener.onFrame(frame);
+                }
+            }
+        };
+        long latencyMs = this.latencyMs;
+        if (latencyMs > 0) {
+            receiver.handler.postDelayed(deliver, latencyMs);
+        } else {
+            receiver.handler.post(deliver);
+        }
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        listener = null;
+        txRing.clear();
+    }
+}
@@ -34,8 +34,11 @@ import java.util.Arrays;
 import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
-import java.util.Queue;
 import java.util.UUID;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 /**
  * A manager for Flic 2 buttons.
@@ -87,6 +90,31 @@ public class Flic2Manager {
 
     boolean forceButtonValidationOfAppCredentials;
 
+    // Upper bounds of the request window of a session, see setMaxPendingRequests
+    volatile int maxPendingRequestsGatt = 4;
+    volatile int maxPendingRequestsL2cap = 4;
+
+    // Runs the full verify crypto so that it doesn't delay packets from other buttons on the handler thread.
+    // The queue is unbounded so that a task never runs on the handler thread. It holds at most one task per connecting
+    // button, and one that fills ephemeralKeys.
+    final ThreadPoolExecutor cryptoExecutor = createCryptoExecutor();
+
+    // Filled on the crypto executor while scanning, since a found button will be paired
+    final EphemeralKeyPool ephemeralKeys = new EphemeralKeyPool(2, Utils.secureRandom, cryptoExecutor);
+
+    private static ThreadPoolExecutor createCryptoExecutor() {
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(2, 2, 10, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "Flic2Crypto");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
     private final LinkedList<Flic2Button> allButtons = new LinkedList<>();
 
     private Flic2Manager() {
@@ -194,6 +222,25 @@ public class Flic2Manager {
         this.logger = logger;
     }
 
+    /**
+     * Sets how many requests may be sent to a button before the responses to the earlier ones have arrived.
+     *
+     * <p>Every connection starts with 2 outstanding requests, and the window is then widened up to the given maximum
+     * as long as the response times stay close to the lowest seen on that connection. When responses start to queue
+     * up in the button, the window is narrowed again. This mostly affects how long it takes from a connection until
+     * the name, battery level and firmware version have been exchanged.</p>
+     *
+     * <p>The defaults are 4 over both GATT and L2CAP. Values are limited to the range 1 to 8, to stay well within
+     * the receive buffers of the button. Takes effect from the next connection.</p>
+     *
+     * @param overGatt the maximum when connected over GATT, used on Android versions before 10
+     * @param overL2cap the maximum when connected over L2CAP
+     */
+    public void setMaxPendingRequests(int overGatt, int overL2cap) {
+        maxPendingRequestsGatt = Math.max(1, Math.min(overGatt, Flic2Button.MAX_PENDING_REQUESTS_LIMIT));
+        maxPendingRequestsL2cap = Math.max(1, Math.min(overL2cap, Flic2Button.MAX_PENDING_REQUESTS_LIMIT));
+    }
+
     void log(String action) {
         log(null, action, (String)null);
     }
@@ -209,6 +256,14 @@ public class Flic2Manager {
         }
     }
 
+    // Logs the first len bytes of buf, which are only copied when there is a logger
+    void log(String bdAddr, String action, byte[] buf, int len) {
+        LoggerInterface logger = this.logger;
+        if (logger != null) {
+            logger.log(bdAddr, action, Utils.bytesToHex(Arrays.copyOf(buf, len)));
+        }
+    }
+
     void log(String bdAddr, String action, int code) {
         LoggerInterface logger = this.logger;
         if (logger != null) {
@@ -302,7 +357,7 @@ public class Flic2Manager {
                         @Override
                         public void run() {
                             Flic2Button button = getButtonByBdAddr(device.getAddress());
-                            if (button != null && button.wantConnected && button.currentGattCb != null) {
+                            if (button != null && button.wantConnected && button.currentGattCb != null && button.currentGattCb.gatt != null) {
                                 button.currentGattCb.gatt.connect();
                             }
                         }
@@ -489,6 +544,7 @@ public class Flic2Manager {
     }
     private void continueScan() {
         log("cont scan");
+        ephemeralKeys.fillInBackground();
         ScanWrapper.INSTANCE.startScan(adapter, FLIC_SERVICE_UUID, scanCallback);
         stopScanRunnable = new Runnable() {
             @Override
@@ -691,9 +747,24 @@ public class Flic2Manager {
         cb.createdTime = SystemClock.uptimeMillis();
     }
 
+    // Runs the sessions of the button over the given transport instead of Bluetooth, for example to an emulated button
+    // in tests. Must be called on the handler thread. Disconnect with Flic2Button.disconnectOrAbortPendingConnection.
+    void connectOverTransport(Flic2Button button, Flic2Transport transport) {
+        disconnectGatt(button);
+        FlicGattCallback cb = new FlicGattCallback(button);
+        button.currentGattCb = cb;
+        cb.createdTime = SystemClock.uptimeMillis();
+        button.wantConnected = true;
+        button.isConnected = true;
+        button.listener.onConnect(button);
+        cb.start(transport);
+    }
+
     private void gattFailed(final Flic2Button button) {
         if (button.currentGattCb != null) {
-            button.currentGattCb.gatt.close();
+            if (button.currentGattCb.gatt != null) {
+                button.currentGattCb.gatt.close();
+            }
             button.currentGattCb = null;
         }
         button.retryConnectRunnable = new Runnable() {
@@ -717,16 +788,11 @@ public class Flic2Manager {
                     Thread.currentThread().interrupt();
                 }
             }
-            if (button.currentGattCb.socket != null) {
-                try {
-                    log(button.bdAddr, "l2cap close");
-                    button.currentGattCb.socket.close();
-                } catch (IOException e) {
-                }
-                button.currentGattCb.socket = null;
+            button.currentGattCb.closeTransports();
+            if (button.currentGattCb.gatt != null) {
+                button.currentGattCb.gatt.disconnect(); // Shouldn't be needed but do it anyway to workaround some buggy phones
+                button.currentGattCb.gatt.close();
             }
-            button.currentGattCb.gatt.disconnect(); // Shouldn't be needed but do it anyway to workaround some buggy phones
-            button.currentGattCb.gatt.close();
             button.currentGattCb.cleanup();
             button.currentGattCb = null;
         }
@@ -882,10 +948,8 @@ public class Flic2Manager {
         private BluetoothGattCharacteristic txChar, rxChar;
         private Flic2Button.Session session;
         private Runnable restartRunnable;
-        private final Queue<Utils.Pair<Flic2Button.Session, byte[]>> txQueue = new LinkedList<>();
-        private final Queue<Utils.Pair<Flic2Button.Session, byte[]>> l2CapTxQueue = new LinkedList<>();
-
-        private BluetoothSocket socket;
+        private GattTransport gattTransport;
+        private L2capTransport l2capTransport;
 
         Flic2Button.Session getSession() {
             return session;
@@ -899,43 +963,28 @@ public class Flic2Manager {
                 handler.removeCallbacks(restartRunnable);
                 restartRunnable = null;
             }
+            closeTransports();
         }
 
-        private void start(final boolean onL2CAP) {
-            if (onL2CAP) {
-                mtu = 128;
+        void closeTransports() {
+            if (gattTransport != null) {
+                gattTransport.close();
+                gattTransport = null;
             }
-            state = onL2CAP ? STATE_RUNNING_L2CAP : STATE_RUNNING_GATT;
+            if (l2capTransport != null) {
+                log(button.bdAddr, "l2cap close");
+                l2capTransport.close();
+                l2capTransport = null;
+            }
+        }
+
+        private void start(final Flic2Transport transport) {
+            state = transport.isPacketOriented() ? STATE_RUNNING_L2CAP : STATE_RUNNING_GATT;
 
             if (session != null) {
                 session.end();
             }
-            synchronized (l2CapTxQueue) {
-                l2CapTxQueue.clear();
-            }
-            session = button.new Session(onL2CAP, new SessionCallback() {
-                @Override
-                public void tx(byte[] data) {
-                    //Log.d("Flic2Manager", "Writing data " + Utils.bytesToHex(data));
-                    if (button.currentGattCb != FlicGattCallback.this) {
-                        return;
-                    }
-                    if (!onL2CAP) {
-                        boolean wasEmpty = txQueue.isEmpty();
-                        txQueue.add(new Utils.Pair<>(session, data));
-                        if (wasEmpty) {
-                            txChar.setValue(data);
-                            log(button.bdAddr, "wg", data);
-                            gatt.writeCharacteristic(txChar);
-                        }
-                    } else {
-                        synchronized (l2CapTxQueue) {
-                            l2CapTxQueue.add(new Utils.Pair<>(session, data));
-                            l2CapTxQueue.notifyAll();
-                        }
-                    }
-                }
-
+            final Flic2Button.Session thisSession = button.new Session(transport, new SessionCallback() {
                 @Override
                 public void bond() {
                     log(button.bdAddr, "bond");
@@ -950,25 +999,22 @@ public class Flic2Manager {
                         return;
                     }
 
-                    if (onL2CAP) {
+                    final boolean overL2cap = transport instanceof L2capTransport;
+                    if (overL2cap) {
                         log(button.bdAddr, "l2cap restart close " + afterMs);
-                        try {
-                            socket.close();
-                        } catch (IOException e) {
-                        }
-                        socket = null;
-                        synchronized (l2CapTxQueue) {
-                            l2CapTxQueue.clear();
+                        if (l2capTransport != null) {
+                            l2capTransport.close();
+                            l2capTransport = null;
                         }
-                        // When reader thread ends, it will notify the write thread
                     }
 
                     restartRunnable = new Runnable() {
                         @Override
                         public void run() {
                             restartRunnable = null;
-                            if (!onL2CAP) {
-                                start(false);
+                            if (!overL2cap) {
+                                // The GATT transport, or the one given to connectOverTransport, is reused
+                                start(transport);
                             } else {
                                 startUsingL2CAP();
                             }
@@ -997,7 +1043,25 @@ public class Flic2Manager {
                     database.deleteButton(button);
                 }
             });
-            session.start(mtu);
+            session = thisSession;
+            transport.setListener(new Flic2Transport.Listener() {
+                @Override
+                public void onFrame(byte[] frame) {
+                    if (button.currentGattCb != FlicGattCallback.this || session != thisSession) {
+                        return;
+                    }
+                    thisSession.onData(frame);
+                }
+
+                @Override
+                public void onCreditsReturned() {
+                    if (button.currentGattCb != FlicGattCallback.this || session != thisSession) {
+                        return;
+                    }
+                    thisSession.onCreditsReturned();
+                }
+            });
+            thisSession.start();
         }
 
         private void startUsingGatt() {
@@ -1007,15 +1071,21 @@ public class Flic2Manager {
             gatt.discoverServices();
         }
 
+        private void startGattSession() {
+            if (gattTransport != null) {
+                gattTransport.close();
+            }
+            gattTransport = new GattTransport(Flic2Manager.this, button.bdAddr, gatt, txChar, mtu);
+            start(gattTransport);
+        }
+
         @TargetApi(Build.VERSION_CODES.Q)
         private void startUsingL2CAP() {
-            if (socket != null) {
-                try {
-                    socket.close();
-                } catch (IOException e) {
-                }
-                socket = null;
+            if (l2capTransport != null) {
+                l2capTransport.close();
+                l2capTransport = null;
             }
+            BluetoothSocket socket;
             try {
                 socket = gatt.getDevice().createInsecureL2capChannel(0xfc);
                 if (socket == null) {
@@ -1028,124 +1098,25 @@ public class Flic2Manager {
             }
             state = STATE_WAIT_L2CAP_CONNECT;
             final long thisDisconnectCount = disconnectCount;
-            final BluetoothSocket currentSocket = socket;
-            new Thread(new Runnable() {
+            final L2capTransport transport = new L2capTransport(Flic2Manager.this, button.bdAddr, socket);
+            l2capTransport = transport;
+            transport.connect(new L2capTransport.ConnectCallback() {
                 @Override
-                public void run() {
-                    try {
-                        currentSocket.connect();
-                    } catch (IOException | SecurityException e) {
-                        log(button.bdAddr, "l2cap failed", e.getMessage());
-                        e.printStackTrace();
-                        try {
-                            currentSocket.close();
-                        } catch (IOException e1) {
-                        }
-                        handler.post(new Runnable() {
-                            @Override
-                            public void run() {
-                                if (button.currentGattCb != FlicGattCallback.this || thisDisconnectCount != disconnectCount) {
-                                    return;
-                                }
-                                startUsingGatt();
-                            }
-                        });
+                public void onConnected() {
+                    if (button.currentGattCb != FlicGattCallback.this || thisDisconnectCount != disconnectCount) {
                         return;
                     }
-                    //Log.d(TAG, "l2cap socket connected");
-                    log(button.bdAddr, "l2cap connected");
-
-                    new Thread(new Runnable() {
-                        @Override
-                        public void run() {
-                            while (true) {
-                                final Utils.Pair<Flic2Button.Session, byte[]> item;
-                                synchronized (l2CapTxQueue) {
-                                    while (l2CapTxQueue.isEmpty() && currentSocket.isConnected()) {
-                                        try {
-                                            l2CapTxQueue.wait();
-                                        } catch (InterruptedException e) {
-                                            Thread.currentThread().interrupt();
-                                        }
-                                    }
-                                    if (!currentSocket.isConnected()) {
-                                        break;
-                                    }
-                                    item = l2CapTxQueue.remove();
-                                }
-                                //Log.d(TAG, "l2cap socket write");
-                                log(button.bdAddr, "wl", item.b);
-                                try {
-                                    currentSocket.getOutputStream().write(item.b);
-                                } catch (IOException e) {
-                                    break;
-                                }
-                                handler.post(new Runnable() {
-                                    @Override
-                                    public void run() {
-                                        if (button.currentGattCb != FlicGattCallback.this || thisDisconnectCount != disconnectCount) {
-                                            return;
-                                        }
-                                        item.a.txDone();
-                                    }
-                                });
-                            }
-                            log(button.bdAddr, "l2cap wdone");
-                            //Log.d(TAG, "l2cap socket write thread ended");
-                        }
-                    }).start();
-
-                    handler.post(new Runnable() {
-                        @Override
-                        public void run() {
-                            if (button.currentGattCb != FlicGattCallback.this || thisDisconnectCount != disconnectCount) {
-                                return;
-                            }
-                            start(true);
-                        }
-                    });
+                    start(transport);
+                }
 
-                    byte[] packet = new byte[128];
-                    while (true) {
-                        if (!currentSocket.isConnected()) {
-                            break;
-                        }
-                        int nread;
-                        try {
-                            nread = currentSocket.getInputStream().read(packet);
-                            //Log.d(TAG, "l2cap read returned " + nread);
-                            if (nread == -1) {
-                                break;
-                            }
-                        } catch (IOException e) {
-                            e.printStackTrace();
-                            break;
-                        }
-                        final byte[] p = Arrays.copyOf(packet, nread);
-                        log(button.bdAddr, "r", p);
-                        handler.post(new Runnable() {
-                            @Override
-                            public void run() {
-                                if (button.currentGattCb != FlicGattCallback.this || thisDisconnectCount != disconnectCount || !currentSocket.isConnected()) {
-                                    return;
-                                }
-                                if (state == STATE_RUNNING_L2CAP) {
-                                    session.onData(p);
-                                }
-                            }
-                        });
-                    }
-                    synchronized (l2CapTxQueue) {
-                        try {
-                            currentSocket.close();
-                        } catch (IOException e) {
-                        }
-                        l2CapTxQueue.notifyAll();
+                @Override
+                public void onConnectFailed() {
+                    if (button.currentGattCb != FlicGattCallback.this || thisDisconnectCount != disconnectCount) {
+                        return;
                     }
-                    log(button.bdAddr, "l2cap done");
-                    //Log.d(TAG, "l2cap socket thread ended");
+                    startUsingGatt();
                 }
-            }).start();
+            });
         }
 
         @Override
@@ -1185,7 +1156,7 @@ public class Flic2Manager {
                             restartRunnable = null;
                         }
                         // Writes submitted while the BTA thread is in disconnected state are silently dropped, without callback, so clear
-                        txQueue.clear();
+                        closeTransports();
                         if (button.isConnected) {
                             button.isConnected = false;
                             button.listener.onDisconnect(button);
@@ -1256,7 +1227,7 @@ public class Flic2Manager {
                         gatt.setCharacteristicNotification(rxChar, true);
 
                         if (mtu != 23) {
-                            start(false);
+                            startGattSession();
                         } else {
                             state = STATE_WAIT_MTU;
                             log(button.bdAddr, "mtuReq");
@@ -1281,19 +1252,8 @@ public class Flic2Manager {
                     if (button.currentGattCb != FlicGattCallback.this) {
                         return;
                     }
-                    if (status == BluetoothGatt.GATT_SUCCESS) {
-                        Utils.Pair<Flic2Button.Session, byte[]> item = txQueue.poll();
-                        if (item == null) {
-                            // Just in case the Bluetooth stack sends too many completions
-                            return;
-                        }
-                        if (!txQueue.isEmpty()) {
-                            byte[] value = txQueue.peek().b;
-                            log(button.bdAddr, "wgq", value);
-                            txChar.setValue(value);
-                            gatt.writeCharacteristic(txChar);
-                        }
-                        item.a.txDone();
+                    if (status == BluetoothGatt.GATT_SUCCESS && gattTransport != null) {
+                        gattTransport.onWriteComplete();
                     }
                 }
             });
@@ -1310,8 +1270,8 @@ public class Flic2Manager {
                     if (button.currentGattCb != FlicGattCallback.this) {
                         return;
                     }
-                    if (characteristic.getUuid().equals(RX_CHAR_UUID) && state == STATE_RUNNING_GATT) {
-                        session.onData(value);
+                    if (characteristic.getUuid().equals(RX_CHAR_UUID) && state == STATE_RUNNING_GATT && gattTransport != null) {
+                        gattTransport.onNotification(value);
                     }
                 }
             });
@@ -1333,7 +1293,7 @@ public class Flic2Manager {
                     }
                     FlicGattCallback.this.mtu = mtu;
                     if (state == STATE_WAIT_MTU) {
-                        start(false);
+                        startGattSession();
                     }
                 }
             });
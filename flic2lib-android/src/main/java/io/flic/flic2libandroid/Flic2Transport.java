@@ -0,0 +1,71 @@
+package io.flic.flic2libandroid;
+
+/**
+ * Interface for the link that carries the frames of a session with a button. Normally not used.
+ *
+ * <p>The library implements this on top of GATT and L2CAP. Other implementations, such as
+ * {@link Flic2LoopbackTransport}, make it possible to run sessions without Bluetooth.</p>
+ *
+ * <p>All methods are called on the manager's handler thread, and the listener must be called on that thread too.</p>
+ */
+public interface Flic2Transport {
+    /**
+     * Receives the events of a transport.
+     */
+    interface Listener {
+        /**
+         * Called when a frame has been received.
+         *
+         * @param frame the frame
+         */
+        void onFrame(byte[] frame);
+
+        /**
+         * Called when frames have been sent and released from the ring, so that their slots can be used again.
+         */
+        void onCreditsReturned();
+    }
+
+    /**
+     * Returns whether every frame carries exactly one packet, as on L2CAP.
+     *
+     * <p>Otherwise frames start with a header byte with the logical connection id, and packets that do not fit in
+     * the MTU are fragmented, as on GATT.</p>
+     *
+     * @return true if the transport is packet oriented
+     */
+    boolean isPacketOriented();
+
+    /**
+     * Returns the MTU. On a transport that is not packet oriented, this is the ATT MTU, so a frame can be at most
+     * 3 bytes shorter than this.
+     *
+     * @return the MTU
+     */
+    int getMtu();
+
+    /**
+     * Sets the listener that receives all following events.
+     *
+     * @param listener the listener
+     */
+    void setListener(Listener listener);
+
+    /**
+     * Returns the ring that outgoing frames are written to. It belongs to this transport, and its slots are at least
+     * as large as the longest frame the transport accepts.
+     *
+     * @return the ring
+     */
+    Flic2FrameRing getTxRing();
+
+    /**
+     * Starts sending the frames that have been committed to the ring, if not already sending.
+     */
+    void flush();
+
+    /**
+     * Closes the transport. Frames that have not been sent yet are dropped, and the listener is not called anymore.
+     */
+    void close();
+}
@@ -0,0 +1,91 @@
+package io.flic.flic2libandroid;
+
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattCharacteristic;
+
+import java.util.Arrays;
+
+// Frames are sent as writes without response to the TX characteristic, one at a time since Android only allows one
+// outstanding write, and are received as notifications on the RX characteristic. The owning FlicGattCallback forwards
+// the write completions and notifications.
+class GattTransport implements Flic2Transport {
+    private final Flic2Manager manager;
+    private final String bdAddr;
+    private final BluetoothGatt gatt;
+    private final BluetoothGattCharacteristic txChar;
+    private final int mtu;
+
+    // The frame being written stays in the ring until its completion arrives
+    private final Flic2FrameRing txRing;
+    private boolean writeInProgress;
+    private Listener listener;
+    private boolean closed;
+
+    GattTransport(Flic2Manager manager, String bdAddr, BluetoothGatt gatt, BluetoothGattCharacteristic txChar, int mtu) {
+        this.manager = manager;
+        this.bdAddr = bdAddr;
+        this.gatt = gatt;
+        this.txChar = txChar;
+        this.mtu = mtu;
+        this.txRing = Flic2FrameRing.forMtu(false, mtu);
+    }
+
+    @Override
+    public boolean isPacketOriented() {
+        return false;
+    }
+
+    @Override
+    public int getMtu() {
+        return mtu;
+    }
+
+    @Override
+    public void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    @Override
+    public Flic2FrameRing getTxRing() {
+        return txRing;
+    }
+
+    @Override
+    public void flush() {
+        if (closed || writeInProgress || txRing.getDepth() == 0) {
+            return;
+        }
+        writeInProgress = true;
+        // The characteristic keeps the array, so it has to be of the exact length
+        byte[] value = Arrays.copyOf(txRing.peek(), txRing.peekLength());
+        txChar.setValue(value);
+        manager.log(bdAddr, "wg", value);
+        gatt.writeCharacteristic(txChar);
+    }
+
+    void onWriteComplete() {
+        if (closed || !writeInProgress) {
+            // Just in case the Bluetooth stack sends too many completions
+            return;
+        }
+        writeInProgress = false;
+        txRing.release();
+        flush();
+        if (listener != null) {
+            listener.onCreditsReturned();
+        }
+    }
+
+    void onNotification(byte[] value) {
+        if (!closed && listener != null) {
+            listener.onFrame(value);
+        }
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        listener = null;
+        txRing.clear();
+    }
+}
@@ -1,11 +1,9 @@
 package io.flic.flic2libandroid;
 
-import android.content.Context;
-
 /**
  * Interface for defining a custom handler. Normally not used.
  *
- * @see Flic2Manager#init(Context, HandlerInterface, LoggerInterface)
+ * @see Flic2Manager#init(android.content.Context, HandlerInterface, LoggerInterface)
  */
 public interface HandlerInterface {
     /**
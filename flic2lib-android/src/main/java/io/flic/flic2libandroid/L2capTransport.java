@@ -0,0 +1,200 @@
+package io.flic.flic2libandroid;
+
+import android.bluetooth.BluetoothSocket;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+// Runs over an L2CAP connection-oriented channel, where every frame is a whole packet. One thread connects and then
+// reads, and one thread writes, and both hand over to the manager's handler thread.
+class L2capTransport implements Flic2Transport {
+    static final int MTU = 128;
+
+    // Called on the handler thread, unless the transport has been closed
+    interface ConnectCallback {
+        void onConnected();
+        void onConnectFailed();
+    }
+
+    private final Flic2Manager manager;
+    private final String bdAddr;
+    private final BluetoothSocket socket;
+
+    // The write thread consumes the ring, and waits on it when it is empty
+    private final Flic2FrameRing txRing = Flic2FrameRing.forMtu(true, MTU);
+    private volatile Listener listener;
+    private volatile boolean closed;
+
+    L2capTransport(Flic2Manager manager, String bdAddr, BluetoothSocket socket) {
+        this.manager = manager;
+        this.bdAddr = bdAddr;
+        this.socket = socket;
+    }
+
+    @Override
+    public boolean isPacketOriented() {
+        return true;
+    }
+
+    @Override
+    public int getMtu() {
+        return MTU;
+    }
+
+    @Override
+    public void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    @Override
+    public Flic2FrameRing getTxRing() {
+        return txRing;
+    }
+
+    @Override
+    public void flush() {
+        if (closed) {
+            return;
+        }
+        synchronized (txRing) {
+            txRing.notifyAll();
+        }
+    }
+
+    // The ring is not cleared, since the write thread may still be reading a slot. It is dropped with the transport.
+    @Override
+    public void close() {
+        closed = true;
+        listener = null;
+        synchronized (txRing) {
+            try {
+                socket.close();
+            } catch (IOException e) {
+            }
+            // Wakes up the write thread, which then sees that the socket is closed
+            txRing.notifyAll();
+        }
+    }
+
+    void connect(final ConnectCallback callback) {
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    socket.connect();
+                } catch (IOException | SecurityException e) {
+                    manager.log(bdAddr, "l2cap failed", e.getMessage());
+                    e.printStackTrace();
+                    try {
+                        socket.close();
+                    } catch (IOException e1) {
+                    }
+                    manager.handler.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            if (!closed) {
+                                callback.onConnectFailed();
+                            }
+                        }
+                    });
+                    return;
+                }
+                manager.log(bdAddr, "l2cap connected");
+
+                new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        writeLoop();
+                    }
+                }).start();
+
+                manager.handler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (!closed) {
+                            callback.onConnected();
+                        }
+                    }
+                });
+
+                readLoop();
+            }
+        }).start();
+    }
+
+    private void writeLoop() {
+        Runnable creditsReturned = new Runnable() {
+            @Override
+            public void run() {
+                Listener listener = L2capTransport.this.listener;
+                if (!closed && listener != null) {
+                    listener.onCreditsReturned();
+                }
+            }
+        };
+        while (true) {
+            byte[] frame;
+            int len;
+            synchronized (txRing) {
+                while (txRing.getDepth() == 0 && socket.isConnected()) {
+                    try {
+                        txRing.wait();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+                if (!socket.isConnected()) {
+                    break;
+                }
+                frame = txRing.peek();
+                len = txRing.peekLength();
+            }
+            manager.log(bdAddr, "wl", frame, len);
+            try {
+                socket.getOutputStream().write(frame, 0, len);
+            } catch (IOException e) {
+                break;
+            }
+            txRing.release();
+            manager.handler.post(creditsReturned);
+        }
+        manager.log(bdAddr, "l2cap wdone");
+    }
+
+    private void readLoop() {
+        byte[] packet = new byte[MTU];
+        while (true) {
+            if (!socket.isConnected()) {
+                break;
+            }
+            int nread;
+            try {
+                nread = socket.getInputStream().read(packet);
+                if (nread == -1) {
+                    break;
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+                break;
+            }
+            final byte[] p = Arrays.copyOf(packet, nread);
+            manager.log(bdAddr, "r", p);
+            manager.handler.post(new Runnable() {
+                @Override
+                public void run() {
+                    if (!closed && socket.isConnected() && listener != null) {
+                        listener.onFrame(p);
+                    }
+                }
+            });
+        }
+        synchronized (txRing) {
+            try {
+                socket.close();
+            } catch (IOException e) {
+            }
+            txRing.notifyAll();
+        }
+        manager.log(bdAddr, "l2cap done");
+    }
+}
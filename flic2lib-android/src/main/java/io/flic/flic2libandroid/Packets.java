@@ -34,19 +34,23 @@ abstract class TxPacket {
     public static final int GET_HID_MIDI_CONFIG_REQUEST = 30;
 
 
-    protected abstract void write(Writer w);
+    // Including opcode, excluding signature
+    public static final int MAX_LENGTH = 256;
 
     protected static class Writer {
         private byte[] buf;
+        private int start;
         private int pos;
         private int bitpos;
 
-        public Writer() {
-            buf = new byte[256];
-            pos = 1;
+        // Writes the packet into buf starting at offset, which does not need to be zeroed
+        public Writer(byte[] buf, int offset) {
+            this.buf = buf;
+            start = offset;
+            pos = offset + 1;
         }
         public void opcode(int opcode) {
-            buf[0] = (byte)opcode;
+            buf[start] = (byte)opcode;
         }
         public void bool(boolean b) {
             buf[pos++] = b ? (byte)1 : (byte)0;
@@ -54,31 +58,24 @@ abstract class TxPacket {
         public void b(int b) {
             buf[pos++] = (byte)b;
         }
+        // Fields are packed LSB first. The bits above bitpos in the last byte are always zero, so a field is
+        // inserted by ORing it into a word made of that byte, and then storing the bytes it covers.
         public void bits(long value, int width) {
-            value &= (1L << width) - 1;
-            while (width > 8) {
-                bits(value, 8);
-                value >>>= 8;
-                width -= 8;
+            if (width < 64) {
+                value &= (1L << width) - 1;
             }
-            if (width == 0) {
-                return;
+            int bytePos = bitpos == 0 ? pos : pos - 1;
+            int totalBits = bitpos + width;
+            long word = (bitpos == 0 ? 0 : buf[bytePos] & 0xff) | (value << bitpos);
+            int n = Math.min((totalBits + 7) >> 3, 8);
+            for (int i = 0; i < n; i++) {
+                buf[bytePos + i] = (byte)(word >>> (i * 8));
             }
-            if (bitpos == 0) {
-                buf[pos++] = (byte)value;
-                bitpos += width;
-            } else {
-                buf[pos - 1] |= value << bitpos;
-                if (bitpos + width > 8) {
-                    buf[pos++] = (byte)(value >>> (8 - bitpos));
-                    bitpos = bitpos + width - 8;
-                } else {
-                    bitpos += width;
-                }
-            }
-            if (bitpos == 8) {
-                bitpos = 0;
+            if (totalBits > 64) {
+                buf[bytePos + 8] = (byte)(value >>> (64 - bitpos));
             }
+            pos = bytePos + ((totalBits + 7) >> 3);
+            bitpos = totalBits & 7;
         }
         public void bitsPadding(int width) {
             bits(0, width);
@@ -107,32 +104,38 @@ abstract class TxPacket {
         public void str(String str) {
             ba(str.getBytes(StandardCharsets.UTF_8));
         }
-        public byte[] toBytes() {
-            return Arrays.copyOf(buf, pos);
+        public int length() {
+            return pos - start;
         }
     }
 
     public byte[] getBytes() {
-        Writer w = new Writer();
-        write(w);
-        return w.toBytes();
+        byte[] buf = new byte[MAX_LENGTH];
+        return Arrays.copyOf(buf, writeTo(buf, 0));
     }
 
-    static class FullVerifyRequest1 extends TxPacket {
+    // Returns the number of bytes written, at most MAX_LENGTH
+    public abstract int writeTo(byte[] buf, int offset);
+
+    // Packets with a Codec.Tx layout, encoded by the generated PacketCodecs
+    static abstract class CodecTxPacket extends TxPacket {
+        @Override
+        public final int writeTo(byte[] buf, int offset) {
+            return PacketCodecs.encode(this, buf, offset);
+        }
+    }
+
+    @Codec.Tx(FULL_VERIFY_REQUEST_1)
+    static class FullVerifyRequest1 extends CodecTxPacket {
+        @Codec.Bits(32)
         int tmpId;
 
         FullVerifyRequest1(int tmpId) {
             this.tmpId = tmpId;
         }
-
-        @Override
-        protected void write(Writer w) {
-            w.opcode(FULL_VERIFY_REQUEST_1);
-            w.i(tmpId);
-        }
     }
 
-    static class FullVerifyRequest2Base extends TxPacket {
+    static abstract class FullVerifyRequest2Base extends TxPacket {
         byte[] ecdhPublicKey;
         byte[] randomBytes;
         int signatureVariant;
@@ -140,8 +143,8 @@ abstract class TxPacket {
         boolean mustValidateAppToken;
         byte[] verifier;
 
-        @Override
-        protected void write(Writer w) {
+        // The fields after the opcode that both variants have
+        void writeCommon(Writer w) {
             w.ba(ecdhPublicKey);
             w.ba(randomBytes);
             w.bits(signatureVariant, 3);
@@ -153,10 +156,12 @@ abstract class TxPacket {
 
     static class FullVerifyRequest2WithoutAppToken extends FullVerifyRequest2Base {
         @Override
-        protected void write(Writer w) {
+        public int writeTo(byte[] buf, int offset) {
+            Writer w = new Writer(buf, offset);
             w.opcode(FULL_VERIFY_REQUEST_2_WITHOUT_APP_TOKEN);
-            super.write(w);
+            writeCommon(w);
             w.ba(verifier);
+            return w.length();
         }
     }
 
@@ -164,122 +169,97 @@ abstract class TxPacket {
         byte[] encryptedAppToken;
 
         @Override
-        protected void write(Writer w) {
+        public int writeTo(byte[] buf, int offset) {
+            Writer w = new Writer(buf, offset);
             w.opcode(FULL_VERIFY_REQUEST_2_WITH_APP_TOKEN);
-            super.write(w);
+            writeCommon(w);
             w.ba(encryptedAppToken);
             w.ba(verifier);
+            return w.length();
         }
     }
 
-    static class QuickVerifyRequest extends TxPacket {
-        byte[] random; // 7 bytes
+    @Codec.Tx(QUICK_VERIFY_REQUEST)
+    static class QuickVerifyRequest extends CodecTxPacket {
+        @Codec.Bytes(7)
+        byte[] random;
+        @Codec.Bits(3)
         int signatureVariant;
+        @Codec.Bits(value = 3, pad = 2)
         int encryptionVariant;
+        @Codec.Bits(32)
         int tmpId;
+        @Codec.Bits(32)
         int pairingId;
-
-        @Override
-        protected void write(Writer w) {
-            w.opcode(QUICK_VERIFY_REQUEST);
-            w.ba(random);
-            w.bits(signatureVariant, 3);
-            w.bits(encryptionVariant, 3);
-            w.bitsPadding(2);
-            w.i(tmpId);
-            w.i(pairingId);
-        }
     }
 
-    static class TestIfReallyUnpairedRequest extends TxPacket {
+    @Codec.Tx(TEST_IF_REALLY_UNPAIRED_REQUEST)
+    static class TestIfReallyUnpairedRequest extends CodecTxPacket {
+        @Codec.Bytes(32)
         byte[] ecdhPublicKey;
+        @Codec.Bytes(8)
         byte[] randomBytes;
+        @Codec.Bits(32)
         int pairingId;
+        @Codec.Bytes(16)
         byte[] pairingToken;
-
-        @Override
-        protected void write(Writer w) {
-            w.opcode(TEST_IF_REALLY_UNPAIRED_REQUEST);
-            w.ba(ecdhPublicKey);
-            w.ba(randomBytes);
-            w.i(pairingId);
-            w.ba(pairingToken);
-        }
     }
 
-    static class InitButtonEventsLightRequest extends TxPacket {
+    @Codec.Tx(INIT_BUTTON_EVENTS_LIGHT_REQUEST)
+    static class InitButtonEventsLightRequest extends CodecTxPacket {
+        @Codec.Bits(32)
         int eventCount;
+        @Codec.Bits(32)
         int bootId;
+        @Codec.Bits(9)
         int autoDisconnectTime;
+        @Codec.Bits(5)
         int maxQueuedPackets;
+        @Codec.Bits(value = 20, pad = 6)
         int maxQueuedPacketsAge;
-
-        @Override
-        protected void write(Writer w) {
-            w.opcode(INIT_BUTTON_EVENTS_LIGHT_REQUEST);
-            w.i(eventCount);
-            w.i(bootId);
-            w.bits(autoDisconnectTime, 9);
-            w.bits(maxQueuedPackets, 5);
-            w.bits(maxQueuedPacketsAge, 20);
-            w.bitsPadding(6);
-        }
     }
 
-    static class AckButtonEvents extends TxPacket {
+    @Codec.Tx(ACK_BUTTON_EVENTS)
+    static class AckButtonEvents extends CodecTxPacket {
+        @Codec.Bits(32)
         int eventCount;
 
         public AckButtonEvents(int eventCount) {
             this.eventCount = eventCount;
         }
-
-        @Override
-        protected void write(Writer w) {
-            w.opcode(ACK_BUTTON_EVENTS);
-            w.i(eventCount);
-        }
     }
 
-    static class SetConnectionParametersInd extends TxPacket {
+    @Codec.Tx(SET_CONNECTION_PARAMETERS_IND)
+    static class SetConnectionParametersInd extends CodecTxPacket {
+        @Codec.Bits(16)
         short intvMin;
+        @Codec.Bits(16)
         short intvMax;
+        @Codec.Bits(16)
         short latency;
+        @Codec.Bits(16)
         short timeout;
-
-        @Override
-        protected void write(Writer w) {
-            w.opcode(SET_CONNECTION_PARAMETERS_IND);
-            w.s(intvMin);
-            w.s(intvMax);
-            w.s(latency);
-            w.s(timeout);
-        }
     }
 
-    static class GetFirmwareVersionRequest extends TxPacket {
-        @Override
-        protected void write(Writer w) {
-            w.opcode(GET_FIRMWARE_VERSION_REQUEST);
-        }
+    @Codec.Tx(GET_FIRMWARE_VERSION_REQUEST)
+    static class GetFirmwareVersionRequest extends CodecTxPacket {
     }
 
-    static class DisconnectVerifiedLinkInd extends TxPacket {
-        @Override
-        protected void write(Writer w) {
-            w.opcode(DISCONNECT_VERIFIED_LINK_IND);
-        }
+    @Codec.Tx(DISCONNECT_VERIFIED_LINK_IND)
+    static class DisconnectVerifiedLinkInd extends CodecTxPacket {
     }
 
-    static class GetNameRequest extends TxPacket {
-        @Override
-        protected void write(Writer w) {
-            w.opcode(GET_NAME_REQUEST);
-        }
+    @Codec.Tx(GET_NAME_REQUEST)
+    static class GetNameRequest extends CodecTxPacket {
     }
 
-    static class SetNameRequest extends TxPacket {
+    @Codec.Tx(SET_NAME_REQUEST)
+    static class SetNameRequest extends CodecTxPacket {
+        @Codec.Bits(47)
         long timestampUtcMs;
+        @Codec.Bits(1)
         boolean forceUpdate;
+        @Codec.Bytes(Codec.Bytes.REST)
         String name;
 
         SetNameRequest(long timestampUtcMs, boolean forceUpdate, String name) {
@@ -287,26 +267,19 @@ abstract class TxPacket {
             this.forceUpdate = forceUpdate;
             this.name = name;
         }
-
-        @Override
-        protected void write(Writer w) {
-            w.opcode(SET_NAME_REQUEST);
-            w.bits(timestampUtcMs, 47);
-            w.bits(forceUpdate ? 1 : 0, 1);
-            w.str(name);
-        }
     }
 
-    static class PingResponse extends TxPacket {
-        @Override
-        protected void write(Writer w) {
-            w.opcode(PING_RESPONSE);
-        }
+    @Codec.Tx(PING_RESPONSE)
+    static class PingResponse extends CodecTxPacket {
     }
 
-    static class StartFirmwareUpdateRequest extends TxPacket {
+    @Codec.Tx(START_FIRMWARE_UPDATE_REQUEST)
+    static class StartFirmwareUpdateRequest extends CodecTxPacket {
+        @Codec.Bits(16)
         int len;
+        @Codec.Bytes(8)
         byte[] iv;
+        @Codec.Bits(16)
         int statusInterval;
 
         public StartFirmwareUpdateRequest(int len, byte[] iv, int statusInterval) {
@@ -314,114 +287,76 @@ abstract class TxPacket {
             this.iv = iv;
             this.statusInterval = statusInterval;
         }
-
-        @Override
-        protected void write(Writer w) {
-            w.opcode(START_FIRMWARE_UPDATE_REQUEST);
-            w.s(len);
-            w.ba(iv);
-            w.s(statusInterval);
-        }
     }
 
-    static class FirmwareUpdateDataInd extends TxPacket {
+    @Codec.Tx(FIRMWARE_UPDATE_DATA_IND)
+    static class FirmwareUpdateDataInd extends CodecTxPacket {
+        @Codec.Bytes(Codec.Bytes.REST)
         byte[] chunk;
 
         public FirmwareUpdateDataInd(byte[] chunk) {
             this.chunk = chunk;
         }
-
-        @Override
-        protected void write(Writer w) {
-            w.opcode(FIRMWARE_UPDATE_DATA_IND);
-            w.ba(chunk);
-        }
     }
 
-    static class SetAutoDisconnectTimeInd extends TxPacket {
+    @Codec.Tx(SET_AUTO_DISCONNECT_TIME_IND)
+    static class SetAutoDisconnectTimeInd extends CodecTxPacket {
+        @Codec.Bits(value = 9, pad = 7)
         int autoDisconnectTime;
 
         public SetAutoDisconnectTimeInd(int autoDisconnectTime) {
             this.autoDisconnectTime = autoDisconnectTime;
         }
-
-        @Override
-        protected void write(Writer w) {
-            w.opcode(SET_AUTO_DISCONNECT_TIME_IND);
-            w.bits(autoDisconnectTime, 9);
-            w.bitsPadding(7);
-        }
     }
 
-    static class GetBatteryLevelRequest extends TxPacket {
-        @Override
-        protected void write(Writer w) {
-            w.opcode(GET_BATTERY_LEVEL_REQUEST);
-        }
+    @Codec.Tx(GET_BATTERY_LEVEL_REQUEST)
+    static class GetBatteryLevelRequest extends CodecTxPacket {
     }
 
-    static class ForceBtDisconnectInd extends TxPacket {
+    @Codec.Tx(FORCE_BT_DISCONNECT_IND)
+    static class ForceBtDisconnectInd extends CodecTxPacket {
+        @Codec.Bits(8)
         boolean restartAdv;
 
         public ForceBtDisconnectInd(boolean restartAdv) {
             this.restartAdv = restartAdv;
         }
-
-        @Override
-        protected void write(Writer w) {
-            w.opcode(FORCE_BT_DISCONNECT_IND);
-            w.bool(restartAdv);
-        }
     }
 
-    static class SetAdvParametersRequest extends TxPacket {
+    @Codec.Tx(SET_ADV_PARAMETERS_REQUEST)
+    static class SetAdvParametersRequest extends CodecTxPacket {
+        @Codec.Bits(8)
         boolean isActive;
+        @Codec.Bits(8)
         boolean removeOtherPairingsAdvSettings;
+        @Codec.Bits(8)
         boolean withShortRange;
+        @Codec.Bits(8)
         boolean withLongRange;
+        @Codec.Bits(16)
         short advInterval0;
+        @Codec.Bits(16)
         short advInterval1;
+        @Codec.Bits(32)
         int timeoutSeconds;
-
-        @Override
-        protected void write(Writer w) {
-            w.opcode(SET_ADV_PARAMETERS_REQUEST);
-            w.bool(isActive);
-            w.bool(removeOtherPairingsAdvSettings);
-            w.bool(withShortRange);
-            w.bool(withLongRange);
-            w.s(advInterval0);
-            w.s(advInterval1);
-            w.i(timeoutSeconds);
-        }
     }
 
-    static class SetHidMidiConfigDataInd extends TxPacket {
+    @Codec.Tx(SET_HID_MIDI_CONFIG_DATA_IND)
+    static class SetHidMidiConfigDataInd extends CodecTxPacket {
+        @Codec.Bytes(Codec.Bytes.REST)
         byte[] data;
 
         public SetHidMidiConfigDataInd(byte[] data) {
             this.data = data;
         }
-
-        @Override
-        protected void write(Writer w) {
-            w.opcode(SET_HID_MIDI_CONFIG_DATA_IND);
-            w.ba(data);
-        }
     }
 
-    static class SetHidMidiConfigApplyRequest extends TxPacket {
-        @Override
-        protected void write(Writer w) {
-            w.opcode(SET_HID_MIDI_CONFIG_APPLY_REQUEST);
-        }
+    @Codec.Tx(SET_HID_MIDI_CONFIG_APPLY_REQUEST)
+    static class SetHidMidiConfigApplyRequest extends CodecTxPacket {
     }
 
-    static class GetHidMidiConfigRequest extends TxPacket {
-        @Override
-        protected void write(Writer w) {
-            w.opcode(GET_HID_MIDI_CONFIG_REQUEST);
-        }
+    @Codec.Tx(GET_HID_MIDI_CONFIG_REQUEST)
+    static class GetHidMidiConfigRequest extends CodecTxPacket {
     }
 }
 
@@ -455,6 +390,9 @@ abstract class RxPacket {
     public static final int GET_HID_MIDI_CONFIG_DATA_IND = 27;
     public static final int GET_HID_MIDI_CONFIG_RESPONSE = 28;
 
+    // One more than the highest opcode
+    public static final int OPCODE_COUNT = 29;
+
     static class UnexpectedEndOfPacketException extends Exception {
 
     }
@@ -462,58 +400,61 @@ abstract class RxPacket {
     protected static class Reader {
         private byte[] buf;
         private int pos;
+        private int end;
         private int bitpos;
 
-        Reader(byte[] arr) {
-            buf = arr;
+        Reader(byte[] buf, int off, int len) {
+            this.buf = buf;
+            pos = off;
+            end = off + len;
         }
         int left() throws UnexpectedEndOfPacketException {
-            int left = buf.length - pos;
+            int left = end - pos;
             if (left < 0) {
                 throw new UnexpectedEndOfPacketException();
             }
             return left;
         }
         boolean bool() throws UnexpectedEndOfPacketException {
-            if (pos >= buf.length) {
+            if (pos >= end) {
                 throw new UnexpectedEndOfPacketException();
             }
             return buf[pos++] != 0;
         }
         int b() throws UnexpectedEndOfPacketException {
-            if (pos >= buf.length) {
+            if (pos >= end) {
                 throw new UnexpectedEndOfPacketException();
             }
             return buf[pos++] & 0xff;
         }
+        // Fields are packed LSB first. A field of up to 64 bits is extracted from one little endian word starting at
+        // the partially read byte, plus a ninth byte when it starts late in that byte.
         long bits(int width) throws UnexpectedEndOfPacketException {
-            if (width > 8) {
-                return bits(8) | (bits(width - 8) << 8);
+            int bytePos = bitpos == 0 ? pos : pos - 1;
+            int totalBits = bitpos + width;
+            int newPos = bytePos + ((totalBits + 7) >> 3);
+            if (newPos > end) {
+                throw new UnexpectedEndOfPacketException();
             }
-            if (bitpos == 0) {
-                if (pos >= buf.length) {
-                    throw new UnexpectedEndOfPacketException();
-                }
-                int val = (buf[pos++] & 0xff) & ((1 << width) - 1);
-                if (width != 8) {
-                    bitpos = width;
-                }
-                return val;
+            long word;
+            if (bytePos + 8 <= buf.length) {
+                word = Flic2Crypto.loadLong(buf, bytePos);
             } else {
-                int val = ((buf[pos - 1] & 0xff) >> bitpos) & ((1 << width) - 1);
-                if (bitpos + width > 8) {
-                    if (pos >= buf.length) {
-                        throw new UnexpectedEndOfPacketException();
-                    }
-                    val |= ((buf[pos++] & 0xff) << (8 - bitpos)) & ((1 << width) - 1);
-                    bitpos -= 8;
-                }
-                bitpos += width;
-                if (bitpos == 8) {
-                    bitpos = 0;
+                word = 0;
+                for (int i = 0; bytePos + i < newPos; i++) {
+                    word |= (buf[bytePos + i] & 0xffL) << (i * 8);
                 }
-                return val;
             }
+            long val = word >>> bitpos;
+            if (totalBits > 64) {
+                val |= (long)(buf[bytePos + 8] & 0xff) << (64 - bitpos);
+            }
+            if (width < 64) {
+                val &= (1L << width) - 1;
+            }
+            pos = newPos;
+            bitpos = totalBits & 7;
+            return val;
         }
         void bitsPadding(int width) throws UnexpectedEndOfPacketException {
             bits(width);
@@ -522,13 +463,13 @@ abstract class RxPacket {
             return bits(1) != 0;
         }
         int s() throws UnexpectedEndOfPacketException {
-            if (pos + 2 > buf.length) {
+            if (pos + 2 > end) {
                 throw new UnexpectedEndOfPacketException();
             }
             return (buf[pos++] & 0xff) | ((buf[pos++] & 0xff) << 8);
         }
         int i() throws UnexpectedEndOfPacketException {
-            if (pos + 4 > buf.length) {
+            if (pos + 4 > end) {
                 throw new UnexpectedEndOfPacketException();
             }
             return (buf[pos++] & 0xff) | ((buf[pos++] & 0xff) << 8) | ((buf[pos++] & 0xff) << 16) | ((buf[pos++] & 0xff) << 24);
@@ -537,53 +478,72 @@ abstract class RxPacket {
             return (i() & 0xffffffffL) | ((long)i() << 32);
         }
         byte[] ba(int len) throws UnexpectedEndOfPacketException {
-            if (pos + len > buf.length) {
+            int off = slice(len);
+            return Arrays.copyOfRange(buf, off, off + len);
+        }
+        // Skips len bytes and returns the offset in buf where they start, for fields that are only compared
+        int slice(int len) throws UnexpectedEndOfPacketException {
+            if (pos + len > end) {
                 throw new UnexpectedEndOfPacketException();
             }
-            byte[] ret = Arrays.copyOfRange(buf, pos, pos + len);
+            int off = pos;
             pos += len;
-            return ret;
+            return off;
         }
         String str(int len) throws UnexpectedEndOfPacketException {
-            return new String(ba(len), StandardCharsets.UTF_8);
+            return new String(buf, slice(len), len, StandardCharsets.UTF_8);
         }
         void skip(int len) throws UnexpectedEndOfPacketException {
-            if (pos + len > buf.length) {
-                throw new UnexpectedEndOfPacketException();
-            }
-            pos += len;
+            slice(len);
         }
     }
 
     protected Reader r;
 
-    protected RxPacket(byte[] arr) {
-        r = new Reader(arr);
+    // For packets with a Codec.Rx layout, which are decoded by PacketCodecs instead
+    protected RxPacket() {
+    }
+
+    protected RxPacket(byte[] buf, int off, int len) {
+        r = new Reader(buf, off, len);
+    }
+
+    // Compares len bytes at off in buf with expected
+    static boolean sliceEquals(byte[] buf, int off, int len, byte[] expected) {
+        if (expected.length != len) {
+            return false;
+        }
+        for (int i = 0; i < len; i++) {
+            if (buf[off + i] != expected[i]) {
+                return false;
+            }
+        }
+        return true;
     }
 
+    @Codec.Rx(FULL_VERIFY_RESPONSE_1)
     static class FullVerifyResponse1 extends RxPacket {
+        @Codec.Bits(32)
         int tmpId;
+        @Codec.Bytes(64)
         byte[] signature;
+        @Codec.Bytes(6)
         byte[] bdAddr;
+        @Codec.Bits(8)
         boolean bdAddrType;
+        @Codec.Bytes(32)
         byte[] publicKey;
+        @Codec.Bytes(8)
         byte[] random;
+        @Codec.Bits(1)
         boolean linkIsEncrypted;
+        @Codec.Bits(1)
         boolean isInPublicMode;
+        @Codec.Bits(1)
         boolean hasBondInfo;
 
-        FullVerifyResponse1(byte[] arr) throws UnexpectedEndOfPacketException {
-            super(arr);
-            tmpId = r.i();
-            signature = r.ba(64);
-            bdAddr = r.ba(6);
-            bdAddrType = r.bool();
-            publicKey = r.ba(32);
-            random = r.ba(8);
-            linkIsEncrypted = r.bitBool();
-            isInPublicMode = r.bitBool();
-            hasBondInfo = r.bitBool();
-            r = null;
+        FullVerifyResponse1(byte[] buf, int off, int len) throws UnexpectedEndOfPacketException {
+            PacketCodecs.decode(this, buf, off, len);
         }
     }
 
@@ -596,8 +556,8 @@ abstract class RxPacket {
         int batteryLevel;
         String serialNumber;
 
-        FullVerifyResponse2(byte[] arr) throws UnexpectedEndOfPacketException {
-            super(arr);
+        FullVerifyResponse2(byte[] buf, int off, int len) throws UnexpectedEndOfPacketException {
+            super(buf, off, len);
             appCredentialsMatch = r.bitBool();
             caresAboutAppCredentials = r.bitBool();
             r.bitsPadding(6);
@@ -614,32 +574,39 @@ abstract class RxPacket {
         }
     }
 
+    @Codec.Rx(FULL_VERIFY_FAIL_RESPONSE)
     static class FullVerifyFailResponse extends RxPacket {
         static final int INVALID_VERIFIER = 0;
         static final int NOT_IN_PUBLIC_MODE = 1;
 
+        @Codec.Bits(8)
         int reason;
 
-        protected FullVerifyFailResponse(byte[] arr) throws UnexpectedEndOfPacketException {
-            super(arr);
-            reason = r.b();
+        protected FullVerifyFailResponse(byte[] buf, int off, int len) throws UnexpectedEndOfPacketException {
+            PacketCodecs.decode(this, buf, off, len);
         }
     }
 
     static class TestIfReallyUnpairedResponse extends RxPacket {
-        byte[] result;
+        private final byte[] buf;
+        private final int resultOffset;
+
+        TestIfReallyUnpairedResponse(byte[] buf, int off, int len) throws UnexpectedEndOfPacketException {
+            super(buf, off, len);
+            this.buf = buf;
+            resultOffset = r.slice(16);
+        }
 
-        TestIfReallyUnpairedResponse(byte[] arr) throws UnexpectedEndOfPacketException {
-            super(arr);
-            result = r.ba(16);
+        boolean resultEquals(byte[] expected) {
+            return sliceEquals(buf, resultOffset, 16, expected);
         }
     }
 
     static class NoLogicalConnectionSlots extends RxPacket {
         int[] tmpIds;
 
-        NoLogicalConnectionSlots(byte[] arr) throws UnexpectedEndOfPacketException {
-            super(arr);
+        NoLogicalConnectionSlots(byte[] buf, int off, int len) throws UnexpectedEndOfPacketException {
+            super(buf, off, len);
             tmpIds = new int[r.left() / 4];
             for (int i = 0; i < tmpIds.length; i++) {
                 tmpIds[i] = r.i();
@@ -647,23 +614,25 @@ abstract class RxPacket {
         }
     }
 
+    @Codec.Rx(QUICK_VERIFY_RESPONSE)
     static class QuickVerifyResponse extends RxPacket {
+        @Codec.Bytes(8)
         byte[] random;
+        @Codec.Bits(32)
         int tmpId;
 
-        QuickVerifyResponse(byte[] arr) throws UnexpectedEndOfPacketException {
-            super(arr);
-            random = r.ba(8);
-            tmpId = r.i();
+        QuickVerifyResponse(byte[] buf, int off, int len) throws UnexpectedEndOfPacketException {
+            PacketCodecs.decode(this, buf, off, len);
         }
     }
 
+    @Codec.Rx(QUICK_VERIFY_NEGATIVE_RESPONSE)
     static class QuickVerifyNegativeResponse extends RxPacket {
+        @Codec.Bits(32)
         int tmpId;
 
-        QuickVerifyNegativeResponse(byte[] arr) throws UnexpectedEndOfPacketException {
-            super(arr);
-            tmpId = r.i();
+        QuickVerifyNegativeResponse(byte[] buf, int off, int len) throws UnexpectedEndOfPacketException {
+            PacketCodecs.decode(this, buf, off, len);
         }
     }
 
@@ -673,126 +642,157 @@ abstract class RxPacket {
         int eventCount;
         int bootId;
 
-        InitButtonEventsResponse(byte[] arr) throws UnexpectedEndOfPacketException {
-            super(arr);
+        // Without boot id for INIT_BUTTON_EVENTS_RESPONSE_WITHOUT_BOOT_ID, which means it is unchanged
+        InitButtonEventsResponse(byte[] buf, int off, int len, boolean withBootId) throws UnexpectedEndOfPacketException {
+            super(buf, off, len);
             hasQueuedEvents = r.bitBool();
             timestamp = r.bits(47) * 1000 / 32768;
             eventCount = r.i();
-            bootId = r.i();
+            if (withBootId) {
+                bootId = r.i();
+            }
         }
     }
 
+    @Codec.Rx(NAME_UPDATED_NOTIFICATION)
     static class NameUpdatedNotification extends RxPacket {
+        @Codec.Bytes(Codec.Bytes.REST)
         String name;
 
-        NameUpdatedNotification(byte[] arr) throws UnexpectedEndOfPacketException {
-            super(arr);
-            name = r.str(r.left());
+        NameUpdatedNotification(byte[] buf, int off, int len) throws UnexpectedEndOfPacketException {
+            PacketCodecs.decode(this, buf, off, len);
         }
     }
 
+    @Codec.Rx(GET_NAME_RESPONSE)
     static class GetSetNameResponse extends RxPacket {
+        @Codec.Bits(48)
         long timestampUtcMs;
+        @Codec.Bytes(Codec.Bytes.REST)
         String name;
 
-        GetSetNameResponse(byte[] arr) throws UnexpectedEndOfPacketException {
-            super(arr);
-            timestampUtcMs = r.bits(48);
-            name = r.str(r.left());
+        GetSetNameResponse(byte[] buf, int off, int len) throws UnexpectedEndOfPacketException {
+            PacketCodecs.decode(this, buf, off, len);
         }
     }
 
-    static class ButtonEventNotificationItem {
-        long timestamp;
-        int eventEncoded;
-        boolean wasQueued;
-        boolean wasQueuedLast;
-        int eventCount; // Not in original packet
-    }
-
-    static class ButtonEventNotification extends RxPacket {
+    // Decodes BUTTON_NOTIFICATION into primitive arrays that are reused between packets, so no objects are
+    // created per event. Item i is valid for i < count.
+    static class ButtonEventNotificationDecoder {
         int eventCounter;
-        ButtonEventNotificationItem[] items;
-
-        ButtonEventNotification(byte[] arr) throws UnexpectedEndOfPacketException {
-            super(arr);
-            eventCounter = r.i();
-            items = new ButtonEventNotificationItem[r.left() / 7];
-            if (items.length == 0) {
+        int count;
+        long[] timestamps = new long[32];
+        int[] encoded = new int[32];
+        int[] eventCount = new int[32]; // Not in original packet
+        long[] wasQueued = new long[1]; // Bit sets indexed by item
+        long[] wasQueuedLast = new long[1];
+
+        void decode(byte[] buf, int off, int len) throws UnexpectedEndOfPacketException {
+            int n = len < 4 ? 0 : (len - 4) / 7;
+            if (n == 0) {
                 throw new UnexpectedEndOfPacketException();
             }
-            for (int i = 0; i < items.length; i++) {
-                ButtonEventNotificationItem item = new ButtonEventNotificationItem();
-                item.timestamp = r.bits(48) * 1000 / 32768;
-                item.eventEncoded = (int)r.bits(4);
-                item.wasQueued = r.bitBool();
-                item.wasQueuedLast = r.bitBool();
-                r.bitsPadding(2);
-                items[i] = item;
+            if (n > timestamps.length) {
+                timestamps = new long[n];
+                encoded = new int[n];
+                eventCount = new int[n];
+            }
+            if (n > wasQueued.length * 64) {
+                wasQueued = new long[(n + 63) / 64];
+                wasQueuedLast = new long[wasQueued.length];
+            } else {
+                Arrays.fill(wasQueued, 0);
+                Arrays.fill(wasQueuedLast, 0);
+            }
+            eventCounter = (buf[off] & 0xff) | ((buf[off + 1] & 0xff) << 8) | ((buf[off + 2] & 0xff) << 16) | ((buf[off + 3] & 0xff) << 24);
+            count = n;
+            // Each item is a 48 bit timestamp in 1/32768 s, then 4 bits encoded event, wasQueued, wasQueuedLast and 2 bits padding
+            for (int i = 0, pos = off + 4; i < n; i++, pos += 7) {
+                long ts = (buf[pos] & 0xff) | ((buf[pos + 1] & 0xff) << 8) | ((buf[pos + 2] & 0xff) << 16) | ((buf[pos + 3] & 0xffL) << 24) | ((buf[pos + 4] & 0xffL) << 32) | ((buf[pos + 5] & 0xffL) << 40);
+                int flags = buf[pos + 6];
+                timestamps[i] = ts * 1000 >>> 15;
+                encoded[i] = flags & 15;
+                wasQueued[i >> 6] |= (long)((flags >> 4) & 1) << i;
+                wasQueuedLast[i >> 6] |= (long)((flags >> 5) & 1) << i;
             }
         }
+
+        boolean wasQueued(int i) {
+            return (wasQueued[i >> 6] & (1L << i)) != 0;
+        }
+
+        boolean wasQueuedLast(int i) {
+            return (wasQueuedLast[i >> 6] & (1L << i)) != 0;
+        }
     }
 
+    @Codec.Rx(GET_FIRMWARE_VERSION_RESPONSE)
     static class GetFirmwareVersionResponse extends RxPacket {
+        @Codec.Bits(32)
         int version;
 
-        GetFirmwareVersionResponse(byte[] arr) throws UnexpectedEndOfPacketException {
-            super(arr);
-            version = r.i();
+        GetFirmwareVersionResponse(byte[] buf, int off, int len) throws UnexpectedEndOfPacketException {
+            PacketCodecs.decode(this, buf, off, len);
         }
     }
 
+    @Codec.Rx(START_FIRMWARE_UPDATE_RESPONSE)
     static class StartFirmwareUpdateResponse extends RxPacket {
+        @Codec.Bits(32)
         int startPos;
 
-        StartFirmwareUpdateResponse(byte[] arr) throws UnexpectedEndOfPacketException {
-            super(arr);
-            startPos = r.i();
+        StartFirmwareUpdateResponse(byte[] buf, int off, int len) throws UnexpectedEndOfPacketException {
+            PacketCodecs.decode(this, buf, off, len);
         }
     }
 
+    @Codec.Rx(FIRMWARE_UPDATE_NOTIFICATION)
     static class FirmwareUpdateNotification extends RxPacket {
+        @Codec.Bits(32)
         int pos;
 
-        FirmwareUpdateNotification(byte[] arr) throws UnexpectedEndOfPacketException {
-            super(arr);
-            pos = r.i();
+        FirmwareUpdateNotification(byte[] buf, int off, int len) throws UnexpectedEndOfPacketException {
+            PacketCodecs.decode(this, buf, off, len);
         }
     }
 
+    @Codec.Rx(GET_BATTERY_LEVEL_RESPONSE)
     static class GetBatteryLevelResponse extends RxPacket {
+        @Codec.Bits(16)
         int level;
 
-        GetBatteryLevelResponse(byte[] arr) throws UnexpectedEndOfPacketException {
-            super(arr);
-            level = r.s();
+        GetBatteryLevelResponse(byte[] buf, int off, int len) throws UnexpectedEndOfPacketException {
+            PacketCodecs.decode(this, buf, off, len);
         }
     }
 
+    @Codec.Rx(SET_HID_MIDI_CONFIG_APPLY_RESPONSE)
     static class SetHidMidiConfigApplyResponse extends RxPacket {
+        @Codec.Bits(8)
         int result;
 
-        SetHidMidiConfigApplyResponse(byte[] arr) throws UnexpectedEndOfPacketException {
-            super(arr);
-            result = r.b();
+        SetHidMidiConfigApplyResponse(byte[] buf, int off, int len) throws UnexpectedEndOfPacketException {
+            PacketCodecs.decode(this, buf, off, len);
         }
     }
 
+    @Codec.Rx(GET_HID_MIDI_CONFIG_DATA_IND)
     static class GetHidMidiConfigDataInd extends RxPacket {
+        @Codec.Bytes(Codec.Bytes.REST)
         byte[] data;
 
-        GetHidMidiConfigDataInd(byte[] arr) throws UnexpectedEndOfPacketException {
-            super(arr);
-            data = r.ba(r.left());
+        GetHidMidiConfigDataInd(byte[] buf, int off, int len) throws UnexpectedEndOfPacketException {
+            PacketCodecs.decode(this, buf, off, len);
         }
     }
 
+    @Codec.Rx(GET_HID_MIDI_CONFIG_RESPONSE)
     static class GetHidMidiConfigDataResponse extends RxPacket {
+        @Codec.Bits(8)
         int result;
 
-        GetHidMidiConfigDataResponse(byte[] arr) throws UnexpectedEndOfPacketException {
-            super(arr);
-            result = r.b();
+        GetHidMidiConfigDataResponse(byte[] buf, int off, int len) throws UnexpectedEndOfPacketException {
+            PacketCodecs.decode(this, buf, off, len);
         }
     }
 }
@@ -0,0 +1,113 @@
+package io.flic.flic2libandroid;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ChaskeyContextTest {
+    // Key 00 01 .. 0f, data 80 81 .., counter len * 0x100000001 + dir. Each row: len, dir, tag.
+    private static final String[][] vectors = {
+            {"1", "0", "b66e1a2d6e"},
+            {"1", "1", "449eea2bef"},
+            {"15", "0", "f2d6f39c0b"},
+            {"15", "1", "0178da6e1c"},
+            {"16", "0", "37c8c41898"},
+            {"16", "1", "c1eeee1d77"},
+            {"17", "0", "3247ec4416"},
+            {"17", "1", "24a20ef4fc"},
+            {"32", "0", "8935941127"},
+            {"32", "1", "c4038ef02b"},
+            {"33", "0", "fee0496a1a"},
+            {"33", "1", "2f4eb32128"},
+            {"100", "0", "90e8e325f1"},
+            {"100", "1", "44d977d01d"},
+    };
+
+    @Test
+    public void knownAnswers() {
+        byte[] key = new byte[16];
+        for (int i = 0; i < 16; i++) {
+            key[i] = (byte)i;
+        }
+        int[] keys = Flic2Crypto.chaskeyGenerateSubkeys(key);
+        for (String[] v : vectors) {
+            int len = Integer.parseInt(v[0]);
+            int dir = Integer.parseInt(v[1]);
+            byte[] data = new byte[len];
+            for (int i = 0; i < len; i++) {
+                data[i] = (byte)(0x80 + i);
+            }
+            long counter = len * 0x100000001L + dir;
+            assertArrayEquals(v[0] + " " + v[1], PacketCodecTest.hex(v[2]), Flic2Crypto.chaskeyWithDirAndPacketCounter(keys, dir, counter, data));
+        }
+
+        byte[] data = new byte[16];
+        for (int i = 0; i < 16; i++) {
+            data[i] = (byte)(0xf0 - i);
+        }
+        assertArrayEquals(PacketCodecTest.hex("5ed272ecd3d4a9bc785cdc3a0208ae1d"), Flic2Crypto.chaskey16Bytes(keys, data));
+    }
+
+    // Packets signed by either side verify on the other, also when the app verifies incrementally in random pieces
+    @Test
+    public void appAndButtonSides() {
+        Random random = new Random(2);
+        byte[] key = new byte[16];
+        random.nextBytes(key);
+        ChaskeyContext app = new ChaskeyContext(key);
+        ChaskeyContext button = ChaskeyContext.forButton(key);
+        for (int i = 0; i < 2000; i++) {
+            int len = 1 + random.nextInt(140);
+            byte[] pkt = new byte[len + 5];
+            random.nextBytes(pkt);
+
+            app.sign(pkt, 0, len, pkt, len);
+            assertTrue(button.verify(pkt, 0, len, pkt, len));
+
+            button.sign(pkt, 0, len, pkt, len);
+            if (random.nextBoolean()) {
+                assertTrue(app.verify(pkt, 0, len, pkt, len));
+            } else {
+                app.startRx();
+                int off = 0;
+                while (off < len) {
+                    int n = Math.min(len - off, random.nextInt(40));
+                    app.update(pkt, off, n);
+                    off += n;
+                }
+                assertTrue(app.finishAndVerifyRx(pkt, len));
+            }
+        }
+        assertEquals(app.txCounter, button.rxCounter);
+        assertEquals(button.txCounter, app.rxCounter);
+
+        // Packets are sent and one-shot verified while a received packet is verified incrementally
+        for (int i = 0; i < 500; i++) {
+            int len = 2 + random.nextInt(140);
+            byte[] pkt = new byte[len + 5];
+            random.nextBytes(pkt);
+            button.sign(pkt, 0, len, pkt, len);
+            app.startRx();
+            int split = 1 + random.nextInt(len - 1);
+            app.update(pkt, 0, split);
+
+            byte[] other = new byte[1 + random.nextInt(40) + 5];
+            random.nextBytes(other);
+            app.sign(other, 0, other.length - 5, other, other.length - 5);
+            assertTrue(button.verify(other, 0, other.length - 5, other, other.length - 5));
+
+            app.update(pkt, split, len - split);
+            assertTrue(app.finishAndVerifyRx(pkt, len));
+        }
+
+        // The directions differ, so a packet does not verify as coming from the side that received it
+        byte[] pkt = new byte[25];
+        app.sign(pkt, 0, 20, pkt, 20);
+        assertFalse(app.verify(pkt, 0, 20, pkt, 20));
+    }
+}
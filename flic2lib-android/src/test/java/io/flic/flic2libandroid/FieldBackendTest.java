@@ -0,0 +1,178 @@
+package io.flic.flic2libandroid;
+
+import org.junit.Test;
+
+import java.math.BigInteger;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertTrue;
+
+// Fe51Backend and the 10 limb backend are compared with each other and with BigInteger arithmetic modulo p
+public class FieldBackendTest {
+    private static final BigInteger P = BigInteger.ONE.shiftLeft(255).subtract(BigInteger.valueOf(19));
+
+    @Test
+    public void selfTest() {
+        assertTrue(FieldBackend.selfTest(Flic2Crypto.fe25Backend));
+        assertTrue(FieldBackend.selfTest(Fe51Backend.INSTANCE));
+    }
+
+    @Test
+    public void operationsMatchBigInteger() {
+        Random random = new Random(11);
+        byte[][] special = {
+                le(BigInteger.ZERO),
+                le(BigInteger.ONE),
+                le(P.subtract(BigInteger.ONE)),
+                le(P),
+                le(P.add(BigInteger.ONE)),
+                le(BigInteger.ONE.shiftLeft(255).subtract(BigInteger.ONE)),
+                le(BigInteger.ONE.shiftLeft(256).subtract(BigInteger.ONE)),
+        };
+        byte[] f = new byte[32];
+        byte[] g = new byte[32];
+        for (int i = 0; i < 2000; i++) {
+            if (i < special.length * special.length) {
+                f = special[i / special.length].clone();
+                g = special[i % special.length].clone();
+            } else {
+                random.nextBytes(f);
+                random.nextBytes(g);
+            }
+            BigInteger fv = value(f);
+            BigInteger gv = value(g);
+            String what = PacketCodecTest.hex(f) + " " + PacketCodecTest.hex(g);
+            for (FieldBackend<?> backend : new FieldBackend<?>[]{Flic2Crypto.fe25Backend, Fe51Backend.INSTANCE}) {
+                byte[][] results = operations(backend, f, g);
+                assertArrayEquals(what, le(fv), results[0]);
+                assertArrayEquals(what, le(fv.add(gv).mod(P)), results[1]);
+                assertArrayEquals(what, le(fv.subtract(gv).mod(P)), results[2]);
+                assertArrayEquals(what, le(fv.multiply(gv).mod(P)), results[3]);
+                assertArrayEquals(what, le(fv.multiply(fv).mod(P)), results[4]);
+                assertArrayEquals(what, le(fv.multiply(BigInteger.valueOf(121666)).mod(P)), results[5]);
+                assertArrayEquals(what, le(fv.modPow(P.subtract(BigInteger.valueOf(2)), P)), results[6]);
+                assertArrayEquals(what, le(fv.modPow(P.subtract(BigInteger.valueOf(5)).shiftRight(3), P)), results[7]);
+                // Sums and differences are fed to mul and sqr in the ladder without a carry
+                assertArrayEquals(what, le(fv.add(gv).multiply(fv.subtract(gv)).mod(P)), results[8]);
+                assertArrayEquals(what, le(fv.add(gv).pow(2).mod(P)), results[9]);
+                assertArrayEquals(what, le(gv), results[10]);
+            }
+        }
+    }
+
+    @Test
+    public void ladderMatchesBetweenBackends() {
+        Random random = new Random(12);
+        byte[] point = new byte[32];
+        byte[] scalar = new byte[32];
+        byte[] out25 = new byte[32];
+        byte[] out51 = new byte[32];
+        Flic2Crypto.CurveScratch s = new Flic2Crypto.CurveScratch();
+        for (int i = 0; i < 200; i++) {
+            random.nextBytes(point);
+            random.nextBytes(scalar);
+            Flic2Crypto.ladder(Flic2Crypto.fe25Backend, out25, 0, point, scalar.clone(), s);
+            Flic2Crypto.ladder(Fe51Backend.INSTANCE, out51, 0, point, scalar.clone(), s);
+            assertArrayEquals(PacketCodecTest.hex(point) + " " + PacketCodecTest.hex(scalar), out25, out51);
+        }
+    }
+
+    // Both backends invert through safegcd when it is selected, and the ladder result does not change
+    @Test
+    public void invertWithSafegcd() {
+        Random random = new Random(13);
+        byte[] f = new byte[32];
+        byte[] out = new byte[32];
+        byte[] point = new byte[32];
+        byte[] scalar = new byte[32];
+        byte[] expected = new byte[32];
+        Flic2Crypto.CurveScratch s = new Flic2Crypto.CurveScratch();
+        boolean previous = Flic2Crypto.useSafegcdInversion;
+        try {
+            for (int i = 0; i < 200; i++) {
+                random.nextBytes(f);
+                if (i == 0) {
+                    Arrays.fill(f, (byte)0);
+                }
+                BigInteger fv = value(f);
+                byte[] inverse = le(fv.modPow(P.subtract(BigInteger.valueOf(2)), P));
+                random.nextBytes(point);
+                random.nextBytes(scalar);
+                Flic2Crypto.useSafegcdInversion = false;
+                Flic2Crypto.ladder(Flic2Crypto.fe25Backend, expected, 0, point, scalar.clone(), s);
+                Flic2Crypto.useSafegcdInversion = true;
+                for (FieldBackend<?> backend : new FieldBackend<?>[]{Flic2Crypto.fe25Backend, Fe51Backend.INSTANCE}) {
+                    invert(backend, out, f, s);
+                    assertArrayEquals(PacketCodecTest.hex(f), inverse, out);
+                    Flic2Crypto.ladder(backend, out, 0, point, scalar.clone(), s);
+                    assertArrayEquals(PacketCodecTest.hex(point) + " " + PacketCodecTest.hex(scalar), expected, out);
+                }
+            }
+        } finally {
+            Flic2Crypto.useSafegcdInversion = previous;
+        }
+    }
+
+    private static <E> void invert(FieldBackend<E> backend, byte[] out, byte[] in, Flic2Crypto.CurveScratch s) {
+        E[] t = backend.newElements(6);
+        backend.fromBytes(t[0], in);
+        backend.invert(t[1], t[0], t[2], t[3], t[4], t[5], s);
+        backend.toBytes(out, 0, t[1]);
+    }
+
+    // The first test vector of RFC 7748 section 5.2
+    @Test
+    public void ladderRfc7748() {
+        byte[] scalar = PacketCodecTest.hex("a546e36bf0527c9d3b16154b82465edd62144c0ac1fc5a18506a2244ba449ac4");
+        byte[] point = PacketCodecTest.hex("e6db6867583030db3594c1a424b15f7c726624ec26b3353b10a903a6d0ab1c4c");
+        byte[] expected = PacketCodecTest.hex("c3da55379de9c6908e94ea4df28d084f32eccf03491c71f754b4075577a28552");
+        byte[] out = new byte[32];
+        Flic2Crypto.CurveScratch s = new Flic2Crypto.CurveScratch();
+        Flic2Crypto.ladder(Flic2Crypto.fe25Backend, out, 0, point, scalar.clone(), s);
+        assertArrayEquals(expected, out);
+        Flic2Crypto.ladder(Fe51Backend.INSTANCE, out, 0, point, scalar.clone(), s);
+        assertArrayEquals(expected, out);
+    }
+
+    // toBytes of fromBytes, add, sub, mul, sqr, mul121666, invert, the sqrt exponent, (f + g) * (f - g), (f + g)^2
+    // and csel
+    private static <E> byte[][] operations(FieldBackend<E> backend, byte[] f, byte[] g) {
+        E[] t = backend.newElements(9);
+        byte[][] results = new byte[11][32];
+        backend.fromBytes(t[0], f);
+        backend.fromBytes(t[1], g);
+        backend.toBytes(results[0], 0, t[0]);
+        backend.add(t[2], t[0], t[1]);
+        backend.toBytes(results[1], 0, t[2]);
+        backend.sub(t[3], t[0], t[1]);
+        backend.toBytes(results[2], 0, t[3]);
+        backend.mul(t[4], t[0], t[1]);
+        backend.toBytes(results[3], 0, t[4]);
+        backend.sqr(t[4], t[0]);
+        backend.toBytes(results[4], 0, t[4]);
+        backend.mul121666(t[4], t[0]);
+        backend.toBytes(results[5], 0, t[4]);
+        backend.pow(t[4], t[0], false, t[5], t[6], t[7], t[8]);
+        backend.toBytes(results[6], 0, t[4]);
+        backend.pow(t[4], t[0], true, t[5], t[6], t[7], t[8]);
+        backend.toBytes(results[7], 0, t[4]);
+        backend.mul(t[4], t[2], t[3]);
+        backend.toBytes(results[8], 0, t[4]);
+        backend.sqr(t[4], t[2]);
+        backend.toBytes(results[9], 0, t[4]);
+        backend.csel(t[4], t[0], t[1], 1);
+        backend.toBytes(results[10], 0, t[4]);
+        return results;
+    }
+
+    // fromBytes ignores the top bit
+    private static BigInteger value(byte[] b) {
+        return Flic2CryptoTest.fromLittleEndian(b).clearBit(255).mod(P);
+    }
+
+    private static byte[] le(BigInteger v) {
+        return Flic2CryptoTest.toLittleEndian(v, 32);
+    }
+}
@@ -0,0 +1,258 @@
+package io.flic.flic2libandroid;
+
+import org.junit.Test;
+
+import java.math.BigInteger;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class Flic2CryptoTest {
+    private static final BigInteger P = BigInteger.ONE.shiftLeft(255).subtract(BigInteger.valueOf(19));
+    private static final BigInteger ORDER = new BigInteger("1000000000000000000000000000000014def9dea2f79cd65812631a5cf5d3ed", 16);
+    private static final BigInteger D = BigInteger.valueOf(-121665).multiply(BigInteger.valueOf(121666).modInverse(P)).mod(P);
+
+    @Test
+    public void scReduceMatchesBigInteger() {
+        Random random = new Random(4);
+        byte[] in = new byte[64];
+        byte[] out = new byte[32];
+        for (int i = 0; i < 20000; i++) {
+            random.nextBytes(in);
+            checkScReduce(in, out);
+        }
+    }
+
+    @Test
+    public void scReduceEdgeCases() {
+        byte[] out = new byte[32];
+        BigInteger max = BigInteger.ONE.shiftLeft(512).subtract(BigInteger.ONE);
+        BigInteger[] values = {
+                BigInteger.ZERO,
+                BigInteger.ONE,
+                ORDER.subtract(BigInteger.ONE),
+                ORDER,
+                ORDER.add(BigInteger.ONE),
+                ORDER.shiftLeft(1),
+                BigInteger.ONE.shiftLeft(252),
+                BigInteger.ONE.shiftLeft(253),
+                BigInteger.ONE.shiftLeft(256).subtract(BigInteger.ONE),
+                BigInteger.ONE.shiftLeft(256),
+                max.divide(ORDER).multiply(ORDER),
+                max.divide(ORDER).multiply(ORDER).subtract(BigInteger.ONE),
+                max,
+        };
+        for (BigInteger value : values) {
+            checkScReduce(toLittleEndian(value, 64), out);
+        }
+        for (int bit = 0; bit < 512; bit++) {
+            checkScReduce(toLittleEndian(BigInteger.ONE.shiftLeft(bit), 64), out);
+            checkScReduce(toLittleEndian(max.clearBit(bit), 64), out);
+        }
+    }
+
+    // Signatures made with BigInteger point arithmetic verify with both tables, and the tables give the same result for
+    // corrupted and random signatures
+    @Test
+    public void combTeeth4And8Agree() {
+        Flic2Crypto.Comb comb4 = Flic2Crypto.getComb(4);
+        Flic2Crypto.Comb comb8 = Flic2Crypto.getComb(8);
+        Random random = new Random(5);
+        for (int k = 0; k < 32; k++) {
+            byte[] hram = new byte[64];
+            random.nextBytes(hram);
+            BigInteger s = k == 0 ? BigInteger.ZERO : new BigInteger(252, random).mod(ORDER);
+            byte[] signature = sign(hram, s);
+
+            assertEquals(s.intValue() & 3, Flic2Crypto.ed25519VerifyHram(signature, hram, comb4));
+            assertEquals(s.intValue() & 3, Flic2Crypto.ed25519VerifyHram(signature, hram, comb8));
+
+            signature[random.nextInt(64)] ^= 1 << random.nextInt(8);
+            assertEquals(Flic2Crypto.ed25519VerifyHram(signature, hram, comb4), Flic2Crypto.ed25519VerifyHram(signature, hram, comb8));
+
+            random.nextBytes(signature);
+            signature[63] &= 0x0f;
+            assertEquals(Flic2Crypto.ed25519VerifyHram(signature, hram, comb4), Flic2Crypto.ed25519VerifyHram(signature, hram, comb8));
+        }
+    }
+
+    // The generator reproduces the 4 teeth table that is compiled in, from its last entry
+    @Test
+    public void combGenerateMatchesCompiledTable() {
+        Flic2Crypto.Comb comb4 = Flic2Crypto.getComb(4);
+        Flic2Crypto.Comb generated = Flic2Crypto.Comb.generate(4, comb4);
+        assertEquals(comb4.tableA.length, generated.tableA.length);
+        for (int i = 0; i < comb4.tableA.length; i++) {
+            assertPrecompEquals(comb4.tableA[i], generated.tableA[i]);
+            assertPrecompEquals(comb4.tableB[i], generated.tableB[i]);
+        }
+    }
+
+    // The batch gives the result of ed25519VerifyHram for each entry, in batches of valid, corrupted, random and non
+    // canonical signatures
+    @Test
+    public void batchMatchesSingle() {
+        Random random = new Random(10);
+        int allValidBatches = 0;
+        int failedBatches = 0;
+        for (int iter = 0; iter < 40; iter++) {
+            int n = 1 + random.nextInt(10);
+            byte[][] signatures = new byte[n][];
+            byte[][] hrams = new byte[n][64];
+            boolean onlyValid = iter % 4 == 0;
+            for (int k = 0; k < n; k++) {
+                random.nextBytes(hrams[k]);
+                int kind = onlyValid ? 0 : random.nextInt(5);
+                if (kind == 3) {
+                    signatures[k] = new byte[64];
+                    random.nextBytes(signatures[k]);
+                    signatures[k][63] &= 0x0f;
+                    continue;
+                }
+                signatures[k] = sign(hrams[k], new BigInteger(252, random).mod(ORDER));
+                if (kind == 2) {
+                    signatures[k][random.nextInt(64)] ^= 1 << random.nextInt(8);
+                } else if (kind == 4) {
+                    // y = p + 1, which is not reduced
+                    System.arraycopy(toLittleEndian(P.add(BigInteger.ONE), 32), 0, signatures[k], 0, 32);
+                }
+            }
+
+            int[] results = new int[n];
+            boolean allValid = Flic2Crypto.ed25519VerifyHramBatch(signatures, hrams, results);
+            boolean expectedAllValid = true;
+            for (int k = 0; k < n; k++) {
+                int expected = Flic2Crypto.ed25519VerifyHram(signatures[k], hrams[k]);
+                assertEquals(iter + " " + k, expected, results[k]);
+                expectedAllValid &= expected >= 0;
+            }
+            assertEquals(expectedAllValid, allValid);
+            if (allValid) {
+                ++allValidBatches;
+            } else {
+                ++failedBatches;
+            }
+        }
+        assertTrue(allValidBatches >= 10);
+        assertTrue(failedBatches > 0);
+
+        // With messages, where no signature is valid for the compiled in key
+        byte[][] signatures = new byte[5][64];
+        byte[][] messages = new byte[5][];
+        for (int k = 0; k < 5; k++) {
+            random.nextBytes(signatures[k]);
+            signatures[k][63] &= 0x0f;
+            messages[k] = new byte[random.nextInt(100)];
+            random.nextBytes(messages[k]);
+        }
+        int[] results = new int[5];
+        assertFalse(Flic2Crypto.ed25519VerifyBatch(signatures, messages, results));
+        for (int k = 0; k < 5; k++) {
+            assertEquals(Flic2Crypto.ed25519Verify(signatures[k], messages[k]), results[k]);
+        }
+    }
+
+    // A signature of hram with scalar s, made with BigInteger point arithmetic for the key of the compiled in table
+    private static byte[] sign(byte[] hram, BigInteger s) {
+        Flic2Crypto.Comb comb4 = Flic2Crypto.getComb(4);
+        BigInteger[] a = affine(comb4.tableA[comb4.tableA.length - 1]);
+        BigInteger[] b = affine(comb4.tableB[comb4.tableB.length - 1]);
+        BigInteger h = fromLittleEndian(hram).mod(ORDER);
+        BigInteger[] r = add(multiply(b, s), multiply(a, ORDER.subtract(h)));
+        byte[] signature = new byte[64];
+        System.arraycopy(toLittleEndian(r[1], 32), 0, signature, 0, 32);
+        signature[31] |= r[0].testBit(0) ? 0x80 : 0;
+        System.arraycopy(toLittleEndian(s, 32), 0, signature, 32, 32);
+        return signature;
+    }
+
+    // The fixed-base table gives the same result as the ladder with u = 9, for random scalars, the all-zero and all-one
+    // scalars and scalars with one or two bits set
+    @Test
+    public void curve25519BaseMatchesLadder() {
+        Random random = new Random(8);
+        byte[] basePoint = new byte[32];
+        basePoint[0] = 9;
+        byte[] scalar = new byte[32];
+        Flic2Crypto.CurveScratch s = new Flic2Crypto.CurveScratch();
+        for (int i = 0; i < 2000; i++) {
+            random.nextBytes(scalar);
+            checkCurve25519Base(basePoint, scalar, s);
+        }
+        checkCurve25519Base(basePoint, new byte[32], s);
+        byte[] ones = new byte[32];
+        Arrays.fill(ones, (byte)0xff);
+        checkCurve25519Base(basePoint, ones, s);
+        for (int bit = 0; bit < 256; bit++) {
+            byte[] sparse = new byte[32];
+            sparse[bit >> 3] |= (byte)(1 << (bit & 7));
+            checkCurve25519Base(basePoint, sparse, s);
+            int other = random.nextInt(256);
+            sparse[other >> 3] |= (byte)(1 << (other & 7));
+            checkCurve25519Base(basePoint, sparse, s);
+        }
+    }
+
+    private static void checkCurve25519Base(byte[] basePoint, byte[] scalar, Flic2Crypto.CurveScratch s) {
+        byte[] expected = new byte[32];
+        Flic2Crypto.ladder(Flic2Crypto.fe25Backend, expected, 0, basePoint, scalar.clone(), s);
+        assertArrayEquals(PacketCodecTest.hex(scalar), expected, Flic2Crypto.curve25519Base(scalar.clone()));
+    }
+
+    private static void assertPrecompEquals(Flic2Crypto.Precomp expected, Flic2Crypto.Precomp actual) {
+        assertArrayEquals(Flic2Crypto.toBytes(expected.YpX), Flic2Crypto.toBytes(actual.YpX));
+        assertArrayEquals(Flic2Crypto.toBytes(expected.YmX), Flic2Crypto.toBytes(actual.YmX));
+        assertArrayEquals(Flic2Crypto.toBytes(expected.T2d), Flic2Crypto.toBytes(actual.T2d));
+    }
+
+    private static BigInteger[] affine(Flic2Crypto.Precomp p) {
+        BigInteger ypx = fromLittleEndian(Flic2Crypto.toBytes(p.YpX));
+        BigInteger ymx = fromLittleEndian(Flic2Crypto.toBytes(p.YmX));
+        BigInteger inv2 = BigInteger.valueOf(2).modInverse(P);
+        return new BigInteger[]{ypx.subtract(ymx).multiply(inv2).mod(P), ypx.add(ymx).multiply(inv2).mod(P)};
+    }
+
+    private static BigInteger[] add(BigInteger[] p, BigInteger[] q) {
+        BigInteger t = D.multiply(p[0]).multiply(q[0]).multiply(p[1]).multiply(q[1]).mod(P);
+        BigInteger x = p[0].multiply(q[1]).add(p[1].multiply(q[0])).multiply(BigInteger.ONE.add(t).modInverse(P)).mod(P);
+        BigInteger y = p[1].multiply(q[1]).add(p[0].multiply(q[0])).multiply(BigInteger.ONE.subtract(t).mod(P).modInverse(P)).mod(P);
+        return new BigInteger[]{x, y};
+    }
+
+    private static BigInteger[] multiply(BigInteger[] p, BigInteger k) {
+        BigInteger[] r = {BigInteger.ZERO, BigInteger.ONE};
+        for (int i = k.bitLength() - 1; i >= 0; i--) {
+            r = add(r, r);
+            if (k.testBit(i)) {
+                r = add(r, p);
+            }
+        }
+        return r;
+    }
+
+    private static void checkScReduce(byte[] in, byte[] out) {
+        Flic2Crypto.scReduce(out, in);
+        assertArrayEquals(PacketCodecTest.hex(in), toLittleEndian(fromLittleEndian(in).mod(ORDER), 32), out);
+    }
+
+    static BigInteger fromLittleEndian(byte[] b) {
+        byte[] bigEndian = new byte[b.length];
+        for (int i = 0; i < b.length; i++) {
+            bigEndian[i] = b[b.length - 1 - i];
+        }
+        return new BigInteger(1, bigEndian);
+    }
+
+    static byte[] toLittleEndian(BigInteger value, int length) {
+        byte[] bigEndian = value.toByteArray();
+        byte[] out = new byte[length];
+        for (int i = 0; i < length && i < bigEndian.length; i++) {
+            out[i] = bigEndian[bigEndian.length - 1 - i];
+        }
+        return out;
+    }
+}
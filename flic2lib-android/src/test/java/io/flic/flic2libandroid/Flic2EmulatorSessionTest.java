@@ -0,0 +1,214 @@
+package io.flic.flic2libandroid;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.util.Random;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+// Runs the real Flic2Manager and Session against Flic2ButtonEmulator over Flic2LoopbackTransport, with GATT framing at
+// the smallest MTU and with L2CAP framing. The emulator plays a button that the app side already has a pairing with.
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE, sdk = 28)
+public class Flic2EmulatorSessionTest {
+    private static final long TIMEOUT_MS = 10000;
+
+    @Test
+    public void sessionOverLoopback() throws Exception {
+        ExecutorHandler appHandler = new ExecutorHandler("app");
+        Flic2Manager.init(RuntimeEnvironment.getApplication(), appHandler, null);
+        Flic2Manager manager = Flic2Manager.getInstance();
+        try {
+            runSession(manager, false, 23, "80:E4:DA:70:00:01");
+            runSession(manager, true, 128, "80:E4:DA:70:00:02");
+        } finally {
+            appHandler.shutdown();
+        }
+    }
+
+    private static void runSession(final Flic2Manager manager, boolean packetOriented, int mtu, String bdAddr) throws Exception {
+        byte[] pairingKey = new byte[16];
+        new Random(mtu).nextBytes(pairingKey);
+        final int pairingId = 0x12345678 + mtu;
+
+        final Flic2Button button = new Flic2Button(manager, bdAddr);
+        button.addressType = false;
+        button.uuid = "00112233445566778899aabbccddeeff";
+        button.serialNumber = "BC12-D34567";
+        button.name = "";
+        button.firmwareVersion = 10;
+        // No firmware check, which would go to the network
+        button.nextFirmwareCheckTimestamp = Long.MAX_VALUE;
+        button.pairingData = new Flic2Button.PairingData(pairingId, pairingKey);
+
+        final BlockingQueue<String> appEvents = new LinkedBlockingQueue<>();
+        button.addListener(new Flic2ButtonListener() {
+            @Override
+            public void onReady(Flic2Button button, long timestamp) {
+                appEvents.add("ready");
+            }
+
+            @Override
+            public void onDisconnect(Flic2Button button) {
+                appEvents.add("disconnect");
+            }
+
+            @Override
+            public void onNameUpdated(Flic2Button button, String newName) {
+                appEvents.add("name " + newName);
+            }
+
+            @Override
+            public void onButtonSingleOrDoubleClickOrHold(Flic2Button button, boolean wasQueued, boolean lastQueued, long timestamp, boolean isSingleClick, boolean isDoubleClick, boolean isHold) {
+                appEvents.add((isSingleClick ? "single" : isDoubleClick ? "double" : "hold") + (wasQueued ? " queued" : ""));
+            }
+        });
+
+        final ExecutorHandler buttonHandler = new ExecutorHandler("button");
+        final BlockingQueue<String> buttonEvents = new LinkedBlockingQueue<>();
+        try {
+            final Flic2LoopbackTransport[] transports = Flic2LoopbackTransport.createPair(manager.handler, buttonHandler, packetOriented, mtu);
+            final Flic2ButtonEmulator emulator = new Flic2ButtonEmulator(buttonHandler, pairingId, pairingKey);
+            emulator.setListener(new Flic2ButtonEmulator.Listener() {
+                @Override
+                public void onSessionEstablished(Flic2ButtonEmulator emulator) {
+                    buttonEvents.add("established");
+                }
+
+                @Override
+                public void onEventsAcked(Flic2ButtonEmulator emulator, int eventCount, long latencyNanos) {
+                    buttonEvents.add("acked " + eventCount);
+                }
+            });
+
+            // A click while disconnected is queued in the button
+            run(buttonHandler, new Runnable() {
+                @Override
+                public void run() {
+                    emulator.setName("Emulated", 1600000000000L);
+                    emulator.play(new Flic2PressScript().click());
+                }
+            });
+            Thread.sleep(new Flic2PressScript().click().getLength() + Flic2ButtonEmulator.DOUBLE_CLICK_TIMEOUT_MS + 200);
+            assertTrue(call(buttonHandler, new Callable<Integer>() {
+                @Override
+                public Integer call() {
+                    return emulator.getQueuedEventCount();
+                }
+            }) > 0);
+            final int queuedEventCount = call(buttonHandler, new Callable<Integer>() {
+                @Override
+                public Integer call() {
+                    return emulator.getEventCount();
+                }
+            });
+
+            run(buttonHandler, new Runnable() {
+                @Override
+                public void run() {
+                    emulator.connect(transports[1]);
+                }
+            });
+            run(manager.handler, new Runnable() {
+                @Override
+                public void run() {
+                    manager.database.addButton(button);
+                    manager.connectOverTransport(button, transports[0]);
+                }
+            });
+
+            assertEquals("established", take(buttonEvents));
+            assertEquals("ready", take(appEvents));
+            assertEquals("single queued", take(appEvents));
+            assertEquals("name Emulated", take(appEvents));
+            assertEquals("acked " + queuedEventCount, take(buttonEvents));
+
+            run(buttonHandler, new Runnable() {
+                @Override
+                public void run() {
+                    emulator.play(new Flic2PressScript().doubleClick());
+                }
+            });
+            assertEquals("double", take(appEvents));
+            final int doubleClickEventCount = call(buttonHandler, new Callable<Integer>() {
+                @Override
+                public Integer call() {
+                    return emulator.getEventCount();
+                }
+            });
+            String acked;
+            do {
+                acked = take(buttonEvents);
+            } while (!acked.equals("acked " + doubleClickEventCount));
+
+            // Holds are not acked, so only the event counter is compared after the up
+            run(buttonHandler, new Runnable() {
+                @Override
+                public void run() {
+                    emulator.play(new Flic2PressScript().hold(Flic2ButtonEmulator.HOLD_TIME_MS + 100));
+                }
+            });
+            assertEquals("hold", take(appEvents));
+            Thread.sleep(500);
+            final int eventCount = call(buttonHandler, new Callable<Integer>() {
+                @Override
+                public Integer call() {
+                    return emulator.getEventCount();
+                }
+            });
+            assertEquals(eventCount, (int)call(manager.handler, new Callable<Integer>() {
+                @Override
+                public Integer call() {
+                    return button.eventCount;
+                }
+            }));
+            assertEquals("Emulated", button.getName());
+            assertEquals(Flic2Button.CONNECTION_STATE_CONNECTED_READY, (int)call(manager.handler, new Callable<Integer>() {
+                @Override
+                public Integer call() {
+                    return button.getConnectionState();
+                }
+            }));
+
+            button.disconnectOrAbortPendingConnection();
+            assertEquals("disconnect", take(appEvents));
+            transports[0].close();
+        } finally {
+            buttonHandler.shutdown();
+        }
+    }
+
+    private static String take(BlockingQueue<String> queue) throws InterruptedException {
+        String s = queue.poll(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        assertNotNull("timeout", s);
+        return s;
+    }
+
+    private static void run(HandlerInterface handler, final Runnable r) throws Exception {
+        call(handler, new Callable<Void>() {
+            @Override
+            public Void call() {
+                r.run();
+                return null;
+            }
+        });
+    }
+
+    // Runs c on the thread of the handler and waits for the result
+    private static <T> T call(HandlerInterface handler, Callable<T> c) throws Exception {
+        FutureTask<T> task = new FutureTask<>(c);
+        handler.post(task);
+        return task.get(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+    }
+}
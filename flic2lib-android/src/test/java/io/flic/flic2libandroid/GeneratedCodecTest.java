@@ -0,0 +1,321 @@
+package io.flic.flic2libandroid;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+// Compares the generated PacketCodecs with the Writer and Reader code that the packets had before the layouts were
+// annotated, on random field values and random packets. Field values are not limited to their widths, so masking is
+// covered as well.
+public class GeneratedCodecTest {
+    private static final int TX_KINDS = 20;
+    private static final int RX_KINDS = 13;
+
+    @Test
+    public void txMatchesHandWritten() {
+        Random random = new Random(21);
+        byte[] generated = new byte[4 + TxPacket.MAX_LENGTH];
+        byte[] handWritten = new byte[generated.length];
+        for (int kind = 0; kind < TX_KINDS; kind++) {
+            for (int iter = 0; iter < 2000; iter++) {
+                TxPacket p = randomTxPacket(kind, random);
+
+                // Both are written to the same dirty buffer at the same offset
+                random.nextBytes(generated);
+                System.arraycopy(generated, 0, handWritten, 0, generated.length);
+                int off = random.nextInt(4);
+                int len = p.writeTo(generated, off);
+                TxPacket.Writer w = new TxPacket.Writer(handWritten, off);
+                write(p, w);
+                assertEquals(p.getClass().getSimpleName(), w.length(), len);
+                assertArrayEquals(p.getClass().getSimpleName(), handWritten, generated);
+            }
+        }
+    }
+
+    // Every length from empty to longer than the layout, with random bytes around the packet
+    @Test
+    public void rxMatchesHandWritten() {
+        Random random = new Random(22);
+        byte[] buf = new byte[4 + 160 + 8];
+        for (int kind = 0; kind < RX_KINDS; kind++) {
+            for (int iter = 0; iter < 2000; iter++) {
+                random.nextBytes(buf);
+                int off = random.nextInt(4);
+                int len = random.nextInt(buf.length - off + 1);
+                assertEquals(kind + " " + len, readHandWritten(kind, buf, off, len), readGenerated(kind, buf, off, len));
+            }
+        }
+    }
+
+    private static TxPacket randomTxPacket(int kind, Random random) {
+        switch (kind) {
+            case 0:
+                return new TxPacket.FullVerifyRequest1(random.nextInt());
+            case 1: {
+                TxPacket.QuickVerifyRequest p = new TxPacket.QuickVerifyRequest();
+                p.random = bytes(random, 7);
+                p.signatureVariant = random.nextInt();
+                p.encryptionVariant = random.nextInt();
+                p.tmpId = random.nextInt();
+                p.pairingId = random.nextInt();
+                return p;
+            }
+            case 2: {
+                TxPacket.TestIfReallyUnpairedRequest p = new TxPacket.TestIfReallyUnpairedRequest();
+                p.ecdhPublicKey = bytes(random, 32);
+                p.randomBytes = bytes(random, 8);
+                p.pairingId = random.nextInt();
+                p.pairingToken = bytes(random, 16);
+                return p;
+            }
+            case 3: {
+                TxPacket.InitButtonEventsLightRequest p = new TxPacket.InitButtonEventsLightRequest();
+                p.eventCount = random.nextInt();
+                p.bootId = random.nextInt();
+                p.autoDisconnectTime = random.nextInt();
+                p.maxQueuedPackets = random.nextInt();
+                p.maxQueuedPacketsAge = random.nextInt();
+                return p;
+            }
+            case 4:
+                return new TxPacket.AckButtonEvents(random.nextInt());
+            case 5: {
+                TxPacket.SetConnectionParametersInd p = new TxPacket.SetConnectionParametersInd();
+                p.intvMin = (short)random.nextInt();
+                p.intvMax = (short)random.nextInt();
+                p.latency = (short)random.nextInt();
+                p.timeout = (short)random.nextInt();
+                return p;
+            }
+            case 6:
+                return new TxPacket.GetFirmwareVersionRequest();
+            case 7:
+                return new TxPacket.DisconnectVerifiedLinkInd();
+            case 8:
+                return new TxPacket.GetNameRequest();
+            case 9: {
+                // Any chars, including unpaired surrogates
+                char[] name = new char[random.nextInt(24)];
+                for (int i = 0; i < name.length; i++) {
+                    name[i] = (char)(random.nextBoolean() ? 0x20 + random.nextInt(0x60) : random.nextInt(0x10000));
+                }
+                return new TxPacket.SetNameRequest(random.nextLong(), random.nextBoolean(), new String(name));
+            }
+            case 10:
+                return new TxPacket.PingResponse();
+            case 11:
+                return new TxPacket.StartFirmwareUpdateRequest(random.nextInt(), bytes(random, 8), random.nextInt());
+            case 12:
+                return new TxPacket.FirmwareUpdateDataInd(bytes(random, random.nextInt(TxPacket.MAX_LENGTH)));
+            case 13:
+                return new TxPacket.SetAutoDisconnectTimeInd(random.nextInt());
+            case 14:
+                return new TxPacket.GetBatteryLevelRequest();
+            case 15:
+                return new TxPacket.ForceBtDisconnectInd(random.nextBoolean());
+            case 16: {
+                TxPacket.SetAdvParametersRequest p = new TxPacket.SetAdvParametersRequest();
+                p.isActive = random.nextBoolean();
+                p.removeOtherPairingsAdvSettings = random.nextBoolean();
+                p.withShortRange = random.nextBoolean();
+                p.withLongRange = random.nextBoolean();
+                p.advInterval0 = (short)random.nextInt();
+                p.advInterval1 = (short)random.nextInt();
+                p.timeoutSeconds = random.nextInt();
+                return p;
+            }
+            case 17:
+                return new TxPacket.SetHidMidiConfigDataInd(bytes(random, random.nextInt(TxPacket.MAX_LENGTH)));
+            case 18:
+                return new TxPacket.SetHidMidiConfigApplyRequest();
+            case 19:
+                return new TxPacket.GetHidMidiConfigRequest();
+            default:
+                throw new IllegalArgumentException();
+        }
+    }
+
+    private static void write(TxPacket packet, TxPacket.Writer w) {
+        if (packet instanceof TxPacket.FullVerifyRequest1) {
+            w.opcode(TxPacket.FULL_VERIFY_REQUEST_1);
+            w.i(((TxPacket.FullVerifyRequest1)packet).tmpId);
+        } else if (packet instanceof TxPacket.QuickVerifyRequest) {
+            TxPacket.QuickVerifyRequest p = (TxPacket.QuickVerifyRequest)packet;
+            w.opcode(TxPacket.QUICK_VERIFY_REQUEST);
+            w.ba(p.random);
+            w.bits(p.signatureVariant, 3);
+            w.bits(p.encryptionVariant, 3);
+            w.bitsPadding(2);
+            w.i(p.tmpId);
+            w.i(p.pairingId);
+        } else if (packet instanceof TxPacket.TestIfReallyUnpairedRequest) {
+            TxPacket.TestIfReallyUnpairedRequest p = (TxPacket.TestIfReallyUnpairedRequest)packet;
+            w.opcode(TxPacket.TEST_IF_REALLY_UNPAIRED_REQUEST);
+            w.ba(p.ecdhPublicKey);
+            w.ba(p.randomBytes);
+            w.i(p.pairingId);
+            w.ba(p.pairingToken);
+        } else if (packet instanceof TxPacket.InitButtonEventsLightRequest) {
+            TxPacket.InitButtonEventsLightRequest p = (TxPacket.InitButtonEventsLightRequest)packet;
+            w.opcode(TxPacket.INIT_BUTTON_EVENTS_LIGHT_REQUEST);
+            w.i(p.eventCount);
+            w.i(p.bootId);
+            w.bits(p.autoDisconnectTime, 9);
+            w.bits(p.maxQueuedPackets, 5);
+            w.bits(p.maxQueuedPacketsAge, 20);
+            w.bitsPadding(6);
+        } else if (packet instanceof TxPacket.AckButtonEvents) {
+            w.opcode(TxPacket.ACK_BUTTON_EVENTS);
+            w.i(((TxPacket.AckButtonEvents)packet).eventCount);
+        } else if (packet instanceof TxPacket.SetConnectionParametersInd) {
+            TxPacket.SetConnectionParametersInd p = (TxPacket.SetConnectionParametersInd)packet;
+            w.opcode(TxPacket.SET_CONNECTION_PARAMETERS_IND);
+            w.s(p.intvMin);
+            w.s(p.intvMax);
+            w.s(p.latency);
+            w.s(p.timeout);
+        } else if (packet instanceof TxPacket.GetFirmwareVersionRequest) {
+            w.opcode(TxPacket.GET_FIRMWARE_VERSION_REQUEST);
+        } else if (packet instanceof TxPacket.DisconnectVerifiedLinkInd) {
+            w.opcode(TxPacket.DISCONNECT_VERIFIED_LINK_IND);
+        } else if (packet instanceof TxPacket.GetNameRequest) {
+            w.opcode(TxPacket.GET_NAME_REQUEST);
+        } else if (packet instanceof TxPacket.SetNameRequest) {
+            TxPacket.SetNameRequest p = (TxPacket.SetNameRequest)packet;
+            w.opcode(TxPacket.SET_NAME_REQUEST);
+            w.bits(p.timestampUtcMs, 47);
+            w.bits(p.forceUpdate ? 1 : 0, 1);
+            w.str(p.name);
+        } else if (packet instanceof TxPacket.PingResponse) {
+            w.opcode(TxPacket.PING_RESPONSE);
+        } else if (packet instanceof TxPacket.StartFirmwareUpdateRequest) {
+            TxPacket.StartFirmwareUpdateRequest p = (TxPacket.StartFirmwareUpdateRequest)packet;
+            w.opcode(TxPacket.START_FIRMWARE_UPDATE_REQUEST);
+            w.s(p.len);
+            w.ba(p.iv);
+            w.s(p.statusInterval);
+        } else if (packet instanceof TxPacket.FirmwareUpdateDataInd) {
+            w.opcode(TxPacket.FIRMWARE_UPDATE_DATA_IND);
+            w.ba(((TxPacket.FirmwareUpdateDataInd)packet).chunk);
+        } else if (packet instanceof TxPacket.SetAutoDisconnectTimeInd) {
+            w.opcode(TxPacket.SET_AUTO_DISCONNECT_TIME_IND);
+            w.bits(((TxPacket.SetAutoDisconnectTimeInd)packet).autoDisconnectTime, 9);
+            w.bitsPadding(7);
+        } else if (packet instanceof TxPacket.GetBatteryLevelRequest) {
+            w.opcode(TxPacket.GET_BATTERY_LEVEL_REQUEST);
+        } else if (packet instanceof TxPacket.ForceBtDisconnectInd) {
+            w.opcode(TxPacket.FORCE_BT_DISCONNECT_IND);
+            w.bool(((TxPacket.ForceBtDisconnectInd)packet).restartAdv);
+        } else if (packet instanceof TxPacket.SetAdvParametersRequest) {
+            TxPacket.SetAdvParametersRequest p = (TxPacket.SetAdvParametersRequest)packet;
+            w.opcode(TxPacket.SET_ADV_PARAMETERS_REQUEST);
+            w.bool(p.isActive);
+            w.bool(p.removeOtherPairingsAdvSettings);
+            w.bool(p.withShortRange);
+            w.bool(p.withLongRange);
+            w.s(p.advInterval0);
+            w.s(p.advInterval1);
+            w.i(p.timeoutSeconds);
+        } else if (packet instanceof TxPacket.SetHidMidiConfigDataInd) {
+            w.opcode(TxPacket.SET_HID_MIDI_CONFIG_DATA_IND);
+            w.ba(((TxPacket.SetHidMidiConfigDataInd)packet).data);
+        } else if (packet instanceof TxPacket.SetHidMidiConfigApplyRequest) {
+            w.opcode(TxPacket.SET_HID_MIDI_CONFIG_APPLY_REQUEST);
+        } else if (packet instanceof TxPacket.GetHidMidiConfigRequest) {
+            w.opcode(TxPacket.GET_HID_MIDI_CONFIG_REQUEST);
+        } else {
+            throw new IllegalArgumentException(packet.getClass().getName());
+        }
+    }
+
+    // The decoded fields, or "end" if the packet is too short
+    private static String readGenerated(int kind, byte[] buf, int off, int len) {
+        try {
+            switch (kind) {
+                case 0: {
+                    RxPacket.FullVerifyResponse1 p = new RxPacket.FullVerifyResponse1(buf, off, len);
+                    return p.tmpId + " " + hex(p.signature) + " " + hex(p.bdAddr) + " " + p.bdAddrType + " " + hex(p.publicKey) + " " + hex(p.random) + " " + p.linkIsEncrypted + " " + p.isInPublicMode + " " + p.hasBondInfo;
+                }
+                case 1:
+                    return "" + new RxPacket.FullVerifyFailResponse(buf, off, len).reason;
+                case 2: {
+                    RxPacket.QuickVerifyResponse p = new RxPacket.QuickVerifyResponse(buf, off, len);
+                    return hex(p.random) + " " + p.tmpId;
+                }
+                case 3:
+                    return "" + new RxPacket.QuickVerifyNegativeResponse(buf, off, len).tmpId;
+                case 4:
+                    return new RxPacket.NameUpdatedNotification(buf, off, len).name;
+                case 5: {
+                    RxPacket.GetSetNameResponse p = new RxPacket.GetSetNameResponse(buf, off, len);
+                    return p.timestampUtcMs + " " + p.name;
+                }
+                case 6:
+                    return "" + new RxPacket.GetFirmwareVersionResponse(buf, off, len).version;
+                case 7:
+                    return "" + new RxPacket.StartFirmwareUpdateResponse(buf, off, len).startPos;
+                case 8:
+                    return "" + new RxPacket.FirmwareUpdateNotification(buf, off, len).pos;
+                case 9:
+                    return "" + new RxPacket.GetBatteryLevelResponse(buf, off, len).level;
+                case 10:
+                    return "" + new RxPacket.SetHidMidiConfigApplyResponse(buf, off, len).result;
+                case 11:
+                    return hex(new RxPacket.GetHidMidiConfigDataInd(buf, off, len).data);
+                case 12:
+                    return "" + new RxPacket.GetHidMidiConfigDataResponse(buf, off, len).result;
+                default:
+                    throw new IllegalArgumentException();
+            }
+        } catch (RxPacket.UnexpectedEndOfPacketException e) {
+            return "end";
+        }
+    }
+
+    private static String readHandWritten(int kind, byte[] buf, int off, int len) {
+        RxPacket.Reader r = new RxPacket.Reader(buf, off, len);
+        try {
+            switch (kind) {
+                case 0:
+                    return r.i() + " " + hex(r.ba(64)) + " " + hex(r.ba(6)) + " " + r.bool() + " " + hex(r.ba(32)) + " " + hex(r.ba(8)) + " " + r.bitBool() + " " + r.bitBool() + " " + r.bitBool();
+                case 1:
+                case 10:
+                case 12:
+                    return "" + r.b();
+                case 2:
+                    return hex(r.ba(8)) + " " + r.i();
+                case 3:
+                case 6:
+                case 7:
+                case 8:
+                    return "" + r.i();
+                case 4:
+                    return r.str(r.left());
+                case 5:
+                    return r.bits(48) + " " + r.str(r.left());
+                case 9:
+                    return "" + r.s();
+                case 11:
+                    return hex(r.ba(r.left()));
+                default:
+                    throw new IllegalArgumentException();
+            }
+        } catch (RxPacket.UnexpectedEndOfPacketException e) {
+            return "end";
+        }
+    }
+
+    private static byte[] bytes(Random random, int n) {
+        byte[] b = new byte[n];
+        random.nextBytes(b);
+        return b;
+    }
+
+    private static String hex(byte[] b) {
+        return PacketCodecTest.hex(b);
+    }
+}
@@ -0,0 +1,195 @@
+package io.flic.flic2libandroid;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+// Compares the word at a time bit fields of TxPacket.Writer and RxPacket.Reader with a baseline that handles one bit at
+// a time, on random sequences of bit fields of 1 to 64 bits mixed with byte aligned fields
+public class PacketBitFieldTest {
+    private static final int BITS = 0;
+    private static final int BYTE = 1;
+    private static final int SHORT = 2;
+    private static final int INT = 3;
+
+    private static class Field {
+        int kind;
+        int width;
+        long value;
+    }
+
+    // The baseline layout, with bits packed LSB first
+    private static class BitBuffer {
+        final byte[] buf = new byte[TxPacket.MAX_LENGTH];
+        int bitIndex = 8; // After the opcode
+
+        void bits(long value, int width) {
+            for (int i = 0; i < width; i++) {
+                if (((value >>> i) & 1) != 0) {
+                    buf[bitIndex >> 3] |= (byte)(1 << (bitIndex & 7));
+                }
+                ++bitIndex;
+            }
+        }
+
+        int length() {
+            return (bitIndex + 7) >> 3;
+        }
+    }
+
+    @Test
+    public void writerMatchesBaseline() {
+        Random random = new Random(19);
+        byte[] frame = new byte[1 + TxPacket.MAX_LENGTH + 8];
+        for (int iter = 0; iter < 20000; iter++) {
+            Field[] fields = randomFields(random);
+            BitBuffer expected = new BitBuffer();
+            expected.buf[0] = 0x42;
+            for (Field f : fields) {
+                put(expected, f);
+            }
+
+            // The writer does not need a zeroed buffer, and must not touch bytes before or after the packet
+            random.nextBytes(frame);
+            byte[] before = frame.clone();
+            TxPacket.Writer w = new TxPacket.Writer(frame, 1);
+            w.opcode(0x42);
+            for (Field f : fields) {
+                switch (f.kind) {
+                    case BITS:
+                        w.bits(f.value, f.width);
+                        break;
+                    case BYTE:
+                        w.b((int)f.value);
+                        break;
+                    case SHORT:
+                        w.s((int)f.value);
+                        break;
+                    default:
+                        w.i((int)f.value);
+                        break;
+                }
+            }
+            int len = expected.length();
+            assertEquals(len, w.length());
+            assertArrayEquals(Arrays.copyOf(expected.buf, len), Arrays.copyOfRange(frame, 1, 1 + len));
+            assertEquals(before[0], frame[0]);
+            assertArrayEquals(Arrays.copyOfRange(before, 1 + len, frame.length), Arrays.copyOfRange(frame, 1 + len, frame.length));
+        }
+    }
+
+    @Test
+    public void readerMatchesBaseline() throws RxPacket.UnexpectedEndOfPacketException {
+        Random random = new Random(20);
+        for (int iter = 0; iter < 20000; iter++) {
+            Field[] fields = randomFields(random);
+            BitBuffer packet = new BitBuffer();
+            for (Field f : fields) {
+                put(packet, f);
+            }
+            int len = packet.length() - 1;
+
+            // Random bytes around the packet, or a buffer that ends with the packet so that no whole word can be loaded
+            int off = random.nextInt(4);
+            int after = random.nextBoolean() ? 0 : random.nextInt(16);
+            byte[] buf = new byte[off + len + after];
+            random.nextBytes(buf);
+            System.arraycopy(packet.buf, 1, buf, off, len);
+
+            RxPacket.Reader r = new RxPacket.Reader(buf, off, len);
+            for (Field f : fields) {
+                assertEquals(f.value, get(r, f));
+            }
+            assertEquals(0, r.left());
+        }
+    }
+
+    // Cutting the packet anywhere throws at the first field that does not fit, and not before
+    @Test
+    public void readerThrowsAtEnd() throws RxPacket.UnexpectedEndOfPacketException {
+        Random random = new Random(21);
+        for (int iter = 0; iter < 5000; iter++) {
+            Field[] fields = randomFields(random);
+            BitBuffer packet = new BitBuffer();
+            int[] endAfter = new int[fields.length];
+            for (int i = 0; i < fields.length; i++) {
+                put(packet, fields[i]);
+                endAfter[i] = packet.length() - 1;
+            }
+            int len = random.nextInt(packet.length() - 1);
+            byte[] buf = Arrays.copyOfRange(packet.buf, 1, 1 + len + random.nextInt(9));
+
+            RxPacket.Reader r = new RxPacket.Reader(buf, 0, len);
+            for (int i = 0; i < fields.length; i++) {
+                if (endAfter[i] > len) {
+                    try {
+                        get(r, fields[i]);
+                        fail("read past the end");
+                    } catch (RxPacket.UnexpectedEndOfPacketException e) {
+                        break;
+                    }
+                }
+                assertEquals(fields[i].value, get(r, fields[i]));
+            }
+        }
+    }
+
+    // Like in the packets, a byte aligned field is only used after bit fields that end on a byte boundary
+    private static Field[] randomFields(Random random) {
+        Field[] fields = new Field[1 + random.nextInt(12)];
+        int bitPos = 0;
+        for (int i = 0; i < fields.length; i++) {
+            Field f = new Field();
+            f.kind = random.nextInt(4) == 0 ? 1 + random.nextInt(3) : BITS;
+            if (f.kind != BITS && (bitPos & 7) != 0) {
+                f.kind = BITS;
+                f.width = 8 - (bitPos & 7);
+                f.value = random.nextLong() & ((1L << f.width) - 1);
+                fields[i] = f;
+                bitPos += f.width;
+                continue;
+            }
+            switch (f.kind) {
+                case BITS:
+                    // Mostly the short fields that packets have, but all widths occur
+                    f.width = random.nextBoolean() ? 1 + random.nextInt(64) : 1 + random.nextInt(9);
+                    break;
+                case BYTE:
+                    f.width = 8;
+                    break;
+                case SHORT:
+                    f.width = 16;
+                    break;
+                default:
+                    f.width = 32;
+                    break;
+            }
+            f.value = f.width == 64 ? random.nextLong() : random.nextLong() & ((1L << f.width) - 1);
+            fields[i] = f;
+            bitPos += f.width;
+        }
+        return fields;
+    }
+
+    private static void put(BitBuffer b, Field f) {
+        b.bits(f.value, f.width);
+    }
+
+    private static long get(RxPacket.Reader r, Field f) throws RxPacket.UnexpectedEndOfPacketException {
+        switch (f.kind) {
+            case BITS:
+                return r.bits(f.width);
+            case BYTE:
+                return r.b();
+            case SHORT:
+                return r.s();
+            default:
+                return r.i() & 0xffffffffL;
+        }
+    }
+}
@@ -0,0 +1,380 @@
+package io.flic.flic2libandroid;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+// Checks every packet type against byte exact golden vectors, taken from the codec before packets were parsed in place,
+// so that a changed wire format is caught. Decoders are also fed every truncation of the vectors and random buffers,
+// where only UnexpectedEndOfPacketException may be thrown.
+public class PacketCodecTest {
+    // Type and encoded packet, including opcode
+    private static final String[][] TX_VECTORS = {
+            {"FullVerifyRequest1", "0078563412"},
+            {"FullVerifyRequest2WithAppToken", "01101112131415161718191a1b1c1d1e1f202122232425262728292a2b2c2d2e2f404142434445464755505152535455565758595a5b5c5d5e5f707172737475767778797a7b7c7d7e7f"},
+            {"FullVerifyRequest2WithoutAppToken", "02909192939495969798999a9b9c9d9e9fa0a1a2a3a4a5a6a7a8a9aaabacadaeafc0c1c2c3c4c5c6c70fd0d1d2d3d4d5d6d7d8d9dadbdcdddedf"},
+            {"QuickVerifyRequest", "052122232425262733efcdab8904030201"},
+            {"TestIfReallyUnpairedRequest", "04e0e1e2e3e4e5e6e7e8e9eaebecedeeeff0f1f2f3f4f5f6f7f8f9fafbfcfdfeff08090a0b0c0d0e0ffeffffff303132333435363738393a3b3c3d3e3f"},
+            {"InitButtonEventsLightRequest", "17d204000078563412ffffffff03"},
+            {"AckButtonEvents", "1004030201"},
+            {"SetConnectionParametersInd", "0c06000c0011000180"},
+            {"GetFirmwareVersionRequest", "08"},
+            {"DisconnectVerifiedLinkInd", "09"},
+            {"GetNameRequest", "0b"},
+            {"SetNameRequest", "0a7b806e877481466c696320c3a5c3a4c3b6"},
+            {"PingResponse", "0e"},
+            {"StartFirmwareUpdateRequest", "11393060616263646566673c00"},
+            {"FirmwareUpdateDataInd", "12000102030405060708090a0b0c0d0e0f10111213"},
+            {"SetAutoDisconnectTimeInd", "132c01"},
+            {"GetBatteryLevelRequest", "14"},
+            {"ForceBtDisconnectInd", "0601"},
+            {"SetAdvParametersRequest", "1b01000101a000f0ff100e0000"},
+            {"SetHidMidiConfigDataInd", "1cf8f9fafbfcfdfeff0001"},
+            {"SetHidMidiConfigApplyRequest", "1d"},
+            {"GetHidMidiConfigRequest", "1e"},
+    };
+
+    // Type, packet without opcode and signature, and the decoded fields
+    private static final String[][] RX_VECTORS = {
+            {"FullVerifyResponse1", "000102030405060708090a0b0c0d0e0f101112131415161718191a1b1c1d1e1f202122232425262728292a2b2c2d2e2f303132333435363738393a3b3c3d3e3f404142434445464748494a4b4c4d4e4f505152535455565758595a5b5c5d5e5f606162636465666768696a6b6c6d6e6f70717207", "50462976 0405060708090a0b0c0d0e0f101112131415161718191a1b1c1d1e1f202122232425262728292a2b2c2d2e2f303132333435363738393a3b3c3d3e3f40414243 444546474849 true 4b4c4d4e4f505152535455565758595a5b5c5d5e5f606162636465666768696a 6b6c6d6e6f707172 true true true"},
+            {"FullVerifyResponse2", "01a0a1a2a3a4a5a6a7a8a9aaabacadaeaf04466c6963000000000000000000000000000000000000001c0000009a0b424331322d443334353637", "true false a0a1a2a3a4a5a6a7a8a9aaabacadaeaf Flic 28 2970 BC12-D34567"},
+            {"FullVerifyFailResponse", "01", "1"},
+            {"TestIfReallyUnpairedResponse", "808182838485868788898a8b8c8d8e8f", "true false"},
+            {"NoLogicalConnectionSlots", "78563412efcdab8901000000ffff", "[305419896, -1985229329, 1]"},
+            {"QuickVerifyResponse", "111213141516171804030201", "1112131415161718 16909060"},
+            {"QuickVerifyNegativeResponse", "fdffffff", "-3"},
+            {"InitButtonEventsResponseWithBootId", "a5f00d1234abe803000078563412", "true 2872316429940 1000 305419896"},
+            {"InitButtonEventsResponseWithoutBootId", "22334455667f05000000", "false 2137412932199 5 0"},
+            {"NameUpdatedNotification", "466c6963203220c3a5c3a4c3b6", "Flic 2 \u00e5\u00e4\u00f6"},
+            {"GetSetNameResponse", "00e4ff1234564d7920627574746f6e", "94781657048064 My button"},
+            {"ButtonEventNotification", "090000000010000000000133221100ff7f28010203040506f9abcd", "9 125/1/false/false 4294836258267/8/false/true 201984006015/9/true/true"},
+            {"GetFirmwareVersionResponse", "0a000000", "10"},
+            {"StartFirmwareUpdateResponse", "feffffff", "-2"},
+            {"FirmwareUpdateNotification", "00100000", "4096"},
+            {"GetBatteryLevelResponse", "7f03", "895"},
+            {"SetHidMidiConfigApplyResponse", "02", "2"},
+            {"GetHidMidiConfigDataInd", "404142434445464748494a4b", "404142434445464748494a4b"},
+            {"GetHidMidiConfigDataResponse", "00", "0"},
+    };
+
+    @Test
+    public void txGoldenVectors() {
+        for (String[] vector : TX_VECTORS) {
+            TxPacket packet = txPacket(vector[0]);
+            byte[] expected = hex(vector[1]);
+            assertArrayEquals(vector[0], expected, packet.getBytes());
+        }
+    }
+
+    @Test
+    public void txWriteToLeavesSurroundingBytes() {
+        byte[] frame = new byte[1 + TxPacket.MAX_LENGTH + 5];
+        for (String[] vector : TX_VECTORS) {
+            byte[] expected = hex(vector[1]);
+
+            // Written after the connId slot of a frame that holds an earlier, longer packet
+            Arrays.fill(frame, (byte)0xa5);
+            int len = txPacket(vector[0]).writeTo(frame, 1);
+            assertEquals(vector[0], expected.length, len);
+            assertArrayEquals(vector[0], expected, Arrays.copyOfRange(frame, 1, 1 + len));
+            assertEquals(vector[0], (byte)0xa5, frame[0]);
+            assertEquals(vector[0], (byte)0xa5, frame[1 + len]);
+        }
+    }
+
+    @Test
+    public void rxGoldenVectors() throws RxPacket.UnexpectedEndOfPacketException {
+        RxPacket.ButtonEventNotificationDecoder buttonEvents = new RxPacket.ButtonEventNotificationDecoder();
+        Random random = new Random(1);
+        for (int kind = 0; kind < RX_VECTORS.length; kind++) {
+            byte[] pkt = hex(RX_VECTORS[kind][1]);
+
+            // Opcode before and signature after, as when parsing in place from a received frame
+            byte[] frame = new byte[1 + pkt.length + 5];
+            random.nextBytes(frame);
+            System.arraycopy(pkt, 0, frame, 1, pkt.length);
+            assertEquals(RX_VECTORS[kind][0], RX_VECTORS[kind][2], describe(rxPacket(kind, buttonEvents, frame, 1, pkt.length)));
+        }
+    }
+
+    @Test
+    public void rxTruncated() {
+        RxPacket.ButtonEventNotificationDecoder buttonEvents = new RxPacket.ButtonEventNotificationDecoder();
+        for (int kind = 0; kind < RX_VECTORS.length; kind++) {
+            byte[] pkt = hex(RX_VECTORS[kind][1]);
+            for (int i = 0; i < pkt.length; i++) {
+                try {
+                    rxPacket(kind, buttonEvents, pkt, 0, i);
+                } catch (RxPacket.UnexpectedEndOfPacketException e) {
+                    // Allowed
+                }
+            }
+        }
+    }
+
+    @Test
+    public void rxRandom() {
+        RxPacket.ButtonEventNotificationDecoder buttonEvents = new RxPacket.ButtonEventNotificationDecoder();
+        Random random = new Random(2);
+        for (int kind = 0; kind < RX_VECTORS.length; kind++) {
+            int len = RX_VECTORS[kind][1].length() / 2;
+            for (int i = 0; i < 10000; i++) {
+                byte[] buf = new byte[random.nextInt(2 * len + 8)];
+                random.nextBytes(buf);
+                int off = buf.length == 0 ? 0 : random.nextInt(buf.length);
+                try {
+                    rxPacket(kind, buttonEvents, buf, off, random.nextInt(buf.length - off + 1));
+                } catch (RxPacket.UnexpectedEndOfPacketException e) {
+                    // Allowed
+                }
+            }
+        }
+    }
+
+    static TxPacket txPacket(String type) {
+        switch (type) {
+            case "FullVerifyRequest1":
+                return new TxPacket.FullVerifyRequest1(0x12345678);
+            case "FullVerifyRequest2WithAppToken": {
+                TxPacket.FullVerifyRequest2WithAppToken p = new TxPacket.FullVerifyRequest2WithAppToken();
+                p.ecdhPublicKey = seq(0x10, 32);
+                p.randomBytes = seq(0x40, 8);
+                p.signatureVariant = 5;
+                p.encryptionVariant = 2;
+                p.mustValidateAppToken = true;
+                p.encryptedAppToken = seq(0x50, 16);
+                p.verifier = seq(0x70, 16);
+                return p;
+            }
+            case "FullVerifyRequest2WithoutAppToken": {
+                TxPacket.FullVerifyRequest2WithoutAppToken p = new TxPacket.FullVerifyRequest2WithoutAppToken();
+                p.ecdhPublicKey = seq(0x90, 32);
+                p.randomBytes = seq(0xc0, 8);
+                p.signatureVariant = 7;
+                p.encryptionVariant = 1;
+                p.mustValidateAppToken = false;
+                p.verifier = seq(0xd0, 16);
+                return p;
+            }
+            case "QuickVerifyRequest": {
+                TxPacket.QuickVerifyRequest p = new TxPacket.QuickVerifyRequest();
+                p.random = seq(0x21, 7);
+                p.signatureVariant = 3;
+                p.encryptionVariant = 6;
+                p.tmpId = 0x89abcdef;
+                p.pairingId = 0x01020304;
+                return p;
+            }
+            case "TestIfReallyUnpairedRequest": {
+                TxPacket.TestIfReallyUnpairedRequest p = new TxPacket.TestIfReallyUnpairedRequest();
+                p.ecdhPublicKey = seq(0xe0, 32);
+                p.randomBytes = seq(0x08, 8);
+                p.pairingId = -2;
+                p.pairingToken = seq(0x30, 16);
+                return p;
+            }
+            case "InitButtonEventsLightRequest": {
+                TxPacket.InitButtonEventsLightRequest p = new TxPacket.InitButtonEventsLightRequest();
+                p.eventCount = 1234;
+                p.bootId = 0x12345678;
+                p.autoDisconnectTime = 511;
+                p.maxQueuedPackets = 31;
+                p.maxQueuedPacketsAge = 0xfffff;
+                return p;
+            }
+            case "AckButtonEvents":
+                return new TxPacket.AckButtonEvents(0x01020304);
+            case "SetConnectionParametersInd": {
+                TxPacket.SetConnectionParametersInd p = new TxPacket.SetConnectionParametersInd();
+                p.intvMin = 6;
+                p.intvMax = 12;
+                p.latency = 17;
+                p.timeout = (short)0x8001;
+                return p;
+            }
+            case "GetFirmwareVersionRequest":
+                return new TxPacket.GetFirmwareVersionRequest();
+            case "DisconnectVerifiedLinkInd":
+                return new TxPacket.DisconnectVerifiedLinkInd();
+            case "GetNameRequest":
+                return new TxPacket.GetNameRequest();
+            case "SetNameRequest":
+                return new TxPacket.SetNameRequest(1600000000123L, true, "Flic \u00e5\u00e4\u00f6");
+            case "PingResponse":
+                return new TxPacket.PingResponse();
+            case "StartFirmwareUpdateRequest":
+                return new TxPacket.StartFirmwareUpdateRequest(12345, seq(0x60, 8), 60);
+            case "FirmwareUpdateDataInd":
+                return new TxPacket.FirmwareUpdateDataInd(seq(0x00, 20));
+            case "SetAutoDisconnectTimeInd":
+                return new TxPacket.SetAutoDisconnectTimeInd(300);
+            case "GetBatteryLevelRequest":
+                return new TxPacket.GetBatteryLevelRequest();
+            case "ForceBtDisconnectInd":
+                return new TxPacket.ForceBtDisconnectInd(true);
+            case "SetAdvParametersRequest": {
+                TxPacket.SetAdvParametersRequest p = new TxPacket.SetAdvParametersRequest();
+                p.isActive = true;
+                p.removeOtherPairingsAdvSettings = false;
+                p.withShortRange = true;
+                p.withLongRange = true;
+                p.advInterval0 = 160;
+                p.advInterval1 = (short)0xfff0;
+                p.timeoutSeconds = 3600;
+                return p;
+            }
+            case "SetHidMidiConfigDataInd":
+                return new TxPacket.SetHidMidiConfigDataInd(seq(0xf8, 10));
+            case "SetHidMidiConfigApplyRequest":
+                return new TxPacket.SetHidMidiConfigApplyRequest();
+            case "GetHidMidiConfigRequest":
+                return new TxPacket.GetHidMidiConfigRequest();
+            default:
+                throw new IllegalArgumentException(type);
+        }
+    }
+
+    // kind is the index in RX_VECTORS
+    private static Object rxPacket(int kind, RxPacket.ButtonEventNotificationDecoder buttonEvents, byte[] buf, int off, int len) throws RxPacket.UnexpectedEndOfPacketException {
+        switch (kind) {
+            case 0:
+                return new RxPacket.FullVerifyResponse1(buf, off, len);
+            case 1:
+                return new RxPacket.FullVerifyResponse2(buf, off, len);
+            case 2:
+                return new RxPacket.FullVerifyFailResponse(buf, off, len);
+            case 3:
+                return new RxPacket.TestIfReallyUnpairedResponse(buf, off, len);
+            case 4:
+                return new RxPacket.NoLogicalConnectionSlots(buf, off, len);
+            case 5:
+                return new RxPacket.QuickVerifyResponse(buf, off, len);
+            case 6:
+                return new RxPacket.QuickVerifyNegativeResponse(buf, off, len);
+            case 7:
+                return new RxPacket.InitButtonEventsResponse(buf, off, len, true);
+            case 8:
+                return new RxPacket.InitButtonEventsResponse(buf, off, len, false);
+            case 9:
+                return new RxPacket.NameUpdatedNotification(buf, off, len);
+            case 10:
+                return new RxPacket.GetSetNameResponse(buf, off, len);
+            case 11:
+                buttonEvents.decode(buf, off, len);
+                return buttonEvents;
+            case 12:
+                return new RxPacket.GetFirmwareVersionResponse(buf, off, len);
+            case 13:
+                return new RxPacket.StartFirmwareUpdateResponse(buf, off, len);
+            case 14:
+                return new RxPacket.FirmwareUpdateNotification(buf, off, len);
+            case 15:
+                return new RxPacket.GetBatteryLevelResponse(buf, off, len);
+            case 16:
+                return new RxPacket.SetHidMidiConfigApplyResponse(buf, off, len);
+            case 17:
+                return new RxPacket.GetHidMidiConfigDataInd(buf, off, len);
+            case 18:
+                return new RxPacket.GetHidMidiConfigDataResponse(buf, off, len);
+            default:
+                throw new IllegalArgumentException();
+        }
+    }
+
+    private static String describe(Object o) {
+        if (o instanceof RxPacket.FullVerifyResponse1) {
+            RxPacket.FullVerifyResponse1 p = (RxPacket.FullVerifyResponse1)o;
+            return p.tmpId + " " + hex(p.signature) + " " + hex(p.bdAddr) + " " + p.bdAddrType + " " + hex(p.publicKey) + " " + hex(p.random) + " " + p.linkIsEncrypted + " " + p.isInPublicMode + " " + p.hasBondInfo;
+        }
+        if (o instanceof RxPacket.FullVerifyResponse2) {
+            RxPacket.FullVerifyResponse2 p = (RxPacket.FullVerifyResponse2)o;
+            return p.appCredentialsMatch + " " + p.caresAboutAppCredentials + " " + hex(p.buttonUuid) + " " + p.name + " " + p.firmwareVersion + " " + p.batteryLevel + " " + p.serialNumber;
+        }
+        if (o instanceof RxPacket.FullVerifyFailResponse) {
+            return "" + ((RxPacket.FullVerifyFailResponse)o).reason;
+        }
+        if (o instanceof RxPacket.TestIfReallyUnpairedResponse) {
+            RxPacket.TestIfReallyUnpairedResponse p = (RxPacket.TestIfReallyUnpairedResponse)o;
+            return p.resultEquals(seq(0x80, 16)) + " " + p.resultEquals(seq(0x81, 16));
+        }
+        if (o instanceof RxPacket.NoLogicalConnectionSlots) {
+            return Arrays.toString(((RxPacket.NoLogicalConnectionSlots)o).tmpIds);
+        }
+        if (o instanceof RxPacket.QuickVerifyResponse) {
+            RxPacket.QuickVerifyResponse p = (RxPacket.QuickVerifyResponse)o;
+            return hex(p.random) + " " + p.tmpId;
+        }
+        if (o instanceof RxPacket.QuickVerifyNegativeResponse) {
+            return "" + ((RxPacket.QuickVerifyNegativeResponse)o).tmpId;
+        }
+        if (o instanceof RxPacket.InitButtonEventsResponse) {
+            RxPacket.InitButtonEventsResponse p = (RxPacket.InitButtonEventsResponse)o;
+            return p.hasQueuedEvents + " " + p.timestamp + " " + p.eventCount + " " + p.bootId;
+        }
+        if (o instanceof RxPacket.NameUpdatedNotification) {
+            return ((RxPacket.NameUpdatedNotification)o).name;
+        }
+        if (o instanceof RxPacket.GetSetNameResponse) {
+            RxPacket.GetSetNameResponse p = (RxPacket.GetSetNameResponse)o;
+            return p.timestampUtcMs + " " + p.name;
+        }
+        if (o instanceof RxPacket.ButtonEventNotificationDecoder) {
+            RxPacket.ButtonEventNotificationDecoder p = (RxPacket.ButtonEventNotificationDecoder)o;
+            StringBuilder sb = new StringBuilder().append(p.eventCounter);
+            for (int i = 0; i < p.count; i++) {
+                sb.append(' ').append(p.timestamps[i]).append('/').append(p.encoded[i]).append('/').append(p.wasQueued(i)).append('/').append(p.wasQueuedLast(i));
+            }
+            return sb.toString();
+        }
+        if (o instanceof RxPacket.GetFirmwareVersionResponse) {
+            return "" + ((RxPacket.GetFirmwareVersionResponse)o).version;
+        }
+        if (o instanceof RxPacket.StartFirmwareUpdateResponse) {
+            return "" + ((RxPacket.StartFirmwareUpdateResponse)o).startPos;
+        }
+        if (o instanceof RxPacket.FirmwareUpdateNotification) {
+            return "" + ((RxPacket.FirmwareUpdateNotification)o).pos;
+        }
+        if (o instanceof RxPacket.GetBatteryLevelResponse) {
+            return "" + ((RxPacket.GetBatteryLevelResponse)o).level;
+        }
+        if (o instanceof RxPacket.SetHidMidiConfigApplyResponse) {
+            return "" + ((RxPacket.SetHidMidiConfigApplyResponse)o).result;
+        }
+        if (o instanceof RxPacket.GetHidMidiConfigDataInd) {
+            return hex(((RxPacket.GetHidMidiConfigDataInd)o).data);
+        }
+        if (o instanceof RxPacket.GetHidMidiConfigDataResponse) {
+            return "" + ((RxPacket.GetHidMidiConfigDataResponse)o).result;
+        }
+        throw new IllegalArgumentException(o.getClass().getName());
+    }
+
+    static byte[] seq(int start, int n) {
+        byte[] b = new byte[n];
+        for (int i = 0; i < n; i++) {
+            b[i] = (byte)(start + i);
+        }
+        return b;
+    }
+
+    static byte[] hex(String s) {
+        byte[] out = new byte[s.length() / 2];
+        for (int i = 0; i < out.length; i++) {
+            out[i] = (byte)Integer.parseInt(s.substring(2 * i, 2 * i + 2), 16);
+        }
+        return out;
+    }
+
+    static String hex(byte[] b) {
+        StringBuilder sb = new StringBuilder();
+        for (byte x : b) {
+            sb.append(String.format("%02x", x & 0xff));
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,122 @@
+package io.flic.flic2libandroid;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.math.BigInteger;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+// Verifying n valid signatures one by one vs. as a batch. The signatures are made in setup with slow BigInteger
+// arithmetic, using the public key and base point stored as the last entries of the comb tables.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class BatchVerifyBenchmark {
+    private static final BigInteger P = BigInteger.ONE.shiftLeft(255).subtract(BigInteger.valueOf(19));
+    private static final BigInteger ORDER = new BigInteger("1000000000000000000000000000000014def9dea2f79cd65812631a5cf5d3ed", 16);
+    private static final BigInteger D = BigInteger.valueOf(-121665).multiply(BigInteger.valueOf(121666).modInverse(P)).mod(P);
+
+    @Param({"1", "4", "16", "64"})
+    public int n;
+
+    private byte[][] signatures;
+    private byte[][] hrams;
+    private int[] results;
+
+    @Setup
+    public void setup() {
+        Flic2Crypto.Comb comb = Flic2Crypto.getComb(4);
+        BigInteger[] a = affine(comb.tableA[comb.tableA.length - 1]);
+        BigInteger[] b = affine(comb.tableB[comb.tableB.length - 1]);
+        Random random = new Random(1);
+        signatures = new byte[n][];
+        hrams = new byte[n][64];
+        results = new int[n];
+        for (int k = 0; k < n; k++) {
+            random.nextBytes(hrams[k]);
+            BigInteger s = new BigInteger(252, random).mod(ORDER);
+            BigInteger h = fromLittleEndian(hrams[k]).mod(ORDER);
+            BigInteger[] r = add(multiply(b, s), multiply(a, ORDER.subtract(h)));
+            byte[] signature = new byte[64];
+            System.arraycopy(toLittleEndian(r[1]), 0, signature, 0, 32);
+            signature[31] |= r[0].testBit(0) ? 0x80 : 0;
+            System.arraycopy(toLittleEndian(s), 0, signature, 32, 32);
+            signatures[k] = signature;
+            if (Flic2Crypto.ed25519VerifyHram(signature, hrams[k]) != (s.intValue() & 3)) {
+                throw new IllegalStateException("generated signature does not verify");
+            }
+        }
+        if (!Flic2Crypto.ed25519VerifyHramBatch(signatures, hrams, results)) {
+            throw new IllegalStateException("batch verification failed");
+        }
+    }
+
+    @Benchmark
+    public int[] single() {
+        for (int k = 0; k < n; k++) {
+            results[k] = Flic2Crypto.ed25519VerifyHram(signatures[k], hrams[k]);
+        }
+        return results;
+    }
+
+    @Benchmark
+    public int[] batch() {
+        Flic2Crypto.ed25519VerifyHramBatch(signatures, hrams, results);
+        return results;
+    }
+
+    private static BigInteger[] affine(Flic2Crypto.Precomp p) {
+        BigInteger ypx = fromLittleEndian(Flic2Crypto.toBytes(p.YpX));
+        BigInteger ymx = fromLittleEndian(Flic2Crypto.toBytes(p.YmX));
+        BigInteger inv2 = BigInteger.valueOf(2).modInverse(P);
+        return new BigInteger[]{ypx.subtract(ymx).multiply(inv2).mod(P), ypx.add(ymx).multiply(inv2).mod(P)};
+    }
+
+    private static BigInteger[] add(BigInteger[] p, BigInteger[] q) {
+        BigInteger t = D.multiply(p[0]).multiply(q[0]).multiply(p[1]).multiply(q[1]).mod(P);
+        BigInteger x = p[0].multiply(q[1]).add(p[1].multiply(q[0])).multiply(BigInteger.ONE.add(t).modInverse(P)).mod(P);
+        BigInteger y = p[1].multiply(q[1]).add(p[0].multiply(q[0])).multiply(BigInteger.ONE.subtract(t).mod(P).modInverse(P)).mod(P);
+        return new BigInteger[]{x, y};
+    }
+
+    private static BigInteger[] multiply(BigInteger[] p, BigInteger k) {
+        BigInteger[] r = {BigInteger.ZERO, BigInteger.ONE};
+        for (int i = k.bitLength() - 1; i >= 0; i--) {
+            r = add(r, r);
+            if (k.testBit(i)) {
+                r = add(r, p);
+            }
+        }
+        return r;
+    }
+
+    private static BigInteger fromLittleEndian(byte[] b) {
+        byte[] bigEndian = new byte[b.length + 1];
+        for (int i = 0; i < b.length; i++) {
+            bigEndian[b.length - i] = b[i];
+        }
+        return new BigInteger(bigEndian);
+    }
+
+    private static byte[] toLittleEndian(BigInteger v) {
+        byte[] bigEndian = v.toByteArray();
+        byte[] out = new byte[32];
+        for (int i = 0; i < 32 && i < bigEndian.length; i++) {
+            out[i] = bigEndian[bigEndian.length - 1 - i];
+        }
+        return out;
+    }
+}
@@ -0,0 +1,92 @@
+package io.flic.flic2libandroid;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class ChaskeyBenchmark {
+    // Typical sizes: an ack, a button event notification with one event, a full GATT fragment and a large L2CAP packet
+    @Param({"5", "16", "19", "128"})
+    public int length;
+
+    private int[] keys;
+    private byte[] data;
+    private byte[] buf;
+    private byte[] block;
+    private byte[] out16;
+    private long counter;
+    private ChaskeyContext context;
+
+    @Setup
+    public void setup() {
+        Random random = new Random(1);
+        byte[] key = new byte[16];
+        random.nextBytes(key);
+        keys = Flic2Crypto.chaskeyGenerateSubkeys(key);
+        data = new byte[length];
+        random.nextBytes(data);
+        buf = new byte[length + 5];
+        System.arraycopy(data, 0, buf, 0, length);
+        block = new byte[16];
+        random.nextBytes(block);
+        out16 = new byte[16];
+        context = new ChaskeyContext(key);
+    }
+
+    @Benchmark
+    public byte[] chaskeyWithDirAndPacketCounter() {
+        return Flic2Crypto.chaskeyWithDirAndPacketCounter(keys, 0, counter++, data);
+    }
+
+    @Benchmark
+    public byte[] chaskeyWithDirAndPacketCounterInPlace() {
+        Flic2Crypto.chaskeyWithDirAndPacketCounter(keys, 0, counter++, buf, 0, length, buf, length);
+        return buf;
+    }
+
+    @Benchmark
+    public byte[] contextSign() {
+        context.sign(buf, 0, length, buf, length);
+        return buf;
+    }
+
+    @Benchmark
+    public long contextIncremental() {
+        context.start(ChaskeyContext.DIR_FROM_BUTTON, counter++);
+        context.update(data, 0, length);
+        return context.finish();
+    }
+
+    @Benchmark
+    public byte[] chaskey16Bytes() {
+        return Flic2Crypto.chaskey16Bytes(keys, block);
+    }
+
+    @Benchmark
+    public byte[] chaskey16BytesInPlace() {
+        Flic2Crypto.chaskey16Bytes(keys, block, out16, 0);
+        return out16;
+    }
+
+    @Benchmark
+    public int[] chaskeyGenerateSubkeys() {
+        return Flic2Crypto.chaskeyGenerateSubkeys(block);
+    }
+}
@@ -0,0 +1,56 @@
+package io.flic.flic2libandroid;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+// Verification speed per comb size. The tables take 2^(teeth - 1) + 1 entries of three field elements per point,
+// i.e. 9 entries for 4 teeth and 129 entries (generated at first use, see generateTable8) for 8 teeth.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class CombBenchmark {
+    @Param({"4", "8"})
+    public int teeth;
+
+    private Flic2Crypto.Comb comb;
+    private byte[] signature;
+    private byte[] hram;
+
+    @Setup
+    public void setup() {
+        comb = Flic2Crypto.getComb(teeth);
+        Random random = new Random(1);
+        signature = new byte[64];
+        random.nextBytes(signature);
+        signature[63] &= 0x0f;
+        hram = new byte[64];
+        random.nextBytes(hram);
+    }
+
+    @Benchmark
+    public int ed25519VerifyHram() {
+        return Flic2Crypto.ed25519VerifyHram(signature, hram, comb);
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.SingleShotTime)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public Flic2Crypto.Comb generateTable8() {
+        return Flic2Crypto.Comb.generate(8, Flic2Crypto.getComb(4));
+    }
+}
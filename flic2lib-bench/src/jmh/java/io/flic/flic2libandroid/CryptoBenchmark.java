@@ -0,0 +1,97 @@
+package io.flic.flic2libandroid;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class CryptoBenchmark {
+    private byte[] scalar;
+    private byte[] point;
+    private byte[] signature;
+    private byte[] message;
+    private byte[] hram;
+    private byte[] out = new byte[32];
+    private byte[] basePoint = new byte[32];
+    private Flic2Crypto.CurveScratch scratch = new Flic2Crypto.CurveScratch();
+    private Flic2Crypto.Comb comb;
+
+    @Setup
+    public void setup() {
+        Random random = new Random(1);
+        scalar = new byte[32];
+        random.nextBytes(scalar);
+        point = Flic2Crypto.curve25519Base(scalar);
+        random.nextBytes(scalar);
+
+        // Does not need to be a valid signature, the verification does the same amount of work anyway
+        signature = new byte[64];
+        random.nextBytes(signature);
+        signature[63] &= 0x0f;
+        message = new byte[16];
+        random.nextBytes(message);
+        hram = new byte[64];
+        random.nextBytes(hram);
+        comb = Flic2Crypto.getComb(Flic2Crypto.ed25519CombTeeth);
+        basePoint[0] = 9;
+    }
+
+    @Benchmark
+    public byte[] curve25519() {
+        return Flic2Crypto.curve25519(point, scalar);
+    }
+
+    @Benchmark
+    public byte[] curve25519Base() {
+        return Flic2Crypto.curve25519Base(scalar);
+    }
+
+    @Benchmark
+    public int ed25519Verify() {
+        return Flic2Crypto.ed25519Verify(signature, message);
+    }
+
+    @Benchmark
+    public int ed25519VerifyHram() {
+        return Flic2Crypto.ed25519VerifyHram(signature, hram);
+    }
+
+    @Benchmark
+    public byte[] curve25519Scratch() {
+        Flic2Crypto.curve25519(out, 0, point, scalar, scratch);
+        return out;
+    }
+
+    @Benchmark
+    public byte[] curve25519BaseScratch() {
+        Flic2Crypto.curve25519Base(out, 0, scalar, scratch);
+        return out;
+    }
+
+    // The generic ladder with u = 9, which curve25519Base used before the fixed-base comb
+    @Benchmark
+    public byte[] curve25519BaseLadder() {
+        Flic2Crypto.curve25519(out, 0, basePoint, scalar, scratch);
+        return out;
+    }
+
+    @Benchmark
+    public int ed25519VerifyHramScratch() {
+        return Flic2Crypto.ed25519VerifyHram(signature, hram, comb, scratch);
+    }
+}
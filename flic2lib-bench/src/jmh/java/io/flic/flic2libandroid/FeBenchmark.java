@@ -0,0 +1,68 @@
+package io.flic.flic2libandroid;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class FeBenchmark {
+    private Flic2Crypto.Fe f = new Flic2Crypto.Fe();
+    private Flic2Crypto.Fe g = new Flic2Crypto.Fe();
+    private Flic2Crypto.Fe out = new Flic2Crypto.Fe();
+    private Flic2Crypto.CurveScratch scratch = new Flic2Crypto.CurveScratch();
+
+    @Setup
+    public void setup() {
+        Random random = new Random(1);
+        byte[] bytes = new byte[32];
+        random.nextBytes(bytes);
+        Flic2Crypto.fromBytes(f, bytes);
+        random.nextBytes(bytes);
+        Flic2Crypto.fromBytes(g, bytes);
+    }
+
+    @Benchmark
+    public Flic2Crypto.Fe mul() {
+        Flic2Crypto.mul(out, f, g);
+        return out;
+    }
+
+    @Benchmark
+    public Flic2Crypto.Fe sqr() {
+        Flic2Crypto.sqr(out, f);
+        return out;
+    }
+
+    @Benchmark
+    public Flic2Crypto.Fe invert() {
+        Flic2Crypto.pow(out, f, false);
+        return out;
+    }
+
+    @Benchmark
+    public Flic2Crypto.Fe invertSafegcd() {
+        Flic2Crypto.invertSafegcd(out, f, scratch);
+        return out;
+    }
+
+    @Benchmark
+    public Flic2Crypto.Fe sqrt() {
+        Flic2Crypto.pow(out, f, true);
+        return out;
+    }
+}
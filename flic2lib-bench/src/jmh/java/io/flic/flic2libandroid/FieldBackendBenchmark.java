@@ -0,0 +1,110 @@
+package io.flic.flic2libandroid;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+// The 10 limb and the 5 limb field arithmetic, and curve25519 using each of them
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class FieldBackendBenchmark {
+    @Param({"fe25", "fe51"})
+    public String backend;
+
+    private Ops<?> ops;
+    private FieldBackend<?> previousBackend;
+    private byte[] point;
+    private byte[] scalar;
+    private byte[] out;
+
+    private static class Ops<E> {
+        final FieldBackend<E> fb;
+        final E[] t;
+
+        Ops(FieldBackend<E> fb, byte[] f, byte[] g) {
+            this.fb = fb;
+            t = fb.newElements(7);
+            fb.fromBytes(t[0], f);
+            fb.fromBytes(t[1], g);
+        }
+
+        Object mul() {
+            fb.mul(t[2], t[0], t[1]);
+            return t[2];
+        }
+
+        Object sqr() {
+            fb.sqr(t[2], t[0]);
+            return t[2];
+        }
+
+        Object invert() {
+            fb.pow(t[2], t[0], false, t[3], t[4], t[5], t[6]);
+            return t[2];
+        }
+    }
+
+    @Setup
+    public void setup() {
+        FieldBackend<?> fb = backend.equals("fe51") ? Fe51Backend.INSTANCE : Flic2Crypto.fe25Backend;
+        if (!FieldBackend.selfTest(fb)) {
+            throw new IllegalStateException(backend + " does not pass the test vectors");
+        }
+        Random random = new Random(1);
+        byte[] f = new byte[32];
+        byte[] g = new byte[32];
+        random.nextBytes(f);
+        random.nextBytes(g);
+        ops = new Ops<>(fb, f, g);
+
+        point = new byte[32];
+        scalar = new byte[32];
+        out = new byte[32];
+        random.nextBytes(point);
+        random.nextBytes(scalar);
+        previousBackend = Flic2Crypto.getFieldBackend();
+        Flic2Crypto.setFieldBackend(fb);
+    }
+
+    @TearDown
+    public void tearDown() {
+        Flic2Crypto.setFieldBackend(previousBackend);
+    }
+
+    @Benchmark
+    public Object mul() {
+        return ops.mul();
+    }
+
+    @Benchmark
+    public Object sqr() {
+        return ops.sqr();
+    }
+
+    @Benchmark
+    public Object invert() {
+        return ops.invert();
+    }
+
+    @Benchmark
+    public byte[] curve25519() {
+        Flic2Crypto.curve25519(out, 0, point, scalar, Flic2Crypto.getThreadScratch());
+        return out;
+    }
+}
@@ -0,0 +1,110 @@
+package io.flic.flic2libandroid;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+// The hashing done for a full verify, apart from the curve operations: the SHA-512 of the signature check, the
+// SHA-256 of the shared secret and the HMACs for the verifier (AT), session key (SK) and pairing token (PT).
+// getInstance looks up every instance as Utils used to, cached clones them via CryptoCache.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class KeyScheduleBenchmark {
+    private byte[] sharedSecret;
+    private byte[] random;
+    private byte[] signedData;
+    private byte[] pairingKey;
+
+    @Setup
+    public void setup() throws GeneralSecurityException {
+        Random r = new Random(1);
+        sharedSecret = new byte[32];
+        random = new byte[8];
+        signedData = new byte[51];
+        pairingKey = new byte[16];
+        r.nextBytes(sharedSecret);
+        r.nextBytes(random);
+        r.nextBytes(signedData);
+        r.nextBytes(pairingKey);
+
+        if (!Arrays.equals(getInstance(), cached())) {
+            throw new IllegalStateException("cached instances give a different result");
+        }
+    }
+
+    @Benchmark
+    public byte[] getInstance() throws GeneralSecurityException {
+        MessageDigest sha512 = MessageDigest.getInstance("SHA-512");
+        sha512.update(signedData);
+        byte[] hram = sha512.digest();
+
+        MessageDigest sha256 = MessageDigest.getInstance("SHA-256");
+        sha256.update(sharedSecret);
+        sha256.update(random);
+        byte[] fullVerifySharedSecret = sha256.digest();
+
+        Mac hmac = Mac.getInstance("HmacSHA256");
+        hmac.init(new SecretKeySpec(fullVerifySharedSecret, "HmacSHA256"));
+        byte[] verifier = hmac.doFinal(new byte[]{'A', 'T'});
+        hmac = Mac.getInstance("HmacSHA256");
+        hmac.init(new SecretKeySpec(fullVerifySharedSecret, "HmacSHA256"));
+        byte[] sessionKey = hmac.doFinal(new byte[]{'S', 'K'});
+        hmac = Mac.getInstance("HmacSHA256");
+        hmac.init(new SecretKeySpec(fullVerifySharedSecret, "HmacSHA256"));
+        hmac.update(new byte[]{'P', 'T'});
+        hmac.update(pairingKey);
+        byte[] pairingToken = hmac.doFinal();
+
+        return combine(hram, verifier, sessionKey, pairingToken);
+    }
+
+    @Benchmark
+    public byte[] cached() {
+        MessageDigest sha512 = CryptoCache.sha512();
+        sha512.update(signedData);
+        byte[] hram = sha512.digest();
+
+        MessageDigest sha256 = CryptoCache.sha256();
+        sha256.update(sharedSecret);
+        sha256.update(random);
+        byte[] fullVerifySharedSecret = sha256.digest();
+
+        byte[] verifier = CryptoCache.hmacSha256(fullVerifySharedSecret).doFinal(new byte[]{'A', 'T'});
+        byte[] sessionKey = CryptoCache.hmacSha256(fullVerifySharedSecret).doFinal(new byte[]{'S', 'K'});
+        Mac hmac = CryptoCache.hmacSha256(fullVerifySharedSecret);
+        hmac.update(new byte[]{'P', 'T'});
+        hmac.update(pairingKey);
+        byte[] pairingToken = hmac.doFinal();
+
+        return combine(hram, verifier, sessionKey, pairingToken);
+    }
+
+    private static byte[] combine(byte[] hram, byte[] verifier, byte[] sessionKey, byte[] pairingToken) {
+        byte[] out = new byte[hram.length + verifier.length + sessionKey.length + pairingToken.length];
+        System.arraycopy(hram, 0, out, 0, hram.length);
+        System.arraycopy(verifier, 0, out, hram.length, verifier.length);
+        System.arraycopy(sessionKey, 0, out, hram.length + verifier.length, sessionKey.length);
+        System.arraycopy(pairingToken, 0, out, hram.length + verifier.length + sessionKey.length, pairingToken.length);
+        return out;
+    }
+}
@@ -0,0 +1,112 @@
+package io.flic.flic2libandroid;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class PacketBenchmark {
+    @Param({"1", "4", "17"})
+    public int eventCount;
+
+    private TxPacket ack;
+    private TxPacket initButtonEvents;
+    private TxPacket setName;
+    private byte[] buttonEventNotification;
+    private ChaskeyContext chaskey;
+    private byte[] txFrame;
+    private RxPacket.ButtonEventNotificationDecoder buttonEvents;
+    private byte[] initButtonEventsResponse;
+
+    @Setup
+    public void setup() {
+        ack = new TxPacket.AckButtonEvents(1234);
+        TxPacket.InitButtonEventsLightRequest init = new TxPacket.InitButtonEventsLightRequest();
+        init.eventCount = 1234;
+        init.bootId = 0x12345678;
+        init.autoDisconnectTime = 511;
+        init.maxQueuedPackets = 31;
+        init.maxQueuedPacketsAge = 0xfffff;
+        initButtonEvents = init;
+        setName = new TxPacket.SetNameRequest(1600000000000L, false, "My Flic");
+
+        // Opcode, event counter, 7-byte items and signature, as received
+        buttonEventNotification = new byte[1 + 4 + 7 * eventCount + 5];
+        new Random(1).nextBytes(buttonEventNotification);
+        buttonEventNotification[0] = 12;
+
+        chaskey = new ChaskeyContext(new byte[16]);
+        txFrame = new byte[1 + TxPacket.MAX_LENGTH + 5];
+        buttonEvents = new RxPacket.ButtonEventNotificationDecoder();
+
+        // Queued events flag and 47-bit timestamp, event count and boot id
+        initButtonEventsResponse = new byte[6 + 4 + 4];
+        new Random(2).nextBytes(initButtonEventsResponse);
+    }
+
+    @Benchmark
+    public byte[] ackButtonEvents() {
+        return ack.getBytes();
+    }
+
+    @Benchmark
+    public byte[] initButtonEventsLightRequest() {
+        return initButtonEvents.getBytes();
+    }
+
+    @Benchmark
+    public int initButtonEventsLightRequestInPlace() {
+        return initButtonEvents.writeTo(txFrame, 1);
+    }
+
+    @Benchmark
+    public byte[] setNameRequest() {
+        return setName.getBytes();
+    }
+
+    // What sendSignedPacket and sendPacket did before packets were written directly into the frame
+    @Benchmark
+    public byte[] signedFrameCopying() {
+        byte[] pkt = setName.getBytes();
+        byte[] signedPkt = Arrays.copyOf(pkt, pkt.length + 5);
+        chaskey.sign(signedPkt, 0, pkt.length, signedPkt, pkt.length);
+        byte[] frame = new byte[1 + signedPkt.length];
+        System.arraycopy(signedPkt, 0, frame, 1, signedPkt.length);
+        return frame;
+    }
+
+    @Benchmark
+    public byte[] signedFrame() {
+        int len = setName.writeTo(txFrame, 1);
+        chaskey.sign(txFrame, 1, len, txFrame, 1 + len);
+        return Arrays.copyOf(txFrame, 1 + len + 5);
+    }
+
+    @Benchmark
+    public RxPacket.InitButtonEventsResponse initButtonEventsResponse() throws RxPacket.UnexpectedEndOfPacketException {
+        return new RxPacket.InitButtonEventsResponse(initButtonEventsResponse, 0, initButtonEventsResponse.length, true);
+    }
+
+    @Benchmark
+    public RxPacket.ButtonEventNotificationDecoder buttonEventNotification() throws RxPacket.UnexpectedEndOfPacketException {
+        buttonEvents.decode(buttonEventNotification, 1, buttonEventNotification.length - 1 - 5);
+        return buttonEvents;
+    }
+}
@@ -0,0 +1,279 @@
+package io.flic.flic2libandroid;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+// Encode and decode time per packet type. The golden vectors and the truncated and random inputs are checked by
+// PacketCodecTest in flic2lib-android.
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class PacketCodecBenchmark {
+    // Type and packet without opcode and signature
+    private static final String[][] RX_VECTORS = {
+            {"FullVerifyResponse1", "000102030405060708090a0b0c0d0e0f101112131415161718191a1b1c1d1e1f202122232425262728292a2b2c2d2e2f303132333435363738393a3b3c3d3e3f404142434445464748494a4b4c4d4e4f505152535455565758595a5b5c5d5e5f606162636465666768696a6b6c6d6e6f70717207"},
+            {"FullVerifyResponse2", "01a0a1a2a3a4a5a6a7a8a9aaabacadaeaf04466c6963000000000000000000000000000000000000001c0000009a0b424331322d443334353637"},
+            {"FullVerifyFailResponse", "01"},
+            {"TestIfReallyUnpairedResponse", "808182838485868788898a8b8c8d8e8f"},
+            {"NoLogicalConnectionSlots", "78563412efcdab8901000000ffff"},
+            {"QuickVerifyResponse", "111213141516171804030201"},
+            {"QuickVerifyNegativeResponse", "fdffffff"},
+            {"InitButtonEventsResponseWithBootId", "a5f00d1234abe803000078563412"},
+            {"InitButtonEventsResponseWithoutBootId", "22334455667f05000000"},
+            {"NameUpdatedNotification", "466c6963203220c3a5c3a4c3b6"},
+            {"GetSetNameResponse", "00e4ff1234564d7920627574746f6e"},
+            {"ButtonEventNotification", "090000000010000000000133221100ff7f28010203040506f9abcd"},
+            {"GetFirmwareVersionResponse", "0a000000"},
+            {"StartFirmwareUpdateResponse", "feffffff"},
+            {"FirmwareUpdateNotification", "00100000"},
+            {"GetBatteryLevelResponse", "7f03"},
+            {"SetHidMidiConfigApplyResponse", "02"},
+            {"GetHidMidiConfigDataInd", "404142434445464748494a4b"},
+            {"GetHidMidiConfigDataResponse", "00"},
+    };
+
+    @State(Scope.Thread)
+    public static class Tx {
+        @Param({"FullVerifyRequest1", "FullVerifyRequest2WithAppToken", "FullVerifyRequest2WithoutAppToken",
+                "QuickVerifyRequest", "TestIfReallyUnpairedRequest", "InitButtonEventsLightRequest", "AckButtonEvents",
+                "SetConnectionParametersInd", "GetFirmwareVersionRequest", "DisconnectVerifiedLinkInd", "GetNameRequest",
+                "SetNameRequest", "PingResponse", "StartFirmwareUpdateRequest", "FirmwareUpdateDataInd",
+                "SetAutoDisconnectTimeInd", "GetBatteryLevelRequest", "ForceBtDisconnectInd", "SetAdvParametersRequest",
+                "SetHidMidiConfigDataInd", "SetHidMidiConfigApplyRequest", "GetHidMidiConfigRequest"})
+        public String type;
+
+        TxPacket packet;
+        final byte[] frame = new byte[1 + TxPacket.MAX_LENGTH + 5];
+
+        @Setup
+        public void setup() {
+            packet = txPacket(type);
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Rx {
+        @Param({"FullVerifyResponse1", "FullVerifyResponse2", "FullVerifyFailResponse", "TestIfReallyUnpairedResponse",
+                "NoLogicalConnectionSlots", "QuickVerifyResponse", "QuickVerifyNegativeResponse",
+                "InitButtonEventsResponseWithBootId", "InitButtonEventsResponseWithoutBootId", "NameUpdatedNotification",
+                "GetSetNameResponse", "ButtonEventNotification", "GetFirmwareVersionResponse",
+                "StartFirmwareUpdateResponse", "FirmwareUpdateNotification", "GetBatteryLevelResponse",
+                "SetHidMidiConfigApplyResponse", "GetHidMidiConfigDataInd", "GetHidMidiConfigDataResponse"})
+        public String type;
+
+        int kind;
+        byte[] frame;
+        int len;
+        final RxPacket.ButtonEventNotificationDecoder buttonEvents = new RxPacket.ButtonEventNotificationDecoder();
+
+        @Setup
+        public void setup() {
+            kind = index(RX_VECTORS, type);
+            byte[] pkt = hex(RX_VECTORS[kind][1]);
+            len = pkt.length;
+
+            // Opcode before and signature after, as when parsing in place from a received frame
+            frame = new byte[1 + len + 5];
+            new Random(1).nextBytes(frame);
+            System.arraycopy(pkt, 0, frame, 1, len);
+        }
+    }
+
+    @Benchmark
+    public int encode(Tx tx) {
+        return tx.packet.writeTo(tx.frame, 1);
+    }
+
+    @Benchmark
+    public Object decode(Rx rx) throws RxPacket.UnexpectedEndOfPacketException {
+        return rxPacket(rx, rx.frame, 1, rx.len);
+    }
+
+    private static TxPacket txPacket(String type) {
+        switch (type) {
+            case "FullVerifyRequest1":
+                return new TxPacket.FullVerifyRequest1(0x12345678);
+            case "FullVerifyRequest2WithAppToken": {
+                TxPacket.FullVerifyRequest2WithAppToken p = new TxPacket.FullVerifyRequest2WithAppToken();
+                p.ecdhPublicKey = seq(0x10, 32);
+                p.randomBytes = seq(0x40, 8);
+                p.signatureVariant = 5;
+                p.encryptionVariant = 2;
+                p.mustValidateAppToken = true;
+                p.encryptedAppToken = seq(0x50, 16);
+                p.verifier = seq(0x70, 16);
+                return p;
+            }
+            case "FullVerifyRequest2WithoutAppToken": {
+                TxPacket.FullVerifyRequest2WithoutAppToken p = new TxPacket.FullVerifyRequest2WithoutAppToken();
+                p.ecdhPublicKey = seq(0x90, 32);
+                p.randomBytes = seq(0xc0, 8);
+                p.signatureVariant = 7;
+                p.encryptionVariant = 1;
+                p.mustValidateAppToken = false;
+                p.verifier = seq(0xd0, 16);
+                return p;
+            }
+            case "QuickVerifyRequest": {
+                TxPacket.QuickVerifyRequest p = new TxPacket.QuickVerifyRequest();
+                p.random = seq(0x21, 7);
+                p.signatureVariant = 3;
+                p.encryptionVariant = 6;
+                p.tmpId = 0x89abcdef;
+                p.pairingId = 0x01020304;
+                return p;
+            }
+            case "TestIfReallyUnpairedRequest": {
+                TxPacket.TestIfReallyUnpairedRequest p = new TxPacket.TestIfReallyUnpairedRequest();
+                p.ecdhPublicKey = seq(0xe0, 32);
+                p.randomBytes = seq(0x08, 8);
+                p.pairingId = -2;
+                p.pairingToken = seq(0x30, 16);
+                return p;
+            }
+            case "InitButtonEventsLightRequest": {
+                TxPacket.InitButtonEventsLightRequest p = new TxPacket.InitButtonEventsLightRequest();
+                p.eventCount = 1234;
+                p.bootId = 0x12345678;
+                p.autoDisconnectTime = 511;
+                p.maxQueuedPackets = 31;
+                p.maxQueuedPacketsAge = 0xfffff;
+                return p;
+            }
+            case "AckButtonEvents":
+                return new TxPacket.AckButtonEvents(0x01020304);
+            case "SetConnectionParametersInd": {
+                TxPacket.SetConnectionParametersInd p = new TxPacket.SetConnectionParametersInd();
+                p.intvMin = 6;
+                p.intvMax = 12;
+                p.latency = 17;
+                p.timeout = (short)0x8001;
+                return p;
+            }
+            case "GetFirmwareVersionRequest":
+                return new TxPacket.GetFirmwareVersionRequest();
+            case "DisconnectVerifiedLinkInd":
+                return new TxPacket.DisconnectVerifiedLinkInd();
+            case "GetNameRequest":
+                return new TxPacket.GetNameRequest();
+            case "SetNameRequest":
+                return new TxPacket.SetNameRequest(1600000000123L, true, "Flic \u00e5\u00e4\u00f6");
+            case "PingResponse":
+                return new TxPacket.PingResponse();
+            case "StartFirmwareUpdateRequest":
+                return new TxPacket.StartFirmwareUpdateRequest(12345, seq(0x60, 8), 60);
+            case "FirmwareUpdateDataInd":
+                return new TxPacket.FirmwareUpdateDataInd(seq(0x00, 20));
+            case "SetAutoDisconnectTimeInd":
+                return new TxPacket.SetAutoDisconnectTimeInd(300);
+            case "GetBatteryLevelRequest":
+                return new TxPacket.GetBatteryLevelRequest();
+            case "ForceBtDisconnectInd":
+                return new TxPacket.ForceBtDisconnectInd(true);
+            case "SetAdvParametersRequest": {
+                TxPacket.SetAdvParametersRequest p = new TxPacket.SetAdvParametersRequest();
+                p.isActive = true;
+                p.removeOtherPairingsAdvSettings = false;
+                p.withShortRange = true;
+                p.withLongRange = true;
+                p.advInterval0 = 160;
+                p.advInterval1 = (short)0xfff0;
+                p.timeoutSeconds = 3600;
+                return p;
+            }
+            case "SetHidMidiConfigDataInd":
+                return new TxPacket.SetHidMidiConfigDataInd(seq(0xf8, 10));
+            case "SetHidMidiConfigApplyRequest":
+                return new TxPacket.SetHidMidiConfigApplyRequest();
+            case "GetHidMidiConfigRequest":
+                return new TxPacket.GetHidMidiConfigRequest();
+            default:
+                throw new IllegalArgumentException(type);
+        }
+    }
+
+    private static Object rxPacket(Rx rx, byte[] buf, int off, int len) throws RxPacket.UnexpectedEndOfPacketException {
+        switch (rx.kind) {
+            case 0:
+                return new RxPacket.FullVerifyResponse1(buf, off, len);
+            case 1:
+                return new RxPacket.FullVerifyResponse2(buf, off, len);
+            case 2:
+                return new RxPacket.FullVerifyFailResponse(buf, off, len);
+            case 3:
+                return new RxPacket.TestIfReallyUnpairedResponse(buf, off, len);
+            case 4:
+                return new RxPacket.NoLogicalConnectionSlots(buf, off, len);
+            case 5:
+                return new RxPacket.QuickVerifyResponse(buf, off, len);
+            case 6:
+                return new RxPacket.QuickVerifyNegativeResponse(buf, off, len);
+            case 7:
+                return new RxPacket.InitButtonEventsResponse(buf, off, len, true);
+            case 8:
+                return new RxPacket.InitButtonEventsResponse(buf, off, len, false);
+            case 9:
+                return new RxPacket.NameUpdatedNotification(buf, off, len);
+            case 10:
+                return new RxPacket.GetSetNameResponse(buf, off, len);
+            case 11:
+                rx.buttonEvents.decode(buf, off, len);
+                return rx.buttonEvents;
+            case 12:
+                return new RxPacket.GetFirmwareVersionResponse(buf, off, len);
+            case 13:
+                return new RxPacket.StartFirmwareUpdateResponse(buf, off, len);
+            case 14:
+                return new RxPacket.FirmwareUpdateNotification(buf, off, len);
+            case 15:
+                return new RxPacket.GetBatteryLevelResponse(buf, off, len);
+            case 16:
+                return new RxPacket.SetHidMidiConfigApplyResponse(buf, off, len);
+            case 17:
+                return new RxPacket.GetHidMidiConfigDataInd(buf, off, len);
+            case 18:
+                return new RxPacket.GetHidMidiConfigDataResponse(buf, off, len);
+            default:
+                throw new IllegalArgumentException();
+        }
+    }
+
+    private static int index(String[][] vectors, String type) {
+        for (int i = 0; i < vectors.length; i++) {
+            if (vectors[i][0].equals(type)) {
+                return i;
+            }
+        }
+        throw new IllegalArgumentException(type);
+    }
+
+    private static byte[] seq(int start, int n) {
+        byte[] b = new byte[n];
+        for (int i = 0; i < n; i++) {
+            b[i] = (byte)(start + i);
+        }
+        return b;
+    }
+
+    private static byte[] hex(String s) {
+        byte[] out = new byte[s.length() / 2];
+        for (int i = 0; i < out.length; i++) {
+            out[i] = (byte)Integer.parseInt(s.substring(2 * i, 2 * i + 2), 16);
+        }
+        return out;
+    }
+}
@@ -0,0 +1,193 @@
+package io.flic.flic2libandroid;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+// The receive path of an established session for a batch of signed packets: verify the signature, find the handler
+// for the opcode and decode. Session.onData itself depends on the Android framework, so its dispatch is mirrored here,
+// once as the previous chain of opcode and state tests and once as the per-state handler table.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class RxDecodeBenchmark {
+    private static final int STATE_WAIT_FULL_VERIFY1 = 0;
+    private static final int STATE_WAIT_FULL_VERIFY2 = 2;
+    private static final int STATE_WAIT_QUICK_VERIFY = 3;
+    private static final int STATE_SESSION_ESTABLISHED = 4;
+    private static final int STATE_WAIT_FULL_VERIFY1_TEST_UNPAIRED = 5;
+    private static final int STATE_WAIT_TEST_IF_REALLY_UNPAIRED_RESPONSE = 6;
+
+    private static final int PACKETS = 64;
+
+    private abstract static class RxHandler {
+        abstract long onPacket(byte[] pktWithOpcode, int pktLen) throws RxPacket.UnexpectedEndOfPacketException;
+    }
+
+    private byte[][] frames;
+    private ChaskeyContext chaskey;
+    private RxPacket.ButtonEventNotificationDecoder buttonEvents;
+    private RxHandler[][] rxHandlers;
+    private int state = STATE_SESSION_ESTABLISHED;
+    private int connId = 1;
+
+    // Mostly button events with 1 to 4 items, then pings and battery level responses
+    @Setup
+    public void setup() {
+        Random random = new Random(1);
+        byte[] key = new byte[16];
+        random.nextBytes(key);
+        int[] keys = Flic2Crypto.chaskeyGenerateSubkeys(key);
+        chaskey = new ChaskeyContext(key);
+        buttonEvents = new RxPacket.ButtonEventNotificationDecoder();
+        frames = new byte[PACKETS][];
+        for (int i = 0; i < PACKETS; i++) {
+            int kind = random.nextInt(20);
+            byte[] frame;
+            if (kind < 15) {
+                frame = new byte[1 + 4 + 7 * (1 + random.nextInt(4)) + 5];
+                random.nextBytes(frame);
+                frame[0] = RxPacket.BUTTON_NOTIFICATION;
+            } else if (kind < 18) {
+                frame = new byte[1 + 5];
+                frame[0] = RxPacket.PING_REQUEST;
+            } else {
+                frame = new byte[1 + 2 + 5];
+                random.nextBytes(frame);
+                frame[0] = RxPacket.GET_BATTERY_LEVEL_RESPONSE;
+            }
+            Flic2Crypto.chaskeyWithDirAndPacketCounter(keys, ChaskeyContext.DIR_FROM_BUTTON, i, frame, 0, frame.length - 5, frame, frame.length - 5);
+            frames[i] = frame;
+        }
+
+        RxHandler[] handlers = new RxHandler[RxPacket.OPCODE_COUNT];
+        handlers[RxPacket.BUTTON_NOTIFICATION] = new RxHandler() {
+            @Override
+            long onPacket(byte[] pktWithOpcode, int pktLen) throws RxPacket.UnexpectedEndOfPacketException {
+                return buttonNotification(pktWithOpcode, pktLen);
+            }
+        };
+        handlers[RxPacket.PING_REQUEST] = new RxHandler() {
+            @Override
+            long onPacket(byte[] pktWithOpcode, int pktLen) {
+                return 1;
+            }
+        };
+        handlers[RxPacket.GET_BATTERY_LEVEL_RESPONSE] = new RxHandler() {
+            @Override
+            long onPacket(byte[] pktWithOpcode, int pktLen) throws RxPacket.UnexpectedEndOfPacketException {
+                return batteryLevel(pktWithOpcode, pktLen);
+            }
+        };
+        rxHandlers = new RxHandler[STATE_WAIT_TEST_IF_REALLY_UNPAIRED_RESPONSE + 1][];
+        rxHandlers[STATE_SESSION_ESTABLISHED] = handlers;
+    }
+
+    @Benchmark
+    public long ifChain() throws RxPacket.UnexpectedEndOfPacketException {
+        chaskey.rxCounter = 0;
+        long sum = 0;
+        for (byte[] pktWithOpcode : frames) {
+            int opcode = pktWithOpcode[0] & 0xff;
+            int pktLen = pktWithOpcode.length - 1;
+            if (opcode == RxPacket.NO_LOGICAL_CONNECTION_SLOTS && (state == STATE_WAIT_FULL_VERIFY1 || state == STATE_WAIT_FULL_VERIFY1_TEST_UNPAIRED || state == STATE_WAIT_QUICK_VERIFY)) {
+                continue;
+            }
+            if (opcode == RxPacket.FULL_VERIFY_RESPONSE_1 && (state == STATE_WAIT_FULL_VERIFY1 || state == STATE_WAIT_FULL_VERIFY1_TEST_UNPAIRED)) {
+                continue;
+            }
+            if (state == STATE_WAIT_QUICK_VERIFY) {
+                continue;
+            }
+            if (connId == 0) {
+                continue;
+            }
+            if (opcode == RxPacket.FULL_VERIFY_RESPONSE_2 && state == STATE_WAIT_FULL_VERIFY2) {
+                continue;
+            }
+            if (opcode == RxPacket.FULL_VERIFY_FAIL_RESPONSE && state == STATE_WAIT_FULL_VERIFY2) {
+                continue;
+            }
+            if (opcode == RxPacket.TEST_IF_REALLY_UNPAIRED_RESPONSE && state == STATE_WAIT_TEST_IF_REALLY_UNPAIRED_RESPONSE) {
+                continue;
+            }
+            if (state != STATE_SESSION_ESTABLISHED || pktLen < 5 || !verify(pktWithOpcode)) {
+                continue;
+            }
+            pktLen -= 5;
+            if (opcode == RxPacket.INIT_BUTTON_EVENTS_RESPONSE_WITH_BOOT_ID || opcode == RxPacket.INIT_BUTTON_EVENTS_RESPONSE_WITHOUT_BOOT_ID) {
+                continue;
+            }
+            if (opcode == RxPacket.BUTTON_NOTIFICATION) {
+                sum += buttonNotification(pktWithOpcode, pktLen);
+                continue;
+            }
+            if (opcode == RxPacket.PING_REQUEST) {
+                sum += 1;
+                continue;
+            }
+            if (opcode == RxPacket.GET_FIRMWARE_VERSION_RESPONSE || opcode == RxPacket.START_FIRMWARE_UPDATE_RESPONSE || opcode == RxPacket.FIRMWARE_UPDATE_NOTIFICATION) {
+                continue;
+            }
+            if (opcode == RxPacket.GET_BATTERY_LEVEL_RESPONSE && pktLen >= 2) {
+                sum += batteryLevel(pktWithOpcode, pktLen);
+            }
+        }
+        return sum;
+    }
+
+    @Benchmark
+    public long table() throws RxPacket.UnexpectedEndOfPacketException {
+        chaskey.rxCounter = 0;
+        long sum = 0;
+        for (byte[] pktWithOpcode : frames) {
+            int opcode = pktWithOpcode[0] & 0xff;
+            int pktLen = pktWithOpcode.length - 1;
+            RxHandler[] handlers = rxHandlers[state];
+            if (handlers == null || connId == 0) {
+                continue;
+            }
+            if (state == STATE_SESSION_ESTABLISHED) {
+                if (pktLen < 5 || !verify(pktWithOpcode)) {
+                    continue;
+                }
+                pktLen -= 5;
+            }
+            RxHandler handler = opcode < handlers.length ? handlers[opcode] : null;
+            if (handler != null) {
+                sum += handler.onPacket(pktWithOpcode, pktLen);
+            }
+        }
+        return sum;
+    }
+
+    private boolean verify(byte[] pktWithOpcode) {
+        int len = pktWithOpcode.length - 5;
+        if (!chaskey.verify(pktWithOpcode, 0, len, pktWithOpcode, len)) {
+            throw new IllegalStateException("signature mismatch");
+        }
+        return true;
+    }
+
+    private long buttonNotification(byte[] pktWithOpcode, int pktLen) throws RxPacket.UnexpectedEndOfPacketException {
+        buttonEvents.decode(pktWithOpcode, 1, pktLen);
+        return buttonEvents.timestamps[buttonEvents.count - 1] + buttonEvents.encoded[0];
+    }
+
+    private long batteryLevel(byte[] pktWithOpcode, int pktLen) throws RxPacket.UnexpectedEndOfPacketException {
+        return new RxPacket.GetBatteryLevelResponse(pktWithOpcode, 1, pktLen).level;
+    }
+}
@@ -0,0 +1,63 @@
+package io.flic.flic2libandroid;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.math.BigInteger;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class ScalarBenchmark {
+    private static final BigInteger ORDER = new BigInteger("1000000000000000000000000000000014def9dea2f79cd65812631a5cf5d3ed", 16);
+
+    private byte[] hram;
+    private byte[] out;
+
+    @Setup
+    public void setup() {
+        hram = new byte[64];
+        new Random(1).nextBytes(hram);
+        out = new byte[32];
+
+        Flic2Crypto.scReduce(out, hram);
+        if (!Arrays.equals(out, bigIntegerReduce())) {
+            throw new IllegalStateException("scReduce does not match BigInteger reduction");
+        }
+    }
+
+    @Benchmark
+    public byte[] scReduce() {
+        Flic2Crypto.scReduce(out, hram);
+        return out;
+    }
+
+    // The reduction ed25519VerifyHram used to do
+    @Benchmark
+    public byte[] bigIntegerReduce() {
+        byte[] hramBigEndian = new byte[64];
+        for (int i = 0; i < 64; i++) {
+            hramBigEndian[i] = hram[63 - i];
+        }
+        byte[] reducedBigEndian = new BigInteger(1, hramBigEndian).mod(ORDER).toByteArray();
+        byte[] reduced = new byte[32];
+        for (int i = 0; i < 32 && i < reducedBigEndian.length; i++) {
+            reduced[i] = reducedBigEndian[reducedBigEndian.length - 1 - i];
+        }
+        return reduced;
+    }
+}
@@ -0,0 +1,33 @@
+package io.flic.flic2libandroid;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+// Cold start cost: every fork is a new JVM, so the single measured call includes loading and initializing Flic2Crypto
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(20)
+@Warmup(iterations = 0)
+@Measurement(iterations = 1)
+public class StartupBenchmark {
+    // The crypto a session does when it receives a quick verify response, which is the first use of Flic2Crypto
+    // when connecting to an already paired button
+    @Benchmark
+    public int[] firstQuickVerify() {
+        byte[] pairingKey = new byte[16];
+        byte[] data = new byte[16];
+        return Flic2Crypto.chaskeyGenerateSubkeys(Flic2Crypto.chaskey16Bytes(Flic2Crypto.chaskeyGenerateSubkeys(pairingKey), data));
+    }
+
+    @Benchmark
+    public int firstFullVerify() {
+        return Flic2Crypto.ed25519VerifyHram(new byte[64], new byte[64]);
+    }
+}
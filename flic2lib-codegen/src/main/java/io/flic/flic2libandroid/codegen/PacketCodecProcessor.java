@@ -0,0 +1,469 @@
+package io.flic.flic2libandroid.codegen;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.annotation.processing.AbstractProcessor;
+import javax.annotation.processing.RoundEnvironment;
+import javax.annotation.processing.SupportedAnnotationTypes;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.AnnotationMirror;
+import javax.lang.model.element.AnnotationValue;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ExecutableElement;
+import javax.lang.model.element.Modifier;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.element.VariableElement;
+import javax.lang.model.type.DeclaredType;
+import javax.lang.model.util.ElementFilter;
+import javax.tools.Diagnostic;
+import javax.tools.JavaFileObject;
+
+/**
+ * Generates io.flic.flic2libandroid.PacketCodecs from the packet classes annotated with Codec.Tx and Codec.Rx.
+ *
+ * <p>Each packet gets one encode or decode method in which every field is read or written at an offset that is known
+ * at compile time. Consecutive bit fields are combined into one int or long that is stored or loaded a byte at a
+ * time, the same LSB first layout as TxPacket.Writer and RxPacket.Reader. An encode method that takes any TxPacket
+ * dispatches to the right encoder, for TxPacket.CodecTxPacket.writeTo. The annotations are matched by name, so the
+ * processor does not depend on the library.</p>
+ */
+@SupportedAnnotationTypes({PacketCodecProcessor.TX, PacketCodecProcessor.RX})
+public class PacketCodecProcessor extends AbstractProcessor {
+    static final String PACKAGE = "io.flic.flic2libandroid";
+    static final String TX = PACKAGE + ".Codec.Tx";
+    static final String RX = PACKAGE + ".Codec.Rx";
+    private static final String CODEC_TX_PACKET = PACKAGE + ".TxPacket.CodecTxPacket";
+    private static final String BITS = PACKAGE + ".Codec.Bits";
+    private static final String BYTES = PACKAGE + ".Codec.Bytes";
+    private static final String CLASS_NAME = "PacketCodecs";
+    private static final int REST = -1;
+
+    private static class Field {
+        VariableElement element;
+        String name;
+        String type;
+        int width; // Bits only
+        int pad;
+        int shift; // Within the group
+        int bytes; // Bytes only, REST for the remainder of the packet
+        int byteOffset;
+    }
+
+    // Bit fields that start and end on byte boundaries, or a single Bytes field
+    private static class Group {
+        int byteOffset;
+        int bits;
+        List<Field> fields = new ArrayList<>();
+        Field byteField;
+
+        int byteLength() {
+            return (bits + 7) >> 3;
+        }
+    }
+
+    private static class Layout {
+        List<Group> groups = new ArrayList<>();
+        int fixedLength;
+        Field rest;
+    }
+
+    private boolean generated;
+
+    @Override
+    public SourceVersion getSupportedSourceVersion() {
+        return SourceVersion.latestSupported();
+    }
+
+    @Override
+    public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment roundEnv) {
+        if (generated || annotations.isEmpty()) {
+            return false;
+        }
+        generated = true;
+
+        List<TypeElement> txTypes = new ArrayList<>();
+        List<TypeElement> rxTypes = new ArrayList<>();
+        for (TypeElement annotation : annotations) {
+            boolean tx = annotation.getQualifiedName().contentEquals(TX);
+            for (Element e : roundEnv.getElementsAnnotatedWith(annotation)) {
+                (tx ? txTypes : rxTypes).add((TypeElement)e);
+            }
+        }
+
+        StringBuilder body = new StringBuilder();
+        boolean[] imports = new boolean[2]; // Arrays, StandardCharsets
+        List<Element> originating = new ArrayList<>();
+        boolean ok = true;
+        for (TypeElement type : txTypes) {
+            if (!extendsCodecTxPacket(type)) {
+                error(type, "Codec.Tx packets must extend TxPacket.CodecTxPacket");
+                ok = false;
+                continue;
+            }
+            Layout layout = layout(type, 1);
+            if (layout == null) {
+                ok = false;
+                continue;
+            }
+            writeEncoder(body, type, layout, imports);
+            originating.add(type);
+        }
+        if (!txTypes.isEmpty()) {
+            writeEncodeDispatch(body, txTypes);
+        }
+        for (TypeElement type : rxTypes) {
+            Layout layout = layout(type, 0);
+            if (layout == null) {
+                ok = false;
+                continue;
+            }
+            writeDecoder(body, type, layout, imports);
+            originating.add(type);
+        }
+        if (!ok) {
+            return true;
+        }
+
+        StringBuilder out = new StringBuilder();
+        out.append("package ").append(PACKAGE).append(";\n\n");
+        if (imports[1]) {
+            out.append("import java.nio.charset.StandardCharsets;\n");
+        }
+        if (imports[0]) {
+            out.append("import java.util.Arrays;\n");
+        }
+        if (imports[0] || imports[1]) {
+            out.append("\n");
+        }
+        out.append("// Generated by ").append(getClass().getName()).append(" from the Codec annotations in Packets.java.\n");
+        out.append("// Do not edit.\n");
+        out.append("final class ").append(CLASS_NAME).append(" {\n");
+        out.append("    private ").append(CLASS_NAME).append("() {\n    }\n");
+        out.append(body);
+        out.append("}\n");
+
+        try {
+            JavaFileObject file = processingEnv.getFiler().createSourceFile(PACKAGE + "." + CLASS_NAME, originating.toArray(new Element[0]));
+            try (Writer w = file.openWriter()) {
+                w.write(out.toString());
+            }
+        } catch (IOException e) {
+            processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR, "Could not write " + CLASS_NAME + ": " + e);
+        }
+        return true;
+    }
+
+    // Returns null after reporting an error. firstByte is where the payload starts, after the opcode for Tx.
+    private Layout layout(TypeElement type, int firstByte) {
+        Layout layout = new Layout();
+        int bitPos = firstByte * 8;
+        Group group = null;
+        for (VariableElement element : ElementFilter.fieldsIn(type.getEnclosedElements())) {
+            if (element.getModifiers().contains(Modifier.STATIC)) {
+                continue;
+            }
+            Field f = new Field();
+            f.element = element;
+            f.name = element.getSimpleName().toString();
+            f.type = element.asType().toString();
+            AnnotationMirror bits = annotation(element, BITS);
+            AnnotationMirror bytes = annotation(element, BYTES);
+            if (layout.rest != null) {
+                return error(element, "fields after a Bytes.REST field are not allowed");
+            }
+            if (bits != null) {
+                f.width = intValue(bits, "value", 0);
+                f.pad = intValue(bits, "pad", 0);
+                int typeBits = typeBits(f.type);
+                if (typeBits == 0) {
+                    return error(element, "Bits fields must be of a primitive integer type or boolean, not " + f.type);
+                }
+                if (f.width < 1 || f.width > typeBits || f.pad < 0) {
+                    return error(element, "invalid width " + f.width + " or pad " + f.pad + " for " + f.type);
+                }
+                if (group == null) {
+                    group = new Group();
+                    group.byteOffset = bitPos >> 3;
+                    layout.groups.add(group);
+                }
+                f.shift = bitPos - group.byteOffset * 8;
+                group.fields.add(f);
+                bitPos += f.width + f.pad;
+                group.bits = bitPos - group.byteOffset * 8;
+                if (group.bits > 64) {
+                    return error(element, "bit fields that do not end on a byte boundary within 64 bits are not supported");
+                }
+                if ((bitPos & 7) == 0) {
+                    group = null;
+                }
+            } else if (bytes != null) {
+                if ((bitPos & 7) != 0) {
+                    return error(element, "Bytes fields must start on a byte boundary");
+                }
+                f.bytes = intValue(bytes, "value", 0);
+                f.byteOffset = bitPos >> 3;
+                if (f.bytes == REST) {
+                    if (!f.type.equals("byte[]") && !f.type.equals("java.lang.String")) {
+                        return error(element, "Bytes.REST fields must be byte[] or String");
+                    }
+                    layout.rest = f;
+                } else {
+                    if (!f.type.equals("byte[]") || f.bytes < 1) {
+                        return error(element, "fixed Bytes fields must be byte[] with a positive length");
+                    }
+                    Group g = new Group();
+                    g.byteOffset = f.byteOffset;
+                    g.bits = f.bytes * 8;
+                    g.byteField = f;
+                    layout.groups.add(g);
+                    bitPos += f.bytes * 8;
+                }
+            } else {
+                return error(element, "packet fields need a Codec.Bits or Codec.Bytes annotation");
+            }
+        }
+        layout.fixedLength = (bitPos + 7) >> 3;
+        return layout;
+    }
+
+    private void writeEncoder(StringBuilder out, TypeElement type, Layout layout, boolean[] imports) {
+        int opcode = intValue(annotation(type, TX), "value", 0);
+        out.append("\n    static int encode(").append(relativeName(type)).append(" p, byte[] buf, int offset) {\n");
+        out.append("        buf[offset] = (byte)").append(opcodeName(type, opcode)).append(";\n");
+        for (Group g : layout.groups) {
+            if (g.byteField != null) {
+                out.append("        System.arraycopy(p.").append(g.byteField.name).append(", 0, buf, ").append(index("offset", g.byteOffset)).append(", ").append(g.byteField.bytes).append(");\n");
+                continue;
+            }
+            boolean isLong = g.byteLength() > 4;
+            String value;
+            Field first = g.fields.get(0);
+            if (g.fields.size() == 1 && first.type.equals("boolean") && g.bits == 8 && first.width == 8) {
+                out.append("        buf[").append(index("offset", g.byteOffset)).append("] = p.").append(first.name).append(" ? (byte)1 : (byte)0;\n");
+                continue;
+            }
+            StringBuilder expr = new StringBuilder();
+            for (Field f : g.fields) {
+                if (expr.length() != 0) {
+                    expr.append(" | ");
+                }
+                expr.append(encodeTerm(f, g, isLong));
+            }
+            if (g.fields.size() == 1 && expr.toString().equals("p." + first.name)) {
+                value = expr.toString();
+            } else {
+                value = "g" + g.byteOffset;
+                out.append("        ").append(isLong ? "long " : "int ").append(value).append(" = ").append(expr).append(";\n");
+            }
+            for (int i = 0; i < g.byteLength(); i++) {
+                out.append("        buf[").append(index("offset", g.byteOffset + i)).append("] = (byte)");
+                out.append(i == 0 ? value : "(" + value + " >> " + (i * 8) + ")").append(";\n");
+            }
+        }
+        String length = String.valueOf(layout.fixedLength);
+        if (layout.rest != null) {
+            String src = "p." + layout.rest.name;
+            if (layout.rest.type.equals("java.lang.String")) {
+                imports[1] = true;
+                src = layout.rest.name + "Bytes";
+                out.append("        byte[] ").append(src).append(" = p.").append(layout.rest.name).append(".getBytes(StandardCharsets.UTF_8);\n");
+            }
+            out.append("        System.arraycopy(").append(src).append(", 0, buf, ").append(index("offset", layout.fixedLength)).append(", ").append(src).append(".length);\n");
+            length += " + " + src + ".length";
+        }
+        out.append("        return ").append(length).append(";\n");
+        out.append("    }\n");
+    }
+
+    // Called by CodecTxPacket.writeTo, so that the packet classes do not need one override each
+    private void writeEncodeDispatch(StringBuilder out, List<TypeElement> txTypes) {
+        out.append("\n    static int encode(TxPacket p, byte[] buf, int offset) {\n");
+        for (TypeElement type : txTypes) {
+            String name = relativeName(type);
+            out.append("        if (p instanceof ").append(name).append(") {\n");
+            out.append("            return encode((").append(name).append(")p, buf, offset);\n");
+            out.append("        }\n");
+        }
+        out.append("        throw new IllegalArgumentException(\"No codec for \" + p.getClass().getName());\n");
+        out.append("    }\n");
+    }
+
+    private static boolean extendsCodecTxPacket(TypeElement type) {
+        TypeElement t = type;
+        while (t.getSuperclass() instanceof DeclaredType) {
+            t = (TypeElement)((DeclaredType)t.getSuperclass()).asElement();
+            if (t.getQualifiedName().contentEquals(CODEC_TX_PACKET)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // The field masked to its width, when there are other bits above it, and shifted into place
+    private static String encodeTerm(Field f, Group g, boolean isLong) {
+        String term;
+        boolean needsMask = f.shift + f.width < g.byteLength() * 8;
+        if (f.type.equals("boolean")) {
+            term = "(p." + f.name + (isLong ? " ? 1L : 0L)" : " ? 1 : 0)");
+        } else if (!needsMask) {
+            term = (!isLong && f.type.equals("long") ? "(int)" : "") + "p." + f.name;
+        } else {
+            term = "(" + (!isLong && f.type.equals("long") ? "(int)" : "") + "p." + f.name + " & " + mask(f.width, isLong) + ")";
+        }
+        if (f.shift != 0) {
+            term = "(" + (isLong && !f.type.equals("long") && !term.endsWith("L)") ? "(long)" : "") + term + " << " + f.shift + ")";
+        }
+        return term;
+    }
+
+    private void writeDecoder(StringBuilder out, TypeElement type, Layout layout, boolean[] imports) {
+        int opcode = intValue(annotation(type, RX), "value", 0);
+        out.append("\n    // ").append(opcodeName(type, opcode)).append("\n");
+        out.append("    static void decode(").append(relativeName(type)).append(" p, byte[] buf, int off, int len) throws RxPacket.UnexpectedEndOfPacketException {\n");
+        if (layout.fixedLength > 0) {
+            out.append("        if (len < ").append(layout.fixedLength).append(") {\n");
+            out.append("            throw new RxPacket.UnexpectedEndOfPacketException();\n");
+            out.append("        }\n");
+        }
+        for (Group g : layout.groups) {
+            if (g.byteField != null) {
+                imports[0] = true;
+                out.append("        p.").append(g.byteField.name).append(" = Arrays.copyOfRange(buf, ").append(index("off", g.byteOffset)).append(", ").append(index("off", g.byteOffset + g.byteField.bytes)).append(");\n");
+                continue;
+            }
+            int n = g.byteLength();
+            boolean isLong = n > 4;
+            Field first = g.fields.get(0);
+            if (g.fields.size() == 1 && first.type.equals("boolean") && n == 1 && first.width == 8) {
+                out.append("        p.").append(first.name).append(" = buf[").append(index("off", g.byteOffset)).append("] != 0;\n");
+                continue;
+            }
+            StringBuilder load = new StringBuilder();
+            for (int i = 0; i < n; i++) {
+                if (i != 0) {
+                    load.append(" | ");
+                }
+                String b = "(buf[" + index("off", g.byteOffset + i) + "] & " + (isLong && i >= 3 ? "0xffL)" : "0xff)");
+                load.append(i == 0 ? b : "(" + b + " << " + (i * 8) + ")");
+            }
+            String value;
+            if (g.fields.size() == 1 && first.shift == 0) {
+                value = n == 1 ? load.toString() : "(" + load + ")";
+            } else {
+                value = "g" + g.byteOffset;
+                out.append("        ").append(isLong ? "long " : "int ").append(value).append(" = ").append(load).append(";\n");
+            }
+            for (Field f : g.fields) {
+                out.append("        p.").append(f.name).append(" = ").append(decodeTerm(f, g, value, isLong)).append(";\n");
+            }
+        }
+        if (layout.rest != null) {
+            String start = index("off", layout.fixedLength);
+            if (layout.rest.type.equals("java.lang.String")) {
+                imports[1] = true;
+                out.append("        p.").append(layout.rest.name).append(" = new String(buf, ").append(start).append(", ").append(layout.fixedLength == 0 ? "len" : "len - " + layout.fixedLength).append(", StandardCharsets.UTF_8);\n");
+            } else {
+                imports[0] = true;
+                out.append("        p.").append(layout.rest.name).append(" = Arrays.copyOfRange(buf, ").append(start).append(", off + len);\n");
+            }
+        }
+        out.append("    }\n");
+    }
+
+    // The field shifted down from the loaded group, masked when there are other bits above it
+    private static String decodeTerm(Field f, Group g, String value, boolean isLong) {
+        boolean needsMask = f.shift + f.width < g.byteLength() * 8;
+        String term = value;
+        if (f.shift != 0) {
+            term = "(" + term + " >>> " + f.shift + ")";
+        }
+        if (needsMask) {
+            term = "(" + term + " & " + mask(f.width, isLong) + ")";
+        }
+        switch (f.type) {
+            case "boolean":
+                return term + " != 0";
+            case "long":
+                // Only a full 32 bit group can be negative as an int
+                return !isLong && !needsMask && f.shift == 0 && g.byteLength() == 4 ? term + " & 0xffffffffL" : term;
+            case "int":
+                return isLong ? "(int)" + term : term;
+            default:
+                return "(" + f.type + ")" + term;
+        }
+    }
+
+    private static String mask(int width, boolean isLong) {
+        return "0x" + Long.toHexString(width == 64 ? -1L : (1L << width) - 1) + (isLong ? "L" : "");
+    }
+
+    private static String index(String base, int offset) {
+        return offset == 0 ? base : base + " + " + offset;
+    }
+
+    private static int typeBits(String type) {
+        switch (type) {
+            case "boolean":
+                return 8;
+            case "byte":
+                return 8;
+            case "short":
+                return 16;
+            case "int":
+                return 32;
+            case "long":
+                return 64;
+            default:
+                return 0;
+        }
+    }
+
+    private String relativeName(TypeElement type) {
+        String name = type.getQualifiedName().toString();
+        return name.startsWith(PACKAGE + ".") ? name.substring(PACKAGE.length() + 1) : name;
+    }
+
+    // The constant in the enclosing TxPacket or RxPacket that has the opcode value, for readability
+    private String opcodeName(TypeElement type, int opcode) {
+        Element outer = type.getEnclosingElement();
+        String match = null;
+        for (VariableElement field : ElementFilter.fieldsIn(outer.getEnclosedElements())) {
+            if (field.getModifiers().contains(Modifier.STATIC) && Integer.valueOf(opcode).equals(field.getConstantValue())) {
+                if (match != null) {
+                    return String.valueOf(opcode);
+                }
+                match = outer.getSimpleName() + "." + field.getSimpleName();
+            }
+        }
+        return match != null ? match : String.valueOf(opcode);
+    }
+
+    private static AnnotationMirror annotation(Element element, String name) {
+        for (AnnotationMirror mirror : element.getAnnotationMirrors()) {
+            TypeElement annotationType = (TypeElement)mirror.getAnnotationType().asElement();
+            if (annotationType.getQualifiedName().contentEquals(name)) {
+                return mirror;
+            }
+        }
+        return null;
+    }
+
+    private static int intValue(AnnotationMirror mirror, String name, int defaultValue) {
+        for (Map.Entry<? extends ExecutableElement, ? extends AnnotationValue> e : mirror.getElementValues().entrySet()) {
+            if (e.getKey().getSimpleName().contentEquals(name)) {
+                return (Integer)e.getValue().getValue();
+            }
+        }
+        return defaultValue;
+    }
+
+    private Layout error(Element element, String message) {
+        processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR, message, element);
+        return null;
+    }
+}
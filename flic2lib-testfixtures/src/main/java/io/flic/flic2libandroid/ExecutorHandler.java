@@ -0,0 +1,102 @@
+package io.flic.flic2libandroid;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A {@link HandlerInterface} backed by a single thread, for running emulated buttons and loopback transports on a plain
+ * JVM where there is no Android looper.
+ *
+ * <p>Many emulators can share one handler. Call {@link #shutdown()} when done.</p>
+ */
+public class ExecutorHandler implements HandlerInterface {
+    private final ScheduledExecutorService executor;
+    private volatile Thread thread;
+
+    // Pending posts of every runnable, so that they can be removed
+    private final Map<Runnable, List<ScheduledFuture<?>>> pending = new HashMap<>();
+
+    /**
+     * Creates a handler with a new thread.
+     *
+     * @param name the name of the thread
+     */
+    public ExecutorHandler(final String name) {
+        ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, name);
+                t.setDaemon(true);
+                thread = t;
+                return t;
+            }
+        });
+        executor.setRemoveOnCancelPolicy(true);
+        this.executor = executor;
+    }
+
+    @Override
+    public void post(Runnable r) {
+        postDelayed(r, 0);
+    }
+
+    @Override
+    public void postDelayed(final Runnable r, long delayMillis) {
+        synchronized (pending) {
+            final ScheduledFuture<?>[] future = new ScheduledFuture<?>[1];
+            future[0] = executor.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    synchronized (pending) {
+                        List<ScheduledFuture<?>> list = pending.get(r);
+                        if (list == null || !list.remove(future[0])) {
+                            // Removed after it was started
+                            return;
+                        }
+                        if (list.isEmpty()) {
+                            pending.remove(r);
+                        }
+                    }
+                    r.run();
+                }
+            }, Math.max(delayMillis, 0), TimeUnit.MILLISECONDS);
+            List<ScheduledFuture<?>> list = pending.get(r);
+            if (list == null) {
+                list = new ArrayList<>(1);
+                pending.put(r, list);
+            }
+            list.add(future[0]);
+        }
+    }
+
+    @Override
+    public void removeCallbacks(Runnable r) {
+        synchronized (pending) {
+            List<ScheduledFuture<?>> list = pending.remove(r);
+            if (list != null) {
+                for (ScheduledFuture<?> future : list) {
+                    future.cancel(false);
+                }
+            }
+        }
+    }
+
+    @Override
+    public boolean currentThreadIsHandlerThread() {
+        return Thread.currentThread() == thread;
+    }
+
+    /**
+     * Stops the thread. Pending posts are dropped.
+     */
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+}
@@ -0,0 +1,743 @@
+package io.flic.flic2libandroid;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Emulates the button side of the Flic 2 protocol over a {@link Flic2Transport}, for load and latency testing without
+ * real buttons.
+ *
+ * <p>The emulator plays an already paired button. It answers quick verify requests for its pairing, signs and verifies
+ * all packets of the established session, and handles button event initialization, acknowledgements, pings, battery,
+ * name and firmware requests. Button presses are generated with {@link #buttonDown()} and {@link #buttonUp()} or
+ * scripted with {@link #play(Flic2PressScript)}, and are turned into the same down, up, click, double click and hold
+ * events as on a real button. Events that happen while no session is established are queued and delivered after the
+ * next button event initialization.</p>
+ *
+ * <p>Full verify, which is used when pairing, is not supported since it requires a button certificate signed by
+ * Shortcut Labs. Create the emulator with the pairing identifier and key that the app side already has stored.</p>
+ *
+ * <p>Connect an emulator to the app side with one end of a pair from
+ * {@link Flic2LoopbackTransport#createPair(HandlerInterface, HandlerInterface, boolean, int)}. All methods must be
+ * called on the thread of the emulator's handler, and the listener is called on that thread.</p>
+ */
+public class Flic2ButtonEmulator {
+    /**
+     * The time a button needs to be pressed to generate a hold event.
+     */
+    public static final int HOLD_TIME_MS = 1000;
+
+    /**
+     * The time after a click within which a new press makes it a double click.
+     */
+    public static final int DOUBLE_CLICK_TIMEOUT_MS = 500;
+
+    /**
+     * Receives the events of an emulator. This class should be overridden in order to get callbacks.
+     */
+    public static class Listener {
+        /**
+         * Called when the app side has passed quick verify and the session is established.
+         *
+         * @param emulator the emulator
+         */
+        public void onSessionEstablished(Flic2ButtonEmulator emulator) {
+        }
+
+        /**
+         * Called when an established session has ended, because the app side disconnected it, a packet had an invalid
+         * signature, or the emulator was disconnected.
+         *
+         * @param emulator the emulator
+         */
+        public void onSessionEnded(Flic2ButtonEmulator emulator) {
+        }
+
+        /**
+         * Called when the app side has acknowledged button events.
+         *
+         * @param emulator the emulator
+         * @param eventCount the event counter of the last acknowledged event
+         * @param latencyNanos the time from when the last acknowledged event happened until the acknowledgement arrived,
+         *                     or -1 if that event is not known
+         */
+        public void onEventsAcked(Flic2ButtonEmulator emulator, int eventCount, long latencyNanos) {
+        }
+
+        /**
+         * Called when the app side has responded to a ping sent with {@link #ping()}.
+         *
+         * @param emulator the emulator
+         * @param rttNanos the time from when the ping was sent until the response arrived
+         */
+        public void onPingResponse(Flic2ButtonEmulator emulator, long rttNanos) {
+        }
+    }
+
+    private static final int STATE_DISCONNECTED = 0;
+    private static final int STATE_WAIT_QUICK_VERIFY = 1;
+    private static final int STATE_SESSION_ESTABLISHED = 2;
+
+    private static final int SIGNATURE_LENGTH = 5;
+    private static final int MAX_RX_PACKET_LENGTH = 128;
+
+    // Fits in one L2CAP packet: opcode, event counter, 7 bytes per event and signature
+    private static final int MAX_EVENTS_PER_NOTIFICATION = (MAX_RX_PACKET_LENGTH - 1 - 4 - SIGNATURE_LENGTH) / 7;
+    private static final int MAX_QUEUED_EVENTS = 1024;
+
+    private static class Event {
+        int counter;
+        long timestamp; // 1/32768 s since boot
+        int encoded;
+        long createdNanos;
+    }
+
+    private final HandlerInterface handler;
+    private final int pairingId;
+    private final int[] pairingSubkeys;
+    private Random random = new Random();
+    private Listener listener = new Listener();
+
+    private int bootId;
+    private long bootNanos;
+    private int eventCount;
+    private String name = "";
+    private long nameTimestampUtcMs;
+    private int firmwareVersion = 10;
+    private int batteryLevel = 800;
+    private int autoDisconnectTime = 511;
+
+    private Flic2Transport transport;
+    private int state;
+    private int lastConnId;
+    private int connId;
+    private ChaskeyContext chaskey;
+    private byte[] pendingRxPacket;
+    private boolean eventsInitialized;
+    private long pingSentNanos;
+    private final byte[] txFrame = new byte[1 + TxPacket.MAX_LENGTH + SIGNATURE_LENGTH];
+
+    private int firmwareUpdateLength;
+    private int firmwareUpdatePos;
+    private int firmwareUpdateStatusInterval;
+    private int firmwareUpdateLastStatusPos;
+
+    // Events not yet delivered, and delivered events not yet acknowledged
+    private final ArrayDeque<Event> queuedEvents = new ArrayDeque<>();
+    private final ArrayDeque<Event> unackedEvents = new ArrayDeque<>();
+
+    private boolean pressed;
+    private boolean secondPress;
+    private Runnable holdRunnable;
+    private Runnable singleClickTimeoutRunnable;
+
+    /**
+     * Creates an emulated button that is paired with the given pairing.
+     *
+     * @param handler the handler the emulator runs on
+     * @param pairingId the pairing identifier
+     * @param pairingKey the 16 byte pairing key
+     */
+    public Flic2ButtonEmulator(HandlerInterface handler, int pairingId, byte[] pairingKey) {
+        this.handler = handler;
+        this.pairingId = pairingId;
+        this.pairingSubkeys = Flic2Crypto.chaskeyGenerateSubkeys(pairingKey);
+        reboot();
+    }
+
+    /**
+     * Sets the listener.
+     *
+     * @param listener the listener
+     */
+    public void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Sets the random generator for session randoms and boot ids, to make runs reproducible.
+     *
+     * @param random the random generator
+     */
+    public void setRandom(Random random) {
+        this.random = random;
+    }
+
+    /**
+     * Sets the name, as if it had been set by another app at the given time.
+     *
+     * @param name the name
+     * @param timestampUtcMs the time the name was set
+     */
+    public void setName(String name, long timestampUtcMs) {
+        this.name = name;
+        this.nameTimestampUtcMs = timestampUtcMs;
+    }
+
+    /**
+     * Returns the current name.
+     *
+     * @return the name
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Sets the firmware version that is reported.
+     *
+     * @param firmwareVersion the firmware version
+     */
+    public void setFirmwareVersion(int firmwareVersion) {
+        this.firmwareVersion = firmwareVersion;
+    }
+
+    /**
+     * Sets the battery level that is reported, in the raw unit of the button where 1024 is 3.6 V.
+     *
+     * @param batteryLevel the battery level
+     */
+    public void setBatteryLevel(int batteryLevel) {
+        this.batteryLevel = batteryLevel;
+    }
+
+    /**
+     * Returns the auto disconnect time last set by the app side.
+     *
+     * @return the auto disconnect time in seconds, where 511 means disabled
+     */
+    public int getAutoDisconnectTime() {
+        return autoDisconnectTime;
+    }
+
+    /**
+     * Returns the boot id, which changes every time the button reboots.
+     *
+     * @return the boot id
+     */
+    public int getBootId() {
+        return bootId;
+    }
+
+    /**
+     * Returns the event counter of the last button event.
+     *
+     * @return the event counter
+     */
+    public int getEventCount() {
+        return eventCount;
+    }
+
+    /**
+     * Returns the number of button events that have not yet been delivered to the app side.
+     *
+     * @return the number of events
+     */
+    public int getQueuedEventCount() {
+        return queuedEvents.size();
+    }
+
+    /**
+     * Returns whether a session is established with the app side.
+     *
+     * @return true if a session is established
+     */
+    public boolean isSessionEstablished() {
+        return state == STATE_SESSION_ESTABLISHED;
+    }
+
+    /**
+     * Simulates a reboot of the button, after which it has a new boot id and no queued events. Any connection is
+     * closed.
+     */
+    public void reboot() {
+        disconnect();
+        cancelPressTimers();
+        pressed = false;
+        bootId = random.nextInt();
+        bootNanos = System.nanoTime();
+        queuedEvents.clear();
+        unackedEvents.clear();
+    }
+
+    /**
+     * Starts to serve the app side over the given transport. The app side is expected to start with a quick verify
+     * request. Any previous connection is closed.
+     *
+     * @param transport the transport
+     */
+    public void connect(final Flic2Transport transport) {
+        disconnect();
+        this.transport = transport;
+        state = STATE_WAIT_QUICK_VERIFY;
+        transport.setListener(new Flic2Transport.Listener() {
+            @Override
+            public void onFrame(byte[] frame) {
+                if (Flic2ButtonEmulator.this.transport == transport) {
+                    onData(frame);
+                }
+            }
+
+            @Override
+            public void onCreditsReturned() {
+            }
+        });
+    }
+
+    /**
+     * Closes the current connection, if any.
+     */
+    public void disconnect() {
+        if (transport == null) {
+            return;
+        }
+        transport.close();
+        transport = null;
+        endSession();
+        state = STATE_DISCONNECTED;
+    }
+
+    /**
+     * Sends a ping to the app side, if a session is established. The round trip time is reported to
+     * {@link Listener#onPingResponse(Flic2ButtonEmulator, long)}.
+     */
+    public void ping() {
+        if (state != STATE_SESSION_ESTABLISHED) {
+            return;
+        }
+        pingSentNanos = System.nanoTime();
+        sendSignedPacket(startPacket(RxPacket.PING_REQUEST));
+    }
+
+    /**
+     * Presses the button.
+     */
+    public void buttonDown() {
+        if (pressed) {
+            return;
+        }
+        pressed = true;
+        // A press before the single click timeout turns the previous click into a double click
+        secondPress = singleClickTimeoutRunnable != null;
+        if (secondPress) {
+            handler.removeCallbacks(singleClickTimeoutRunnable);
+            singleClickTimeoutRunnable = null;
+        }
+        addEvent(1, 1);
+        holdRunnable = new Runnable() {
+            @Override
+            public void run() {
+                holdRunnable = null;
+                addEvent(2, secondPress ? 7 : 3);
+            }
+        };
+        handler.postDelayed(holdRunnable, HOLD_TIME_MS);
+    }
+
+    /**
+     * Releases the button.
+     */
+    public void buttonUp() {
+        if (!pressed) {
+            return;
+        }
+        pressed = false;
+        boolean wasHold = holdRunnable == null;
+        if (!wasHold) {
+            handler.removeCallbacks(holdRunnable);
+            holdRunnable = null;
+        }
+        addEvent(3, 8 | (wasHold ? 4 : 0) | (secondPress ? 3 : 0));
+        if (!wasHold && !secondPress) {
+            singleClickTimeoutRunnable = new Runnable() {
+                @Override
+                public void run() {
+                    singleClickTimeoutRunnable = null;
+                    addEvent(0, 2);
+                }
+            };
+            handler.postDelayed(singleClickTimeoutRunnable, DOUBLE_CLICK_TIMEOUT_MS);
+        }
+    }
+
+    /**
+     * Plays the presses of a script, starting now.
+     *
+     * @param script the script
+     */
+    public void play(Flic2PressScript script) {
+        long[] times = script.getToggleTimes();
+        for (int i = 0; i < times.length; i++) {
+            final boolean down = (i & 1) == 0;
+            handler.postDelayed(new Runnable() {
+                @Override
+                public void run() {
+                    if (down) {
+                        buttonDown();
+                    } else {
+                        buttonUp();
+                    }
+                }
+            }, times[i]);
+        }
+    }
+
+    private void cancelPressTimers() {
+        if (holdRunnable != null) {
+            handler.removeCallbacks(holdRunnable);
+            holdRunnable = null;
+        }
+        if (singleClickTimeoutRunnable != null) {
+            handler.removeCallbacks(singleClickTimeoutRunnable);
+            singleClickTimeoutRunnable = null;
+        }
+    }
+
+    private long timestamp() {
+        return (System.nanoTime() - bootNanos) * 32768 / 1000000000L;
+    }
+
+    // The counter mod 4 is 1 for down, 2 for hold, 3 for up and 0 for single click timeout. Steps that do not
+    // happen, such as hold in a click, are skipped.
+    private void addEvent(int counterMod4, int encoded) {
+        int counter = eventCount + 1;
+        while ((counter & 3) != counterMod4) {
+            ++counter;
+        }
+        eventCount = counter;
+
+        Event event = new Event();
+        event.counter = counter;
+        event.timestamp = timestamp();
+        event.encoded = encoded;
+        event.createdNanos = System.nanoTime();
+
+        if (state == STATE_SESSION_ESTABLISHED && eventsInitialized) {
+            sendButtonNotification(new Event[]{event}, 0, 1, false);
+        } else {
+            if (queuedEvents.size() == MAX_QUEUED_EVENTS) {
+                queuedEvents.remove();
+            }
+            queuedEvents.add(event);
+        }
+    }
+
+    private void sendButtonNotification(Event[] events, int off, int len, boolean queued) {
+        TxPacket.Writer w = startPacket(RxPacket.BUTTON_NOTIFICATION);
+        w.i(events[off + len - 1].counter);
+        for (int i = off; i < off + len; i++) {
+            Event event = events[i];
+            w.bits(event.timestamp, 48);
+            w.bits(event.encoded, 4);
+            w.bitBool(queued);
+            w.bitBool(queued && i == events.length - 1);
+            w.bitsPadding(2);
+            if (unackedEvents.size() == MAX_QUEUED_EVENTS) {
+                unackedEvents.remove();
+            }
+            unackedEvents.add(event);
+        }
+        sendSignedPacket(w);
+    }
+
+    private void endSession() {
+        boolean wasEstablished = state == STATE_SESSION_ESTABLISHED;
+        state = transport != null ? STATE_WAIT_QUICK_VERIFY : STATE_DISCONNECTED;
+        connId = 0;
+        chaskey = null;
+        pendingRxPacket = null;
+        eventsInitialized = false;
+        firmwareUpdateLength = 0;
+        if (wasEstablished) {
+            listener.onSessionEnded(this);
+        }
+    }
+
+    private TxPacket.Writer startPacket(int opcode) {
+        TxPacket.Writer w = new TxPacket.Writer(txFrame, transport.isPacketOriented() ? 0 : 1);
+        w.opcode(opcode);
+        return w;
+    }
+
+    private void sendSignedPacket(TxPacket.Writer w) {
+        sendPacket(w, true, false);
+    }
+
+    // Mirrors the framing of the app side, with the newly assigned flag in the header when a logical connection id is
+    // handed out. The ring of a transport that cannot keep up throws when it runs out of credits.
+    private void sendPacket(TxPacket.Writer w, boolean signed, boolean newlyAssigned) {
+        boolean packetOriented = transport.isPacketOriented();
+        int headerLen = packetOriented ? 0 : 1;
+        int len = w.length();
+        if (signed) {
+            chaskey.sign(txFrame, headerLen, len, txFrame, headerLen + len);
+            len += SIGNATURE_LENGTH;
+        }
+        Flic2FrameRing ring = transport.getTxRing();
+        if (packetOriented) {
+            System.arraycopy(txFrame, 0, ring.claim(), 0, len);
+            ring.commit(len);
+        } else {
+            int header = connId | (newlyAssigned ? 1 << 5 : 0);
+            int maxFragmentLen = transport.getMtu() - 4;
+            for (int i = 0; i < len; i += maxFragmentLen) {
+                int n = Math.min(maxFragmentLen, len - i);
+                byte[] slot = ring.claim();
+                slot[0] = (byte) (header | (i + n < len ? 128 : 0));
+                System.arraycopy(txFrame, 1 + i, slot, 1, n);
+                ring.commit(1 + n);
+            }
+        }
+        transport.flush();
+    }
+
+    private void onData(byte[] value) {
+        if (!transport.isPacketOriented()) {
+            if (value.length < 2) {
+                return;
+            }
+            int packetConnId = value[0] & 0x1f;
+            boolean lastFragment = (value[0] & (1 << 7)) == 0;
+            if (packetConnId != connId) {
+                // To another logical connection
+                return;
+            }
+            if (pendingRxPacket == null) {
+                pendingRxPacket = Arrays.copyOfRange(value, 1, value.length);
+            } else {
+                if (pendingRxPacket.length + value.length - 1 > MAX_RX_PACKET_LENGTH) {
+                    pendingRxPacket = null;
+                    return;
+                }
+                byte[] p = Arrays.copyOf(pendingRxPacket, pendingRxPacket.length + value.length - 1);
+                System.arraycopy(value, 1, p, pendingRxPacket.length, value.length - 1);
+                pendingRxPacket = p;
+            }
+            if (!lastFragment) {
+                return;
+            }
+            value = pendingRxPacket;
+            pendingRxPacket = null;
+        }
+        if (value.length == 0) {
+            return;
+        }
+
+        int opcode = value[0] & 0xff;
+        int pktLen = value.length - 1;
+        try {
+            if (state == STATE_WAIT_QUICK_VERIFY) {
+                if (opcode == TxPacket.QUICK_VERIFY_REQUEST) {
+                    onQuickVerifyRequest(value, pktLen);
+                }
+                return;
+            }
+            if (state != STATE_SESSION_ESTABLISHED) {
+                return;
+            }
+            pktLen -= SIGNATURE_LENGTH;
+            if (pktLen < 0 || !chaskey.verify(value, 0, 1 + pktLen, value, 1 + pktLen)) {
+                endSession();
+                return;
+            }
+            onSignedPacket(opcode, new RxPacket.Reader(value, 1, pktLen));
+        } catch (RxPacket.UnexpectedEndOfPacketException e) {
+            // Ignored like on a real button
+        }
+    }
+
+    private void onQuickVerifyRequest(byte[] pkt, int pktLen) throws RxPacket.UnexpectedEndOfPacketException {
+        RxPacket.Reader r = new RxPacket.Reader(pkt, 1, pktLen);
+        byte[] clientRandom = r.ba(7);
+        int variants = r.b();
+        int tmpId = r.i();
+        int requestPairingId = r.i();
+
+        if (requestPairingId != pairingId || variants != 0) {
+            TxPacket.Writer w = startPacket(RxPacket.QUICK_VERIFY_NEGATIVE_RESPONSE);
+            w.i(tmpId);
+            sendPacket(w, false, false);
+            return;
+        }
+
+        byte[] buttonRandom = new byte[8];
+        random.nextBytes(buttonRandom);
+        byte[] data = new byte[16];
+        System.arraycopy(clientRandom, 0, data, 0, 7);
+        data[7] = (byte) variants;
+        System.arraycopy(buttonRandom, 0, data, 8, 8);
+        chaskey = ChaskeyContext.forButton(Flic2Crypto.chaskey16Bytes(pairingSubkeys, data));
+
+        if (!transport.isPacketOriented()) {
+            lastConnId = lastConnId % 31 + 1;
+            connId = lastConnId;
+        }
+        state = STATE_SESSION_ESTABLISHED;
+
+        TxPacket.Writer w = startPacket(RxPacket.QUICK_VERIFY_RESPONSE);
+        w.ba(buttonRandom);
+        w.i(tmpId);
+        sendPacket(w, true, true);
+        listener.onSessionEstablished(this);
+    }
+
+    private void onSignedPacket(int opcode, RxPacket.Reader r) throws RxPacket.UnexpectedEndOfPacketException {
+        TxPacket.Writer w;
+        switch (opcode) {
+            case TxPacket.INIT_BUTTON_EVENTS_LIGHT_REQUEST:
+                onInitButtonEvents(r);
+                break;
+            case TxPacket.ACK_BUTTON_EVENTS:
+                onAckButtonEvents(r.i());
+                break;
+            case TxPacket.PING_RESPONSE:
+                if (pingSentNanos != 0) {
+                    long rtt = System.nanoTime() - pingSentNanos;
+                    pingSentNanos = 0;
+                    listener.onPingResponse(this, rtt);
+                }
+                break;
+            case TxPacket.GET_BATTERY_LEVEL_REQUEST:
+                w = startPacket(RxPacket.GET_BATTERY_LEVEL_RESPONSE);
+                w.s(batteryLevel);
+                sendSignedPacket(w);
+                break;
+            case TxPacket.GET_NAME_REQUEST:
+                sendName(RxPacket.GET_NAME_RESPONSE);
+                break;
+            case TxPacket.SET_NAME_REQUEST: {
+                long timestampUtcMs = r.bits(47);
+                boolean forceUpdate = r.bitBool();
+                String newName = r.str(r.left());
+                if (forceUpdate || timestampUtcMs > nameTimestampUtcMs) {
+                    name = newName;
+                    nameTimestampUtcMs = timestampUtcMs;
+                }
+                sendName(RxPacket.SET_NAME_RESPONSE);
+                break;
+            }
+            case TxPacket.GET_FIRMWARE_VERSION_REQUEST:
+                w = startPacket(RxPacket.GET_FIRMWARE_VERSION_RESPONSE);
+                w.i(firmwareVersion);
+                sendSignedPacket(w);
+                break;
+            case TxPacket.START_FIRMWARE_UPDATE_REQUEST:
+                onStartFirmwareUpdate(r);
+                break;
+            case TxPacket.FIRMWARE_UPDATE_DATA_IND:
+                onFirmwareUpdateData(r.left());
+                break;
+            case TxPacket.SET_ADV_PARAMETERS_REQUEST:
+                sendSignedPacket(startPacket(RxPacket.SET_ADV_PARAMETERS_RESPONSE));
+                break;
+            case TxPacket.SET_AUTO_DISCONNECT_TIME_IND:
+                autoDisconnectTime = (int) r.bits(9);
+                break;
+            case TxPacket.DISCONNECT_VERIFIED_LINK_IND:
+                endSession();
+                break;
+            case TxPacket.FORCE_BT_DISCONNECT_IND:
+                if (firmwareUpdateLength != 0 && firmwareUpdatePos == firmwareUpdateLength) {
+                    // The button reboots into the new firmware when disconnected after an update
+                    reboot();
+                } else {
+                    disconnect();
+                }
+                break;
+            default:
+                // Connection parameters and anything else that has no response
+                break;
+        }
+    }
+
+    private void onInitButtonEvents(RxPacket.Reader r) throws RxPacket.UnexpectedEndOfPacketException {
+        int appEventCount = r.i();
+        int appBootId = r.i();
+        autoDisconnectTime = (int) r.bits(9);
+        int maxQueuedPackets = (int) r.bits(5);
+        int maxQueuedPacketsAge = (int) r.bits(20);
+
+        long now = timestamp();
+        while (!queuedEvents.isEmpty()) {
+            Event event = queuedEvents.peek();
+            boolean alreadyKnown = appBootId == bootId && event.counter - appEventCount <= 0;
+            boolean tooOld = now - event.timestamp > (long) maxQueuedPacketsAge * 32768;
+            if (!alreadyKnown && !tooOld && maxQueuedPackets != 0) {
+                break;
+            }
+            queuedEvents.remove();
+        }
+        boolean hasQueuedEvents = !queuedEvents.isEmpty();
+
+        boolean withBootId = appBootId != bootId;
+        TxPacket.Writer w = startPacket(withBootId ? RxPacket.INIT_BUTTON_EVENTS_RESPONSE_WITH_BOOT_ID : RxPacket.INIT_BUTTON_EVENTS_RESPONSE_WITHOUT_BOOT_ID);
+        w.bitBool(hasQueuedEvents);
+        w.bits(now, 47);
+        w.i(eventCount);
+        if (withBootId) {
+            w.i(bootId);
+        }
+        sendSignedPacket(w);
+        eventsInitialized = true;
+
+        if (hasQueuedEvents) {
+            Event[] events = queuedEvents.toArray(new Event[0]);
+            queuedEvents.clear();
+            for (int i = 0; i < events.length; i += MAX_EVENTS_PER_NOTIFICATION) {
+                sendButtonNotification(events, i, Math.min(MAX_EVENTS_PER_NOTIFICATION, events.length - i), true);
+            }
+        }
+    }
+
+    private void onAckButtonEvents(int ackedEventCount) {
+        long latency = -1;
+        while (!unackedEvents.isEmpty() && unackedEvents.peek().counter - ackedEventCount <= 0) {
+            Event event = unackedEvents.remove();
+            if (event.counter == ackedEventCount) {
+                latency = System.nanoTime() - event.createdNanos;
+            }
+        }
+        listener.onEventsAcked(this, ackedEventCount, latency);
+    }
+
+    private void sendName(int opcode) {
+        TxPacket.Writer w = startPacket(opcode);
+        w.bits(nameTimestampUtcMs, 48);
+        w.ba(name.getBytes(StandardCharsets.UTF_8));
+        sendSignedPacket(w);
+    }
+
+    // The firmware image is accepted without checking its signature, and positions are counted in 32 bit words
+    private void onStartFirmwareUpdate(RxPacket.Reader r) throws RxPacket.UnexpectedEndOfPacketException {
+        int len = r.s();
+        r.skip(8);
+        int statusInterval = r.s();
+        TxPacket.Writer w = startPacket(RxPacket.START_FIRMWARE_UPDATE_RESPONSE);
+        if (len == 0 || statusInterval == 0) {
+            // Invalid parameters
+            w.i(-1);
+        } else {
+            firmwareUpdateLength = len;
+            firmwareUpdatePos = 0;
+            firmwareUpdateStatusInterval = statusInterval;
+            firmwareUpdateLastStatusPos = 0;
+            w.i(0);
+        }
+        sendSignedPacket(w);
+    }
+
+    private void onFirmwareUpdateData(int chunkLen) {
+        if (firmwareUpdateLength == 0 || firmwareUpdatePos == firmwareUpdateLength) {
+            return;
+        }
+        firmwareUpdatePos = Math.min(firmwareUpdateLength, firmwareUpdatePos + chunkLen / 4);
+        if (firmwareUpdatePos == firmwareUpdateLength || firmwareUpdatePos - firmwareUpdateLastStatusPos >= firmwareUpdateStatusInterval) {
+            firmwareUpdateLastStatusPos = firmwareUpdatePos;
+            TxPacket.Writer w = startPacket(RxPacket.FIRMWARE_UPDATE_NOTIFICATION);
+            w.i(firmwareUpdatePos);
+            sendSignedPacket(w);
+        }
+    }
+}
@@ -0,0 +1,124 @@
+package io.flic.flic2libandroid;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * A timed sequence of button presses, played on an emulated button with
+ * {@link Flic2ButtonEmulator#play(Flic2PressScript)}.
+ *
+ * <p>A script is built by appending presses and pauses, for example
+ * {@code new Flic2PressScript().click().doubleClick().hold(1500).repeat(100)}. The same script can be played on many
+ * emulators at once.</p>
+ */
+public class Flic2PressScript {
+    private static final long CLICK_PRESS_MS = 80;
+    private static final long DOUBLE_CLICK_GAP_MS = 150;
+
+    // Alternating down and up times relative to the start
+    private long[] toggleTimes = new long[16];
+    private int toggleCount;
+    private long length;
+
+    /**
+     * Appends a press of the given duration.
+     *
+     * @param durationMs the time the button is held down
+     * @return this script
+     */
+    public Flic2PressScript press(long durationMs) {
+        if (toggleCount + 2 > toggleTimes.length) {
+            toggleTimes = Arrays.copyOf(toggleTimes, toggleTimes.length * 2);
+        }
+        toggleTimes[toggleCount++] = length;
+        length += durationMs;
+        toggleTimes[toggleCount++] = length;
+        return this;
+    }
+
+    /**
+     * Appends a pause.
+     *
+     * @param ms the time the button is left released
+     * @return this script
+     */
+    public Flic2PressScript pause(long ms) {
+        length += ms;
+        return this;
+    }
+
+    /**
+     * Appends a pause of random length, to spread out the load when many emulators play the same script.
+     *
+     * @param minMs the minimum length
+     * @param maxMs the maximum length
+     * @param random the random generator
+     * @return this script
+     */
+    public Flic2PressScript randomPause(long minMs, long maxMs, Random random) {
+        return pause(minMs + (long) (random.nextDouble() * (maxMs - minMs)));
+    }
+
+    /**
+     * Appends a single click, followed by a pause until the single click timeout has passed.
+     *
+     * @return this script
+     */
+    public Flic2PressScript click() {
+        return press(CLICK_PRESS_MS).pause(Flic2ButtonEmulator.DOUBLE_CLICK_TIMEOUT_MS + CLICK_PRESS_MS);
+    }
+
+    /**
+     * Appends a double click, followed by the same pause as after a single click.
+     *
+     * @return this script
+     */
+    public Flic2PressScript doubleClick() {
+        return press(CLICK_PRESS_MS).pause(DOUBLE_CLICK_GAP_MS).click();
+    }
+
+    /**
+     * Appends a press that is long enough to be a hold, followed by the same pause as after a single click.
+     *
+     * @param durationMs the time the button is held down, at least {@link Flic2ButtonEmulator#HOLD_TIME_MS}
+     * @return this script
+     */
+    public Flic2PressScript hold(long durationMs) {
+        return press(Math.max(durationMs, Flic2ButtonEmulator.HOLD_TIME_MS + CLICK_PRESS_MS)).pause(Flic2ButtonEmulator.DOUBLE_CLICK_TIMEOUT_MS + CLICK_PRESS_MS);
+    }
+
+    /**
+     * Makes the script consist of the given number of copies of what it contains now.
+     *
+     * @param times the number of copies
+     * @return this script
+     */
+    public Flic2PressScript repeat(int times) {
+        int count = toggleCount;
+        long scriptLength = length;
+        if (count * times > toggleTimes.length) {
+            toggleTimes = Arrays.copyOf(toggleTimes, count * times);
+        }
+        for (int i = 1; i < times; i++) {
+            for (int j = 0; j < count; j++) {
+                toggleTimes[toggleCount++] = toggleTimes[j] + i * scriptLength;
+            }
+            length += scriptLength;
+        }
+        return this;
+    }
+
+    /**
+     * Returns the total length of the script.
+     *
+     * @return the length in milliseconds
+     */
+    public long getLength() {
+        return length;
+    }
+
+    // Even indices are presses and odd indices are releases
+    long[] getToggleTimes() {
+        return Arrays.copyOf(toggleTimes, toggleCount);
+    }
+}